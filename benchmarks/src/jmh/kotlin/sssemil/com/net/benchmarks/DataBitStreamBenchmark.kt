@@ -0,0 +1,109 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.benchmarks
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import sssemil.com.net.structures.DataBitStream
+import java.util.concurrent.TimeUnit
+
+/**
+ * Primitive reads, scores are per value read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class DataBitStreamBenchmark {
+
+    private val data = PacketFixtures.payload(SIZE)
+
+    private val chunk = ByteArray(CHUNK_SIZE)
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    fun takeByte(blackhole: Blackhole) {
+        val stream = DataBitStream(data, 0, SIZE)
+        while (!stream.isEmpty()) {
+            blackhole.consume(stream.takeByte())
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE / Short.SIZE_BYTES)
+    fun takeShort(blackhole: Blackhole) {
+        val stream = DataBitStream(data, 0, SIZE)
+        while (!stream.isEmpty()) {
+            blackhole.consume(stream.takeShort())
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE / Int.SIZE_BYTES)
+    fun takeInt(blackhole: Blackhole) {
+        val stream = DataBitStream(data, 0, SIZE)
+        while (!stream.isEmpty()) {
+            blackhole.consume(stream.takeInt())
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE / Int.SIZE_BYTES)
+    fun takeIntLe(blackhole: Blackhole) {
+        val stream = DataBitStream(data, 0, SIZE)
+        while (!stream.isEmpty()) {
+            blackhole.consume(stream.takeIntLe())
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE / Long.SIZE_BYTES)
+    fun takeLong(blackhole: Blackhole) {
+        val stream = DataBitStream(data, 0, SIZE)
+        while (!stream.isEmpty()) {
+            blackhole.consume(stream.takeLong())
+        }
+    }
+
+    /**
+     * Nibbles are sub-byte reads, the slow path.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SIZE * 2)
+    fun takeNibble(blackhole: Blackhole) {
+        val stream = DataBitStream(data, 0, SIZE)
+        while (!stream.isEmpty()) {
+            blackhole.consume(stream.takeNibble())
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE / CHUNK_SIZE)
+    fun takeByteArray(blackhole: Blackhole) {
+        val stream = DataBitStream(data, 0, SIZE)
+        while (!stream.isEmpty()) {
+            stream.takeByteArray(chunk, 0, CHUNK_SIZE)
+            blackhole.consume(chunk)
+        }
+    }
+
+    companion object {
+
+        const val SIZE = 4096
+
+        private const val CHUNK_SIZE = 16
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.benchmarks
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import sssemil.com.net.packet.Ipv6Frame
+import sssemil.com.net.structures.DataBitStream
+import sssemil.com.net.structures.EssFrameDecoder
+import sssemil.com.net.structures.EssPacket
+import java.util.concurrent.TimeUnit
+
+/**
+ * Ingress decoding of a realistic ESS frame mix, see [PacketFixtures.essFrameMix]. Scores are per
+ * frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class EssPacketBenchmark {
+
+    private lateinit var frames: List<ByteArray>
+    private lateinit var stream: ByteArray
+    private lateinit var decoder: EssFrameDecoder
+    private var decoded = 0
+
+    @Setup
+    fun setUp() {
+        PacketFixtures.quietLogger()
+        frames = PacketFixtures.essFrameMix(FRAME_COUNT)
+        stream = PacketFixtures.concat(frames)
+        decoder = EssFrameDecoder(object : EssFrameDecoder.Listener {
+
+            override fun onPacket(packet: EssPacket) {
+                decoded += packet.type
+            }
+
+            override fun onTunFrame(flags: Short, proto: UShort, frame: Ipv6Frame) {
+                decoded += frame.view.nextHeader
+            }
+        })
+    }
+
+    /**
+     * Every frame decoded into the full object tree.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAME_COUNT)
+    fun parse(blackhole: Blackhole) {
+        for (frame in frames) {
+            blackhole.consume(EssPacket.parse(DataBitStream(frame, 0, frame.size)))
+        }
+    }
+
+    /**
+     * The streaming decoder, as used by the ESS socket, with TUN frames left undecoded.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAME_COUNT)
+    fun streamDecoder(): Int {
+        var position = 0
+        while (position < stream.size) {
+            val count = Math.min(READ_SIZE, stream.size - position)
+            decoder.feed(stream, position, count)
+            position += count
+        }
+        return decoded
+    }
+
+    companion object {
+
+        const val FRAME_COUNT = 256
+
+        /**
+         * Chunks of the stream fed at once, like socket reads that split frames.
+         */
+        private const val READ_SIZE = 16 * 1024
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.benchmarks
+
+import org.openjdk.jmh.annotations.*
+import sssemil.com.net.packet.IPv6
+import sssemil.com.net.packet.types.IpProtocol
+import sssemil.com.net.util.InternetChecksum
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class InternetChecksumBenchmark {
+
+    @Param("64", "512", "1400")
+    @JvmField
+    var payloadSize = 0
+
+    private lateinit var header: ByteArray
+    private lateinit var payload: ByteArray
+    private lateinit var segment: ByteBuffer
+    private lateinit var parent: IPv6
+
+    @Setup
+    fun setUp() {
+        PacketFixtures.quietLogger()
+        parent = PacketFixtures.ipv6(PacketFixtures.UDP, payloadSize)
+        header = PacketFixtures.payload(6, 1)
+        payload = PacketFixtures.payload(payloadSize)
+
+        // The same UDP segment, written at an odd offset of a direct buffer like a pooled frame.
+        segment = ByteBuffer.allocateDirect(1 + 8 + payloadSize)
+        segment.position(1)
+        segment.put(header).putShort(0).put(payload)
+    }
+
+    @Benchmark
+    fun calculateChecksum() = InternetChecksum.calculateChecksum(payload)
+
+    @Benchmark
+    fun checksumHelperArrays() = InternetChecksum.checksumHelper(header, payload, parent, IpProtocol.UDP)
+
+    @Benchmark
+    fun checksumHelperBuffer() = InternetChecksum.checksumHelper(segment, 1, 8 + payloadSize, parent, IpProtocol.UDP)
+}
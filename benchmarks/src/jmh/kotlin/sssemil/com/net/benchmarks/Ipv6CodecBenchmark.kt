@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.benchmarks
+
+import org.openjdk.jmh.annotations.*
+import sssemil.com.net.packet.IChecksummedPacket
+import sssemil.com.net.packet.IPacket
+import sssemil.com.net.packet.IPv6
+import sssemil.com.net.packet.Ipv6Frame
+import sssemil.com.net.structures.PacketBufferPool
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+
+/**
+ * IPv6 codec round trips for each transport protocol and a few payload sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class Ipv6CodecBenchmark {
+
+    @Param(PacketFixtures.ICMPV6, PacketFixtures.UDP, PacketFixtures.TCP)
+    @JvmField
+    var protocol = ""
+
+    @Param("64", "512", "1400")
+    @JvmField
+    var payloadSize = 0
+
+    private lateinit var packet: IPv6
+    private lateinit var transport: IPacket
+    private lateinit var data: ByteArray
+    private lateinit var dataBuffer: ByteBuffer
+
+    private val target = ByteBuffer.allocateDirect(PacketBufferPool.JUMBO_BUFFER_SIZE)
+    private val frame = Ipv6Frame()
+
+    @Setup
+    fun setUp() {
+        PacketFixtures.quietLogger()
+        packet = PacketFixtures.ipv6(protocol, payloadSize)
+        transport = packet.payload!!
+        data = packet.serialize()
+        dataBuffer = ByteBuffer.wrap(data)
+    }
+
+    /**
+     * Outgoing packets need their checksum computed, don't let the cached one short-cut it.
+     */
+    private fun resetChecksum() {
+        (transport as? IChecksummedPacket)?.checksum = 0
+        transport.resetChecksum()
+    }
+
+    @Benchmark
+    fun deserialize() = IPv6().deserialize(data, 0, data.size)
+
+    @Benchmark
+    fun serialize(): ByteArray {
+        resetChecksum()
+        return packet.serialize()
+    }
+
+    @Benchmark
+    fun serializeInto(): Int {
+        resetChecksum()
+        target.clear()
+        packet.serializeInto(target)
+        return target.position()
+    }
+
+    @Benchmark
+    fun clonePacket() = packet.clone()
+
+    /**
+     * What most protocols need from an incoming packet, without decoding it.
+     */
+    @Benchmark
+    fun viewHeaders(): Int {
+        frame.wrap(dataBuffer, 0, data.size)
+        val view = frame.view
+        return view.nextHeader + view.payloadLength + (frame.udp()?.destinationPort ?: 0) +
+                (frame.icmpv6()?.icmpType ?: 0)
+    }
+}
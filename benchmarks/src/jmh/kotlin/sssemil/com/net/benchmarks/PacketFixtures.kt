@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.benchmarks
+
+import sssemil.com.common.util.Logger
+import sssemil.com.net.packet.*
+import sssemil.com.net.packet.icmpv6.EchoRequestMessage
+import sssemil.com.net.structures.EssPacket
+import sssemil.com.net.structures.TunPacket
+import java.io.ByteArrayOutputStream
+import java.net.Inet6Address
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * Deterministic packets for the benchmarks, every run sees the same bytes.
+ */
+object PacketFixtures {
+
+    const val ICMPV6 = "ICMPV6"
+    const val UDP = "UDP"
+    const val TCP = "TCP"
+
+    val source = Inet6Address.getByName("fc00:1234:5678:9abc:def0:1234:5678:9abc") as Inet6Address
+    val destination = Inet6Address.getByName("fcff:4321:8765:cba9:0fed:4321:8765:cba9") as Inet6Address
+
+    /**
+     * Keeps the codecs' debug logging out of the measurements.
+     */
+    fun quietLogger() {
+        Logger.loggingLevel = Logger.Level.Error
+    }
+
+    fun payload(size: Int, seed: Long = size.toLong()) = ByteArray(size).also { Random(seed).nextBytes(it) }
+
+    /**
+     * @param protocol One of [ICMPV6], [UDP] or [TCP].
+     * @param payloadSize Number of bytes carried by the transport protocol.
+     */
+    fun ipv6(protocol: String, payloadSize: Int): IPv6 {
+        val data = Data(payload(payloadSize))
+        val transport = when (protocol) {
+            ICMPV6 -> ICMPv6(
+                icmpType = ICMPv6.MessageType.ECHO_REQUEST.type,
+                payload = EchoRequestMessage(0x1234, 1, data)
+            )
+            UDP -> UDP(sourcePort = 40000u, destinationPort = 12345u, payload = data)
+            TCP -> TCP(
+                sourcePort = 40000u,
+                destinationPort = 443u,
+                sequence = 0x01020304,
+                acknowledge = 0x05060708,
+                flags = 0x18,
+                windowSize = 0x7FFF,
+                payload = data
+            )
+            else -> throw IllegalArgumentException("Unknown protocol $protocol")
+        }
+        return IPv6().apply {
+            hopLimit = 64
+            nextHeader = IPv6.nextHeaderClassMap.entries.first { it.value().javaClass == transport.javaClass }.key
+            sourceAddress = source
+            destinationAddress = destination
+            payload = transport
+        }
+    }
+
+    fun tunFrame(packet: IPv6): ByteArray {
+        val tun = TunPacket(frame = packet).serialize()
+        return ByteBuffer.allocate(5 + tun.size)
+            .put(EssPacket.TYPE_TUN_PACKET)
+            .putInt(tun.size)
+            .put(tun)
+            .array()
+    }
+
+    fun mtuFrame(mtu: Int): ByteArray = ByteBuffer.allocate(5)
+        .put(EssPacket.TYPE_CONF_SET_MTU)
+        .putInt(mtu)
+        .array()
+
+    fun addressFrame(): ByteArray = ByteBuffer.allocate(1 + EssPacket.IPV6_ADDR_LENGTH)
+        .put(EssPacket.TYPE_CONF_ADD_IPV6_ADDRESS)
+        .put(source.address)
+        .array()
+
+    /**
+     * A shuffled mix of ESS frames roughly like a busy link: mostly full sized UDP, small pings,
+     * some mid sized TCP and the odd configuration frame.
+     */
+    fun essFrameMix(count: Int): List<ByteArray> {
+        val random = Random(count.toLong())
+        return (0 until count).map {
+            val pick = random.nextInt(100)
+            when {
+                pick < 60 -> tunFrame(ipv6(UDP, 1400))
+                pick < 85 -> tunFrame(ipv6(ICMPV6, 64))
+                pick < 95 -> tunFrame(ipv6(TCP, 512))
+                pick < 98 -> mtuFrame(1500)
+                else -> addressFrame()
+            }
+        }
+    }
+
+    fun concat(frames: List<ByteArray>): ByteArray = ByteArrayOutputStream().also { out ->
+        frames.forEach { out.write(it) }
+    }.toByteArray()
+}
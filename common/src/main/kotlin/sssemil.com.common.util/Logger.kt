@@ -16,70 +16,239 @@
 
 package sssemil.com.common.util
 
-import java.io.BufferedWriter
-import java.io.File
-import java.io.FileWriter
-import java.io.PrintWriter
+import java.io.*
 import java.text.SimpleDateFormat
 import java.util.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
 
+/**
+ * Checks the level before anything is built, pass a lambda to build the message only if it is
+ * logged, e.g. `Logger.d { "From above: $packet" }`.
+ *
+ * Records are queued in a lock-free ring and written by a background thread in batches, callers
+ * never wait for the console or the file. Records that find the ring full are dropped and
+ * counted in [dropped], errors included.
+ */
 object Logger {
 
+    @Volatile
     var loggingLevel = Level.Verbose
+
+    @Volatile
     var writeLogsToFile = false
 
+    /**
+     * Whether records name the class and line that logged them instead of the thread, which
+     * costs a stack trace per record.
+     */
+    @Volatile
+    var captureCaller = false
+
     private const val logFileName = "bridge.log"
 
-    private val logLock = Object()
-    private var logOut = PrintWriter(File(logFileName))
+    /**
+     * Records the ring holds, a power of two.
+     */
+    private const val RING_CAPACITY = 1 shl 13
+
+    /**
+     * How long the writer sleeps when the ring is empty.
+     */
+    private val IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10)
+
+    private val ring = AtomicReferenceArray<Record?>(RING_CAPACITY)
+
+    /**
+     * Next slot to claim, and next slot to write. Only the writer moves [head].
+     */
+    private val tail = AtomicLong()
+    private val head = AtomicLong()
+
+    /**
+     * Records that reached the console, and the file if enabled.
+     */
+    private val written = AtomicLong()
+
+    private val dropCount = AtomicLong()
+
+    @Volatile
+    private var logFile = File(logFileName)
+
+    /**
+     * Opened by the writer once there is something for it.
+     */
+    private var logOut: Writer? = null
+    private var logOutFile: File? = null
+
+    @Volatile
+    private var writer: Thread? = null
+
+    /**
+     * Records that found the ring full.
+     */
+    val dropped: Long
+        get() = dropCount.get()
+
+    fun isLoggable(level: Level) = loggingLevel.value >= level.value
+
+    fun v(msg: String) {
+        if (isLoggable(Level.Verbose)) enqueue(Level.Verbose, msg)
+    }
 
     fun d(msg: String) {
-        write(Logger.Level.Debug, msg)
+        if (isLoggable(Level.Debug)) enqueue(Level.Debug, msg)
     }
 
     fun i(msg: String) {
-        write(Logger.Level.Info, msg)
+        if (isLoggable(Level.Info)) enqueue(Level.Info, msg)
     }
 
     fun w(msg: String) {
-        write(Logger.Level.Warn, msg)
+        if (isLoggable(Level.Warn)) enqueue(Level.Warn, msg)
     }
 
     fun e(msg: String, tr: Throwable? = null) {
-        write(Logger.Level.Error, msg, tr)
+        if (isLoggable(Level.Error)) enqueue(Level.Error, msg, tr)
     }
 
-    private fun write(level: Level, msg: String? = null, tr: Throwable? = null) {
-        if (loggingLevel.value >= level.value) {
-            var msgWithInfo = "[${getDateString()}][${level.mark}][${getCallerClassName()}]: $msg"
+    inline fun v(msg: () -> String) {
+        if (isLoggable(Level.Verbose)) enqueue(Level.Verbose, msg())
+    }
 
-            tr?.let {
-                msgWithInfo += "${tr.message}"
-            }
+    inline fun d(msg: () -> String) {
+        if (isLoggable(Level.Debug)) enqueue(Level.Debug, msg())
+    }
 
-            (if (level == Logger.Level.Error) System.err else System.out).println(msgWithInfo)
-            tr?.printStackTrace()
+    inline fun i(msg: () -> String) {
+        if (isLoggable(Level.Info)) enqueue(Level.Info, msg())
+    }
 
-            if (writeLogsToFile) {
-                synchronized(logLock) {
-                    logOut.println(msgWithInfo)
-                    tr?.printStackTrace(logOut)
-                    logOut.flush()
-                }
+    inline fun w(msg: () -> String) {
+        if (isLoggable(Level.Warn)) enqueue(Level.Warn, msg())
+    }
+
+    inline fun e(tr: Throwable? = null, msg: () -> String) {
+        if (isLoggable(Level.Error)) enqueue(Level.Error, msg(), tr)
+    }
+
+    @PublishedApi
+    internal fun enqueue(level: Level, msg: String, tr: Throwable? = null) {
+        val caller = if (captureCaller) getCallerName() else Thread.currentThread().name
+        val record = Record(System.currentTimeMillis(), level, caller, msg, tr)
+
+        while (true) {
+            val slot = tail.get()
+            if (slot - head.get() >= RING_CAPACITY) {
+                dropCount.incrementAndGet()
+                break
+            }
+            if (tail.compareAndSet(slot, slot + 1)) {
+                ring.set((slot and (RING_CAPACITY - 1).toLong()).toInt(), record)
+                break
             }
         }
+
+        if (writer == null) {
+            startWriter()
+        }
     }
 
-    private fun getDateString(): String {
-        val calendar = Calendar.getInstance()
-        val dateFormat = SimpleDateFormat("dd-MM-yyyy HH:mm:ss")
-        return dateFormat.format(calendar.time)
+    /**
+     * Waits until everything logged so far is written, at most [timeoutMillis].
+     *
+     * @return Whether it was.
+     */
+    fun flush(timeoutMillis: Long = 1000): Boolean {
+        val target = tail.get()
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)
+        while (written.get() < target) {
+            if (System.nanoTime() - deadline > 0) return false
+            writer?.let { LockSupport.unpark(it) }
+            Thread.sleep(1)
+        }
+        return true
     }
 
     fun setOutputDirectory(rootFolder: File) {
         rootFolder.mkdirs()
-        val logFile = File(rootFolder, logFileName)
-        logOut = PrintWriter(BufferedWriter(FileWriter(logFile, true)))
+        logFile = File(rootFolder, logFileName)
+    }
+
+    @Synchronized
+    private fun startWriter() {
+        if (writer != null) return
+
+        writer = Thread(::drainForever, "logger").apply {
+            isDaemon = true
+            start()
+        }
+        Runtime.getRuntime().addShutdownHook(Thread { flush() })
+    }
+
+    private fun drainForever() {
+        val formatter = Formatter()
+        var reportedDrops = 0L
+
+        while (true) {
+            val out = StringBuilder()
+            val err = StringBuilder()
+            val file = StringBuilder()
+
+            var position = head.get()
+            while (position < tail.get()) {
+                val index = (position and (RING_CAPACITY - 1).toLong()).toInt()
+                // Claimed but not stored yet.
+                val record = ring.get(index) ?: break
+                ring.set(index, null)
+                position++
+
+                val text = formatter.format(record)
+                (if (record.level == Level.Error) err else out).append(text)
+                file.append(text)
+                // Frees the slot, the record is in the builders by now.
+                head.lazySet(position)
+            }
+
+            val drops = dropCount.get()
+            if (drops != reportedDrops) {
+                val text = formatter.format(
+                    Record(System.currentTimeMillis(), Level.Warn, "logger", "Dropped ${drops - reportedDrops} records!")
+                )
+                err.append(text)
+                file.append(text)
+                reportedDrops = drops
+            }
+
+            if (file.isEmpty()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS)
+                continue
+            }
+
+            if (out.isNotEmpty()) System.out.print(out)
+            if (err.isNotEmpty()) System.err.print(err)
+            if (writeLogsToFile) writeToFile(file)
+            written.lazySet(position)
+        }
+    }
+
+    private fun writeToFile(text: CharSequence) {
+        try {
+            val file = logFile
+            val out = logOut?.takeIf { logOutFile == file } ?: run {
+                logOut?.close()
+                BufferedWriter(FileWriter(file, true)).also {
+                    logOut = it
+                    logOutFile = file
+                }
+            }
+            out.append(text)
+            out.flush()
+        } catch (e: IOException) {
+            System.err.println("Couldn't write to ${logFile.absolutePath}: ${e.message}")
+        }
     }
 
     /**
@@ -87,7 +256,7 @@ object Logger {
      *
      * @return Caller class name
      */
-    private fun getCallerClassName() = getCaller()?.let {
+    private fun getCallerName() = getCaller()?.let {
         it.className + "(" + it.fileName + ":" + it.lineNumber + ")"
     } ?: "#"
 
@@ -96,12 +265,49 @@ object Logger {
      *
      * @return Caller class name
      */
-    private fun getCaller(): StackTraceElement? = Thread.currentThread().stackTrace.firstOrNull {
+    private fun getCaller(): StackTraceElement? = Throwable().stackTrace.firstOrNull {
         it.className != Logger::class.java.name
                 && it.className != Thread::class.java.name
                 && it.className != "dalvik.system.VMStack"
     }
 
+    private class Record(
+        val time: Long,
+        val level: Level,
+        val caller: String,
+        val msg: String,
+        val tr: Throwable? = null
+    )
+
+    /**
+     * Only used by the writer. The date is formatted once a second.
+     */
+    private class Formatter {
+
+        private val dateFormat = SimpleDateFormat("dd-MM-yyyy HH:mm:ss")
+        private var second = Long.MIN_VALUE
+        private var date = ""
+
+        fun format(record: Record): String {
+            val recordSecond = record.time / 1000
+            if (recordSecond != second) {
+                second = recordSecond
+                date = dateFormat.format(Date(record.time))
+            }
+
+            val text = StringBuilder()
+                .append('[').append(date).append("][").append(record.level.mark).append("][")
+                .append(record.caller).append("]: ").append(record.msg)
+            record.tr?.let {
+                text.append(it.message).append(System.lineSeparator())
+                val trace = StringWriter()
+                it.printStackTrace(PrintWriter(trace))
+                text.append(trace)
+            } ?: text.append(System.lineSeparator())
+            return text.toString()
+        }
+    }
+
     enum class Level(val value: Int, val mark: String) {
         Off(0, "-"),
         Error(1, "E"),
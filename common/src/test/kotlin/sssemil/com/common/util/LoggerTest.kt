@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.common.util
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.io.File
+import java.nio.file.Files
+
+class LoggerTest {
+
+    @Test
+    fun testLevel() {
+        val level = Logger.loggingLevel
+        try {
+            Logger.loggingLevel = Logger.Level.Info
+            var built = 0
+            Logger.d { "Never built ${built++}" }
+            Logger.i { "Built ${built++}" }
+            assertEquals(1, built)
+            assertFalse(Logger.isLoggable(Logger.Level.Debug))
+            assertTrue(Logger.isLoggable(Logger.Level.Warn))
+        } finally {
+            Logger.loggingLevel = level
+        }
+    }
+
+    @Test
+    fun testFile() {
+        val folder = Files.createTempDirectory("logger").toFile()
+        try {
+            Logger.setOutputDirectory(folder)
+            Logger.writeLogsToFile = true
+            Logger.captureCaller = true
+            Logger.w("First")
+            Logger.e("Second: ", IllegalStateException("broken"))
+            assertTrue(Logger.flush())
+
+            val lines = File(folder, "bridge.log").readLines()
+            val first = lines.indexOfFirst { it.endsWith("]: First") }
+            assertTrue(first >= 0)
+            assertTrue(lines[first].contains("[W][${LoggerTest::class.java.name}(LoggerTest.kt:"))
+            assertTrue(lines[first + 1].contains("[E]") && lines[first + 1].endsWith("]: Second: broken"))
+            assertEquals("java.lang.IllegalStateException: broken", lines[first + 2])
+        } finally {
+            Logger.writeLogsToFile = false
+            Logger.captureCaller = false
+            Logger.flush()
+            folder.deleteRecursively()
+        }
+    }
+}
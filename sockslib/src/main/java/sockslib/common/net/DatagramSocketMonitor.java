@@ -24,4 +24,30 @@ public interface DatagramSocketMonitor {
      * @param datagramPacket Received packet.
      */
     void onReceive(final DatagramPacket datagramPacket);
+
+    /**
+     * Monitors that only count bytes return false here, they get {@link #onSendCount(int)} and
+     * {@link #onReceiveCount(int)} instead of the packets.
+     *
+     * @return Whether the monitor needs the packets.
+     */
+    default boolean needsContent() {
+        return true;
+    }
+
+    /**
+     * Called instead of {@link #onSend(DatagramPacket)} if {@link #needsContent()} is false.
+     *
+     * @param length Length of the sent packet's data.
+     */
+    default void onSendCount(int length) {
+    }
+
+    /**
+     * Called instead of {@link #onReceive(DatagramPacket)} if {@link #needsContent()} is false.
+     *
+     * @param length Length of the received packet's data.
+     */
+    default void onReceiveCount(int length) {
+    }
 }
@@ -1,5 +1,7 @@
 package sockslib.common.net;
 
+import java.util.Arrays;
+
 /**
  * @author Youchao Feng
  * @version 1.0
@@ -8,4 +10,34 @@ package sockslib.common.net;
 public interface InputStreamMonitor {
 
     void onRead(byte[] b);
+
+    /**
+     * Called with the bytes read into {@code b}, which may be reused right after. By default the
+     * range is copied and passed to {@link #onRead(byte[])}, override this to avoid the copy.
+     *
+     * @param b   Buffer the bytes were read into.
+     * @param off Offset of the first byte read.
+     * @param len Number of bytes read.
+     */
+    default void onRead(byte[] b, int off, int len) {
+        onRead(Arrays.copyOfRange(b, off, off + len));
+    }
+
+    /**
+     * Monitors that only count bytes return false here, they get {@link #onReadCount(int)}
+     * instead of the bytes and nothing is copied or allocated for them.
+     *
+     * @return Whether the monitor needs the bytes that were read.
+     */
+    default boolean needsContent() {
+        return true;
+    }
+
+    /**
+     * Called instead of {@link #onRead(byte[], int, int)} if {@link #needsContent()} is false.
+     *
+     * @param count Number of bytes read.
+     */
+    default void onReadCount(int count) {
+    }
 }
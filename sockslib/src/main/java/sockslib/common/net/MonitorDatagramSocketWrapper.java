@@ -59,7 +59,11 @@ public class MonitorDatagramSocketWrapper extends DatagramSocket {
         originalDatagramSocket.send(p);
         if (monitors != null) {
             for (DatagramSocketMonitor monitor : monitors) {
-                monitor.onSend(p);
+                if (!monitor.needsContent()) {
+                    monitor.onSendCount(p.getLength());
+                } else {
+                    monitor.onSend(p);
+                }
             }
         }
     }
@@ -69,7 +73,11 @@ public class MonitorDatagramSocketWrapper extends DatagramSocket {
         originalDatagramSocket.receive(p);
         if (monitors != null) {
             for (DatagramSocketMonitor monitor : monitors) {
-                monitor.onReceive(p);
+                if (!monitor.needsContent()) {
+                    monitor.onReceiveCount(p.getLength());
+                } else {
+                    monitor.onReceive(p);
+                }
             }
         }
     }
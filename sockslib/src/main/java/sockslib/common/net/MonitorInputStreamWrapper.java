@@ -3,7 +3,6 @@ package sockslib.common.net;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -64,8 +63,9 @@ public class MonitorInputStreamWrapper extends InputStream {
     @Override
     public int read() throws IOException {
         int b = originalInputStream.read();
-        byte[] array = {(byte) b};
-        informMonitor(array);
+        if (b >= 0) {
+            informMonitor(b);
+        }
         return b;
     }
 
@@ -125,10 +125,18 @@ public class MonitorInputStreamWrapper extends InputStream {
         return length;
     }
 
-    private void informMonitor(byte[] bytes) {
+    private void informMonitor(int b) {
         if (monitors != null) {
+            byte[] bytes = null;
             for (InputStreamMonitor monitor : monitors) {
-                monitor.onRead(bytes);
+                if (!monitor.needsContent()) {
+                    monitor.onReadCount(1);
+                } else {
+                    if (bytes == null) {
+                        bytes = new byte[]{(byte) b};
+                    }
+                    monitor.onRead(bytes);
+                }
             }
         }
     }
@@ -136,7 +144,11 @@ public class MonitorInputStreamWrapper extends InputStream {
     private void informMonitor(byte[] bytes, int off, int len) {
         if (monitors != null) {
             for (InputStreamMonitor monitor : monitors) {
-                monitor.onRead(Arrays.copyOfRange(bytes, off, off + len));
+                if (!monitor.needsContent()) {
+                    monitor.onReadCount(len);
+                } else {
+                    monitor.onRead(bytes, off, len);
+                }
             }
         }
     }
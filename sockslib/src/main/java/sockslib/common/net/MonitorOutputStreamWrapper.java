@@ -3,7 +3,6 @@ package sockslib.common.net;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -65,8 +64,7 @@ public class MonitorOutputStreamWrapper extends OutputStream {
     @Override
     public void write(int b) throws IOException {
         originalOutputStream.write(b);
-        byte[] bytes = {(byte) b};
-        informMonitor(bytes);
+        informMonitor(b);
     }
 
     public List<OutputStreamMonitor> getMonitors() {
@@ -99,10 +97,30 @@ public class MonitorOutputStreamWrapper extends OutputStream {
         informMonitor(b);
     }
 
+    private void informMonitor(int b) {
+        if (monitors != null) {
+            byte[] bytes = null;
+            for (OutputStreamMonitor monitor : monitors) {
+                if (!monitor.needsContent()) {
+                    monitor.onWriteCount(1);
+                } else {
+                    if (bytes == null) {
+                        bytes = new byte[]{(byte) b};
+                    }
+                    monitor.onWrite(bytes);
+                }
+            }
+        }
+    }
+
     private void informMonitor(byte[] bytes) {
         if (monitors != null) {
             for (OutputStreamMonitor monitor : monitors) {
-                monitor.onWrite(bytes);
+                if (!monitor.needsContent()) {
+                    monitor.onWriteCount(bytes.length);
+                } else {
+                    monitor.onWrite(bytes);
+                }
             }
         }
     }
@@ -110,7 +128,11 @@ public class MonitorOutputStreamWrapper extends OutputStream {
     private void informMonitor(byte[] bytes, int off, int length) {
         if (monitors != null) {
             for (OutputStreamMonitor monitor : monitors) {
-                monitor.onWrite(Arrays.copyOfRange(bytes, off, off + length));
+                if (!monitor.needsContent()) {
+                    monitor.onWriteCount(length);
+                } else {
+                    monitor.onWrite(bytes, off, length);
+                }
             }
         }
     }
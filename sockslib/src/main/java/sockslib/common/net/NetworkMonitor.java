@@ -1,45 +1,153 @@
 package sockslib.common.net;
 
 import java.net.DatagramPacket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
+ * Counts the bytes sent and received over TCP and UDP, and the rate they are sent and received
+ * at. Threads counting at once don't contend, the totals are {@link LongAdder}s.
+ * <p>
+ * A monitor can have a parent it passes its counts on to, see {@link #newChild()}. The server
+ * keeps one monitor for all sessions and every session counts into a child of it, so each byte
+ * is counted once by the session and once by the server, never twice by either.
+ *
  * @author Youchao Feng
  * @version 1.0
  * @date Sep 23, 2015 11:20 AM
  */
 public class NetworkMonitor implements SocketMonitor, DatagramSocketMonitor {
 
-    private long receiveTCP = 0;
-    private long receiveUDP = 0;
-    private long sendTCP = 0;
-    private long sendUDP = 0;
+    /**
+     * Longest window the rates can be asked for, in seconds.
+     */
+    public static final int MAX_RATE_WINDOW = 60;
+
+    private final NetworkMonitor parent;
+
+    private final LongAdder receiveTCP = new LongAdder();
+    private final LongAdder receiveUDP = new LongAdder();
+    private final LongAdder sendTCP = new LongAdder();
+    private final LongAdder sendUDP = new LongAdder();
+
+    private final RateWindow receiveRate = new RateWindow();
+    private final RateWindow sendRate = new RateWindow();
+
+    public NetworkMonitor() {
+        this(null);
+    }
+
+    /**
+     * @param parent Counts everything this monitor counts too, may be null.
+     */
+    public NetworkMonitor(NetworkMonitor parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @return A monitor that counts into this one as well, e.g. for a single session.
+     */
+    public NetworkMonitor newChild() {
+        return new NetworkMonitor(this);
+    }
+
+    public NetworkMonitor getParent() {
+        return parent;
+    }
 
     @Override
     public void onRead(byte[] bytes) {
-        receiveTCP += bytes.length;
+        onReadTCP(bytes.length);
     }
 
     @Override
     public void onWrite(byte[] bytes) {
-        sendTCP += bytes.length;
+        onWriteTCP(bytes.length);
+    }
+
+    @Override
+    public void onRead(byte[] b, int off, int len) {
+        onReadTCP(len);
+    }
+
+    @Override
+    public void onWrite(byte[] b, int off, int len) {
+        onWriteTCP(len);
+    }
+
+    /**
+     * Only counts, the wrappers don't need to hand over any bytes.
+     */
+    @Override
+    public boolean needsContent() {
+        return false;
+    }
+
+    @Override
+    public void onReadCount(int count) {
+        onReadTCP(count);
+    }
+
+    @Override
+    public void onWriteCount(int count) {
+        onWriteTCP(count);
+    }
+
+    @Override
+    public void onSendCount(int length) {
+        onSendUDP(length);
+    }
+
+    @Override
+    public void onReceiveCount(int length) {
+        onReceiveUDP(length);
     }
 
     @Override
     public void onSend(DatagramPacket datagramPacket) {
-        sendUDP += datagramPacket.getLength();
+        onSendUDP(datagramPacket.getLength());
     }
 
     @Override
     public void onReceive(DatagramPacket datagramPacket) {
-        receiveUDP += datagramPacket.getLength();
+        onReceiveUDP(datagramPacket.getLength());
+    }
+
+    public void onReadTCP(int length) {
+        for (NetworkMonitor monitor = this; monitor != null; monitor = monitor.parent) {
+            monitor.receiveTCP.add(length);
+            monitor.receiveRate.add(length);
+        }
+    }
+
+    public void onWriteTCP(int length) {
+        for (NetworkMonitor monitor = this; monitor != null; monitor = monitor.parent) {
+            monitor.sendTCP.add(length);
+            monitor.sendRate.add(length);
+        }
+    }
+
+    public void onReceiveUDP(int length) {
+        for (NetworkMonitor monitor = this; monitor != null; monitor = monitor.parent) {
+            monitor.receiveUDP.add(length);
+            monitor.receiveRate.add(length);
+        }
+    }
+
+    public void onSendUDP(int length) {
+        for (NetworkMonitor monitor = this; monitor != null; monitor = monitor.parent) {
+            monitor.sendUDP.add(length);
+            monitor.sendRate.add(length);
+        }
     }
 
     public long getTotalReceive() {
-        return receiveTCP + receiveUDP;
+        return getReceiveTCP() + getReceiveUDP();
     }
 
     public long getTotalSend() {
-        return sendTCP + sendUDP;
+        return getSendTCP() + getSendUDP();
     }
 
     public long getTotal() {
@@ -47,28 +155,112 @@ public class NetworkMonitor implements SocketMonitor, DatagramSocketMonitor {
     }
 
     public long getReceiveTCP() {
-        return receiveTCP;
+        return receiveTCP.sum();
     }
 
     public long getReceiveUDP() {
-        return receiveUDP;
+        return receiveUDP.sum();
     }
 
     public long getSendTCP() {
-        return sendTCP;
+        return sendTCP.sum();
     }
 
     public long getSendUDP() {
-        return sendUDP;
+        return sendUDP.sum();
+    }
+
+    /**
+     * @param seconds Length of the window, up to {@link #MAX_RATE_WINDOW}.
+     * @return Bytes per second received over TCP and UDP in the last full seconds.
+     */
+    public double getReceiveRate(int seconds) {
+        return receiveRate.rate(seconds);
+    }
+
+    /**
+     * @param seconds Length of the window, up to {@link #MAX_RATE_WINDOW}.
+     * @return Bytes per second sent over TCP and UDP in the last full seconds.
+     */
+    public double getSendRate(int seconds) {
+        return sendRate.rate(seconds);
     }
 
     @Override
     public String toString() {
         return "NetworkMonitor{" +
-                "sendTCP=" + sendTCP +
-                ", receiveTCP=" + receiveTCP +
-                ", sendUDP=" + sendUDP +
-                ", receiveUDP=" + receiveUDP +
+                "sendTCP=" + getSendTCP() +
+                ", receiveTCP=" + getReceiveTCP() +
+                ", sendUDP=" + getSendUDP() +
+                ", receiveUDP=" + getReceiveUDP() +
                 '}';
     }
+
+    /**
+     * Bytes per second for the last {@link #MAX_RATE_WINDOW} seconds, one slot per second that is
+     * reused once the window moved past it.
+     * <p>
+     * Bytes added by another thread while a slot is reused may be lost, the rates are estimates
+     * while the totals are exact.
+     */
+    static final class RateWindow {
+
+        private static final int SLOTS = MAX_RATE_WINDOW + 1;
+
+        /**
+         * {@link System#nanoTime()} may be negative, seconds are counted from here.
+         */
+        private static final long START = System.nanoTime();
+
+        private final LongAdder[] bytes = new LongAdder[SLOTS];
+        private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+        RateWindow() {
+            for (int i = 0; i < SLOTS; i++) {
+                bytes[i] = new LongAdder();
+                seconds.set(i, -1);
+            }
+        }
+
+        void add(long length) {
+            add(currentSecond(), length);
+        }
+
+        void add(long second, long length) {
+            int slot = (int) (second % SLOTS);
+            long slotSecond = seconds.get(slot);
+            if (slotSecond < second && seconds.compareAndSet(slot, slotSecond, second)) {
+                bytes[slot].reset();
+            }
+            bytes[slot].add(length);
+        }
+
+        double rate(int window) {
+            return rate(currentSecond(), window);
+        }
+
+        /**
+         * Leaves the current second out, it is not over yet.
+         */
+        double rate(long now, int window) {
+            if (window < 1 || window > MAX_RATE_WINDOW) {
+                throw new IllegalArgumentException("Window must be between 1 and " + MAX_RATE_WINDOW + " seconds");
+            }
+            long sum = 0;
+            for (long second = now - window; second < now; second++) {
+                if (second < 0) {
+                    continue;
+                }
+                int slot = (int) (second % SLOTS);
+                if (seconds.get(slot) == second) {
+                    sum += bytes[slot].sum();
+                }
+            }
+            return (double) sum / window;
+        }
+
+        private static long currentSecond() {
+            return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - START);
+        }
+    }
 }
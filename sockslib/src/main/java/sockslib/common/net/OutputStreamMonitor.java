@@ -1,5 +1,7 @@
 package sockslib.common.net;
 
+import java.util.Arrays;
+
 /**
  * @author Youchao Feng
  * @version 1.0
@@ -8,4 +10,34 @@ package sockslib.common.net;
 public interface OutputStreamMonitor {
 
     void onWrite(byte[] bytes);
+
+    /**
+     * Called with the bytes written from {@code b}, which may be reused right after. By default
+     * the range is copied and passed to {@link #onWrite(byte[])}, override this to avoid the copy.
+     *
+     * @param b   Buffer the bytes were written from.
+     * @param off Offset of the first byte written.
+     * @param len Number of bytes written.
+     */
+    default void onWrite(byte[] b, int off, int len) {
+        onWrite(Arrays.copyOfRange(b, off, off + len));
+    }
+
+    /**
+     * Monitors that only count bytes return false here, they get {@link #onWriteCount(int)}
+     * instead of the bytes and nothing is copied or allocated for them.
+     *
+     * @return Whether the monitor needs the bytes that were written.
+     */
+    default boolean needsContent() {
+        return true;
+    }
+
+    /**
+     * Called instead of {@link #onWrite(byte[], int, int)} if {@link #needsContent()} is false.
+     *
+     * @param count Number of bytes written.
+     */
+    default void onWriteCount(int count) {
+    }
 }
@@ -7,4 +7,11 @@ package sockslib.common.net;
  */
 public interface SocketMonitor extends InputStreamMonitor, OutputStreamMonitor {
 
+    /**
+     * @return Whether the monitor needs the bytes read and written, or only their number.
+     */
+    @Override
+    default boolean needsContent() {
+        return true;
+    }
 }
@@ -359,7 +359,8 @@ public class BasicSocksProxyServer implements SocksProxyServer, Runnable {
     }
 
     protected Socket processSocketBeforeUse(Socket socket) {
-        return new MonitorSocketWrapper(socket, networkMonitor);
+        // Counts into the server's monitor too, the session takes it as its own.
+        return new MonitorSocketWrapper(socket, networkMonitor.newChild());
     }
 
     @Override
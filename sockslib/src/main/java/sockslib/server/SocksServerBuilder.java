@@ -11,13 +11,16 @@ import sockslib.server.listener.PipeInitializer;
 import sockslib.server.listener.SessionListener;
 import sockslib.server.manager.MemoryBasedUserManager;
 import sockslib.server.manager.UserManager;
+import sockslib.server.nio.NioSocksProxyServer;
 
 import java.net.InetAddress;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * The class <code>SocksServerBuilder</code> is a tool class to build an {@link SocksProxyServer}.
@@ -45,6 +48,7 @@ public class SocksServerBuilder {
     private SSLConfiguration sslConfiguration;
     private Map<String, SessionListener> sessionListeners = new HashMap<>();
     private PipeInitializer pipeInitializer;
+    private int selectorCount = 0;
 
     /**
      * Creates a <code>SocksServerBuilder</code> with a <code>Class<? extends {@link
@@ -230,6 +234,29 @@ public class SocksServerBuilder {
         return this;
     }
 
+    /**
+     * Builds a {@link NioSocksProxyServer} instead, which serves all sessions with a few
+     * selectors. It only supports the CONNECT command, no SSL, no proxy chain and no pipe
+     * initializer.
+     *
+     * @param selectorCount number of selectors, each one runs on a thread of its own.
+     * @return Instance of {@link SocksServerBuilder}.
+     */
+    public SocksServerBuilder useNio(int selectorCount) {
+        checkArgument(selectorCount > 0, "Argument [selectorCount] must be positive");
+        this.selectorCount = selectorCount;
+        return this;
+    }
+
+    /**
+     * Calls {@link #useNio(int)} with a selector per processor.
+     *
+     * @return Instance of {@link SocksServerBuilder}.
+     */
+    public SocksServerBuilder useNio() {
+        return useNio(Runtime.getRuntime().availableProcessors());
+    }
+
     /**
      * Builds a {@link SocksProxyServer} instance.
      *
@@ -237,7 +264,13 @@ public class SocksServerBuilder {
      */
     public SocksProxyServer build() {
         SocksProxyServer proxyServer = null;
-        if (sslConfiguration == null) {
+        if (selectorCount > 0) {
+            checkState(socksHandlerClass == Socks5Handler.class, "The NIO server only runs SOCKS5");
+            checkState(sslConfiguration == null, "The NIO server doesn't support SSL");
+            checkState(proxy == null, "The NIO server can't connect over a proxy");
+            checkState(pipeInitializer == null, "The NIO server doesn't relay through pipes");
+            proxyServer = new NioSocksProxyServer(selectorCount);
+        } else if (sslConfiguration == null) {
             proxyServer = new BasicSocksProxyServer(socksHandlerClass);
         } else {
             proxyServer = new SSLSocksProxyServer(socksHandlerClass, sslConfiguration);
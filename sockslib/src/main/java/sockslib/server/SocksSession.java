@@ -19,6 +19,7 @@ import org.slf4j.LoggerFactory;
 import sockslib.common.Credentials;
 import sockslib.common.net.MonitorSocketWrapper;
 import sockslib.common.net.NetworkMonitor;
+import sockslib.common.net.SocketMonitor;
 import sockslib.server.msg.ReadableMessage;
 import sockslib.server.msg.WritableMessage;
 
@@ -71,8 +72,11 @@ public class SocksSession implements Session {
             throw new IllegalArgumentException("Socket should be a connected socket");
         }
         if (socket instanceof MonitorSocketWrapper) {
-            networkMonitor = new NetworkMonitor();
-            ((MonitorSocketWrapper) socket).addMonitor(networkMonitor);
+            networkMonitor = findNetworkMonitor((MonitorSocketWrapper) socket);
+            if (networkMonitor == null) {
+                networkMonitor = new NetworkMonitor();
+                ((MonitorSocketWrapper) socket).addMonitor(networkMonitor);
+            }
         }
         this.id = id;
         this.socket = socket;
@@ -204,6 +208,23 @@ public class SocksSession implements Session {
         return networkMonitor;
     }
 
+    /**
+     * Finds a monitor made for this socket alone, a child of a shared one.
+     *
+     * @param socket Monitored socket.
+     * @return The monitor, or null if there is none.
+     */
+    private static NetworkMonitor findNetworkMonitor(MonitorSocketWrapper socket) {
+        if (socket.getMonitors() != null) {
+            for (SocketMonitor monitor : socket.getMonitors()) {
+                if (monitor instanceof NetworkMonitor && ((NetworkMonitor) monitor).getParent() != null) {
+                    return (NetworkMonitor) monitor;
+                }
+            }
+        }
+        return null;
+    }
+
     @Override
     public String toString() {
         return "SESSION[" + id + "]" + "@" + clientAddress;
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package sockslib.server.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The class <code>EventLoop</code> runs one selector on a thread of its own. Every
+ * {@link Socks5Connection} belongs to one loop and is only touched on its thread, other threads
+ * hand work over with {@link #execute(Runnable)}.
+ */
+final class EventLoop implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventLoop.class);
+
+    /**
+     * How often idle connections are looked for, in milliseconds.
+     */
+    private static final long SWEEP_INTERVAL = 1000;
+
+    private final Selector selector;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final long timeoutNanos;
+
+    private final Thread thread;
+
+    private volatile boolean stop = false;
+
+    /**
+     * Held for reading while tasks are queued, the loop takes it for writing once it stops taking
+     * them, so none is left behind in the queue.
+     */
+    private final ReadWriteLock tasksLock = new ReentrantReadWriteLock();
+
+    private boolean closed = false;
+
+    /**
+     * Constructs an {@link EventLoop}.
+     *
+     * @param name    Name of the loop's thread.
+     * @param daemon  <code>true</code> if the thread is a daemon thread.
+     * @param timeout Milliseconds a connection may stay idle, 0 to never close idle connections.
+     * @throws IOException If the selector can't be opened.
+     */
+    EventLoop(String name, boolean daemon, int timeout) throws IOException {
+        selector = Selector.open();
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        thread = new Thread(this, name);
+        thread.setDaemon(daemon);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the loop, it closes all of its connections on the way out.
+     */
+    void shutdown() {
+        stop = true;
+        selector.wakeup();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Runs the task on the loop's thread.
+     *
+     * @param task Task to run.
+     * @return <code>false</code> if the loop is gone and the task won't run.
+     */
+    boolean execute(Runnable task) {
+        tasksLock.readLock().lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            tasks.add(task);
+        } finally {
+            tasksLock.readLock().unlock();
+        }
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.nanoTime();
+        while (!stop) {
+            try {
+                selector.select(timeoutNanos > 0 ? SWEEP_INTERVAL : 0);
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                break;
+            }
+            runTasks();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid()) {
+                    Socks5Connection connection = (Socks5Connection) key.attachment();
+                    try {
+                        connection.onSelected(key);
+                    } catch (RuntimeException e) {
+                        logger.error(e.getMessage(), e);
+                        close(connection);
+                    }
+                }
+            }
+
+            long now = System.nanoTime();
+            if (timeoutNanos > 0 && now - lastSweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL)) {
+                lastSweep = now;
+                for (Socks5Connection connection : connections()) {
+                    if (connection.isIdle(now, timeoutNanos)) {
+                        close(connection);
+                    }
+                }
+            }
+        }
+
+        tasksLock.writeLock().lock();
+        try {
+            closed = true;
+        } finally {
+            tasksLock.writeLock().unlock();
+        }
+        runTasks();
+        for (Socks5Connection connection : connections()) {
+            close(connection);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, whatever goes wrong on the way must not stop the loop.
+     */
+    private static void close(Socks5Connection connection) {
+        try {
+            connection.close();
+        } catch (RuntimeException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copies the connections out, closing them cancels their keys.
+     */
+    private List<Socks5Connection> connections() {
+        List<Socks5Connection> connections = new ArrayList<>(selector.keys().size());
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                connections.add((Socks5Connection) key.attachment());
+            }
+        }
+        return connections;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package sockslib.server.nio;
+
+import sockslib.common.net.NetworkMonitor;
+import sockslib.server.Session;
+import sockslib.server.msg.ReadableMessage;
+import sockslib.server.msg.WritableMessage;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The class <code>NioSession</code> is the {@link Session} of a {@link NioSocksProxyServer}. Its
+ * channel is non-blocking and read and written by the server's selector, so the blocking read and
+ * write methods of {@link Session} are not supported.
+ */
+public class NioSession implements Session {
+
+    private final long id;
+
+    private final Socks5Connection connection;
+
+    private final SocketChannel channel;
+
+    private final SocketAddress clientAddress;
+
+    private final NetworkMonitor networkMonitor;
+
+    private final Map<Long, Session> sessions;
+
+    private final Map<Object, Object> attributes = new HashMap<>();
+
+    NioSession(long id, Socks5Connection connection, SocketChannel channel, NetworkMonitor
+            networkMonitor, Map<Long, Session> sessions) {
+        this.id = id;
+        this.connection = connection;
+        this.channel = channel;
+        this.clientAddress = channel.socket().getRemoteSocketAddress();
+        this.networkMonitor = networkMonitor;
+        this.sessions = sessions;
+    }
+
+    @Override
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    /**
+     * Returns the session's non-blocking channel.
+     *
+     * @return The channel to the client.
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void write(byte[] bytes) {
+        throw blockingNotSupported();
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        throw blockingNotSupported();
+    }
+
+    @Override
+    public void write(WritableMessage message) {
+        throw blockingNotSupported();
+    }
+
+    @Override
+    public int read(byte[] bytes) {
+        throw blockingNotSupported();
+    }
+
+    @Override
+    public int read(ReadableMessage message) {
+        throw blockingNotSupported();
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Closes the session on its selector's thread, so it may be called from any thread.
+     */
+    @Override
+    public void close() {
+        connection.closeLater();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        throw blockingNotSupported();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        throw blockingNotSupported();
+    }
+
+    @Override
+    public Map<Long, Session> getManagedSessions() {
+        return sessions;
+    }
+
+    @Override
+    public SocketAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    @Override
+    public void setAttribute(Object key, Object value) {
+        attributes.put(key, value);
+    }
+
+    @Override
+    public Object getAttribute(Object key) {
+        return attributes.get(key);
+    }
+
+    @Override
+    public Map<Object, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public void clearAllAttributes() {
+        attributes.clear();
+    }
+
+    @Override
+    public boolean isClose() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isConnected();
+    }
+
+    @Override
+    public NetworkMonitor getNetworkMonitor() {
+        return networkMonitor;
+    }
+
+    private static UnsupportedOperationException blockingNotSupported() {
+        return new UnsupportedOperationException("Sessions of a NIO server can't do blocking I/O");
+    }
+
+    @Override
+    public String toString() {
+        return "SESSION[" + id + "]" + "@" + clientAddress;
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2015-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package sockslib.server.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockslib.client.SocksProxy;
+import sockslib.common.methods.SocksMethod;
+import sockslib.common.net.NetworkMonitor;
+import sockslib.server.BasicSessionManager;
+import sockslib.server.MethodSelector;
+import sockslib.server.Session;
+import sockslib.server.SessionManager;
+import sockslib.server.SocksHandler;
+import sockslib.server.SocksMethodSelector;
+import sockslib.server.SocksProxyServer;
+import sockslib.server.listener.PipeInitializer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The class <code>NioSocksProxyServer</code> is a SOCKS5 server on non-blocking channels. Instead
+ * of a thread per session and two per relay like {@link sockslib.server.BasicSocksProxyServer},
+ * a few selectors serve all sessions, so it keeps tens of thousands of them open with a handful
+ * of threads:<br>
+ * <pre>
+ * SocksProxyServer proxyServer = new NioSocksProxyServer(4);
+ * proxyServer.start(); // Create a SOCKS5 server bind at 1080.
+ * </pre>
+ * <p>
+ * Only the CONNECT command is served, BIND and UDP ASSOCIATE are answered with "command not
+ * supported". Sessions can't be chained over another proxy, are not run by a {@link SocksHandler}
+ * and are not relayed by pipes, so no {@link PipeInitializer} is used. Of the methods only no
+ * authentication and username/password are supported. The executor service only runs the steps
+ * that may block: checking credentials and resolving domain names.
+ * </p>
+ */
+public class NioSocksProxyServer implements SocksProxyServer, Runnable {
+
+    protected static final Logger logger = LoggerFactory.getLogger(NioSocksProxyServer.class);
+
+    /**
+     * Buffer size of each direction of a session.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Number of threads that check credentials and resolve domain names.
+     */
+    protected static final int THREAD_NUMBER = 8;
+
+    /**
+     * The longest handshake message, username and password, has to fit into a buffer.
+     */
+    private static final int MIN_BUFFER_SIZE = 1024;
+
+    private static final int BACKLOG = 1024;
+
+    private final int selectorCount;
+
+    private EventLoop[] loops;
+
+    private int nextLoop = 0;
+
+    private ExecutorService executorService;
+
+    private SessionManager sessionManager = new BasicSessionManager();
+
+    private final AtomicLong nextSessionId = new AtomicLong();
+
+    private ServerSocketChannel serverChannel;
+
+    private volatile boolean stop = false;
+
+    private Thread thread;
+
+    private int timeout = 10000;
+
+    private boolean daemon = false;
+
+    private MethodSelector methodSelector = new SocksMethodSelector();
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private int bindPort = DEFAULT_SOCKS_PORT;
+
+    private InetAddress bindAddr;
+
+    private NetworkMonitor networkMonitor = new NetworkMonitor();
+
+    /**
+     * Constructs a {@link NioSocksProxyServer} with a selector per processor.
+     */
+    public NioSocksProxyServer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a {@link NioSocksProxyServer}.
+     *
+     * @param selectorCount Number of selectors, each one runs on a thread of its own.
+     */
+    public NioSocksProxyServer(int selectorCount) {
+        checkArgument(selectorCount > 0, "Argument [selectorCount] must be positive");
+        this.selectorCount = selectorCount;
+    }
+
+    @Override
+    public void run() {
+        logger.info("Start NIO proxy server at port:{} with {} selectors", bindPort, loops.length);
+        while (!stop) {
+            try {
+                accept(serverChannel.accept());
+            } catch (ClosedChannelException e) {
+                // Caused by the shutdown method.
+                logger.debug("Server shutdown");
+                return;
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void accept(SocketChannel channel) throws IOException {
+        if (stop) {
+            channel.close();
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        EventLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+
+        Socks5Connection connection =
+                new Socks5Connection(this, loop, channel, nextSessionId.incrementAndGet());
+        Session session = connection.getSession();
+        Map<Long, Session> sessions = getManagedSessions();
+        synchronized (sessions) {
+            sessions.put(session.getId(), session);
+        }
+        if (!loop.execute(connection::register)) {
+            // Shut down in the meantime, the loop won't close this one.
+            removeSession(session);
+            channel.close();
+        }
+    }
+
+    void removeSession(Session session) {
+        Map<Long, Session> sessions = getManagedSessions();
+        synchronized (sessions) {
+            sessions.remove(session.getId());
+        }
+    }
+
+    /**
+     * Runs a step that may block on the executor service.
+     */
+    void execute(Runnable task) {
+        executorService.execute(task);
+    }
+
+    MethodSelector getMethodSelector() {
+        return methodSelector;
+    }
+
+    @Override
+    public void shutdown() {
+        stop = true;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+        // The loops close their sessions.
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(THREAD_NUMBER);
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(bindAddr, bindPort), BACKLOG);
+        bindPort = serverChannel.socket().getLocalPort();
+
+        loops = new EventLoop[selectorCount];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("fs-selector-" + i, daemon, timeout);
+            loops[i].start();
+        }
+        thread = new Thread(this);
+        thread.setName("fs-thread");
+        thread.setDaemon(daemon);
+        thread.start();
+    }
+
+    /**
+     * Sessions of this server are not run by handlers.
+     *
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public SocksHandler createSocksHandler() {
+        throw new UnsupportedOperationException("The NIO server doesn't use SOCKS handlers");
+    }
+
+    /**
+     * Sessions of this server are not run by handlers.
+     *
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public void initializeSocksHandler(SocksHandler socksHandler) {
+        throw new UnsupportedOperationException("The NIO server doesn't use SOCKS handlers");
+    }
+
+    @Override
+    public void setSupportMethods(SocksMethod... methods) {
+        methodSelector.setSupportMethod(methods);
+    }
+
+    @Override
+    public Map<Long, Session> getManagedSessions() {
+        return sessionManager.getManagedSessions();
+    }
+
+    @Override
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
+    }
+
+    @Override
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how long a session may be idle before it is closed.
+     *
+     * @param timeout Timeout in milliseconds, 0 to keep idle sessions open.
+     */
+    @Override
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public SocksProxy getProxy() {
+        return null;
+    }
+
+    /**
+     * Sessions of this server can't be chained over another proxy.
+     *
+     * @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public void setProxy(SocksProxy proxy) {
+        throw new UnsupportedOperationException("The NIO server can't connect over a proxy");
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    @Override
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    @Override
+    public InetAddress getBindAddr() {
+        return bindAddr;
+    }
+
+    @Override
+    public void setBindAddr(InetAddress bindAddr) {
+        this.bindAddr = bindAddr;
+    }
+
+    /**
+     * Returns the bind port, once started the one actually bound if it was 0.
+     *
+     * @return Server bind port.
+     */
+    @Override
+    public int getBindPort() {
+        return bindPort;
+    }
+
+    @Override
+    public void setBindPort(int bindPort) {
+        this.bindPort = bindPort;
+    }
+
+    @Override
+    public boolean isDaemon() {
+        return daemon;
+    }
+
+    @Override
+    public void setDaemon(boolean daemon) {
+        this.daemon = daemon;
+    }
+
+    public int getSelectorCount() {
+        return selectorCount;
+    }
+
+    public Thread getServerThread() {
+        return thread;
+    }
+
+    public NetworkMonitor getNetworkMonitor() {
+        return networkMonitor;
+    }
+
+    public void setNetworkMonitor(NetworkMonitor networkMonitor) {
+        this.networkMonitor = checkNotNull(networkMonitor);
+    }
+
+    @Override
+    public SessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    @Override
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    @Override
+    public PipeInitializer getPipeInitializer() {
+        return null;
+    }
+
+    /**
+     * Sessions of this server are not relayed by pipes.
+     *
+     * @throws UnsupportedOperationException If a pipe initializer is given.
+     */
+    @Override
+    public void setPipeInitializer(PipeInitializer pipeInitializer) {
+        if (pipeInitializer != null) {
+            throw new UnsupportedOperationException("The NIO server doesn't relay through pipes");
+        }
+    }
+}
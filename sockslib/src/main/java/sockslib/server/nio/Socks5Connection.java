@@ -0,0 +1,707 @@
+/*
+ * Copyright 2015-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package sockslib.server.nio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sockslib.common.AddressType;
+import sockslib.common.AuthenticationException;
+import sockslib.common.ProtocolErrorException;
+import sockslib.common.SocksCommand;
+import sockslib.common.SocksException;
+import sockslib.common.UsernamePasswordCredentials;
+import sockslib.common.methods.NoAuthenticationRequiredMethod;
+import sockslib.common.methods.SocksMethod;
+import sockslib.common.methods.UsernamePasswordMethod;
+import sockslib.common.net.NetworkMonitor;
+import sockslib.server.SessionManager;
+import sockslib.server.UsernamePasswordAuthenticator;
+import sockslib.server.listener.CloseSessionException;
+import sockslib.server.msg.CommandMessage;
+import sockslib.server.msg.CommandResponseMessage;
+import sockslib.server.msg.MethodSelectionMessage;
+import sockslib.server.msg.MethodSelectionResponseMessage;
+import sockslib.server.msg.ServerReply;
+import sockslib.server.msg.UsernamePasswordResponseMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The class <code>Socks5Connection</code> is a client of a {@link NioSocksProxyServer}. It reads
+ * the SOCKS5 handshake as it arrives, connects to the requested server and relays between the
+ * two without ever blocking its {@link EventLoop}.
+ * <p>
+ * Each direction has one buffer. The side that fills it is only read while it has room and the
+ * side that drains it is only waited on while it holds data, so a slow reader slows down its
+ * writer instead of piling up memory.
+ * </p>
+ * Credentials are checked and domain names resolved on the server's executor, both may block.
+ */
+final class Socks5Connection {
+
+    private static final Logger logger = LoggerFactory.getLogger(Socks5Connection.class);
+
+    private static final int VERSION = 0x5;
+
+    private static final int NO_ACCEPTABLE_METHOD = 0xFF;
+
+    private static final int CMD_CONNECT = 0x01;
+    private static final int CMD_BIND = 0x02;
+    private static final int CMD_UDP_ASSOCIATE = 0x03;
+
+    private enum State {
+
+        /**
+         * Waits for the methods the client offers.
+         */
+        METHODS,
+
+        /**
+         * Waits for the client's username and password.
+         */
+        AUTH,
+
+        /**
+         * Waits for the client's command.
+         */
+        COMMAND,
+
+        /**
+         * Waits for the executor, nothing is read from the client meanwhile.
+         */
+        WAITING,
+
+        /**
+         * Waits for the connection to the requested server.
+         */
+        CONNECTING,
+
+        RELAY,
+
+        CLOSED
+    }
+
+    /**
+     * A step that continues on the loop after the executor is done.
+     */
+    private interface Step {
+
+        void run() throws IOException, CloseSessionException;
+    }
+
+    private final NioSocksProxyServer server;
+
+    private final EventLoop loop;
+
+    private final SessionManager sessionManager;
+
+    private final SocketChannel client;
+
+    private final NioSession session;
+
+    private final NetworkMonitor networkMonitor;
+
+    /**
+     * From the client to the server, holds the handshake until then.
+     */
+    private final ByteBuffer upstream;
+
+    /**
+     * From the server to the client, only needed once relaying.
+     */
+    private ByteBuffer downstream;
+
+    /**
+     * A handshake reply that didn't fit into the client's socket at once.
+     */
+    private ByteBuffer reply;
+
+    private boolean closeAfterReply = false;
+
+    private SocketChannel remote;
+
+    private SelectionKey clientKey;
+
+    private SelectionKey remoteKey;
+
+    private State state = State.METHODS;
+
+    private SocksMethod method;
+
+    private boolean clientEof = false;
+
+    private boolean remoteEof = false;
+
+    private boolean upstreamShut = false;
+
+    private boolean downstreamShut = false;
+
+    private long lastActive = System.nanoTime();
+
+    Socks5Connection(NioSocksProxyServer server, EventLoop loop, SocketChannel client, long id) {
+        this.server = server;
+        this.loop = loop;
+        this.sessionManager = server.getSessionManager();
+        this.client = client;
+        this.networkMonitor = server.getNetworkMonitor().newChild();
+        this.session = new NioSession(id, this, client, networkMonitor, server.getManagedSessions());
+        this.upstream = ByteBuffer.allocate(server.getBufferSize());
+    }
+
+    NioSession getSession() {
+        return session;
+    }
+
+    /**
+     * Registers with the loop's selector, must run on the loop.
+     */
+    void register() {
+        try {
+            clientKey = client.register(loop.selector(), SelectionKey.OP_READ, this);
+            sessionManager.sessionOnCreate(session);
+        } catch (IOException | CloseSessionException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    void closeLater() {
+        loop.execute(this::close);
+    }
+
+    boolean isIdle(long now, long timeoutNanos) {
+        return now - lastActive > timeoutNanos;
+    }
+
+    void onSelected(SelectionKey key) {
+        try {
+            if (key == clientKey) {
+                onClient(key);
+            } else {
+                onRemote(key);
+            }
+        } catch (IOException | CloseSessionException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        closeQuietly(client);
+        if (remote != null) {
+            closeQuietly(remote);
+        }
+        server.removeSession(session);
+        try {
+            sessionManager.sessionOnClose(session);
+        } catch (RuntimeException e) {
+            // A listener must not take the selector's thread down with it.
+            logger.error("SESSION[{}] close listener failed", session.getId(), e);
+        }
+    }
+
+    private void onClient(SelectionKey key) throws IOException, CloseSessionException {
+        if (state == State.RELAY) {
+            if (key.isWritable()) {
+                flushDownstream();
+            }
+            if (key.isValid() && key.isReadable()) {
+                int read = client.read(upstream);
+                if (read < 0) {
+                    clientEof = true;
+                } else if (read > 0) {
+                    received(read);
+                }
+                flushUpstream();
+            }
+            return;
+        }
+
+        if (key.isWritable()) {
+            flushReply();
+            if (reply == null && isParsing()) {
+                handshake();
+            }
+        }
+        if (key.isValid() && key.isReadable()) {
+            int read = client.read(upstream);
+            if (read < 0) {
+                close();
+                return;
+            }
+            received(read);
+            handshake();
+        }
+    }
+
+    private void onRemote(SelectionKey key) throws IOException, CloseSessionException {
+        if (state == State.CONNECTING) {
+            if (key.isConnectable()) {
+                try {
+                    if (!remote.finishConnect()) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    connectFailed(e);
+                    return;
+                }
+                connected();
+            }
+            return;
+        }
+
+        if (key.isWritable()) {
+            flushUpstream();
+        }
+        if (key.isValid() && key.isReadable()) {
+            int read = remote.read(downstream);
+            if (read < 0) {
+                remoteEof = true;
+            } else if (read > 0) {
+                lastActive = System.nanoTime();
+            }
+            flushDownstream();
+        }
+    }
+
+    private boolean isParsing() {
+        return state == State.METHODS || state == State.AUTH || state == State.COMMAND;
+    }
+
+    /**
+     * Handles every complete message in the buffer. Each is taken out before it is handled, so
+     * a reply finishing right away can go on with the next one.
+     */
+    private void handshake() throws IOException, CloseSessionException {
+        while (reply == null && isParsing()) {
+            int length = messageLength();
+            if (length == 0) {
+                break;
+            }
+            byte[] message = new byte[length];
+            upstream.flip();
+            upstream.get(message);
+            upstream.compact();
+
+            switch (state) {
+                case METHODS:
+                    onMethods(message);
+                    break;
+                case AUTH:
+                    onCredentials(message);
+                    break;
+                case COMMAND:
+                    onCommand(message);
+                    break;
+                default:
+                    break;
+            }
+        }
+        updateHandshakeInterest();
+    }
+
+    /**
+     * Returns the length of the message at the start of the buffer, 0 if it isn't complete yet.
+     */
+    private int messageLength() {
+        int available = upstream.position();
+        int length;
+        switch (state) {
+            case METHODS:
+                if (available < 2) {
+                    return 0;
+                }
+                length = 2 + unsigned(upstream, 1);
+                break;
+            case AUTH:
+                if (available < 2) {
+                    return 0;
+                }
+                int usernameLength = unsigned(upstream, 1);
+                if (available < 3 + usernameLength) {
+                    return 0;
+                }
+                length = 3 + usernameLength + unsigned(upstream, 2 + usernameLength);
+                break;
+            case COMMAND:
+                if (available < 4) {
+                    return 0;
+                }
+                switch (unsigned(upstream, 3)) {
+                    case AddressType.IPV4:
+                        length = 10;
+                        break;
+                    case AddressType.IPV6:
+                        length = 22;
+                        break;
+                    case AddressType.DOMAIN_NAME:
+                        if (available < 5) {
+                            return 0;
+                        }
+                        length = 7 + unsigned(upstream, 4);
+                        break;
+                    default:
+                        // Unknown, only the header is needed to refuse it.
+                        length = 4;
+                        break;
+                }
+                break;
+            default:
+                return 0;
+        }
+        return available >= length ? length : 0;
+    }
+
+    private void onMethods(byte[] message) throws IOException {
+        if (message[0] != VERSION) {
+            throw new ProtocolErrorException();
+        }
+        int[] methods = new int[message.length - 2];
+        for (int i = 0; i < methods.length; i++) {
+            methods[i] = message[2 + i] & 0xFF;
+        }
+        MethodSelectionMessage selectionMessage = new MethodSelectionMessage();
+        selectionMessage.setVersion(VERSION);
+        selectionMessage.setMethodNum(methods.length);
+        selectionMessage.setMethods(methods);
+        method = server.getMethodSelector().select(selectionMessage);
+
+        int selected = method.getByte();
+        if (method instanceof NoAuthenticationRequiredMethod) {
+            state = State.COMMAND;
+        } else if (method instanceof UsernamePasswordMethod) {
+            state = State.AUTH;
+        } else {
+            // GSS-API can't be run without blocking, it's as good as no method at all.
+            selected = NO_ACCEPTABLE_METHOD;
+            closeAfterReply = true;
+        }
+        logger.debug("SESSION[{}] Response client:{}", session.getId(), method.getMethodName());
+        reply(new MethodSelectionResponseMessage(VERSION, selected).getBytes());
+    }
+
+    private void onCredentials(byte[] message) {
+        int usernameLength = message[1] & 0xFF;
+        String username = new String(message, 2, usernameLength, StandardCharsets.UTF_8);
+        String password = new String(message, 3 + usernameLength, message.length - 3 -
+                usernameLength, StandardCharsets.UTF_8);
+        UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(username, password);
+        UsernamePasswordAuthenticator authenticator = ((UsernamePasswordMethod) method)
+                .getAuthenticator();
+
+        state = State.WAITING;
+        server.execute(() -> {
+            boolean success;
+            try {
+                authenticator.doAuthenticate(credentials, session);
+                success = true;
+            } catch (AuthenticationException e) {
+                logger.info("SESSION[{}] {}", session.getId(), e.getMessage());
+                success = false;
+            } catch (RuntimeException e) {
+                resume(() -> {
+                    throw e;
+                });
+                return;
+            }
+            boolean authenticated = success;
+            resume(() -> authenticated(authenticated));
+        });
+    }
+
+    private void authenticated(boolean success) throws IOException, CloseSessionException {
+        if (success) {
+            state = State.COMMAND;
+        } else {
+            closeAfterReply = true;
+        }
+        reply(new UsernamePasswordResponseMessage(success).getBytes());
+        handshake();
+    }
+
+    private void onCommand(byte[] message) throws IOException, CloseSessionException {
+        if (message[0] != VERSION) {
+            throw new ProtocolErrorException();
+        }
+        CommandMessage command = new CommandMessage();
+        command.setVersion(VERSION);
+        command.setReserved(message[2] & 0xFF);
+        switch (message[1]) {
+            case CMD_CONNECT:
+                command.setCommand(SocksCommand.CONNECT);
+                break;
+            case CMD_BIND:
+                command.setCommand(SocksCommand.BIND);
+                break;
+            case CMD_UDP_ASSOCIATE:
+                command.setCommand(SocksCommand.UDP_ASSOCIATE);
+                break;
+            default:
+                replyAndClose(ServerReply.COMMAND_NOT_SUPPORTED);
+                return;
+        }
+        int addressType = message[3] & 0xFF;
+        if (!AddressType.isSupport(addressType)) {
+            replyAndClose(ServerReply.ADDRESS_TYPE_NOT_SUPPORTED);
+            return;
+        }
+        command.setAddressType(addressType);
+        command.setPort(((message[message.length - 2] & 0xFF) << 8) | (message[message.length - 1]
+                & 0xFF));
+
+        if (addressType != AddressType.DOMAIN_NAME) {
+            command.setInetAddress(InetAddress.getByAddress(Arrays.copyOfRange(message, 4, message
+                    .length - 2)));
+            onResolved(command);
+            return;
+        }
+
+        String host = new String(message, 5, message.length - 7, StandardCharsets.UTF_8);
+        if (host.isEmpty()) {
+            throw new SocksException("Length of domain must great than 0");
+        }
+        command.setHost(host);
+        state = State.WAITING;
+        server.execute(() -> {
+            try {
+                command.setInetAddress(InetAddress.getByName(host));
+                resume(() -> onResolved(command));
+            } catch (UnknownHostException e) {
+                resume(() -> replyAndClose(ServerReply.HOST_UNREACHABLE));
+            }
+        });
+    }
+
+    private void onResolved(CommandMessage command) throws IOException, CloseSessionException {
+        sessionManager.sessionOnCommand(session, command);
+        if (command.getCommand() != SocksCommand.CONNECT) {
+            logger.info("SESSION[{}] {} is not supported by the NIO server", session.getId(), command
+                    .getCommand());
+            replyAndClose(ServerReply.COMMAND_NOT_SUPPORTED);
+            return;
+        }
+
+        state = State.CONNECTING;
+        updateHandshakeInterest();
+        SocketAddress address = command.getSocketAddress();
+        try {
+            remote = SocketChannel.open();
+            remote.configureBlocking(false);
+            remoteKey = remote.register(loop.selector(), 0, this);
+            if (!remote.connect(address)) {
+                remoteKey.interestOps(SelectionKey.OP_CONNECT);
+                return;
+            }
+        } catch (IOException e) {
+            connectFailed(e);
+            return;
+        }
+        connected();
+    }
+
+    private void connected() throws IOException {
+        InetSocketAddress local = (InetSocketAddress) remote.getLocalAddress();
+        lastActive = System.nanoTime();
+        state = State.RELAY;
+        remoteKey.interestOps(0);
+        clientKey.interestOps(0);
+
+        // The reply goes out first, anything the client sent early is already waiting upstream.
+        downstream = ByteBuffer.allocate(upstream.capacity());
+        downstream.put(new CommandResponseMessage(VERSION, ServerReply.SUCCEEDED, local.getAddress(),
+                local.getPort()).getBytes());
+        flushDownstream();
+        flushUpstream();
+    }
+
+    private void connectFailed(IOException e) throws IOException {
+        String message = String.valueOf(e.getMessage());
+        ServerReply serverReply;
+        if (message.equals("Connection refused")) {
+            serverReply = ServerReply.CONNECTION_REFUSED;
+        } else if (message.equals("Operation timed out") || message.equals("Connection timed out")) {
+            serverReply = ServerReply.TTL_EXPIRED;
+        } else if (message.equals("Network is unreachable")) {
+            serverReply = ServerReply.NETWORK_UNREACHABLE;
+        } else {
+            serverReply = ServerReply.GENERAL_SOCKS_SERVER_FAILURE;
+        }
+        logger.info("SESSION[{}] connect [{}] exception:{}", session.getId(), serverReply, message);
+        replyAndClose(serverReply);
+    }
+
+    private void replyAndClose(ServerReply serverReply) throws IOException {
+        closeAfterReply = true;
+        reply(new CommandResponseMessage(serverReply).getBytes());
+    }
+
+    private void reply(byte[] bytes) throws IOException {
+        reply = ByteBuffer.wrap(bytes);
+        flushReply();
+    }
+
+    private void flushReply() throws IOException {
+        int written = client.write(reply);
+        if (written > 0) {
+            sent(written);
+        }
+        if (reply.hasRemaining()) {
+            updateHandshakeInterest();
+            return;
+        }
+        reply = null;
+        if (closeAfterReply) {
+            close();
+        } else {
+            updateHandshakeInterest();
+        }
+    }
+
+    private void updateHandshakeInterest() {
+        if (state == State.RELAY || state == State.CLOSED) {
+            return;
+        }
+        int ops = 0;
+        if (reply != null) {
+            ops |= SelectionKey.OP_WRITE;
+        } else if (isParsing() && upstream.hasRemaining()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (clientKey.interestOps() != ops) {
+            clientKey.interestOps(ops);
+        }
+    }
+
+    private void flushUpstream() throws IOException {
+        drain(upstream, remote);
+        boolean pending = upstream.position() > 0;
+        interest(remoteKey, SelectionKey.OP_WRITE, pending);
+        interest(clientKey, SelectionKey.OP_READ, !clientEof && upstream.hasRemaining());
+        if (clientEof && !pending && !upstreamShut) {
+            upstreamShut = true;
+            remote.shutdownOutput();
+        }
+        closeIfDone();
+    }
+
+    private void flushDownstream() throws IOException {
+        int written = drain(downstream, client);
+        if (written > 0) {
+            sent(written);
+        }
+        boolean pending = downstream.position() > 0;
+        interest(clientKey, SelectionKey.OP_WRITE, pending);
+        interest(remoteKey, SelectionKey.OP_READ, !remoteEof && downstream.hasRemaining());
+        if (remoteEof && !pending && !downstreamShut) {
+            downstreamShut = true;
+            client.shutdownOutput();
+        }
+        closeIfDone();
+    }
+
+    private void closeIfDone() {
+        if (upstreamShut && downstreamShut) {
+            close();
+        }
+    }
+
+    private int drain(ByteBuffer buffer, SocketChannel to) throws IOException {
+        if (buffer.position() == 0) {
+            return 0;
+        }
+        buffer.flip();
+        int written = to.write(buffer);
+        buffer.compact();
+        if (written > 0) {
+            lastActive = System.nanoTime();
+        }
+        return written;
+    }
+
+    private void received(int length) {
+        lastActive = System.nanoTime();
+        networkMonitor.onReadCount(length);
+    }
+
+    private void sent(int length) {
+        lastActive = System.nanoTime();
+        networkMonitor.onWriteCount(length);
+    }
+
+    /**
+     * Continues on the loop, unless the connection was closed meanwhile.
+     */
+    private void resume(Step step) {
+        loop.execute(() -> {
+            if (state == State.CLOSED) {
+                return;
+            }
+            try {
+                step.run();
+            } catch (IOException | CloseSessionException | RuntimeException e) {
+                fail(e);
+            }
+        });
+    }
+
+    private void fail(Exception e) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        // Like the pipes of the blocking server, a broken relay is no session error.
+        if (state == State.RELAY) {
+            logger.debug("SESSION[{}] {}", session.getId(), e.getMessage());
+        } else {
+            try {
+                sessionManager.sessionOnException(session, e);
+            } catch (RuntimeException listenerException) {
+                logger.error("SESSION[{}] exception listener failed", session.getId(),
+                        listenerException);
+            }
+        }
+        close();
+    }
+
+    private static void interest(SelectionKey key, int op, boolean on) {
+        int ops = key.interestOps();
+        int next = on ? ops | op : ops & ~op;
+        if (next != ops) {
+            key.interestOps(next);
+        }
+    }
+
+    private static int unsigned(ByteBuffer buffer, int index) {
+        return buffer.get(index) & 0xFF;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sockslib.test.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sockslib.common.net.MonitorInputStreamWrapper;
+import sockslib.common.net.MonitorOutputStreamWrapper;
+import sockslib.common.net.NetworkMonitor;
+import sockslib.common.net.SocketMonitor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test {@link MonitorInputStreamWrapper} and {@link MonitorOutputStreamWrapper}
+ */
+public class TestMonitorWrappers {
+
+    /**
+     * Only implements the original callbacks, so it gets copies.
+     */
+    private static class RecordingMonitor implements SocketMonitor {
+
+        private final List<byte[]> read = new ArrayList<>();
+        private final List<byte[]> written = new ArrayList<>();
+
+        @Override
+        public void onRead(byte[] b) {
+            read.add(b);
+        }
+
+        @Override
+        public void onWrite(byte[] bytes) {
+            written.add(bytes);
+        }
+    }
+
+    @Test
+    public void testInputStream() throws IOException {
+        RecordingMonitor recording = new RecordingMonitor();
+        NetworkMonitor counting = new NetworkMonitor();
+        InputStream in = MonitorInputStreamWrapper.wrap(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5}),
+                recording, counting);
+
+        byte[] buffer = new byte[8];
+        Assert.assertEquals(3, in.read(buffer, 2, 3));
+        Assert.assertEquals(4, in.read());
+        Assert.assertEquals(5, in.read());
+        Assert.assertEquals(-1, in.read());
+        Assert.assertEquals(-1, in.read(buffer));
+
+        Assert.assertEquals(3, recording.read.size());
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, recording.read.get(0));
+        Assert.assertArrayEquals(new byte[]{4}, recording.read.get(1));
+        Assert.assertEquals(5, counting.getReceiveTCP());
+    }
+
+    @Test
+    public void testOutputStream() throws IOException {
+        RecordingMonitor recording = new RecordingMonitor();
+        NetworkMonitor counting = new NetworkMonitor();
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = MonitorOutputStreamWrapper.wrap(sink, recording, counting);
+
+        byte[] buffer = {9, 8, 7, 6};
+        out.write(buffer, 1, 2);
+        out.write(buffer);
+        out.write(5);
+
+        Assert.assertArrayEquals(new byte[]{8, 7, 9, 8, 7, 6, 5}, sink.toByteArray());
+        Assert.assertArrayEquals(new byte[]{8, 7}, recording.written.get(0));
+        Assert.assertSame(buffer, recording.written.get(1));
+        Assert.assertArrayEquals(new byte[]{5}, recording.written.get(2));
+        Assert.assertEquals(7, counting.getSendTCP());
+    }
+}
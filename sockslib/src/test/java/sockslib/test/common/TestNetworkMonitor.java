@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sockslib.test.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sockslib.common.net.NetworkMonitor;
+
+import java.net.DatagramPacket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test {@link NetworkMonitor}
+ */
+public class TestNetworkMonitor {
+
+    @Test
+    public void testConcurrentSessions() throws InterruptedException {
+        final NetworkMonitor server = new NetworkMonitor();
+        final NetworkMonitor[] sessions = new NetworkMonitor[8];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < sessions.length; i++) {
+            final NetworkMonitor session = server.newChild();
+            sessions[i] = session;
+            // Both directions of a session count at once, like the two pipes of a relay.
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 100000; j++) {
+                    session.onRead(new byte[3]);
+                }
+            }));
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 100000; j++) {
+                    session.onWrite(new byte[2]);
+                    session.onSend(new DatagramPacket(new byte[1], 1));
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (NetworkMonitor session : sessions) {
+            Assert.assertEquals(300000, session.getReceiveTCP());
+            Assert.assertEquals(200000, session.getSendTCP());
+            Assert.assertEquals(100000, session.getSendUDP());
+        }
+        Assert.assertEquals(8 * 300000, server.getTotalReceive());
+        Assert.assertEquals(8 * 300000, server.getTotalSend());
+        Assert.assertEquals(8 * 600000, server.getTotal());
+    }
+
+    @Test
+    public void testRate() throws InterruptedException {
+        NetworkMonitor monitor = new NetworkMonitor();
+        monitor.onReadTCP(1000);
+        monitor.onReceiveUDP(500);
+        // The second the bytes came in has to be over.
+        Thread.sleep(1100);
+
+        Assert.assertEquals(1500, monitor.getReceiveRate(2) * 2, 0.001);
+        Assert.assertEquals(0, monitor.getSendRate(NetworkMonitor.MAX_RATE_WINDOW), 0.001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRateWindowTooLong() {
+        new NetworkMonitor().getReceiveRate(NetworkMonitor.MAX_RATE_WINDOW + 1);
+    }
+}
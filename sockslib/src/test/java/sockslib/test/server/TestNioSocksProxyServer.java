@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015-2025 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sockslib.test.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import sockslib.client.Socks5;
+import sockslib.client.SocksProxy;
+import sockslib.client.SocksSocket;
+import sockslib.common.methods.UsernamePasswordMethod;
+import sockslib.server.SocksProxyServer;
+import sockslib.server.SocksServerBuilder;
+import sockslib.server.manager.MemoryBasedUserManager;
+import sockslib.server.manager.UserManager;
+import sockslib.server.msg.ServerReply;
+import sockslib.server.nio.NioSocksProxyServer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test {@link NioSocksProxyServer} against an echo server.
+ */
+public class TestNioSocksProxyServer {
+
+    private ServerSocket echoServer;
+    private SocksProxyServer proxyServer;
+
+    @Before
+    public void setUp() throws IOException {
+        echoServer = new ServerSocket(0, 256, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            while (!echoServer.isClosed()) {
+                try {
+                    Socket socket = echoServer.accept();
+                    Thread echo = new Thread(() -> echo(socket));
+                    echo.setDaemon(true);
+                    echo.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (proxyServer != null) {
+            proxyServer.shutdown();
+        }
+        echoServer.close();
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        start(SocksServerBuilder.newSocks5ServerBuilder());
+        SocksProxy proxy = new Socks5(proxyAddress());
+
+        try (Socket socket = new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer
+                .getLocalPort())) {
+            assertEcho(socket, 100);
+        }
+        // Resolved by the server.
+        try (Socket socket = new SocksSocket(proxy, "localhost", echoServer.getLocalPort())) {
+            assertEcho(socket, 100);
+        }
+        assertSessionsClosed();
+    }
+
+    @Test
+    public void testAuthentication() throws Exception {
+        UserManager userManager = new MemoryBasedUserManager();
+        userManager.addUser("user", "secret");
+        start(SocksServerBuilder.newSocks5ServerBuilder().setSocksMethods(new
+                UsernamePasswordMethod()).setUserManager(userManager));
+
+        try (Socket socket = new SocksSocket(new Socks5(proxyAddress(), "user", "secret"),
+                InetAddress.getLoopbackAddress(), echoServer.getLocalPort())) {
+            assertEcho(socket, 100);
+        }
+        try {
+            new SocksSocket(new Socks5(proxyAddress(), "user", "wrong"), InetAddress
+                    .getLoopbackAddress(), echoServer.getLocalPort());
+            Assert.fail("Authenticated with a wrong password");
+        } catch (IOException expected) {
+        }
+        assertSessionsClosed();
+    }
+
+    @Test
+    public void testUnsupportedCommand() throws Exception {
+        start(SocksServerBuilder.newSocks5ServerBuilder());
+
+        try (Socket socket = new Socket()) {
+            socket.connect(proxyAddress());
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // Everything at once, the server has to split it up itself.
+            out.write(new byte[]{5, 1, 0, 5, 2, 0, 1, 127, 0, 0, 1, 0, 80});
+            byte[] method = new byte[2];
+            in.readFully(method);
+            Assert.assertArrayEquals(new byte[]{5, 0}, method);
+            byte[] reply = new byte[10];
+            in.readFully(reply);
+            Assert.assertEquals(ServerReply.COMMAND_NOT_SUPPORTED.getValue(), reply[1]);
+            Assert.assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testFailingListeners() throws Exception {
+        start(SocksServerBuilder.newSocks5ServerBuilder());
+        proxyServer.getSessionManager().onSessionClose("failing", session -> {
+            throw new IllegalStateException("Close listener failed");
+        }).onException("failing", (session, exception) -> {
+            throw new IllegalStateException("Exception listener failed");
+        });
+        SocksProxy proxy = new Socks5(proxyAddress());
+
+        // Every selector closes sessions and fails one, and still serves the next.
+        for (int i = 0; i < 4; i++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(proxyAddress());
+                socket.getOutputStream().write(new byte[]{4, 1, 0});
+                Assert.assertEquals(-1, socket.getInputStream().read());
+            }
+            try (Socket socket = new SocksSocket(proxy, InetAddress.getLoopbackAddress(), echoServer
+                    .getLocalPort())) {
+                assertEcho(socket, 100);
+            }
+        }
+        assertSessionsClosed();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPipeInitializerRejected() {
+        SocksServerBuilder.newSocks5ServerBuilder().useNio(1).setPipeInitializer(pipe -> pipe)
+                .build();
+    }
+
+    @Test
+    public void testConcurrentSessions() throws Exception {
+        start(SocksServerBuilder.newSocks5ServerBuilder());
+        SocksProxy proxy = new Socks5(proxyAddress());
+        ExecutorService executor = Executors.newFixedThreadPool(50);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(executor.submit(() -> {
+                    try (Socket socket = new SocksSocket(proxy, InetAddress.getLoopbackAddress(),
+                            echoServer.getLocalPort())) {
+                        // More than fits into the buffers, the relay has to hold back.
+                        assertEcho(socket, 256 * 1024);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertSessionsClosed();
+        Assert.assertEquals(200L * 256 * 1024, ((NioSocksProxyServer) proxyServer).getNetworkMonitor()
+                .getSendTCP() - 200L * 12);
+    }
+
+    private void start(SocksServerBuilder builder) throws IOException {
+        proxyServer = builder.useNio(2).setBindAddr(InetAddress.getLoopbackAddress()).setBindPort(0)
+                .setDaemon(true).build();
+        proxyServer.start();
+    }
+
+    private InetSocketAddress proxyAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), proxyServer.getBindPort());
+    }
+
+    private void assertSessionsClosed() throws InterruptedException {
+        for (int i = 0; i < 100 && !proxyServer.getManagedSessions().isEmpty(); i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(proxyServer.getManagedSessions().isEmpty());
+    }
+
+    private static void assertEcho(Socket socket, int length) throws Exception {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        Thread writer = new Thread(() -> {
+            try {
+                socket.getOutputStream().write(data);
+                socket.shutdownOutput();
+            } catch (IOException ignored) {
+            }
+        });
+        writer.start();
+
+        byte[] echoed = new byte[length];
+        new DataInputStream(socket.getInputStream()).readFully(echoed);
+        Assert.assertEquals(-1, socket.getInputStream().read());
+        writer.join();
+        // JUnit compares arrays element by element by reflection, far too slow for these.
+        Assert.assertTrue(Arrays.equals(data, echoed));
+    }
+
+    private static void echo(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+            s.shutdownOutput();
+        } catch (IOException ignored) {
+        }
+    }
+}
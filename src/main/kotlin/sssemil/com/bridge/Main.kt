@@ -20,16 +20,36 @@ import kotlinx.coroutines.*
 import sockslib.server.SocksServerBuilder
 import sssemil.com.bridge.cjdns.CjdnsProtocol
 import sssemil.com.common.util.Logger
+import sssemil.com.net.packet.ICMPv6
+import sssemil.com.net.stack.CaptureProtocol
 import sssemil.com.net.stack.Icmpv6EchoServer
 import sssemil.com.net.stack.Layer
-import sssemil.com.net.stack.LoggerProtocol
+import sssemil.com.net.stack.MatchKey
+import sssemil.com.net.stack.Stage
 import sssemil.com.net.stack.UdpEchoServer
+import sssemil.com.net.structures.PcapngRing
+import sssemil.com.socket.SocketHelper
 import java.io.File
 import java.lang.System.exit
 
 val job = SupervisorJob()
 val scope = CoroutineScope(Dispatchers.Default + job)
 
+/**
+ * Packets are captured to [DEFAULT_CAPTURE_DIRECTORY] unless another directory is given, e.g.
+ * -Dbridge.capture.dir=/tmp/capture, or none with -Dbridge.capture.dir= to turn capturing off.
+ * The ring keeps the last few segments there, see [PcapngRing].
+ */
+const val CAPTURE_DIRECTORY_PROPERTY = "bridge.capture.dir"
+const val DEFAULT_CAPTURE_DIRECTORY = "capture"
+const val CAPTURE_SEGMENT_SIZE_PROPERTY = "bridge.capture.segmentSize"
+const val CAPTURE_SEGMENT_COUNT_PROPERTY = "bridge.capture.segments"
+
+/**
+ * Picks the loop serving cjdns, e.g. -Dbridge.eventLoop=epoll, see [SocketHelper.EventLoopBackend].
+ */
+const val EVENT_LOOP_PROPERTY = "bridge.eventLoop"
+
 val proxyServer = SocksServerBuilder.buildAnonymousSocks5Server()
 
 fun main(args: Array<String>) = runBlocking {
@@ -55,14 +75,29 @@ fun main(args: Array<String>) = runBlocking {
 
 suspend fun exec(socket: File) {
     val layers = ArrayList<Layer>()
+    val captureRing = openCaptureRing()
     try {
-        val linkLayer = Layer().also {
-            it.registerProtocol(CjdnsProtocol(scope, socket.absolutePath))
+        val linkLayer = Layer(name = "link").also {
+            // Taps see packets first, outgoing ones are captured before they are queued.
+            captureRing?.let { ring -> it.registerProtocol(CaptureProtocol(scope, ring)) }
+            it.registerProtocol(CjdnsProtocol(scope, socket.absolutePath, eventLoopBackend = eventLoopBackend()))
         }
-        val networkLayer = Layer().also {
-            it.registerProtocol(LoggerProtocol(scope, "NET"))
-            it.registerProtocol(Icmpv6EchoServer(scope))
-            it.registerProtocol(UdpEchoServer(scope))
+        // Services run on their own workers, a slow one doesn't hold up reading from cjdns. Packets
+        // come from coroutines on the shared Default pool, which must never block on a full queue.
+        val networkStage = Stage(
+            scope,
+            workers = Runtime.getRuntime().availableProcessors(),
+            overflow = Stage.OverflowPolicy.DROP_NEWEST
+        )
+        val networkLayer = Layer(networkStage, "network").also {
+            captureRing?.let { ring -> it.registerProtocol(CaptureProtocol(scope, ring)) }
+            it.registerProtocol(
+                Icmpv6EchoServer(scope),
+                MatchKey.Icmpv6Type(ICMPv6.MessageType.ECHO_REQUEST.type.toInt())
+            )
+            UdpEchoServer(scope).let { server ->
+                it.registerProtocol(server, MatchKey.UdpPort(server.port.toInt()))
+            }
         }
 
         layers.add(linkLayer)
@@ -76,12 +111,33 @@ suspend fun exec(socket: File) {
     } catch (e: Exception) {
         Logger.e("Error", e)
         layers.forEach { it.kill() }
+        captureRing?.close()
         scope.coroutineContext.cancelChildren()
         exit(-1)
     }
 }
 
+fun openCaptureRing(): PcapngRing? {
+    val directory = System.getProperty(CAPTURE_DIRECTORY_PROPERTY, DEFAULT_CAPTURE_DIRECTORY)
+    if (directory.isEmpty()) return null
+
+    val ring = PcapngRing(
+        File(directory),
+        segmentSize = Integer.getInteger(CAPTURE_SEGMENT_SIZE_PROPERTY, PcapngRing.DEFAULT_SEGMENT_SIZE),
+        segmentCount = Integer.getInteger(CAPTURE_SEGMENT_COUNT_PROPERTY, PcapngRing.DEFAULT_SEGMENT_COUNT)
+    )
+    Logger.i("Capturing packets to ${ring.directory.absolutePath}")
+    return ring
+}
+
+fun eventLoopBackend(): SocketHelper.EventLoopBackend? =
+    System.getProperty(EVENT_LOOP_PROPERTY)?.let { SocketHelper.EventLoopBackend.valueOf(it.toUpperCase()) }
+
 fun printUsageAndExit() {
-    Logger.e("Usage: bridge /path/to/directory/with/socket/essnet")
+    Logger.e(
+        "Usage: bridge [-D$CAPTURE_DIRECTORY_PROPERTY=[dir]] [-D$CAPTURE_SEGMENT_SIZE_PROPERTY=bytes]" +
+                " [-D$CAPTURE_SEGMENT_COUNT_PROPERTY=count] [-D$EVENT_LOOP_PROPERTY=selector|epoll]" +
+                " /path/to/directory/with/socket/essnet"
+    )
     exit(-1)
 }
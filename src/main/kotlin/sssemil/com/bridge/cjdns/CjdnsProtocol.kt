@@ -17,46 +17,235 @@
 package sssemil.com.bridge.cjdns
 
 import kotlinx.coroutines.CoroutineScope
+import sssemil.com.bridge.ess.ClientRegistry
+import sssemil.com.bridge.ess.EssClient
 import sssemil.com.bridge.ess.EssClientHandle
 import sssemil.com.bridge.ess.EssSocket
 import sssemil.com.common.util.Logger
 import sssemil.com.net.interfaces.IClientHandle
+import sssemil.com.net.metrics.MetricsRegistry
 import sssemil.com.net.packet.IPacket
+import sssemil.com.net.packet.IPv6
+import sssemil.com.net.stack.PacketBatch
 import sssemil.com.net.stack.Protocol
+import sssemil.com.net.packet.Ipv6Frame
+import sssemil.com.net.structures.Ipv6RoutingTable
+import sssemil.com.net.structures.PacketBuffer
+import sssemil.com.net.structures.PacketBufferPool
 import sssemil.com.net.structures.TunPacket
+import sssemil.com.socket.SocketHelper
+import java.net.Inet6Address
+import java.nio.ByteBuffer
 
 /**
  * This layer spits IPv6 packets from cjdns.
  *
+ * Packets from above are not written on the caller's thread, every client has an [EgressQueue]
+ * that coalesces them into large writes. They go to the client their handle belongs to, packets
+ * with any other handle are sent to the client whose prefix in [routes] matches their destination.
+ *
  * @param path Path to cjdns socket.
+ * @param egressCapacity See [EgressQueue.capacity].
+ * @param egressLingerMicros See [EgressQueue.lingerMicros].
+ * @param egressMaxBatchBytes See [EgressQueue.maxBatchBytes].
+ * @param eventLoopBackend Loop serving the clients, see [SocketHelper.createEventLoop].
+ * @param metrics Where the packets and bytes sent to every client and its egress queue are
+ * reported, next to what [EssSocket] reports.
  */
 class CjdnsProtocol(
     scope: CoroutineScope,
-    path: String
+    path: String,
+    private val egressCapacity: Int = EgressQueue.DEFAULT_CAPACITY,
+    private val egressLingerMicros: Long = EgressQueue.DEFAULT_LINGER_MICROS,
+    private val egressMaxBatchBytes: Int = EgressQueue.DEFAULT_MAX_BATCH_BYTES,
+    eventLoopBackend: SocketHelper.EventLoopBackend? = null,
+    private val metrics: MetricsRegistry = MetricsRegistry.shared
 ) : Protocol(scope) {
 
+    /**
+     * Destination prefixes of the clients, every address a client announces is added as a host
+     * route. More can be added for clients that route whole networks.
+     */
+    val routes = Ipv6RoutingTable<EssClient>()
+
+    /**
+     * Clients that announced each address, the latest one last. Host routes only change with it
+     * held, so a client that goes away hands its addresses over to the ones still announcing them.
+     */
+    private val announcers = HashMap<Inet6Address, ArrayList<EssClient>>()
+
     private val callback: EssSocket.Callback = object : EssSocket.Callback {
 
-        override fun onPacket(handle: EssClientHandle, packet: TunPacket) {
-            packet.frame?.let { spitUp(handle, it) }
+        override fun onPacket(handle: EssClientHandle, packet: IPacket) {
+            spitUp(handle, packet)
+        }
+
+        override fun onPackets(handle: EssClientHandle, batch: PacketBatch) {
+            spitUpBatch(batch)
+        }
+
+        override fun onAddressAdded(handle: EssClientHandle, address: Inet6Address) {
+            val client = cjdnsSocket.clients[handle] ?: return
+            synchronized(announcers) {
+                val clients = announcers.getOrPut(address) { arrayListOf() }
+                clients.removeAll { it.handle == handle }
+                clients.add(client)
+                routes.add(address, HOST_PREFIX_LENGTH, client)
+            }
+        }
+
+        override fun onDisconnected(handle: EssClientHandle) {
+            synchronized(announcers) {
+                val entries = announcers.entries.iterator()
+                while (entries.hasNext()) {
+                    val (address, clients) = entries.next()
+                    if (!clients.removeAll { it.handle == handle }) continue
+
+                    if (clients.isEmpty()) {
+                        entries.remove()
+                    } else if (routes[address, HOST_PREFIX_LENGTH]?.handle == handle) {
+                        // Another client announced it too, the latest one takes the route over.
+                        routes.add(address, HOST_PREFIX_LENGTH, clients.last())
+                    }
+                }
+                routes.removeAll { it.handle == handle }
+            }
+            egressQueues.remove(handle)?.close()
+            removeMetrics(handle)
         }
     }
 
-    private val cjdnsSocket = EssSocket(scope, path, callback)
+    private val eventLoop = SocketHelper.createEventLoop("ess-event-loop", eventLoopBackend)
+
+    private val cjdnsSocket = EssSocket(scope, path, callback, eventLoop = eventLoop, metrics = metrics)
+
+    private val pool = PacketBufferPool.shared
+
+    private val egressQueues = ClientRegistry<EgressQueue>()
 
     override fun swallowFromAbove(
         handle: IClientHandle,
         packet: IPacket
     ) {
-        Logger.d("CJDNS: from above: $packet")
-        val tunPacket = TunPacket(frame = packet)
-        val buffer = tunPacket.serialize()
-        val client = cjdnsSocket.clients[handle]
-        client?.socket?.write(buffer, 0, buffer.size)
+        Logger.d { "CJDNS: from above: $packet" }
+        send(handle, packet)
+    }
+
+    override fun swallowFromAboveBatch(batch: PacketBatch) {
+        Logger.d { "CJDNS: from above: ${batch.size} packets" }
+        batch.forEach { handle, packet -> send(handle, packet) }
+    }
+
+    private fun send(handle: IClientHandle, packet: IPacket) {
+        val client = cjdnsSocket.clients[handle] ?: route(packet) ?: run {
+            Logger.w("No client to send a packet for $handle to!")
+            return
+        }
+        val queue = egressQueues.getOrPut(client.handle) { createEgressQueue(client) }
+
+        if (!cjdnsSocket.clients.containsKey(client.handle)) {
+            // Disconnected while the queue was created.
+            egressQueues.remove(client.handle)?.close()
+            removeMetrics(client.handle)
+        } else {
+            // Counted in the queue's drops if it is full.
+            queue.offer(packet)
+        }
+    }
+
+    private fun createEgressQueue(client: EssClient): EgressQueue {
+        val clientTag = EssSocket.TAG_CLIENT to client.handle.handle.toString()
+        val packetsOut = metrics.counter(EssSocket.METRIC_PACKETS, clientTag, EssSocket.TAG_DIRECTION to EssSocket.DIRECTION_OUT)
+        val bytesOut = metrics.counter(EssSocket.METRIC_BYTES, clientTag, EssSocket.TAG_DIRECTION to EssSocket.DIRECTION_OUT)
+
+        val queue = EgressQueue(scope, egressCapacity, egressLingerMicros, egressMaxBatchBytes, pool) { frames ->
+            writeFrames(client, frames)
+            packetsOut.add(frames.size.toLong())
+            // Serialized once when queued, frames know their length.
+            bytesOut.add(frames.sumBy { it.view.length }.toLong())
+        }
+        metrics.gauge(METRIC_EGRESS_DEPTH, clientTag) { queue.depth.toLong() }
+        metrics.gauge(METRIC_EGRESS_DROPS, clientTag) { queue.drops }
+        return queue
+    }
+
+    private fun removeMetrics(handle: EssClientHandle) {
+        metrics.remove { it.tags[EssSocket.TAG_CLIENT] == handle.handle.toString() }
+    }
+
+    private fun route(packet: IPacket): EssClient? = when (packet) {
+        is Ipv6Frame -> routes.lookup(packet.view.destinationAddressHigh, packet.view.destinationAddressLow)
+        is IPv6 -> routes.lookup(packet.destinationAddress)
+        else -> null
+    }
+
+    /**
+     * @return The egress queue of [handle] for its metrics, null if nothing was sent to it yet.
+     */
+    fun egressQueue(handle: IClientHandle): EgressQueue? = egressQueues[handle]
+
+    /**
+     * Sends [packets] to [client] with a single gathering write, none of them is concatenated.
+     *
+     * Frames still in their ingress buffer get the tun header written into the headroom in front
+     * of them. Other frames go out behind a separate header, anything else is serialized into a
+     * pooled buffer right behind its header.
+     */
+    fun writeFrames(client: EssClient, packets: List<IPacket>) {
+        val buffers = ArrayList<ByteBuffer>(packets.size * 2)
+        val packetBuffers = ArrayList<PacketBuffer>()
+
+        try {
+            for (packet in packets) {
+                if (packet is Ipv6Frame) {
+                    val view = packet.view
+                    val buffer = view.buffer.duplicate()
+                    buffer.limit(view.offset + view.length)
+
+                    if (packet.owner != null && view.offset >= TunPacket.HEADER_LENGTH) {
+                        val start = view.offset - TunPacket.HEADER_LENGTH
+                        TunPacket.putHeader(buffer, start, 0, TunPacket.ETHERTYPE_IPV6)
+                        buffer.position(start)
+                    } else {
+                        val header = ByteBuffer.allocate(TunPacket.HEADER_LENGTH)
+                        TunPacket.putHeader(header, 0, 0, TunPacket.ETHERTYPE_IPV6)
+                        buffers.add(header)
+                        buffer.position(view.offset)
+                    }
+                    buffers.add(buffer)
+                } else {
+                    // Leave headroom for the tun header and serialize the packet right behind it, in one pass.
+                    val packetBuffer = pool.acquire(TunPacket.HEADER_LENGTH + packet.serializedLength())
+                    packetBuffers.add(packetBuffer)
+
+                    val buffer = packetBuffer.buffer
+                    buffer.position(TunPacket.HEADER_LENGTH)
+                    packet.serializeInto(buffer)
+                    TunPacket.putHeader(buffer, 0, 0, TunPacket.ETHERTYPE_IPV6)
+                    buffer.flip()
+                    buffers.add(buffer)
+                }
+            }
+
+            client.socket.write(buffers.toTypedArray())
+        } finally {
+            packetBuffers.forEach { it.release() }
+        }
     }
 
     override suspend fun kill() {
+        egressQueues.values().forEach { it.close() }
+        egressQueues.clear()
         cjdnsSocket.kill()
+        eventLoop?.close()
         super.kill()
     }
-}
\ No newline at end of file
+
+    companion object {
+
+        private const val HOST_PREFIX_LENGTH = 128
+
+        const val METRIC_EGRESS_DEPTH = "ess.egress_depth"
+        const val METRIC_EGRESS_DROPS = "ess.egress_drops"
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.bridge.cjdns
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import sssemil.com.common.util.Logger
+import sssemil.com.net.packet.IPacket
+import sssemil.com.net.packet.Ipv6Frame
+import sssemil.com.net.structures.PacketBufferPool
+import sssemil.com.net.structures.TunPacket
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.resume
+
+/**
+ * Egress stage of a single client. Any number of threads [offer] packets, a single writer on
+ * [Dispatchers.IO] takes whatever piled up in the meantime and hands it to [write] as one batch,
+ * so that a burst ends up in one gathering write and producers never block on the socket.
+ *
+ * Queued packets are always pooled frames with headroom for the tun header. Pooled frames are
+ * retained, anything else is copied into the [pool] first.
+ *
+ * @param capacity Packets offered while this many are waiting are dropped.
+ * @param lingerMicros How long the writer waits for more packets before it writes a batch that
+ * is not full yet, 0 to write right away. The writer is suspended meanwhile, it doesn't hold a
+ * thread.
+ * @param maxBatchBytes Upper bound for the frames and tun headers of one batch. A single larger
+ * frame still goes out on its own.
+ * @param write Writes a batch, the frames are released once it returns. If it throws, the queue
+ * is closed.
+ */
+class EgressQueue(
+    scope: CoroutineScope,
+    private val capacity: Int = DEFAULT_CAPACITY,
+    lingerMicros: Long = DEFAULT_LINGER_MICROS,
+    private val maxBatchBytes: Int = DEFAULT_MAX_BATCH_BYTES,
+    private val pool: PacketBufferPool = PacketBufferPool.shared,
+    private val write: (List<Ipv6Frame>) -> Unit
+) {
+
+    private val lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros)
+
+    private val queue = ConcurrentLinkedQueue<Ipv6Frame>()
+    private val wakeup = Channel<Unit>(Channel.CONFLATED)
+    private val closed = AtomicBoolean(false)
+
+    /**
+     * Polled by the writer but didn't fit into the last batch, only touched by the writer.
+     */
+    private var carry: Ipv6Frame? = null
+
+    private val depthCount = AtomicInteger()
+    private val pendingByteCount = AtomicLong()
+    private val maxDepthCount = AtomicInteger()
+    private val batchCount = AtomicLong()
+    private val frameCount = AtomicLong()
+    private val byteCount = AtomicLong()
+    private val dropCount = AtomicLong()
+
+    /**
+     * Packets waiting for the writer.
+     */
+    val depth: Int
+        get() = depthCount.get()
+
+    /**
+     * Highest [depth] seen so far.
+     */
+    val maxDepth: Int
+        get() = maxDepthCount.get()
+
+    /**
+     * Batches handed to the writer.
+     */
+    val batches: Long
+        get() = batchCount.get()
+
+    /**
+     * Frames written, [frames] / [batches] is the average batch size.
+     */
+    val frames: Long
+        get() = frameCount.get()
+
+    /**
+     * Bytes written, tun headers included.
+     */
+    val bytes: Long
+        get() = byteCount.get()
+
+    /**
+     * Packets dropped because the queue was full or closed, or their write failed.
+     */
+    val drops: Long
+        get() = dropCount.get()
+
+    val isClosed: Boolean
+        get() = closed.get()
+
+    init {
+        scope.launch(Dispatchers.IO) {
+            try {
+                for (signal in wakeup) {
+                    drain()
+                }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Logger.e("Egress writer failed, dropping the queue!", e)
+            } finally {
+                closed.set(true)
+                carry?.let { drop(it) }
+                carry = null
+                discard()
+            }
+        }
+    }
+
+    /**
+     * Queues [packet] without blocking. The caller keeps its own reference to pooled frames.
+     *
+     * @return Whether the packet was queued.
+     */
+    fun offer(packet: IPacket): Boolean {
+        if (closed.get()) {
+            dropCount.incrementAndGet()
+            return false
+        }
+
+        val depth = depthCount.incrementAndGet()
+        if (depth > capacity) {
+            depthCount.decrementAndGet()
+            dropCount.incrementAndGet()
+            return false
+        }
+        updateMaxDepth(depth)
+
+        val frame = try {
+            toQueuedFrame(packet)
+        } catch (e: Exception) {
+            // Gives the slot back.
+            depthCount.decrementAndGet()
+            dropCount.incrementAndGet()
+            throw e
+        }
+        pendingByteCount.addAndGet(batchLength(frame).toLong())
+        queue.offer(frame)
+        try {
+            wakeup.offer(Unit)
+        } catch (e: ClosedSendChannelException) {
+            // Handled right below.
+        }
+
+        if (closed.get()) {
+            // Lost the race against close(), the writer may be gone already and the packet with
+            // it. Counted as dropped either way.
+            discard()
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Stops the writer, packets that are still queued are dropped.
+     */
+    fun close() {
+        if (closed.compareAndSet(false, true)) {
+            wakeup.close()
+            discard()
+        }
+    }
+
+    private fun toQueuedFrame(packet: IPacket): Ipv6Frame {
+        if (packet is Ipv6Frame) {
+            return if (packet.owner != null && packet.view.offset >= TunPacket.HEADER_LENGTH) {
+                packet.retain()
+            } else {
+                packet.copy(pool)
+            }
+        }
+
+        val length = packet.serializedLength()
+        val packetBuffer = pool.acquire(PacketBufferPool.HEADROOM + length)
+        val buffer = packetBuffer.buffer
+        buffer.position(PacketBufferPool.HEADROOM)
+        try {
+            packet.serializeInto(buffer)
+        } catch (e: Exception) {
+            packetBuffer.release()
+            throw e
+        }
+        return packetBuffer.frame.wrap(buffer, PacketBufferPool.HEADROOM, length)
+    }
+
+    private suspend fun drain() {
+        val batch = ArrayList<Ipv6Frame>()
+
+        while (!closed.get() && (carry != null || queue.peek() != null)) {
+            if (lingerNanos > 0 && pendingByteCount.get() < maxBatchBytes) {
+                linger()
+            }
+
+            var batchBytes = 0
+            while (true) {
+                val frame = carry ?: queue.poll() ?: break
+                val length = batchLength(frame)
+                if (batch.isNotEmpty() && batchBytes + length > maxBatchBytes) {
+                    // Opens the next batch.
+                    carry = frame
+                    break
+                }
+
+                carry = null
+                depthCount.decrementAndGet()
+                pendingByteCount.addAndGet(-length.toLong())
+                batch.add(frame)
+                batchBytes += length
+            }
+
+            try {
+                write(batch)
+                batchCount.incrementAndGet()
+                frameCount.addAndGet(batch.size.toLong())
+                byteCount.addAndGet(batchBytes.toLong())
+            } catch (e: Exception) {
+                // Not only I/O errors, nothing else would ever close the queue.
+                Logger.e("Couldn't write ${batch.size} frames, dropping the queue!", e)
+                dropCount.addAndGet(batch.size.toLong())
+                close()
+            } finally {
+                batch.forEach { it.release() }
+                batch.clear()
+            }
+        }
+    }
+
+    /**
+     * Suspends for [lingerNanos]. Delays of coroutines only have millisecond resolution, lingers
+     * are usually far shorter.
+     */
+    private suspend fun linger() = suspendCancellableCoroutine<Unit> { continuation ->
+        val timer = lingerTimer.schedule({ continuation.resume(Unit) }, lingerNanos, TimeUnit.NANOSECONDS)
+        continuation.invokeOnCancellation { timer.cancel(false) }
+    }
+
+    /**
+     * Drops whatever is queued. Safe to run next to the writer, every frame is taken only once.
+     */
+    private fun discard() {
+        while (true) {
+            drop(queue.poll() ?: return)
+        }
+    }
+
+    private fun drop(frame: Ipv6Frame) {
+        depthCount.decrementAndGet()
+        pendingByteCount.addAndGet(-batchLength(frame).toLong())
+        dropCount.incrementAndGet()
+        frame.release()
+    }
+
+    private fun updateMaxDepth(depth: Int) {
+        while (true) {
+            val max = maxDepthCount.get()
+            if (depth <= max || maxDepthCount.compareAndSet(max, depth)) return
+        }
+    }
+
+    private fun batchLength(frame: Ipv6Frame) = TunPacket.HEADER_LENGTH + frame.view.length
+
+    companion object {
+
+        const val DEFAULT_CAPACITY = 1024
+
+        const val DEFAULT_LINGER_MICROS = 50L
+
+        const val DEFAULT_MAX_BATCH_BYTES = 64 * 1024
+
+        /**
+         * Resumes lingering writers of all queues, it only ever hands them back to their dispatcher.
+         */
+        private val lingerTimer: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { runnable ->
+            Thread(runnable, "egress-linger").apply { isDaemon = true }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.bridge.ess
+
+import sssemil.com.net.interfaces.IClientHandle
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Concurrent map from the 32-bit value of an [EssClientHandle] to whatever belongs to the client,
+ * neither keys nor lookups are boxed.
+ *
+ * It is an open addressing table with linear probing. Lookups never lock, they read the current
+ * table and probe it, slots are written with volatile semantics so a value is safely published
+ * once it can be found. Changes are rare, one per connect and disconnect, and are serialized on
+ * the registry. Removal leaves a tombstone, tombstones go away when the table is rebuilt, so a
+ * slot never changes its key.
+ */
+class ClientRegistry<V : Any>(initialCapacity: Int = DEFAULT_CAPACITY) {
+
+    @Volatile
+    private var table = Table(tableSize(initialCapacity))
+
+    @Volatile
+    private var count = 0
+
+    private var tombstones = 0
+
+    val size: Int
+        get() = count
+
+    fun isEmpty() = count == 0
+
+    operator fun get(handle: Int): V? {
+        val table = table
+        val mask = table.keys.size - 1
+        var index = hash(handle) and mask
+        while (true) {
+            val value = table.values.get(index) ?: return null
+            if (value !== TOMBSTONE && table.keys[index] == handle) {
+                @Suppress("UNCHECKED_CAST")
+                return value as V
+            }
+            index = (index + 1) and mask
+        }
+    }
+
+    /**
+     * @return What belongs to [handle], null for handles that are not [EssClientHandle]s.
+     */
+    operator fun get(handle: IClientHandle): V? =
+        (handle as? EssClientHandle)?.let { get(it.handle.toInt()) }
+
+    fun containsKey(handle: IClientHandle) = get(handle) != null
+
+    /**
+     * @return Whether [value] was added, false if [handle] is taken.
+     */
+    @Synchronized
+    fun putIfAbsent(handle: EssClientHandle, value: V): Boolean {
+        val key = handle.handle.toInt()
+        if (get(key) != null) return false
+
+        if ((count + tombstones + 1) * 2 > table.keys.size) {
+            rebuild(tableSize(Math.max(count + 1, DEFAULT_CAPACITY)))
+        }
+        insert(table, key, value)
+        count++
+        return true
+    }
+
+    /**
+     * @return The value of [handle], created by [create] under the registry's lock if there is
+     * none yet.
+     */
+    fun getOrPut(handle: EssClientHandle, create: () -> V): V {
+        get(handle.handle.toInt())?.let { return it }
+        synchronized(this) {
+            get(handle.handle.toInt())?.let { return it }
+            val value = create()
+            putIfAbsent(handle, value)
+            return value
+        }
+    }
+
+    @Synchronized
+    fun remove(handle: EssClientHandle): V? {
+        val table = table
+        val key = handle.handle.toInt()
+        val mask = table.keys.size - 1
+        var index = hash(key) and mask
+        while (true) {
+            val value = table.values.get(index) ?: return null
+            if (value !== TOMBSTONE && table.keys[index] == key) {
+                table.values.set(index, TOMBSTONE)
+                count--
+                tombstones++
+                @Suppress("UNCHECKED_CAST")
+                return value as V
+            }
+            index = (index + 1) and mask
+        }
+    }
+
+    /**
+     * @return A snapshot of the values.
+     */
+    fun values(): List<V> {
+        val table = table
+        val values = ArrayList<V>(count)
+        for (i in 0 until table.values.length()) {
+            val value = table.values.get(i)
+            if (value != null && value !== TOMBSTONE) {
+                @Suppress("UNCHECKED_CAST")
+                values.add(value as V)
+            }
+        }
+        return values
+    }
+
+    @Synchronized
+    fun clear() {
+        table = Table(table.keys.size)
+        count = 0
+        tombstones = 0
+    }
+
+    /**
+     * Copies the live entries into a new table and publishes it, readers still probing the old
+     * one simply finish there.
+     */
+    private fun rebuild(size: Int) {
+        val old = table
+        val rebuilt = Table(size)
+        for (i in 0 until old.values.length()) {
+            val value = old.values.get(i)
+            if (value != null && value !== TOMBSTONE) {
+                insert(rebuilt, old.keys[i], value)
+            }
+        }
+        tombstones = 0
+        table = rebuilt
+    }
+
+    private fun insert(table: Table, key: Int, value: Any) {
+        val mask = table.keys.size - 1
+        var index = hash(key) and mask
+        while (true) {
+            // Tombstones are not reused, a reader holding on to the old value must not see the
+            // slot's key change under it.
+            if (table.values.get(index) == null) {
+                // The key is written first, the volatile value write publishes both.
+                table.keys[index] = key
+                table.values.set(index, value)
+                return
+            }
+            index = (index + 1) and mask
+        }
+    }
+
+    private class Table(size: Int) {
+
+        val keys = IntArray(size)
+
+        val values = AtomicReferenceArray<Any?>(size)
+    }
+
+    companion object {
+
+        const val DEFAULT_CAPACITY = 16
+
+        private val TOMBSTONE = Any()
+
+        /**
+         * Smallest power of two that keeps [capacity] entries at most half full.
+         */
+        private fun tableSize(capacity: Int) = Integer.highestOneBit(Math.max(capacity, 1) * 4 - 1)
+
+        /**
+         * Handles are random, but they come from outside of this class. Fibonacci hashing spreads
+         * them anyway.
+         */
+        private fun hash(key: Int): Int {
+            val h = key * -0x61c88647
+            return h xor (h ushr 16)
+        }
+    }
+}
@@ -17,96 +17,495 @@
 package sssemil.com.bridge.ess
 
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
 import sssemil.com.common.util.Logger
+import sssemil.com.net.metrics.MetricsRegistry
+import sssemil.com.net.packet.IPacket
+import sssemil.com.net.packet.Ipv6Frame
+import sssemil.com.net.stack.PacketBatch
 import sssemil.com.net.structures.*
 import sssemil.com.socket.SocketHelper
+import sssemil.com.socket.interfaces.NonBlockingPipeSocket
+import sssemil.com.socket.interfaces.PipeEventLoop
+import sssemil.com.socket.interfaces.PipeServerSocket
+import sssemil.com.socket.interfaces.PipeSocket
+import java.io.Closeable
+import java.io.IOException
+import java.net.Inet6Address
+import java.nio.ByteBuffer
+import java.util.ArrayDeque
 import java.util.concurrent.atomic.AtomicBoolean
 
+/**
+ * ESS server for any number of cjdns instances at once.
+ *
+ * The accept loop never serves a client itself. Every accepted client gets a reader that decodes
+ * its frames and a dispatcher on [scope] that hands the packets to [callback]. The two are
+ * connected by a bounded queue, so a slow consumer makes the reader stop reading from that one
+ * client instead of stalling the others or dropping packets.
+ *
+ * Without an [eventLoop] the accept loop and every reader block on their sockets on
+ * [Dispatchers.IO]. With one, they are all served by its single thread.
+ *
+ * @param maxClients Clients connecting while this many are being served are disconnected.
+ * @param queueCapacity How many packets of a single client may wait for [callback].
+ * @param pool Where frame buffers come from.
+ * @param eventLoop Serves the socket without blocking threads, see [SocketHelper.createEventLoop].
+ * @param metrics Where the packets and bytes every client sent and the frames it sent that were
+ * dropped are counted, while it is connected.
+ */
 class EssSocket(
-    scope: CoroutineScope,
+    private val scope: CoroutineScope,
     path: String,
-    private val callback: Callback
+    private val callback: Callback,
+    private val maxClients: Int = DEFAULT_MAX_CLIENTS,
+    private val queueCapacity: Int = DEFAULT_QUEUE_CAPACITY,
+    private val pool: PacketBufferPool = PacketBufferPool.shared,
+    private val eventLoop: PipeEventLoop? = null,
+    private val metrics: MetricsRegistry = MetricsRegistry.shared
 ) {
 
     private val keepRunning = AtomicBoolean(true)
 
-    val clients = hashMapOf<EssClientHandle, EssClient>()
+    /**
+     * Clients being served, lookups don't lock.
+     */
+    val clients = ClientRegistry<EssClient>()
+
+    private val sessions = ClientRegistry<Session>()
+
+    @Volatile
+    private var serverSocket: PipeServerSocket? = null
 
-    private var socketThread: Job
+    private var nonBlockingServerSocket: Closeable? = null
+
+    private var socketThread: Job? = null
 
     init {
-        socketThread = scope.launch {
-            SocketHelper.createServerSocket(path)?.let { socket ->
-                while (keepRunning.get()) {
-                    withContext(Dispatchers.IO) {
-                        socket.accept().let {
-                            val client = EssClient(socket = it)
-                            Logger.d("Accepted client socket: $client")
-                            clients[client.handle] = client
-                            onAcceptClient(client)
+        if (eventLoop != null) {
+            nonBlockingServerSocket = eventLoop.listen(path) { socket ->
+                accept(socket)?.let { NonBlockingSession(it, socket, eventLoop).start() }
+            }
+        } else {
+            socketThread = scope.launch(Dispatchers.IO) {
+                SocketHelper.createServerSocket(path)?.let { socket ->
+                    serverSocket = socket
+                    if (!keepRunning.get()) {
+                        // Killed before we got here.
+                        closeServerSocket()
+                        return@launch
+                    }
+
+                    while (keepRunning.get()) {
+                        val clientSocket = try {
+                            socket.accept()
+                        } catch (e: IOException) {
+                            if (keepRunning.get()) {
+                                Logger.e("Couldn't accept client socket!", e)
+                            }
+                            break
                         }
+
+                        accept(clientSocket)?.let { BlockingSession(it).start() }
                     }
                 }
             }
         }
     }
 
-    private fun onAcceptClient(client: EssClient) {
-        var bufferSize: Int = BUFFER_SIZE
-        var buffer = ByteArray(bufferSize)
-        var readCount: Int
+    /**
+     * @return The new client, or null if it was rejected.
+     */
+    private fun accept(socket: PipeSocket): EssClient? {
+        if (!keepRunning.get()) {
+            Logger.d("Shutting down, rejecting a new client")
+            closeQuietly(socket::closeClient)
+            return null
+        }
+        if (clients.size >= maxClients) {
+            Logger.w("Already serving $maxClients clients, rejecting a new one!")
+            closeQuietly(socket::closeClient)
+            return null
+        }
+
+        var client = EssClient(socket = socket)
+        while (!clients.putIfAbsent(client.handle, client)) {
+            // Handles are random, this one is taken.
+            client = EssClient(socket = socket)
+        }
+        Logger.d("Accepted client socket: $client")
+        return client
+    }
+
+    private fun release(packet: IPacket) {
+        (packet as? Ipv6Frame)?.release()
+    }
+
+    private fun closeServerSocket() {
+        serverSocket?.let { closeQuietly(it::close) }
+        serverSocket = null
+        nonBlockingServerSocket?.let { closeQuietly(it::close) }
+    }
 
-        do {
-            readCount = client.socket.read(buffer)
+    private fun closeQuietly(close: () -> Unit) {
+        try {
+            close()
+        } catch (e: Exception) {
+            Logger.w("Couldn't close socket: ${e.message}")
+        }
+    }
 
-            if (readCount < 1) continue
+    /**
+     * Kill the socket by stopping its main thread and disconnecting every client.
+     */
+    suspend fun kill() {
+        keepRunning.set(false)
 
-            val data = DataBitStream(buffer, 0, readCount)
+        // Neither accept() nor read() can be cancelled, closing the sockets wakes them up.
+        closeServerSocket()
 
-            while (!data.isEmpty()) {
-                EssPacket.parse(data)?.let {
-                    when (it.type) {
-                        EssPacket.TYPE_TUN_PACKET -> {
-                            callback.onPacket(client.handle, it.payload as TunPacket)
-                        }
-                        EssPacket.TYPE_CONF_ADD_IPV6_ADDRESS -> {
-                            client.addresses.add((it.payload as EssAddIpv6AddressPayload).inet6Address)
-                        }
-                        EssPacket.TYPE_CONF_SET_MTU -> {
-                            client.mtu = ((it.payload as EssSetMtuPayload).mtu)
+        val killed = sessions.values()
+        killed.forEach { it.disconnect() }
+
+        socketThread?.cancelAndJoin()
+        killed.forEach { it.job?.cancelAndJoin() }
+
+        eventLoop?.let { loop ->
+            if (!loop.inEventLoop) {
+                // Sessions of the loop finish on it, wait for the tasks queued above.
+                val drained = CompletableDeferred<Unit>()
+                loop.execute { drained.complete(Unit) }
+                withTimeoutOrNull(EVENT_LOOP_DRAIN_TIMEOUT) { drained.await() }
+            }
+        }
+    }
+
+    /**
+     * Decodes the frames of a single client and queues them for its dispatcher.
+     */
+    private abstract inner class Session(val client: EssClient) : EssFrameDecoder.Listener {
+
+        /**
+         * Runs the dispatcher, and the reader if it needs a coroutine.
+         */
+        @Volatile
+        var job: Job? = null
+            private set
+
+        protected val queue = Channel<IPacket>(queueCapacity)
+
+        /**
+         * Packets of the last read, the decoder can't suspend so they are queued after it.
+         */
+        protected val decoded = ArrayDeque<IPacket>()
+
+        protected val decoder = EssFrameDecoder(this, client.mtu.toInt(), pool)
+
+        private val finished = AtomicBoolean(false)
+
+        private val clientTag = TAG_CLIENT to client.handle.handle.toString()
+        private val packetsIn = metrics.counter(METRIC_PACKETS, clientTag, TAG_DIRECTION to DIRECTION_IN)
+        private val bytesIn = metrics.counter(METRIC_BYTES, clientTag, TAG_DIRECTION to DIRECTION_IN)
+
+        override fun onPacket(packet: EssPacket) {
+            when (packet.type) {
+                EssPacket.TYPE_TUN_PACKET -> {
+                    (packet.payload as TunPacket).frame?.let { decoded.add(it) }
+                }
+                EssPacket.TYPE_CONF_ADD_IPV6_ADDRESS -> {
+                    val address = (packet.payload as EssAddIpv6AddressPayload).inet6Address
+                    client.addresses.add(address)
+                    callback.onAddressAdded(client.handle, address)
+                }
+                EssPacket.TYPE_CONF_SET_MTU -> {
+                    client.mtu = ((packet.payload as EssSetMtuPayload).mtu)
+                }
+                else -> {
+                    /* welp */
+                }
+            }
+        }
+
+        override fun onTunFrame(flags: Short, proto: UShort, frame: Ipv6Frame) {
+            packetsIn.increment()
+            bytesIn.add(frame.view.length.toLong())
+            // Keep the frame's buffer until the dispatcher is done with it.
+            decoded.add(frame.retain())
+        }
+
+        override fun onDropped(cause: EssFrameDecoder.DropCause, bytes: Int) {
+            metrics.counter(METRIC_PARSE_ERRORS, clientTag, TAG_CAUSE to cause.name).increment()
+            metrics.counter(METRIC_DROPPED_BYTES, clientTag, TAG_CAUSE to cause.name).add(bytes.toLong())
+        }
+
+        fun start() {
+            sessions.putIfAbsent(client.handle, this)
+            job = scope.launch {
+                startReading(this)
+                val batch = PacketBatch()
+                try {
+                    for (first in queue) {
+                        // Whatever was decoded along with it goes in the same batch.
+                        var packet: IPacket? = first
+                        while (packet != null) {
+                            batch.add(client.handle, packet)
+                            if (batch.size == MAX_BATCH) {
+                                dispatch(batch)
+                            }
+                            packet = queue.poll()
                         }
-                        else -> {
-                            /* welp */
+                        if (!batch.isEmpty()) {
+                            dispatch(batch)
                         }
                     }
+                } finally {
+                    // Only left early when cancelled, give back whatever is still queued.
+                    queue.close()
+                    while (true) {
+                        release(queue.poll() ?: break)
+                    }
                 }
             }
+        }
 
-            if (client.mtu.toInt() != bufferSize) {
-                bufferSize = client.mtu.toInt()
-                buffer = ByteArray(bufferSize)
+        private fun dispatch(batch: PacketBatch) {
+            try {
+                if (batch.size == 1) {
+                    callback.onPacket(client.handle, batch.packet(0))
+                } else {
+                    callback.onPackets(client.handle, batch)
+                }
+            } catch (e: Exception) {
+                Logger.e("Error handling ${batch.size} packets from $client!", e)
+            } finally {
+                for (i in 0 until batch.size) {
+                    release(batch.packet(i))
+                }
+                batch.clear()
             }
-        } while (readCount != -1)
+            onDequeued()
+        }
+
+        protected abstract fun startReading(dispatcherScope: CoroutineScope)
 
-        client.socket.closeClient()
-        clients.remove(client.handle)
+        /**
+         * Called by the dispatcher whenever it made room in the queue.
+         */
+        protected open fun onDequeued() {
+        }
+
+        /**
+         * Wakes the reader up, it finishes the session.
+         */
+        abstract fun disconnect()
+
+        /**
+         * Moves as many decoded packets to the queue as fit.
+         *
+         * @return Whether all of them did.
+         */
+        protected fun offerDecoded(): Boolean {
+            while (true) {
+                val packet = decoded.peek() ?: return true
+                val queued = try {
+                    queue.offer(packet)
+                } catch (e: ClosedSendChannelException) {
+                    // The dispatcher is gone, nobody wants them anymore.
+                    releaseDecoded()
+                    return true
+                }
+                if (!queued) return false
+                decoded.poll()
+            }
+        }
+
+        protected fun releaseDecoded() {
+            while (true) {
+                release(decoded.poll() ?: return)
+            }
+        }
+
+        /**
+         * Lets the dispatcher finish and forgets the client, only the first call counts.
+         */
+        protected fun finish() {
+            if (!finished.compareAndSet(false, true)) return
+
+            releaseDecoded()
+            queue.close()
+            closeQuietly(client.socket::closeClient)
+            clients.remove(client.handle)
+            sessions.remove(client.handle)
+            metrics.remove { it.tags[TAG_CLIENT] == clientTag.second }
+            Logger.d("Client disconnected: $client")
+            callback.onDisconnected(client.handle)
+        }
     }
 
     /**
-     * Kill the socket by stopping its main thread.
+     * Blocks in read() on [Dispatchers.IO], waits for room in the queue.
      */
-    suspend fun kill() {
-        keepRunning.set(false)
-        socketThread.cancelAndJoin()
+    private inner class BlockingSession(client: EssClient) : Session(client) {
+
+        override fun startReading(dispatcherScope: CoroutineScope) {
+            dispatcherScope.launch(Dispatchers.IO) {
+                try {
+                    readFrames()
+                } catch (e: IOException) {
+                    if (keepRunning.get()) {
+                        Logger.e("Couldn't read from $client!", e)
+                    }
+                } finally {
+                    finish()
+                }
+            }
+        }
+
+        private suspend fun readFrames() {
+            // Straight into the decoder's off-heap ring, with readv(2) where the socket has it.
+            val reader = { buffers: Array<ByteBuffer>, count: Int ->
+                client.socket.read(buffers, 0, count)
+            }
+
+            while (keepRunning.get()) {
+                val readCount = decoder.readScattered(reader)
+
+                while (true) {
+                    val packet = decoded.peek() ?: break
+                    queue.send(packet)
+                    decoded.poll()
+                }
+
+                if (readCount == -1) break
+            }
+        }
+
+        override fun disconnect() {
+            closeQuietly(client.socket::shutdownInput)
+            closeQuietly(client.socket::close)
+        }
+    }
+
+    /**
+     * Fed by the event loop. Reading is paused whenever the queue is full and resumed once the
+     * dispatcher made room.
+     */
+    private inner class NonBlockingSession(
+        client: EssClient,
+        private val socket: NonBlockingPipeSocket,
+        private val eventLoop: PipeEventLoop
+    ) : Session(client), NonBlockingPipeSocket.Listener {
+
+        private val paused = AtomicBoolean(false)
+        private val resumeScheduled = AtomicBoolean(false)
+
+        override fun startReading(dispatcherScope: CoroutineScope) {
+            try {
+                socket.start(this)
+            } catch (e: IOException) {
+                Logger.e("Couldn't watch $client!", e)
+                finish()
+            }
+        }
+
+        // Everything but onDequeued runs on the loop thread.
+
+        override fun onRead(buffer: ByteArray, offset: Int, length: Int) {
+            decoder.feed(buffer, offset, length)
+            if (!offerDecoded()) {
+                paused.set(true)
+                socket.pauseReading()
+            }
+        }
+
+        override fun onClosed() {
+            // Reading stops while packets are left over, so there are none by now.
+            finish()
+        }
+
+        override fun onDequeued() {
+            if (paused.get() && resumeScheduled.compareAndSet(false, true)) {
+                eventLoop.execute {
+                    resumeScheduled.set(false)
+                    if (paused.get() && offerDecoded()) {
+                        paused.set(false)
+                        socket.resumeReading()
+                    }
+                }
+            }
+        }
+
+        override fun disconnect() {
+            eventLoop.execute { finish() }
+        }
     }
 
     interface Callback {
 
-        fun onPacket(handle: EssClientHandle, packet: TunPacket)
+        /**
+         * Receives the IPv6 packet of a TUN frame. It may be an [Ipv6Frame] that is reused once
+         * this returns.
+         *
+         * Packets of one client arrive in order on a single coroutine at a time, packets of
+         * different clients concurrently.
+         */
+        fun onPacket(handle: EssClientHandle, packet: IPacket)
+
+        /**
+         * Receives the packets decoded together, usually from a single read, in order. Their
+         * handles are all [handle]. The batch and its frames are reused once this returns.
+         */
+        fun onPackets(handle: EssClientHandle, batch: PacketBatch) {
+            batch.forEach { _, packet -> onPacket(handle, packet) }
+        }
+
+        /**
+         * The client announced an address of its own, it is in [EssClient.addresses] by now.
+         */
+        fun onAddressAdded(handle: EssClientHandle, address: Inet6Address) {
+        }
+
+        /**
+         * The client is gone, [onPacket] won't be called for it anymore.
+         */
+        fun onDisconnected(handle: EssClientHandle) {
+        }
     }
 
     companion object {
 
-        const val BUFFER_SIZE = 2048
+        const val DEFAULT_MAX_CLIENTS = 16
+
+        const val DEFAULT_QUEUE_CAPACITY = 256
+
+        /**
+         * Most packets handed to [Callback.onPackets] at once.
+         */
+        const val MAX_BATCH = 64
+
+        const val METRIC_PACKETS = "ess.packets"
+        const val METRIC_BYTES = "ess.bytes"
+        const val METRIC_PARSE_ERRORS = "ess.parse_errors"
+        const val METRIC_DROPPED_BYTES = "ess.dropped_bytes"
+
+        const val TAG_CLIENT = "client"
+        const val TAG_DIRECTION = "direction"
+        const val TAG_CAUSE = "cause"
+
+        /**
+         * Packets from a client.
+         */
+        const val DIRECTION_IN = "in"
+
+        /**
+         * Packets to a client.
+         */
+        const val DIRECTION_OUT = "out"
+
+        /**
+         * How long [kill] waits for the event loop, it may have been closed already.
+         */
+        private const val EVENT_LOOP_DRAIN_TIMEOUT = 1000L
     }
-}
\ No newline at end of file
+}
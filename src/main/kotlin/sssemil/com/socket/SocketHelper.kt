@@ -17,22 +17,72 @@
 package sssemil.com.socket
 
 import com.sun.jna.Platform
+import sssemil.com.socket.channel.ChannelServerSocket
+import sssemil.com.socket.channel.ChannelSocket
+import sssemil.com.socket.channel.SelectorEventLoop
+import sssemil.com.socket.channel.UnixDomainChannels
+import sssemil.com.socket.interfaces.PipeEventLoop
+import sssemil.com.socket.interfaces.PipeServerSocket
+import sssemil.com.socket.interfaces.PipeSocket
+import sssemil.com.socket.unix.UnixDomainEventLoop
 import sssemil.com.socket.unix.UnixDomainServerSocket
 import sssemil.com.socket.unix.UnixDomainSocket
 import sssemil.com.socket.win32.Win32NamedPipeServerSocket
 import sssemil.com.socket.win32.Win32NamedPipeSocket
 
+/**
+ * On Linux, the JDK's own Unix domain socket channels are preferred over JNA when the runtime
+ * has them (JDK 16 and later).
+ */
 object SocketHelper {
 
-    fun createServerSocket(path: String) = when {
+    fun createServerSocket(path: String): PipeServerSocket? = when {
         Platform.isWindows() -> Win32NamedPipeServerSocket(path)
+        Platform.isLinux() && UnixDomainChannels.isSupported -> ChannelServerSocket(path)
         Platform.isLinux() -> UnixDomainServerSocket(path)
         else -> null
     }
 
-    fun createSocket(path: String) = when {
+    fun createSocket(path: String): PipeSocket? = when {
         Platform.isWindows() -> Win32NamedPipeSocket(path)
+        Platform.isLinux() && UnixDomainChannels.isSupported -> ChannelSocket.connect(path)
         Platform.isLinux() -> UnixDomainSocket(path)
         else -> null
     }
+
+    /**
+     * @param backend The loop to use, the first one supported by default.
+     * @return A loop to serve sockets without blocking threads, or null if there is none for this
+     * platform.
+     */
+    fun createEventLoop(name: String, backend: EventLoopBackend? = null): PipeEventLoop? {
+        if (backend != null && !backend.isSupported) {
+            throw IllegalArgumentException("$backend event loop is not supported here!")
+        }
+        return when (backend ?: EventLoopBackend.values().firstOrNull { it.isSupported }) {
+            EventLoopBackend.SELECTOR -> SelectorEventLoop(name)
+            EventLoopBackend.EPOLL -> UnixDomainEventLoop(name)
+            null -> null
+        }
+    }
+
+    /**
+     * The loops [createEventLoop] can serve sockets with, preferred ones first.
+     */
+    enum class EventLoopBackend {
+        /**
+         * [SelectorEventLoop] on the JDK's channels, JDK 16 and later.
+         */
+        SELECTOR,
+        /**
+         * [UnixDomainEventLoop] on epoll through JNA, for older JDKs.
+         */
+        EPOLL;
+
+        val isSupported: Boolean
+            get() = when (this) {
+                SELECTOR -> Platform.isLinux() && UnixDomainChannels.isSupported
+                EPOLL -> UnixDomainEventLoop.isSupported
+            }
+    }
 }
\ No newline at end of file
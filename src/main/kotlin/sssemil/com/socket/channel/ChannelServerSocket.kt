@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.socket.channel
+
+import sssemil.com.socket.interfaces.PipeServerSocket
+import sssemil.com.socket.interfaces.PipeSocket
+import sssemil.com.socket.interfaces.PipeSocketAddress
+import java.io.IOException
+import java.nio.channels.ServerSocketChannel
+
+/**
+ * Implements a blocking [PipeServerSocket] on a JDK Unix domain [ServerSocketChannel], returns
+ * instances of [ChannelSocket] from [accept]. Closing it fails a pending [accept].
+ */
+class ChannelServerSocket
+@Throws(IOException::class)
+@JvmOverloads constructor(path: String? = null, private val backlog: Int = DEFAULT_BACKLOG) : PipeServerSocket {
+
+    private val channel = UnixDomainChannels.openServerSocketChannel()
+
+    init {
+        if (path != null) {
+            bind(ChannelSocketAddress(path))
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun bind(endpoint: PipeSocketAddress) {
+        if (endpoint !is ChannelSocketAddress) {
+            throw IllegalArgumentException("endpoint must be an instance of ChannelSocketAddress")
+        }
+        channel.bind(UnixDomainChannels.address(endpoint.path), backlog)
+    }
+
+    @Throws(IOException::class)
+    override fun accept(): PipeSocket = ChannelSocket(channel.accept())
+
+    @Throws(IOException::class)
+    override fun close() {
+        channel.close()
+    }
+
+    class ChannelSocketAddress(val path: String) : PipeSocketAddress
+
+    companion object {
+
+        private const val DEFAULT_BACKLOG = 50
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.socket.channel
+
+import sssemil.com.socket.interfaces.PipeSocket
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.SocketChannel
+
+/**
+ * A blocking [PipeSocket] on a JDK Unix domain [SocketChannel], so reads and writes don't go
+ * through JNA and direct buffers are written without a copy. [SelectorEventLoop] serves
+ * [NonBlockingChannelSocket]s instead.
+ */
+class ChannelSocket internal constructor(private val channel: SocketChannel) : PipeSocket() {
+
+    override val inputStream: InputStream = ChannelInputStream()
+
+    override val outputStream: OutputStream = ChannelOutputStream()
+
+    /**
+     * Writes all of [buffer].
+     */
+    @Throws(IOException::class)
+    override fun writeBuffer(buffer: ByteBuffer): Boolean {
+        val data = buffer.duplicate()
+        while (data.hasRemaining()) {
+            channel.write(data)
+        }
+        return true
+    }
+
+    /**
+     * Same as above, with gathering writes.
+     */
+    @Throws(IOException::class)
+    override fun writeBuffers(buffers: Array<out ByteBuffer>, offset: Int, length: Int): Boolean {
+        val data = Array(length) { buffers[offset + it].duplicate() }
+        while (data.any { it.hasRemaining() }) {
+            channel.write(data)
+        }
+        return true
+    }
+
+    /**
+     * Scatters a single read into the buffers.
+     */
+    @Throws(IOException::class)
+    override fun readBuffers(buffers: Array<out ByteBuffer>, offset: Int, length: Int): Int =
+        channel.read(buffers, offset, length).toInt()
+
+    @Throws(IOException::class)
+    override fun close() {
+        channel.close()
+    }
+
+    @Throws(IOException::class)
+    override fun shutdownInput() {
+        channel.shutdownInput()
+    }
+
+    @Throws(IOException::class)
+    override fun shutdownOutput() {
+        channel.shutdownOutput()
+    }
+
+    private inner class ChannelInputStream : InputStream() {
+
+        @Throws(IOException::class)
+        override fun read(): Int {
+            val b = ByteArray(1)
+            return if (read(b, 0, 1) == -1) -1 else 0xFF and b[0].toInt()
+        }
+
+        @Throws(IOException::class)
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) {
+                return 0
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len))
+        }
+    }
+
+    private inner class ChannelOutputStream : OutputStream() {
+
+        @Throws(IOException::class)
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        @Throws(IOException::class)
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            if (len == 0) {
+                return
+            }
+            writeBuffer(ByteBuffer.wrap(b, off, len))
+        }
+    }
+
+    companion object {
+
+        /**
+         * Connects to the Unix domain socket at [path].
+         */
+        @Throws(IOException::class)
+        fun connect(path: String): ChannelSocket {
+            val channel = UnixDomainChannels.openSocketChannel()
+            try {
+                channel.connect(UnixDomainChannels.address(path))
+            } catch (e: IOException) {
+                channel.close()
+                throw e
+            }
+            return ChannelSocket(channel)
+        }
+    }
+}
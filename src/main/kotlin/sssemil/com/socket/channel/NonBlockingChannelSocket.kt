@@ -0,0 +1,288 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.socket.channel
+
+import sssemil.com.common.util.Logger
+import sssemil.com.socket.interfaces.NonBlockingPipeSocket
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.SocketChannel
+import java.util.*
+
+/**
+ * A [NonBlockingPipeSocket] on a JDK Unix domain [SocketChannel] served by a [SelectorEventLoop],
+ * the JDK counterpart of [sssemil.com.socket.unix.NonBlockingUnixDomainSocket].
+ *
+ * Nothing is read until [start] is called, from then on the loop pushes whatever arrives to the
+ * listener. There is no [inputStream]. Writes may come from any thread. Whatever the channel
+ * doesn't take right away is queued and written once it is writable again, writers only block
+ * once [MAX_PENDING_BYTES] are queued.
+ */
+class NonBlockingChannelSocket internal constructor(
+    private val channel: SocketChannel,
+    private val eventLoop: SelectorEventLoop
+) : NonBlockingPipeSocket(), SelectorEventLoop.Handler {
+
+    override val inputStream: InputStream? = null
+
+    override val outputStream: OutputStream = NonBlockingOutputStream()
+
+    // Guards everything below.
+    private val lock = Object()
+
+    private var listener: Listener? = null
+    private var reading = false
+    private var closed = false
+    private var closeReported = false
+
+    private val pending = ArrayDeque<ByteBuffer>()
+    private var pendingBytes = 0
+
+    override fun start(listener: Listener) {
+        synchronized(lock) {
+            check(this.listener == null) { "Already started" }
+            if (closed) return
+            this.listener = listener
+            reading = true
+        }
+        eventLoop.register(channel, this::interest, this)
+    }
+
+    override fun pauseReading() = setReading(false)
+
+    override fun resumeReading() = setReading(true)
+
+    private fun setReading(reading: Boolean) {
+        synchronized(lock) {
+            if (this.reading == reading || listener == null || closed) return
+            this.reading = reading
+        }
+        eventLoop.updateInterest(channel)
+    }
+
+    override fun onReady(key: SelectionKey) {
+        if (key.isWritable) {
+            flush()
+        }
+
+        if (!key.isValid || !key.isReadable) return
+
+        val listener = synchronized(lock) {
+            if (closed || !reading) return
+            listener
+        } ?: return
+
+        val buffer = eventLoop.readBuffer
+        // Bounded, so a single busy client can't starve the others.
+        for (i in 0 until MAX_READS_PER_EVENT) {
+            buffer.clear()
+            val readCount = try {
+                channel.read(buffer)
+            } catch (e: IOException) {
+                Logger.w("Couldn't read from socket: ${e.message}")
+                -1
+            }
+
+            when {
+                readCount == 0 -> return
+                readCount < 0 -> {
+                    val report = synchronized(lock) {
+                        reading = false
+                        takeCloseReport()
+                    }
+                    key.cancel()
+                    if (report) listener.onClosed()
+                    return
+                }
+                else -> {
+                    listener.onRead(buffer.array(), buffer.arrayOffset(), readCount)
+                    if (buffer.hasRemaining() || !synchronized(lock) { reading }) return
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues whatever the channel doesn't take right away.
+     */
+    @Throws(IOException::class)
+    override fun writeBuffer(buffer: ByteBuffer): Boolean {
+        val data = buffer.duplicate()
+        synchronized(lock) {
+            if (closed) return false
+
+            if (pending.isEmpty()) {
+                channel.write(data)
+                if (!data.hasRemaining()) return true
+            }
+
+            if (!enqueue(arrayOf(data))) return false
+        }
+        eventLoop.updateInterest(channel)
+        return true
+    }
+
+    /**
+     * Same as above, with a single gathering write.
+     */
+    @Throws(IOException::class)
+    override fun writeBuffers(buffers: Array<out ByteBuffer>, offset: Int, length: Int): Boolean {
+        val data = Array(length) { buffers[offset + it].duplicate() }
+        synchronized(lock) {
+            if (closed) return false
+
+            if (pending.isEmpty()) {
+                channel.write(data)
+                if (data.none { it.hasRemaining() }) return true
+            }
+
+            if (!enqueue(data)) return false
+        }
+        eventLoop.updateInterest(channel)
+        return true
+    }
+
+    /**
+     * Copies the remaining bytes of [data] to the write queue, waiting for room if needed.
+     * Called with the lock held.
+     */
+    @Throws(IOException::class)
+    private fun enqueue(data: Array<ByteBuffer>): Boolean {
+        while (pendingBytes >= MAX_PENDING_BYTES && !closed) {
+            if (eventLoop.inEventLoop) {
+                throw IOException("Write queue is full, can't wait for it on the event loop")
+            }
+            lock.wait()
+        }
+        if (closed) return false
+
+        for (buffer in data) {
+            if (!buffer.hasRemaining()) continue
+
+            val copy = ByteBuffer.allocate(buffer.remaining())
+            copy.put(buffer).flip()
+            pending.add(copy)
+            pendingBytes += copy.remaining()
+        }
+        return true
+    }
+
+    /**
+     * Writes the queue out. If that fails the queued bytes are lost, so the socket is closed and
+     * the listener told, like when the peer goes away.
+     */
+    private fun flush() {
+        val listener = synchronized(lock) {
+            try {
+                while (true) {
+                    val head = pending.peek() ?: break
+                    pendingBytes -= channel.write(head)
+                    if (head.hasRemaining()) break
+                    pending.poll()
+                }
+                lock.notifyAll()
+                eventLoop.updateInterest(channel)
+                return
+            } catch (e: IOException) {
+                Logger.w("Couldn't write to socket, closing it: ${e.message}")
+                if (takeCloseReport()) listener else null
+            }
+        }
+
+        try {
+            close()
+        } catch (e: IOException) {
+            Logger.w("Couldn't close socket: ${e.message}")
+        }
+        listener?.onClosed()
+    }
+
+    /**
+     * The listener hears about the end of the socket once, whether it was read or a write failed.
+     * Called with the lock held.
+     *
+     * @return Whether the caller has to report it.
+     */
+    private fun takeCloseReport(): Boolean {
+        if (closeReported) return false
+        closeReported = true
+        return true
+    }
+
+    private fun interest(): Int = synchronized(lock) {
+        var ops = 0
+        if (reading) {
+            ops = ops or SelectionKey.OP_READ
+        }
+        if (pending.isNotEmpty()) {
+            ops = ops or SelectionKey.OP_WRITE
+        }
+        ops
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        synchronized(lock) {
+            if (closed) return
+            closed = true
+            pending.clear()
+            pendingBytes = 0
+            lock.notifyAll()
+        }
+        // Also cancels the channel's key.
+        channel.close()
+    }
+
+    @Throws(IOException::class)
+    override fun shutdownInput() {
+        channel.shutdownInput()
+    }
+
+    @Throws(IOException::class)
+    override fun shutdownOutput() {
+        channel.shutdownOutput()
+    }
+
+    private inner class NonBlockingOutputStream : OutputStream() {
+
+        @Throws(IOException::class)
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        @Throws(IOException::class)
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            if (len == 0) {
+                return
+            }
+            writeBuffer(ByteBuffer.wrap(b, off, len))
+        }
+    }
+
+    companion object {
+
+        /**
+         * Queued bytes above which writers block.
+         */
+        const val MAX_PENDING_BYTES = 4 * 1024 * 1024
+
+        private const val MAX_READS_PER_EVENT = 16
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.socket.channel
+
+import sssemil.com.common.util.Logger
+import sssemil.com.socket.interfaces.NonBlockingPipeSocket
+import sssemil.com.socket.interfaces.PipeEventLoop
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.CancelledKeyException
+import java.nio.channels.SelectableChannel
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * A single thread serving any number of [NonBlockingChannelSocket]s with a [Selector], the JDK
+ * counterpart of [sssemil.com.socket.unix.UnixDomainEventLoop].
+ *
+ * Channels are only registered and their interest only changed on the loop thread. Handlers run on
+ * the loop thread and must not block, they may use [readBuffer] as scratch space.
+ */
+class SelectorEventLoop
+@Throws(IOException::class)
+@JvmOverloads constructor(name: String = "selector-event-loop") : PipeEventLoop {
+
+    private val selector = Selector.open()
+
+    private val tasks = ConcurrentLinkedQueue<() -> Unit>()
+
+    /**
+     * Scratch space for reads, only to be used on the loop thread.
+     */
+    val readBuffer: ByteBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE)
+
+    @Volatile
+    private var running = true
+
+    // Held for reading while tasks are queued, the loop takes it for writing once it stops taking
+    // them, so none is left behind in the queue.
+    private val tasksLock = ReentrantReadWriteLock()
+    private var closed = false
+
+    private val thread = Thread(::loop, name).apply {
+        isDaemon = true
+        start()
+    }
+
+    override val inEventLoop: Boolean
+        get() = Thread.currentThread() === thread
+
+    @Throws(IOException::class)
+    override fun listen(path: String, onAccept: (NonBlockingPipeSocket) -> Unit): Closeable {
+        val server = UnixDomainChannels.openServerSocketChannel()
+        try {
+            server.bind(UnixDomainChannels.address(path), DEFAULT_BACKLOG)
+        } catch (e: IOException) {
+            server.close()
+            throw e
+        }
+
+        register(server, { SelectionKey.OP_ACCEPT }, object : Handler {
+
+            override fun onReady(key: SelectionKey) {
+                // Take everything in the backlog, the selector tells us if more clients show up.
+                while (true) {
+                    val channel = try {
+                        server.accept() ?: return
+                    } catch (e: IOException) {
+                        Logger.e("Couldn't accept client socket!", e)
+                        return
+                    }
+
+                    try {
+                        channel.configureBlocking(false)
+                    } catch (e: IOException) {
+                        Logger.e("Couldn't make client socket non-blocking!", e)
+                        channel.close()
+                        continue
+                    }
+                    onAccept(NonBlockingChannelSocket(channel, this@SelectorEventLoop))
+                }
+            }
+        })
+        return server
+    }
+
+    /**
+     * Registers [channel] in non-blocking mode for the operations [interest] returns, which is
+     * asked again on every [updateInterest].
+     */
+    internal fun register(channel: SelectableChannel, interest: () -> Int, handler: Handler) {
+        execute {
+            try {
+                channel.configureBlocking(false)
+                channel.register(selector, interest(), Registration(interest, handler))
+            } catch (e: IOException) {
+                Logger.e("Couldn't register channel!", e)
+            }
+        }
+    }
+
+    internal fun updateInterest(channel: SelectableChannel) {
+        if (inEventLoop) {
+            applyInterest(channel)
+        } else {
+            execute { applyInterest(channel) }
+        }
+    }
+
+    private fun applyInterest(channel: SelectableChannel) {
+        val key = channel.keyFor(selector) ?: return
+        if (key.isValid) {
+            key.interestOps((key.attachment() as Registration).interest())
+        }
+    }
+
+    /**
+     * Runs [task] on the loop thread, or right away on the calling one once the loop is closed.
+     */
+    override fun execute(task: () -> Unit) {
+        tasksLock.read {
+            if (!closed) {
+                tasks.add(task)
+                if (!inEventLoop) {
+                    selector.wakeup()
+                }
+                return
+            }
+        }
+        runTask(task)
+    }
+
+    override fun close() {
+        running = false
+        selector.wakeup()
+        if (!inEventLoop) {
+            thread.join()
+        }
+    }
+
+    private fun loop() {
+        while (running) {
+            try {
+                selector.select()
+            } catch (e: IOException) {
+                Logger.e("select failed, stopping the event loop!", e)
+                break
+            }
+
+            val keys = selector.selectedKeys().iterator()
+            while (keys.hasNext()) {
+                val key = keys.next()
+                keys.remove()
+                if (!key.isValid) continue
+
+                try {
+                    (key.attachment() as Registration).handler.onReady(key)
+                } catch (e: CancelledKeyException) {
+                    // Closed while being handled.
+                } catch (e: Exception) {
+                    Logger.e("Error handling ready operations ${key.readyOps()}!", e)
+                }
+            }
+
+            runTasks()
+        }
+
+        // Nothing is queued from now on, run what made it in before.
+        tasksLock.write { closed = true }
+        runTasks()
+        try {
+            selector.close()
+        } catch (e: IOException) {
+            Logger.w("Couldn't close the event loop: ${e.message}")
+        }
+    }
+
+    private fun runTasks() {
+        while (true) {
+            runTask(tasks.poll() ?: return)
+        }
+    }
+
+    private fun runTask(task: () -> Unit) {
+        try {
+            task()
+        } catch (e: Exception) {
+            Logger.e("Error running an event loop task!", e)
+        }
+    }
+
+    private class Registration(val interest: () -> Int, val handler: Handler)
+
+    interface Handler {
+
+        /**
+         * Called on the loop thread with the key of a channel that is ready.
+         */
+        fun onReady(key: SelectionKey)
+    }
+
+    companion object {
+
+        private const val READ_BUFFER_SIZE = 64 * 1024
+
+        private const val DEFAULT_BACKLOG = 50
+    }
+}
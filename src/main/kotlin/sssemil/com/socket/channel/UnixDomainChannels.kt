@@ -0,0 +1,77 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.socket.channel
+
+import java.io.IOException
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.net.ProtocolFamily
+import java.net.SocketAddress
+import java.net.StandardProtocolFamily
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
+
+/**
+ * Unix domain socket channels of JDK 16 and later. They are looked up reflectively, so that the
+ * bridge still builds and runs on older JDKs, which fall back to the JNA sockets.
+ */
+object UnixDomainChannels {
+
+    private class Api(
+        val family: ProtocolFamily,
+        val addressOf: Method,
+        val openServer: Method,
+        val openSocket: Method
+    )
+
+    private val api: Api? = try {
+        Api(
+            java.lang.Enum.valueOf(StandardProtocolFamily::class.java, "UNIX"),
+            Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String::class.java),
+            ServerSocketChannel::class.java.getMethod("open", ProtocolFamily::class.java),
+            SocketChannel::class.java.getMethod("open", ProtocolFamily::class.java)
+        )
+    } catch (e: ReflectiveOperationException) {
+        null
+    } catch (e: IllegalArgumentException) {
+        // No UNIX protocol family.
+        null
+    }
+
+    /**
+     * Whether the runtime has Unix domain socket channels.
+     */
+    val isSupported: Boolean
+        get() = api != null
+
+    fun address(path: String) = invoke { it.addressOf.invoke(null, path) as SocketAddress }
+
+    @Throws(IOException::class)
+    fun openServerSocketChannel() = invoke { it.openServer.invoke(null, it.family) as ServerSocketChannel }
+
+    @Throws(IOException::class)
+    fun openSocketChannel() = invoke { it.openSocket.invoke(null, it.family) as SocketChannel }
+
+    private inline fun <T> invoke(block: (Api) -> T): T {
+        val api = api ?: throw UnsupportedOperationException("Unix domain socket channels need JDK 16")
+        try {
+            return block(api)
+        } catch (e: InvocationTargetException) {
+            throw e.targetException
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.socket.interfaces
+
+/**
+ * A [PipeSocket] that is read by a [PipeEventLoop] instead of a blocking thread.
+ */
+abstract class NonBlockingPipeSocket : PipeSocket() {
+
+    /**
+     * Starts reading, [listener] is called on the loop thread from now on.
+     */
+    abstract fun start(listener: Listener)
+
+    /**
+     * Stops reading until [resumeReading], e.g. while a consumer catches up. The peer blocks once
+     * the socket buffers are full.
+     */
+    abstract fun pauseReading()
+
+    abstract fun resumeReading()
+
+    interface Listener {
+
+        /**
+         * Receives bytes that were read, [buffer] is reused once this returns.
+         */
+        fun onRead(buffer: ByteArray, offset: Int, length: Int)
+
+        /**
+         * The peer closed the connection or it failed. Called once, the socket still has to be
+         * closed.
+         */
+        fun onClosed()
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.socket.interfaces
+
+import java.io.Closeable
+import java.io.IOException
+
+/**
+ * A thread serving any number of [NonBlockingPipeSocket]s.
+ */
+interface PipeEventLoop : Closeable {
+
+    val inEventLoop: Boolean
+
+    /**
+     * Runs [task] on the loop thread, after the events that are being handled right now.
+     * Tasks that are still queued when the loop is closed run before its thread exits, the ones
+     * handed over after that run right away on the calling thread.
+     */
+    fun execute(task: () -> Unit)
+
+    /**
+     * Binds a server socket to [path] and hands every client to [onAccept], on the loop thread.
+     *
+     * @return Closes the server socket.
+     */
+    @Throws(IOException::class)
+    fun listen(path: String, onAccept: (NonBlockingPipeSocket) -> Unit): Closeable
+
+    /**
+     * Stops the loop thread. Sockets that are still open are not closed.
+     */
+    override fun close()
+}
@@ -20,14 +20,22 @@ import sssemil.com.common.util.Logger
 import java.io.IOException
 import java.io.InputStream
 import java.io.OutputStream
+import java.nio.ByteBuffer
 
+/**
+ * Full duplex socket. Reads and writes have locks of their own, so a thread blocked in a read
+ * never holds up writes and the other way around. Implementations must therefore keep the state
+ * of the two directions apart.
+ */
 abstract class PipeSocket {
 
     abstract val inputStream: InputStream?
 
     abstract val outputStream: OutputStream?
 
-    private val socketLock = Object()
+    private val readLock = Object()
+
+    private val writeLock = Object()
 
     @Throws(IOException::class)
     abstract fun close()
@@ -39,12 +47,11 @@ abstract class PipeSocket {
     abstract fun shutdownOutput()
 
     /**
-     * Close current socket.
+     * Close current socket. This takes neither lock, a read or write in progress keeps the file
+     * descriptor alive until it returns, see [sssemil.com.socket.ReferenceCountedFileDescriptor].
      */
     fun closeClient() {
-        synchronized(socketLock) {
-            close()
-        }
+        close()
     }
 
     /**
@@ -56,7 +63,7 @@ abstract class PipeSocket {
      * @return Whether or not there was a client to write to.
      */
     fun write(buffer: ByteArray, offset: Int, length: Int): Boolean {
-        synchronized(socketLock) {
+        synchronized(writeLock) {
             outputStream?.write(buffer, offset, length) ?: run {
                 Logger.w("There is no valid client yet!")
                 return false
@@ -66,6 +73,70 @@ abstract class PipeSocket {
         }
     }
 
+    /**
+     * Write to the socket.
+     *
+     * @param buffer A buffer containing the packet between its position and limit, e.g. a pooled
+     * direct buffer. Its position is left untouched.
+     *
+     * @return Whether or not there was a client to write to.
+     */
+    fun write(buffer: ByteBuffer): Boolean {
+        synchronized(writeLock) {
+            return writeBuffer(buffer)
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of [buffer], called with the write lock held. By default the
+     * bytes go through [outputStream], which means a copy for direct buffers. Implementations that
+     * can write a buffer natively should override this.
+     */
+    @Throws(IOException::class)
+    protected open fun writeBuffer(buffer: ByteBuffer): Boolean {
+        val stream = outputStream ?: run {
+            Logger.w("There is no valid client yet!")
+            return false
+        }
+
+        if (buffer.hasArray()) {
+            stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining())
+        } else {
+            val data = ByteArray(buffer.remaining())
+            buffer.duplicate().get(data)
+            stream.write(data)
+        }
+        return true
+    }
+
+    /**
+     * Write several buffers to the socket at once, e.g. a batch of frames or a header and the
+     * payload that goes behind it, without concatenating them.
+     *
+     * @param buffers Buffers whose remaining bytes are sent in order. Their positions are left
+     * untouched.
+     *
+     * @return Whether or not there was a client to write to.
+     */
+    fun write(buffers: Array<out ByteBuffer>, offset: Int = 0, length: Int = buffers.size): Boolean {
+        synchronized(writeLock) {
+            return writeBuffers(buffers, offset, length)
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of [length] buffers starting at [offset], called with the write
+     * lock held. By default this is a [writeBuffer] per buffer, implementations that can gather
+     * them into fewer system calls should override this.
+     */
+    @Throws(IOException::class)
+    protected open fun writeBuffers(buffers: Array<out ByteBuffer>, offset: Int, length: Int): Boolean {
+        for (i in offset until offset + length) {
+            if (!writeBuffer(buffers[i])) return false
+        }
+        return true
+    }
+
     /**
      * Read from the socket.
      *
@@ -73,14 +144,77 @@ abstract class PipeSocket {
      *
      * @return The number of bytes read.
      */
-    fun read(buffer: ByteArray): Int {
-        synchronized(socketLock) {
+    fun read(buffer: ByteArray) = read(buffer, 0, buffer.size)
+
+    /**
+     * Read from the socket into several buffers at once, each one is filled up to its limit before
+     * the next one, see [java.nio.channels.ScatteringByteChannel].
+     *
+     * @param buffers Buffers whose positions are advanced past the bytes read.
+     *
+     * @return The number of bytes read, or -1 at the end of the stream.
+     */
+    fun read(buffers: Array<out ByteBuffer>, offset: Int = 0, length: Int = buffers.size): Int {
+        synchronized(readLock) {
+            return readBuffers(buffers, offset, length)
+        }
+    }
+
+    /**
+     * Reads into [length] buffers starting at [offset], called with the read lock held. By
+     * default only the first buffer with room is read into through [inputStream], implementations
+     * that can scatter a single read should override this.
+     */
+    @Throws(IOException::class)
+    protected open fun readBuffers(buffers: Array<out ByteBuffer>, offset: Int, length: Int): Int {
+        val stream = inputStream ?: run {
+            Logger.w("There is no valid client yet!")
+            return -1
+        }
+        val buffer = (offset until offset + length).firstOrNull { buffers[it].hasRemaining() }
+            ?.let { buffers[it] } ?: return 0
+
+        return if (buffer.hasArray()) {
+            stream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()).also {
+                if (it > 0) {
+                    buffer.position(buffer.position() + it)
+                }
+            }
+        } else {
+            val data = ByteArray(Math.min(buffer.remaining(), MAX_COPY_SIZE))
+            stream.read(data).also {
+                if (it > 0) {
+                    buffer.put(data, 0, it)
+                }
+            }
+        }
+    }
+
+    /**
+     * Read from the socket.
+     *
+     * @param buffer The buffer to read into.
+     * @param offset Where in the buffer to start.
+     * @param length At most this many bytes will be read.
+     *
+     * @return The number of bytes read.
+     */
+    fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+        synchronized(readLock) {
             inputStream?.let {
-                return it.read(buffer)
+                return it.read(buffer, offset, length)
             } ?: run {
                 Logger.w("There is no valid client yet!")
                 return -1
             }
         }
     }
+
+    companion object {
+
+        /**
+         * Largest temporary array for reads into direct buffers.
+         */
+        private const val MAX_COPY_SIZE = 64 * 1024
+    }
 }
\ No newline at end of file
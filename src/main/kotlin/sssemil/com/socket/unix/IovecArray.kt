@@ -0,0 +1,180 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sssemil.com.socket.unix
+
+import com.sun.jna.LastErrorException
+import com.sun.jna.Native
+import com.sun.jna.Pointer
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * An array of struct iovec in native memory, for readv(2) and writev(2). Each entry points at the
+ * remaining bytes of a direct buffer.
+ *
+ * Heap buffers can't be pointed at, [prepare] copies them into a staging buffer instead. Not thread
+ * safe, every direction of a socket needs its own.
+ */
+internal class IovecArray {
+
+    private var entries = allocate(INITIAL_CAPACITY)
+    private var count = 0
+    private val buffers = ArrayList<ByteBuffer>()
+
+    private var staging: ByteBuffer? = null
+
+    val isEmpty: Boolean
+        get() = count == 0
+
+    val isFull: Boolean
+        get() = count == IOV_MAX
+
+    fun clear() {
+        count = 0
+        buffers.clear()
+    }
+
+    /**
+     * @return Direct buffers over the remaining bytes of [buffers], whose positions are left
+     * alone. Heap buffers are copied, the copies are only valid until the next call.
+     */
+    fun prepare(buffers: Array<out ByteBuffer>, offset: Int, length: Int): List<ByteBuffer> {
+        var heapBytes = 0
+        for (i in offset until offset + length) {
+            if (!buffers[i].isDirect) {
+                heapBytes += buffers[i].remaining()
+            }
+        }
+
+        val current = staging
+        val staging = if (heapBytes > 0 && (current == null || current.capacity() < heapBytes)) {
+            ByteBuffer.allocateDirect(Math.max(heapBytes, MIN_STAGING_SIZE)).also { staging = it }
+        } else {
+            current
+        }
+        staging?.clear()
+
+        return (offset until offset + length).map {
+            val buffer = buffers[it]
+            if (buffer.isDirect || staging == null) {
+                buffer.duplicate()
+            } else {
+                val start = staging.position()
+                staging.put(buffer.duplicate())
+                val copy = staging.duplicate()
+                copy.limit(staging.position())
+                copy.position(start)
+                copy
+            }
+        }
+    }
+
+    /**
+     * Points the next entry at the remaining bytes of [buffer], which must be direct.
+     */
+    fun add(buffer: ByteBuffer) {
+        check(!isFull) { "No more than $IOV_MAX entries" }
+        if (!buffer.hasRemaining()) return
+
+        if ((count + 1) * ENTRY_SIZE > entries.capacity()) {
+            val newEntries = allocate(Math.min(count * 2, IOV_MAX))
+            entries.position(0).limit(count * ENTRY_SIZE)
+            newEntries.put(entries).clear()
+            entries = newEntries
+        }
+
+        val address = Pointer.nativeValue(Native.getDirectBufferPointer(buffer)) + buffer.position()
+        putWord(count * ENTRY_SIZE, address)
+        putWord(count * ENTRY_SIZE + Native.POINTER_SIZE, buffer.remaining().toLong())
+        buffers.add(buffer)
+        count++
+    }
+
+    /**
+     * Adds as many of [buffers] as fit, starting at [from].
+     *
+     * @return Index of the first buffer that didn't fit.
+     */
+    fun addAll(buffers: List<ByteBuffer>, from: Int): Int {
+        var index = from
+        while (index < buffers.size && !isFull) {
+            add(buffers[index++])
+        }
+        return index
+    }
+
+    /**
+     * Gathers the entries into [fd] with a single writev(2), advancing the buffers' positions.
+     *
+     * @return The number of bytes written.
+     */
+    @Throws(LastErrorException::class)
+    fun writeTo(fd: Int): Int {
+        val written = UnixDomainSocketLibrary.writev(fd, entries, count)
+        advance(written)
+        return written
+    }
+
+    /**
+     * Scatters a single readv(2) from [fd] into the entries, advancing the buffers' positions.
+     *
+     * @return The number of bytes read, 0 at the end of the stream.
+     */
+    @Throws(LastErrorException::class)
+    fun readFrom(fd: Int): Int {
+        val read = UnixDomainSocketLibrary.readv(fd, entries, count)
+        advance(read)
+        return read
+    }
+
+    private fun advance(byteCount: Int) {
+        var left = byteCount
+        for (buffer in buffers) {
+            if (left == 0) break
+            val consumed = Math.min(left, buffer.remaining())
+            buffer.position(buffer.position() + consumed)
+            left -= consumed
+        }
+    }
+
+    private fun putWord(index: Int, value: Long) {
+        if (Native.POINTER_SIZE == 8) {
+            entries.putLong(index, value)
+        } else {
+            entries.putInt(index, value.toInt())
+        }
+    }
+
+    companion object {
+
+        /**
+         * Most entries a single call takes on Linux.
+         */
+        const val IOV_MAX = 1024
+
+        /**
+         * struct iovec is a pointer and a size_t.
+         */
+        private val ENTRY_SIZE = 2 * Native.POINTER_SIZE
+
+        private const val INITIAL_CAPACITY = 16
+
+        private const val MIN_STAGING_SIZE = 4 * 1024
+
+        private fun allocate(capacity: Int) =
+            ByteBuffer.allocateDirect(capacity * ENTRY_SIZE).order(ByteOrder.nativeOrder())
+    }
+}
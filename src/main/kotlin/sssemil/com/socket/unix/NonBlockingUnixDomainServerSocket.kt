@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sssemil.com.socket.unix
+
+import com.sun.jna.LastErrorException
+import com.sun.jna.ptr.IntByReference
+import sssemil.com.common.util.Logger
+import java.io.Closeable
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Non-blocking counterpart of [UnixDomainServerSocket]. Instead of blocking in accept(), the
+ * listening socket is watched by [eventLoop] and every client is handed to [onAccept] as it comes
+ * in, on the loop thread.
+ */
+class NonBlockingUnixDomainServerSocket
+@Throws(IOException::class)
+@JvmOverloads constructor(
+    path: String,
+    private val eventLoop: UnixDomainEventLoop,
+    backlog: Int = DEFAULT_BACKLOG,
+    private val onAccept: (NonBlockingUnixDomainSocket) -> Unit
+) : Closeable, UnixDomainEventLoop.Handler {
+
+    // Set to -1 once closed, see UnixDomainServerSocket.
+    private val fd: AtomicInteger
+
+    init {
+        try {
+            val socketFd = UnixDomainSocketLibrary.socket(
+                UnixDomainSocketLibrary.PF_LOCAL,
+                UnixDomainSocketLibrary.SOCK_STREAM,
+                0
+            )
+            fd = AtomicInteger(socketFd)
+            try {
+                setNonBlocking(socketFd)
+                val address = SockAddrUn(path)
+                UnixDomainSocketLibrary.bind(socketFd, address, address.size())
+                UnixDomainSocketLibrary.listen(socketFd, backlog)
+            } catch (e: LastErrorException) {
+                UnixDomainSocketLibrary.close(socketFd)
+                throw e
+            }
+        } catch (e: LastErrorException) {
+            throw IOException(e)
+        }
+
+        eventLoop.register(fd.get(), UnixDomainSocketLibrary.EPOLLIN, this)
+    }
+
+    override fun onEvents(events: Int) {
+        // Take everything in the backlog, the loop calls us again if more clients show up.
+        while (true) {
+            val socketFd = fd.get()
+            if (socketFd == -1) return
+
+            val clientFd = try {
+                val sockAddrUn = SockAddrUn()
+                val addressLen = IntByReference(sockAddrUn.size())
+                UnixDomainSocketLibrary.accept4(
+                    socketFd, sockAddrUn, addressLen,
+                    UnixDomainSocketLibrary.SOCK_NONBLOCK or UnixDomainSocketLibrary.SOCK_CLOEXEC
+                )
+            } catch (e: LastErrorException) {
+                if (e.errorCode != UnixDomainSocketLibrary.EAGAIN) {
+                    Logger.e("Couldn't accept client socket!", e)
+                }
+                return
+            }
+
+            onAccept(NonBlockingUnixDomainSocket(clientFd, eventLoop))
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        val socketFd = fd.getAndSet(-1)
+        if (socketFd == -1) return
+
+        eventLoop.unregister(socketFd)
+        try {
+            UnixDomainSocketLibrary.close(socketFd)
+        } catch (e: LastErrorException) {
+            throw IOException(e)
+        }
+    }
+
+    companion object {
+
+        private const val DEFAULT_BACKLOG = 50
+
+        @Throws(LastErrorException::class)
+        private fun setNonBlocking(fd: Int) {
+            val flags = UnixDomainSocketLibrary.fcntl(fd, UnixDomainSocketLibrary.F_GETFL, 0)
+            UnixDomainSocketLibrary.fcntl(fd, UnixDomainSocketLibrary.F_SETFL, flags or UnixDomainSocketLibrary.O_NONBLOCK)
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sssemil.com.socket.unix
+
+import com.sun.jna.LastErrorException
+import sssemil.com.common.util.Logger
+import sssemil.com.socket.ReferenceCountedFileDescriptor
+import sssemil.com.socket.interfaces.NonBlockingPipeSocket
+import sssemil.com.socket.unix.UnixDomainSocketLibrary.EPOLLERR
+import sssemil.com.socket.unix.UnixDomainSocketLibrary.EPOLLHUP
+import sssemil.com.socket.unix.UnixDomainSocketLibrary.EPOLLIN
+import sssemil.com.socket.unix.UnixDomainSocketLibrary.EPOLLOUT
+import sssemil.com.socket.unix.UnixDomainSocketLibrary.EPOLLRDHUP
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.util.*
+
+/**
+ * A non-blocking Unix domain socket served by a [UnixDomainEventLoop].
+ *
+ * Nothing is read until [start] is called, from then on the loop pushes whatever arrives to the
+ * listener. There is no [inputStream]. Writes may come from any thread. Whatever the socket
+ * doesn't take right away is queued and written by the loop once the socket is writable again.
+ * Writers only block once [MAX_PENDING_BYTES] are queued.
+ */
+class NonBlockingUnixDomainSocket internal constructor(
+    private val socketFd: Int,
+    private val eventLoop: UnixDomainEventLoop
+) : NonBlockingPipeSocket(), UnixDomainEventLoop.Handler {
+
+    private val fd = ReferenceCountedFileDescriptor(socketFd)
+
+    override val inputStream: InputStream? = null
+
+    override val outputStream: OutputStream = NonBlockingOutputStream()
+
+    // Guards everything below.
+    private val lock = Object()
+
+    private var listener: Listener? = null
+    private var reading = false
+    private var registered = false
+    private var closed = false
+    private var closeReported = false
+
+    private val pending = ArrayDeque<ByteBuffer>()
+    private var pendingBytes = 0
+
+    private val writeIovecs = IovecArray()
+
+    @Throws(IOException::class)
+    override fun start(listener: Listener) {
+        synchronized(lock) {
+            check(this.listener == null) { "Already started" }
+            if (closed) return
+            this.listener = listener
+            reading = true
+            registered = true
+            eventLoop.register(socketFd, interest(), this)
+        }
+    }
+
+    override fun pauseReading() = setReading(false)
+
+    override fun resumeReading() = setReading(true)
+
+    private fun setReading(reading: Boolean) {
+        synchronized(lock) {
+            if (this.reading == reading || listener == null || closed) return
+            this.reading = reading
+            updateInterest()
+        }
+    }
+
+    override fun onEvents(events: Int) {
+        if (events and EPOLLOUT != 0) {
+            flush()
+        }
+
+        if (events and (EPOLLIN or EPOLLRDHUP or EPOLLHUP or EPOLLERR) == 0) return
+
+        val listener = synchronized(lock) {
+            if (closed) return
+            if (!reading) {
+                // Hangups are reported whether we ask for them or not, stop watching the socket
+                // until reading is resumed, which will find the end of the stream.
+                if (events and (EPOLLHUP or EPOLLERR) != 0) {
+                    eventLoop.unregister(socketFd)
+                    registered = false
+                }
+                return
+            }
+            listener
+        } ?: return
+
+        val buffer = eventLoop.readBuffer
+        // Bounded, so a single busy client can't starve the others.
+        for (i in 0 until MAX_READS_PER_EVENT) {
+            val readCount = try {
+                doRead(buffer)
+            } catch (e: IOException) {
+                Logger.w("Couldn't read from socket: ${e.message}")
+                -1
+            }
+
+            when {
+                readCount == READ_AGAIN -> return
+                readCount <= 0 -> {
+                    val report = synchronized(lock) {
+                        reading = false
+                        eventLoop.unregister(socketFd)
+                        registered = false
+                        takeCloseReport()
+                    }
+                    if (report) listener.onClosed()
+                    return
+                }
+                else -> {
+                    listener.onRead(buffer, 0, readCount)
+                    if (readCount < buffer.size || !synchronized(lock) { reading }) return
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues whatever the socket doesn't take right away.
+     */
+    @Throws(IOException::class)
+    override fun writeBuffer(buffer: ByteBuffer): Boolean {
+        val data = buffer.duplicate()
+        synchronized(lock) {
+            if (closed) return false
+
+            if (pending.isEmpty()) {
+                doWrite(data)
+                if (!data.hasRemaining()) return true
+            }
+
+            return enqueue(listOf(data), 0)
+        }
+    }
+
+    /**
+     * Gathers the buffers into as few writev(2) calls as possible and queues whatever the socket
+     * doesn't take right away.
+     */
+    @Throws(IOException::class)
+    override fun writeBuffers(buffers: Array<out ByteBuffer>, offset: Int, length: Int): Boolean {
+        synchronized(lock) {
+            if (closed) return false
+
+            val data = writeIovecs.prepare(buffers, offset, length)
+            val index = if (pending.isEmpty()) writeGathered(data) else 0
+            return if (index == data.size) true else enqueue(data, index)
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of [data], starting at [from], to the write queue, waiting for
+     * room if needed. Called with the lock held.
+     */
+    @Throws(IOException::class)
+    private fun enqueue(data: List<ByteBuffer>, from: Int): Boolean {
+        while (pendingBytes >= MAX_PENDING_BYTES && !closed) {
+            if (eventLoop.inEventLoop) {
+                throw IOException("Write queue is full, can't wait for it on the event loop")
+            }
+            lock.wait()
+        }
+        if (closed) return false
+
+        for (i in from until data.size) {
+            val buffer = data[i]
+            if (!buffer.hasRemaining()) continue
+
+            val copy = ByteBuffer.allocate(buffer.remaining())
+            copy.put(buffer).flip()
+            pending.add(copy)
+            pendingBytes += copy.remaining()
+        }
+        updateInterest()
+        return true
+    }
+
+    /**
+     * Writes the queue out. If that fails the queued bytes are lost, so the socket is closed and
+     * the listener told, like when the peer goes away.
+     */
+    private fun flush() {
+        val listener = synchronized(lock) {
+            try {
+                while (true) {
+                    val head = pending.peek() ?: break
+                    val remaining = head.remaining()
+                    doWrite(head)
+                    pendingBytes -= remaining - head.remaining()
+                    if (head.hasRemaining()) break
+                    pending.poll()
+                }
+                lock.notifyAll()
+                updateInterest()
+                return
+            } catch (e: IOException) {
+                Logger.w("Couldn't write to socket, closing it: ${e.message}")
+                if (takeCloseReport()) listener else null
+            }
+        }
+
+        try {
+            close()
+        } catch (e: IOException) {
+            Logger.w("Couldn't close socket: ${e.message}")
+        }
+        listener?.onClosed()
+    }
+
+    /**
+     * The listener hears about the end of the socket once, whether it was read or a write failed.
+     * Called with the lock held.
+     *
+     * @return Whether the caller has to report it.
+     */
+    private fun takeCloseReport(): Boolean {
+        if (closeReported) return false
+        closeReported = true
+        return true
+    }
+
+    /**
+     * Writes as much of [buffer] as the socket takes, advancing its position.
+     */
+    @Throws(IOException::class)
+    private fun doWrite(buffer: ByteBuffer) {
+        try {
+            val fdToWrite = fd.acquire()
+            if (fdToWrite == -1) {
+                buffer.position(buffer.limit())
+                return
+            }
+            while (buffer.hasRemaining()) {
+                val written = UnixDomainSocketLibrary.write(fdToWrite, buffer, buffer.remaining())
+                buffer.position(buffer.position() + written)
+            }
+        } catch (e: LastErrorException) {
+            if (e.errorCode != UnixDomainSocketLibrary.EAGAIN) {
+                throw IOException(e)
+            }
+        } finally {
+            fd.release()
+        }
+    }
+
+    /**
+     * Writes as much of [data] as the socket takes. Called with the lock held.
+     *
+     * @return Index of the first buffer that wasn't written completely.
+     */
+    @Throws(IOException::class)
+    private fun writeGathered(data: List<ByteBuffer>): Int {
+        var index = 0
+        try {
+            val fdToWrite = fd.acquire()
+            if (fdToWrite == -1) {
+                return data.size
+            }
+
+            while (index < data.size) {
+                writeIovecs.clear()
+                writeIovecs.addAll(data, index)
+                if (writeIovecs.isEmpty) return data.size
+
+                writeIovecs.writeTo(fdToWrite)
+                while (index < data.size && !data[index].hasRemaining()) {
+                    index++
+                }
+            }
+        } catch (e: LastErrorException) {
+            if (e.errorCode != UnixDomainSocketLibrary.EAGAIN) {
+                throw IOException(e)
+            }
+        } finally {
+            fd.release()
+        }
+        return index
+    }
+
+    /**
+     * @return The number of bytes read, 0 at the end of the stream or [READ_AGAIN].
+     */
+    @Throws(IOException::class)
+    private fun doRead(buffer: ByteArray): Int {
+        try {
+            val fdToRead = fd.acquire()
+            return if (fdToRead == -1) {
+                0
+            } else {
+                UnixDomainSocketLibrary.read(fdToRead, ByteBuffer.wrap(buffer), buffer.size)
+            }
+        } catch (e: LastErrorException) {
+            if (e.errorCode == UnixDomainSocketLibrary.EAGAIN) {
+                return READ_AGAIN
+            }
+            throw IOException(e)
+        } finally {
+            fd.release()
+        }
+    }
+
+    // Called with the lock held.
+    private fun interest(): Int {
+        var events = 0
+        if (reading) {
+            events = events or EPOLLIN or EPOLLRDHUP
+        }
+        if (pending.isNotEmpty()) {
+            events = events or EPOLLOUT
+        }
+        return events
+    }
+
+    // Called with the lock held.
+    private fun updateInterest() {
+        if (closed || listener == null) return
+
+        try {
+            if (registered) {
+                eventLoop.modify(socketFd, interest())
+            } else if (reading) {
+                eventLoop.register(socketFd, interest(), this)
+                registered = true
+            }
+        } catch (e: IOException) {
+            Logger.w("Couldn't update the events of socket: ${e.message}")
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun close() {
+        synchronized(lock) {
+            if (closed) return
+            closed = true
+            pending.clear()
+            pendingBytes = 0
+            lock.notifyAll()
+        }
+
+        // Before closing, so that the fd can't be reused by then.
+        eventLoop.unregister(socketFd)
+        try {
+            fd.close()
+        } catch (e: LastErrorException) {
+            throw IOException(e)
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun shutdownInput() {
+        doShutdown(UnixDomainSocketLibrary.SHUT_RD)
+    }
+
+    @Throws(IOException::class)
+    override fun shutdownOutput() {
+        doShutdown(UnixDomainSocketLibrary.SHUT_WR)
+    }
+
+    @Throws(IOException::class)
+    private fun doShutdown(how: Int) {
+        try {
+            val fdToShutdown = fd.acquire()
+            if (fdToShutdown != -1) {
+                UnixDomainSocketLibrary.shutdown(fdToShutdown, how)
+            }
+        } catch (e: LastErrorException) {
+            throw IOException(e)
+        } finally {
+            fd.release()
+        }
+    }
+
+    private inner class NonBlockingOutputStream : OutputStream() {
+
+        @Throws(IOException::class)
+        override fun write(b: Int) {
+            write(byteArrayOf(b.toByte()), 0, 1)
+        }
+
+        @Throws(IOException::class)
+        override fun write(b: ByteArray, off: Int, len: Int) {
+            if (len == 0) {
+                return
+            }
+            writeBuffer(ByteBuffer.wrap(b, off, len))
+        }
+    }
+
+    companion object {
+
+        /**
+         * Queued bytes above which writers block.
+         */
+        const val MAX_PENDING_BYTES = 4 * 1024 * 1024
+
+        private const val MAX_READS_PER_EVENT = 16
+
+        private const val READ_AGAIN = -2
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sssemil.com.socket.unix
+
+import com.sun.jna.LastErrorException
+import com.sun.jna.Platform
+import sssemil.com.common.util.Logger
+import sssemil.com.socket.interfaces.NonBlockingPipeSocket
+import sssemil.com.socket.interfaces.PipeEventLoop
+import sssemil.com.socket.unix.UnixDomainSocketLibrary.EAGAIN
+import sssemil.com.socket.unix.UnixDomainSocketLibrary.EINTR
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * A single thread multiplexing any number of non-blocking file descriptors with epoll, e.g. a
+ * [NonBlockingUnixDomainServerSocket] and all of its clients.
+ *
+ * Descriptors are level triggered. Handlers run on the loop thread and must not block, they may
+ * use [readBuffer] as scratch space.
+ *
+ * Linux only, see [isSupported].
+ */
+class UnixDomainEventLoop
+@Throws(IOException::class)
+@JvmOverloads constructor(name: String = "unix-event-loop") : PipeEventLoop {
+
+    private val epollFd: Int
+    private val wakeupFd: Int
+
+    private val handlers = ConcurrentHashMap<Int, Handler>()
+    private val tasks = ConcurrentLinkedQueue<() -> Unit>()
+
+    // Only touched by the loop thread.
+    private val events = ByteBuffer.allocateDirect(MAX_EVENTS * EVENT_SIZE).order(ByteOrder.nativeOrder())
+    private val wakeupBuffer = ByteBuffer.allocateDirect(8).order(ByteOrder.nativeOrder())
+
+    /**
+     * Scratch space for reads, only to be used on the loop thread.
+     */
+    val readBuffer = ByteArray(READ_BUFFER_SIZE)
+
+    @Volatile
+    private var running = true
+
+    // Held for reading while the fds are used, the loop takes it for writing to close them. That
+    // way no other thread writes to a closed fd, whose number might have been reused by then.
+    private val fdLock = ReentrantReadWriteLock()
+    private var closed = false
+
+    private val thread: Thread
+
+    init {
+        try {
+            epollFd = UnixDomainSocketLibrary.epoll_create1(UnixDomainSocketLibrary.EPOLL_CLOEXEC)
+            wakeupFd = UnixDomainSocketLibrary.eventfd(
+                0,
+                UnixDomainSocketLibrary.EFD_NONBLOCK or UnixDomainSocketLibrary.EFD_CLOEXEC
+            )
+            control(UnixDomainSocketLibrary.EPOLL_CTL_ADD, wakeupFd, UnixDomainSocketLibrary.EPOLLIN)
+        } catch (e: LastErrorException) {
+            throw IOException(e)
+        }
+
+        thread = Thread(::loop, name).apply {
+            isDaemon = true
+            start()
+        }
+    }
+
+    override val inEventLoop: Boolean
+        get() = Thread.currentThread() === thread
+
+    @Throws(IOException::class)
+    override fun listen(path: String, onAccept: (NonBlockingPipeSocket) -> Unit) =
+        NonBlockingUnixDomainServerSocket(path, this, onAccept = onAccept)
+
+    /**
+     * Starts watching [fd] for [events], a mask of EPOLL* flags.
+     */
+    @Throws(IOException::class)
+    fun register(fd: Int, events: Int, handler: Handler) {
+        handlers[fd] = handler
+        try {
+            control(UnixDomainSocketLibrary.EPOLL_CTL_ADD, fd, events)
+        } catch (e: IOException) {
+            handlers.remove(fd)
+            throw e
+        }
+    }
+
+    /**
+     * Replaces the events [fd] is watched for.
+     */
+    @Throws(IOException::class)
+    fun modify(fd: Int, events: Int) {
+        control(UnixDomainSocketLibrary.EPOLL_CTL_MOD, fd, events)
+    }
+
+    /**
+     * Stops watching [fd], this has to happen before it is closed.
+     */
+    fun unregister(fd: Int) {
+        if (handlers.remove(fd) != null) {
+            fdLock.read {
+                // Closing the epoll fd dropped it already.
+                if (closed) return
+                try {
+                    UnixDomainSocketLibrary.epoll_ctl(epollFd, UnixDomainSocketLibrary.EPOLL_CTL_DEL, fd, null)
+                } catch (e: LastErrorException) {
+                    // Already gone.
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs [task] on the loop thread, or right away on the calling one once the loop is closed.
+     */
+    override fun execute(task: () -> Unit) {
+        fdLock.read {
+            if (!closed) {
+                tasks.add(task)
+                if (!inEventLoop) {
+                    wakeUp()
+                }
+                return
+            }
+        }
+        runTask(task)
+    }
+
+    override fun close() {
+        running = false
+        wakeUp()
+        if (!inEventLoop) {
+            thread.join()
+        }
+    }
+
+    private fun loop() {
+        while (running) {
+            val count = try {
+                UnixDomainSocketLibrary.epoll_wait(epollFd, events, MAX_EVENTS, -1)
+            } catch (e: LastErrorException) {
+                if (e.errorCode == EINTR) continue
+                Logger.e("epoll_wait failed, stopping the event loop!", e)
+                break
+            }
+
+            for (i in 0 until count) {
+                val offset = i * EVENT_SIZE
+                val readyEvents = events.getInt(offset)
+                val fd = events.getLong(offset + EVENT_DATA_OFFSET).toInt()
+
+                if (fd == wakeupFd) {
+                    drainWakeUps()
+                    continue
+                }
+
+                handlers[fd]?.let {
+                    try {
+                        it.onEvents(readyEvents)
+                    } catch (e: Exception) {
+                        Logger.e("Error handling events $readyEvents of fd $fd!", e)
+                    }
+                }
+            }
+
+            runTasks()
+        }
+
+        // Nothing is queued or woken up from now on, run what made it in before.
+        fdLock.write { closed = true }
+        runTasks()
+        try {
+            UnixDomainSocketLibrary.close(wakeupFd)
+            UnixDomainSocketLibrary.close(epollFd)
+        } catch (e: LastErrorException) {
+            Logger.w("Couldn't close the event loop: ${e.message}")
+        }
+    }
+
+    private fun runTasks() {
+        while (true) {
+            runTask(tasks.poll() ?: return)
+        }
+    }
+
+    private fun runTask(task: () -> Unit) {
+        try {
+            task()
+        } catch (e: Exception) {
+            Logger.e("Error running an event loop task!", e)
+        }
+    }
+
+    private fun wakeUp() {
+        // Every write adds to the eventfd counter, a single read resets it.
+        val buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder()).putLong(0, 1)
+        fdLock.read {
+            if (closed) return
+            try {
+                UnixDomainSocketLibrary.write(wakeupFd, buffer, 8)
+            } catch (e: LastErrorException) {
+                // EAGAIN: the counter is full, so the loop is awake anyway.
+                if (e.errorCode == EAGAIN) return
+                Logger.w("Couldn't wake up the event loop: ${e.message}")
+            }
+        }
+    }
+
+    private fun drainWakeUps() {
+        try {
+            UnixDomainSocketLibrary.read(wakeupFd, wakeupBuffer, 8)
+        } catch (e: LastErrorException) {
+            // Nothing to drain.
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun control(op: Int, fd: Int, events: Int) {
+        val event = ByteBuffer.allocate(EVENT_SIZE).order(ByteOrder.nativeOrder())
+        event.putInt(0, events)
+        event.putLong(EVENT_DATA_OFFSET, fd.toLong())
+        fdLock.read {
+            if (closed) throw IOException("The event loop is closed")
+            try {
+                UnixDomainSocketLibrary.epoll_ctl(epollFd, op, fd, event)
+            } catch (e: LastErrorException) {
+                throw IOException(e)
+            }
+        }
+    }
+
+    interface Handler {
+
+        /**
+         * Called on the loop thread with the EPOLL* flags that are ready.
+         */
+        fun onEvents(events: Int)
+    }
+
+    companion object {
+
+        /**
+         * struct epoll_event is a 32-bit mask followed by 64 bits of user data, which we set to the
+         * fd. It is packed on x86 and naturally aligned everywhere else.
+         */
+        private val EVENT_SIZE = if (Platform.isIntel()) 12 else 16
+        private val EVENT_DATA_OFFSET = if (Platform.isIntel()) 4 else 8
+
+        private const val MAX_EVENTS = 256
+
+        private const val READ_BUFFER_SIZE = 64 * 1024
+
+        val isSupported: Boolean
+            get() = Platform.isLinux()
+    }
+}
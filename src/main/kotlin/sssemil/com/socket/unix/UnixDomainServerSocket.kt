@@ -133,8 +133,15 @@ class UnixDomainServerSocket
             throw IllegalStateException("Socket is already closed")
         }
         try {
-            // Ensure any pending call to accept() fails.
-            UnixDomainSocketLibrary.close(fd.getAndSet(-1))
+            // Ensure any pending call to accept() fails. Closing alone doesn't wake it up on Linux,
+            // shutting the socket down does.
+            val socketFd = fd.getAndSet(-1)
+            try {
+                UnixDomainSocketLibrary.shutdown(socketFd, UnixDomainSocketLibrary.SHUT_RDWR)
+            } catch (e: LastErrorException) {
+                // Not listening yet, there is nobody to wake up.
+            }
+            UnixDomainSocketLibrary.close(socketFd)
             isClosedVar = true
         } catch (e: LastErrorException) {
             throw IOException(e)
@@ -34,6 +34,9 @@ class UnixDomainSocket : PipeSocket {
     override val inputStream: InputStream
     override val outputStream: OutputStream
 
+    private val readIovecs = IovecArray()
+    private val writeIovecs = IovecArray()
+
     /**
      * Creates a Unix domain socket backed by a file path.
      */
@@ -81,6 +84,82 @@ class UnixDomainSocket : PipeSocket {
         }
     }
 
+    /**
+     * Hands the buffer straight to write(2), direct buffers are not copied on the way.
+     */
+    @Throws(IOException::class)
+    override fun writeBuffer(buffer: ByteBuffer): Boolean {
+        if (buffer.hasRemaining()) {
+            doWrite(buffer.duplicate())
+        }
+        return true
+    }
+
+    /**
+     * Gathers the buffers into as few writev(2) calls as possible, usually a single one.
+     */
+    @Throws(IOException::class)
+    override fun writeBuffers(buffers: Array<out ByteBuffer>, offset: Int, length: Int): Boolean {
+        val data = writeIovecs.prepare(buffers, offset, length)
+        try {
+            val fdToWrite = fd.acquire()
+            if (fdToWrite == -1) {
+                return true
+            }
+
+            var index = 0
+            while (index < data.size) {
+                writeIovecs.clear()
+                writeIovecs.addAll(data, index)
+                if (writeIovecs.isEmpty) break
+
+                writeIovecs.writeTo(fdToWrite)
+                while (index < data.size && !data[index].hasRemaining()) {
+                    index++
+                }
+            }
+        } catch (e: LastErrorException) {
+            throw IOException(e)
+        } finally {
+            fd.release()
+        }
+        return true
+    }
+
+    /**
+     * Scatters a single readv(2) into the buffers, as long as they are all direct.
+     */
+    @Throws(IOException::class)
+    override fun readBuffers(buffers: Array<out ByteBuffer>, offset: Int, length: Int): Int {
+        for (i in offset until offset + length) {
+            if (!buffers[i].isDirect) {
+                return super.readBuffers(buffers, offset, length)
+            }
+        }
+
+        readIovecs.clear()
+        for (i in offset until offset + length) {
+            if (readIovecs.isFull) break
+            readIovecs.add(buffers[i])
+        }
+        if (readIovecs.isEmpty) {
+            return 0
+        }
+
+        try {
+            val fdToRead = fd.acquire()
+            if (fdToRead == -1) {
+                return -1
+            }
+            val result = readIovecs.readFrom(fdToRead)
+            return if (result == 0) -1 else result
+        } catch (e: LastErrorException) {
+            throw IOException(e)
+        } finally {
+            fd.release()
+        }
+    }
+
     @Throws(IOException::class)
     override fun shutdownInput() {
         doShutdown(UnixDomainSocketLibrary.SHUT_RD)
@@ -163,27 +242,27 @@ class UnixDomainSocket : PipeSocket {
             val buf = ByteBuffer.wrap(b, off, len)
             doWrite(buf)
         }
+    }
 
-        @Throws(IOException::class)
-        private fun doWrite(buf: ByteBuffer) {
-            try {
-                val fdToWrite = fd.acquire()
-                if (fdToWrite == -1) {
-                    return
-                }
-                val ret = UnixDomainSocketLibrary.write(fdToWrite, buf, buf.remaining())
-                if (ret != buf.remaining()) {
-                    // This shouldn't happen with standard blocking Unix domain sockets.
-                    throw IOException(
-                        "Could not write " + buf.remaining() + " bytes as requested " +
-                                "(wrote " + ret + " bytes instead)"
-                    )
-                }
-            } catch (e: LastErrorException) {
-                throw IOException(e)
-            } finally {
-                fd.release()
+    @Throws(IOException::class)
+    private fun doWrite(buf: ByteBuffer) {
+        try {
+            val fdToWrite = fd.acquire()
+            if (fdToWrite == -1) {
+                return
+            }
+            val ret = UnixDomainSocketLibrary.write(fdToWrite, buf, buf.remaining())
+            if (ret != buf.remaining()) {
+                // This shouldn't happen with standard blocking Unix domain sockets.
+                throw IOException(
+                    "Could not write " + buf.remaining() + " bytes as requested " +
+                            "(wrote " + ret + " bytes instead)"
+                )
             }
+        } catch (e: LastErrorException) {
+            throw IOException(e)
+        } finally {
+            fd.release()
         }
     }
 }
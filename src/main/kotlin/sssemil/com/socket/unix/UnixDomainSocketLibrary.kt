@@ -33,6 +33,33 @@ object UnixDomainSocketLibrary {
 
     const val SHUT_RD = 0
     const val SHUT_WR = 1
+    const val SHUT_RDWR = 2
+
+    // Linux values, the same on x86 and ARM.
+    const val O_NONBLOCK = 0x800
+    const val O_CLOEXEC = 0x80000
+    const val SOCK_NONBLOCK = O_NONBLOCK
+    const val SOCK_CLOEXEC = O_CLOEXEC
+
+    const val F_GETFL = 3
+    const val F_SETFL = 4
+
+    const val EPOLL_CLOEXEC = O_CLOEXEC
+    const val EPOLL_CTL_ADD = 1
+    const val EPOLL_CTL_DEL = 2
+    const val EPOLL_CTL_MOD = 3
+
+    const val EPOLLIN = 0x001
+    const val EPOLLOUT = 0x004
+    const val EPOLLERR = 0x008
+    const val EPOLLHUP = 0x010
+    const val EPOLLRDHUP = 0x2000
+
+    const val EFD_NONBLOCK = O_NONBLOCK
+    const val EFD_CLOEXEC = O_CLOEXEC
+
+    const val EINTR = 4
+    const val EAGAIN = 11
 
     init {
         Native.register(Platform.C_LIBRARY_NAME)
@@ -59,9 +86,39 @@ object UnixDomainSocketLibrary {
     @Throws(LastErrorException::class)
     external fun write(fd: Int, buffer: ByteBuffer, count: Int): Int
 
+    /**
+     * @param iov An array of struct iovec, see [IovecArray].
+     */
+    @Throws(LastErrorException::class)
+    external fun readv(fd: Int, iov: ByteBuffer, iovCount: Int): Int
+
+    @Throws(LastErrorException::class)
+    external fun writev(fd: Int, iov: ByteBuffer, iovCount: Int): Int
+
     @Throws(LastErrorException::class)
     external fun close(fd: Int): Int
 
     @Throws(LastErrorException::class)
     external fun shutdown(fd: Int, how: Int): Int
+
+    @Throws(LastErrorException::class)
+    external fun accept4(fd: Int, address: SockAddrUn, addressLen: IntByReference, flags: Int): Int
+
+    @Throws(LastErrorException::class)
+    external fun fcntl(fd: Int, cmd: Int, arg: Int): Int
+
+    @Throws(LastErrorException::class)
+    external fun eventfd(initialValue: Int, flags: Int): Int
+
+    @Throws(LastErrorException::class)
+    external fun epoll_create1(flags: Int): Int
+
+    /**
+     * @param event A single struct epoll_event, see [UnixDomainEventLoop] for its layout.
+     */
+    @Throws(LastErrorException::class)
+    external fun epoll_ctl(epollFd: Int, op: Int, fd: Int, event: ByteBuffer?): Int
+
+    @Throws(LastErrorException::class)
+    external fun epoll_wait(epollFd: Int, events: ByteBuffer, maxEvents: Int, timeout: Int): Int
 }
\ No newline at end of file
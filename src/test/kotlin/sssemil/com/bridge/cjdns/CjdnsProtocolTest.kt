@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sssemil.com.bridge.cjdns
+
+import kotlinx.coroutines.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import sssemil.com.bridge.ess.EssClientHandle
+import sssemil.com.net.structures.EssPacket
+import sssemil.com.socket.SocketHelper
+import sssemil.com.socket.interfaces.PipeSocket
+import java.io.File
+import java.net.Inet6Address
+import java.net.InetAddress
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.*
+
+class CjdnsProtocolTest {
+
+    private val address = InetAddress.getByName("fc00::1") as Inet6Address
+
+    @Test
+    fun testSharedAddressEpoll() = testSharedAddress(SocketHelper.EventLoopBackend.EPOLL)
+
+    @Test
+    fun testSharedAddressSelector() = testSharedAddress(SocketHelper.EventLoopBackend.SELECTOR)
+
+    private fun testSharedAddress(backend: SocketHelper.EventLoopBackend) = runBlocking {
+        assumeTrue(backend.isSupported)
+        val job = SupervisorJob()
+        val scope = CoroutineScope(Dispatchers.Default + job)
+        val path = Files.createTempDirectory("ess").resolve("ess" + Random().nextInt() + ".sock").toString()
+        val protocol = CjdnsProtocol(scope, path, eventLoopBackend = backend)
+
+        val first = connect(path)
+        val firstHandle = announce(protocol, first, null)
+        val second = connect(path)
+        val secondHandle = announce(protocol, second, firstHandle)
+
+        // The first client had the address before, the second one keeps it.
+        first.close()
+        awaitRoute(protocol) { it == secondHandle }
+
+        // The latest client takes it over and hands it back when it goes.
+        val third = connect(path)
+        announce(protocol, third, secondHandle)
+        third.close()
+        awaitRoute(protocol) { it == secondHandle }
+
+        second.close()
+        awaitRoute(protocol) { it == null }
+
+        withTimeout(5000) { protocol.kill() }
+        job.cancel()
+    }
+
+    /**
+     * Announces [address] on [socket] and waits until the route moves away from [previous].
+     *
+     * @return The handle the route points to now.
+     */
+    private suspend fun announce(protocol: CjdnsProtocol, socket: PipeSocket, previous: EssClientHandle?): EssClientHandle {
+        val frame = ByteBuffer.allocate(1 + 16)
+            .put(EssPacket.TYPE_CONF_ADD_IPV6_ADDRESS)
+            .put(address.address)
+            .array()
+        socket.write(frame, 0, frame.size)
+        return awaitRoute(protocol) { it != null && it != previous }!!
+    }
+
+    private suspend fun awaitRoute(protocol: CjdnsProtocol, condition: (EssClientHandle?) -> Boolean) =
+        withTimeout(5000) {
+            while (!condition(protocol.routes.lookup(address)?.handle)) {
+                delay(10)
+            }
+            protocol.routes.lookup(address)?.handle
+        }
+
+    private fun connect(path: String): PipeSocket {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!File(path).exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        return SocketHelper.createSocket(path)!!
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.bridge.cjdns
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeout
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import sssemil.com.net.packet.Data
+import sssemil.com.net.packet.IPacket
+import sssemil.com.net.packet.Ipv6Frame
+import sssemil.com.net.structures.PacketBuffer
+import sssemil.com.net.structures.PacketBufferPool
+import sssemil.com.net.structures.TunPacket
+import java.nio.ByteBuffer
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class EgressQueueTest {
+
+    private val job = SupervisorJob()
+    private val scope = CoroutineScope(Dispatchers.Default + job)
+    private val pool = PacketBufferPool()
+
+    private val batchSizes = CopyOnWriteArrayList<Int>()
+    private val written = CopyOnWriteArrayList<PacketBuffer>()
+    private val writing = CountDownLatch(1)
+    private val unblock = CountDownLatch(1)
+
+    private val blockingWriter = { frames: List<Ipv6Frame> ->
+        batchSizes.add(frames.size)
+        frames.forEach { written.add(it.owner!!) }
+        writing.countDown()
+        unblock.await(5, TimeUnit.SECONDS)
+        Unit
+    }
+
+    @AfterEach
+    fun tearDown() {
+        unblock.countDown()
+        job.cancel()
+    }
+
+    @Test
+    fun testCoalescing() {
+        val queue = EgressQueue(
+            scope, lingerMicros = 0, maxBatchBytes = 4 * (TunPacket.HEADER_LENGTH + 100), pool = pool,
+            write = blockingWriter
+        )
+
+        // The writer is stuck on the first frame while the rest piles up.
+        assertTrue(queue.offer(frame(100)))
+        assertTrue(writing.await(5, TimeUnit.SECONDS))
+        repeat(10) { assertTrue(queue.offer(frame(100))) }
+        assertEquals(10, queue.depth)
+
+        unblock.countDown()
+        waitFor { queue.frames == 11L }
+
+        assertEquals(listOf(1, 4, 4, 2), batchSizes)
+        assertEquals(4L, queue.batches)
+        assertEquals(11L * (TunPacket.HEADER_LENGTH + 100), queue.bytes)
+        assertEquals(0, queue.depth)
+        assertEquals(10, queue.maxDepth)
+        waitFor { written.all { it.referenceCount == 0 } }
+    }
+
+    @Test
+    fun testCapacity() {
+        val queue = EgressQueue(scope, capacity = 2, lingerMicros = 0, pool = pool, write = blockingWriter)
+
+        assertTrue(queue.offer(frame(64)))
+        assertTrue(writing.await(5, TimeUnit.SECONDS))
+        assertTrue(queue.offer(frame(64)))
+        assertTrue(queue.offer(frame(64)))
+        assertFalse(queue.offer(frame(64)))
+        assertEquals(1L, queue.drops)
+        assertEquals(2, queue.maxDepth)
+
+        unblock.countDown()
+        waitFor { queue.frames == 3L }
+        assertEquals(listOf(1, 2), batchSizes)
+    }
+
+    @Test
+    fun testClose() {
+        val queue = EgressQueue(scope, lingerMicros = 0, pool = pool, write = blockingWriter)
+
+        val pooled = pool.acquire(PacketBufferPool.HEADROOM + 64)
+        val frame = pooled.frame.wrap(pooled.buffer, PacketBufferPool.HEADROOM, 64)
+        assertTrue(queue.offer(frame))
+        assertTrue(writing.await(5, TimeUnit.SECONDS))
+        assertTrue(queue.offer(frame))
+        assertTrue(queue.offer(frame(64)))
+        assertEquals(3, pooled.referenceCount)
+
+        queue.close()
+        assertTrue(queue.isClosed)
+        assertEquals(0, queue.depth)
+        assertEquals(2L, queue.drops)
+        assertFalse(queue.offer(frame(64)))
+
+        unblock.countDown()
+        pooled.release()
+        waitFor { pooled.referenceCount == 0 }
+    }
+
+    @Test
+    fun testSerializationFailure() {
+        val queue = EgressQueue(scope, capacity = 1, lingerMicros = 0, pool = pool, write = blockingWriter)
+        val broken = object : IPacket by Data(ByteArray(8)) {
+            override fun serializeInto(bb: ByteBuffer) = throw IllegalStateException("Broken packet")
+        }
+
+        repeat(2) { assertThrows(IllegalStateException::class.java) { queue.offer(broken) } }
+        assertEquals(0, queue.depth)
+        assertEquals(2L, queue.drops)
+        // The slot is free again.
+        assertTrue(queue.offer(frame(64)))
+    }
+
+    @Test
+    fun testWriterFailure() {
+        val queue = EgressQueue(scope, lingerMicros = 0, pool = pool) { throw IllegalStateException("Broken writer") }
+
+        // May already see the queue closed by the failed write, it is dropped either way.
+        queue.offer(frame(64))
+        waitFor { queue.isClosed }
+        assertEquals(1L, queue.drops)
+        assertFalse(queue.offer(frame(64)))
+        assertTrue(job.isActive)
+    }
+
+    @Test
+    fun testLingerDoesntHoldThreads() {
+        val writes = AtomicInteger()
+        // More writers lingering at once than Dispatchers.IO has threads.
+        val queues = List(200) {
+            EgressQueue(scope, lingerMicros = 1_000_000, pool = pool) { writes.incrementAndGet() }
+        }
+        queues.forEach { assertTrue(it.offer(frame(64))) }
+
+        runBlocking {
+            withTimeout(500) { withContext(Dispatchers.IO) { } }
+        }
+        waitFor { writes.get() == queues.size }
+    }
+
+    private fun frame(length: Int) = Ipv6Frame().wrap(ByteBuffer.wrap(ByteArray(length)), 0, length)
+
+    private fun waitFor(condition: () -> Boolean) {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!condition()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out")
+            Thread.sleep(5)
+        }
+    }
+}
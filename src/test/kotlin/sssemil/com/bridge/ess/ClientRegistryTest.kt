@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.bridge.ess
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import sssemil.com.net.interfaces.IClientHandle
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.concurrent.thread
+
+class ClientRegistryTest {
+
+    @Test
+    fun testPutGetRemove() {
+        val registry = ClientRegistry<String>()
+        val handle = EssClientHandle(42u)
+
+        assertTrue(registry.putIfAbsent(handle, "first"))
+        assertFalse(registry.putIfAbsent(EssClientHandle(42u), "second"))
+        assertEquals("first", registry[EssClientHandle(42u)])
+        assertEquals("first", registry[42])
+        assertNull(registry[object : IClientHandle {}])
+        assertEquals(1, registry.size)
+
+        assertEquals("first", registry.remove(handle))
+        assertNull(registry.remove(handle))
+        assertNull(registry[handle])
+        assertTrue(registry.isEmpty())
+
+        assertEquals("again", registry.getOrPut(handle) { "again" })
+        assertEquals("again", registry.getOrPut(handle) { "never" })
+    }
+
+    @Test
+    fun testChurn() {
+        val registry = ClientRegistry<Int>(initialCapacity = 2)
+
+        // Far more connects and disconnects than slots, tombstones must not pile up.
+        for (i in 0 until 10_000) {
+            assertTrue(registry.putIfAbsent(EssClientHandle(i.toUInt()), i))
+            if (i >= 100) {
+                assertEquals(i - 100, registry.remove(EssClientHandle((i - 100).toUInt())))
+            }
+        }
+        assertEquals(100, registry.size)
+        assertEquals((9_900 until 10_000).toList(), registry.values().sorted())
+        (9_900 until 10_000).forEach { assertEquals(it, registry[it]) }
+    }
+
+    @Test
+    fun testConcurrentLookups() {
+        val registry = ClientRegistry<Int>()
+        val stable = (0 until 8).map { EssClientHandle((it * 7919).toUInt()) }
+        stable.forEachIndexed { i, handle -> registry.putIfAbsent(handle, i) }
+
+        val running = AtomicBoolean(true)
+        val failure = AtomicReference<String>()
+        val readers = (0 until 4).map {
+            thread {
+                while (running.get()) {
+                    stable.forEachIndexed { i, handle ->
+                        val value = registry[handle]
+                        if (value != i) {
+                            failure.compareAndSet(null, "Got $value for ${handle.handle}")
+                        }
+                    }
+                }
+            }
+        }
+
+        // Rebuilds the table over and over underneath the readers.
+        for (i in 0 until 20_000) {
+            val handle = EssClientHandle((1_000_000 + i).toUInt())
+            registry.putIfAbsent(handle, -1)
+            registry.remove(handle)
+        }
+        running.set(false)
+        readers.forEach { it.join() }
+
+        assertNull(failure.get())
+    }
+}
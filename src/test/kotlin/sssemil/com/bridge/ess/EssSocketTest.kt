@@ -0,0 +1,210 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sssemil.com.bridge.ess
+
+import kotlinx.coroutines.*
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import sssemil.com.net.packet.IPacket
+import sssemil.com.socket.SocketHelper
+import sssemil.com.socket.channel.SelectorEventLoop
+import sssemil.com.socket.channel.UnixDomainChannels
+import sssemil.com.socket.interfaces.PipeEventLoop
+import sssemil.com.socket.interfaces.PipeSocket
+import sssemil.com.socket.unix.UnixDomainEventLoop
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+class EssSocketTest {
+
+    private val received = LinkedBlockingQueue<Pair<EssClientHandle, Int>>()
+
+    private val callback = object : EssSocket.Callback {
+
+        override fun onPacket(handle: EssClientHandle, packet: IPacket) {
+            received.add(handle to packet.serializedLength())
+        }
+    }
+
+    @Test
+    fun testConcurrentClients() = concurrentClients(null)
+
+    @Test
+    fun testConcurrentClientsEpoll() = UnixDomainEventLoop().use { concurrentClients(it) }
+
+    @Test
+    fun testConcurrentClientsSelector() {
+        assumeTrue(UnixDomainChannels.isSupported)
+        SelectorEventLoop().use { concurrentClients(it) }
+    }
+
+    @Test
+    fun testBackpressureEpoll() = UnixDomainEventLoop().use { backpressure(it) }
+
+    @Test
+    fun testBackpressureSelector() {
+        assumeTrue(UnixDomainChannels.isSupported)
+        SelectorEventLoop().use { backpressure(it) }
+    }
+
+    private fun backpressure(eventLoop: PipeEventLoop) = runBlocking {
+        val job = SupervisorJob()
+        val scope = CoroutineScope(Dispatchers.Default + job)
+        val path = socketPath()
+        val slowCallback = object : EssSocket.Callback {
+
+            override fun onPacket(handle: EssClientHandle, packet: IPacket) {
+                Thread.sleep(1)
+                callback.onPacket(handle, packet)
+            }
+        }
+        val essSocket = EssSocket(scope, path, slowCallback, queueCapacity = 2, eventLoop = eventLoop)
+
+        // Way more than fit in the queue, reading has to pause and resume without losing any.
+        val client = connect(path)
+        val frames = (0 until 200).map { tunFrame(it) }
+        frames.forEach { client.write(it, 0, it.size) }
+
+        for (i in 0 until frames.size) {
+            val packet = received.poll(5, TimeUnit.SECONDS)
+            assertNotNull(packet)
+            assertEquals(40 + i, packet!!.second)
+        }
+
+        withTimeout(5000) { essSocket.kill() }
+        client.close()
+        job.cancel()
+    }
+
+    private fun concurrentClients(eventLoop: PipeEventLoop?) = runBlocking {
+        val job = SupervisorJob()
+        val scope = CoroutineScope(Dispatchers.Default + job)
+        val path = socketPath()
+        val essSocket = EssSocket(scope, path, callback, eventLoop = eventLoop)
+
+        val first = connect(path)
+        val second = connect(path)
+
+        // The first client stays connected and idle, the second one must be served anyway.
+        second.write(tunFrame(8), 0, tunFrame(8).size)
+        val fromSecond = received.poll(5, TimeUnit.SECONDS)
+        assertNotNull(fromSecond)
+        assertEquals(40 + 8, fromSecond!!.second)
+
+        first.write(tunFrame(16), 0, tunFrame(16).size)
+        val fromFirst = received.poll(5, TimeUnit.SECONDS)
+        assertNotNull(fromFirst)
+        assertEquals(40 + 16, fromFirst!!.second)
+        assertNotEquals(fromFirst.first, fromSecond.first)
+        assertEquals(2, essSocket.clients.size)
+
+        withTimeout(5000) { essSocket.kill() }
+        assertTrue(essSocket.clients.isEmpty())
+        assertEquals(-1, first.read(ByteArray(1)))
+
+        first.close()
+        second.close()
+        job.cancel()
+    }
+
+    @Test
+    fun testClientJobsComplete() = clientJobsComplete(null)
+
+    @Test
+    fun testClientJobsCompleteEpoll() = UnixDomainEventLoop().use { clientJobsComplete(it) }
+
+    /**
+     * Nothing of a client is left in the scope once it disconnected, however often that happens.
+     */
+    private fun clientJobsComplete(eventLoop: PipeEventLoop?) = runBlocking {
+        val job = SupervisorJob()
+        val scope = CoroutineScope(Dispatchers.Default + job)
+        val path = socketPath()
+        val essSocket = EssSocket(scope, path, callback, eventLoop = eventLoop)
+        val baseline = job.children.count()
+
+        repeat(3) {
+            val client = connect(path)
+            client.write(tunFrame(8), 0, tunFrame(8).size)
+            assertNotNull(received.poll(5, TimeUnit.SECONDS))
+            client.close()
+
+            withTimeout(5000) {
+                while (essSocket.clients.size > 0 || job.children.count() > baseline) {
+                    delay(10)
+                }
+            }
+        }
+
+        withTimeout(5000) { essSocket.kill() }
+        job.cancel()
+    }
+
+    @Test
+    fun testClientLimit() = runBlocking {
+        val job = SupervisorJob()
+        val scope = CoroutineScope(Dispatchers.Default + job)
+        val path = socketPath()
+        val essSocket = EssSocket(scope, path, callback, maxClients = 1)
+
+        val first = connect(path)
+        first.write(tunFrame(0), 0, tunFrame(0).size)
+        assertNotNull(received.poll(5, TimeUnit.SECONDS))
+
+        // Rejected right away, it sees the end of the stream.
+        val second = connect(path)
+        assertEquals(-1, second.read(ByteArray(1)))
+        assertEquals(1, essSocket.clients.size)
+
+        withTimeout(5000) { essSocket.kill() }
+        first.close()
+        second.close()
+        job.cancel()
+    }
+
+    private fun socketPath() =
+        Files.createTempDirectory("ess").resolve("ess" + Random().nextInt() + ".sock").toString()
+
+    private fun connect(path: String): PipeSocket {
+        val deadline = System.currentTimeMillis() + 5000
+        while (!File(path).exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10)
+        }
+        return SocketHelper.createSocket(path)!!
+    }
+
+    /**
+     * TUN frame around an IPv6 header with no next header and [payloadLength] bytes of padding.
+     */
+    private fun tunFrame(payloadLength: Int): ByteArray {
+        val ipv6Length = 40 + payloadLength
+        return ByteBuffer.allocate(1 + 4 + 4 + ipv6Length)
+            .put(0)
+            .putInt(4 + ipv6Length)
+            .putShort(0)
+            .putShort(0x86DD.toShort())
+            .putInt(0x60000000)
+            .putShort(payloadLength.toShort())
+            .put(59)
+            .put(64)
+            .array()
+    }
+}
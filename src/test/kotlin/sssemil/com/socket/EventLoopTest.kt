@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.socket
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import sssemil.com.socket.channel.SelectorEventLoop
+import sssemil.com.socket.channel.UnixDomainChannels
+import sssemil.com.socket.interfaces.NonBlockingPipeSocket
+import sssemil.com.socket.interfaces.PipeEventLoop
+import sssemil.com.socket.unix.UnixDomainEventLoop
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class EventLoopTest {
+
+    @Test
+    fun testExecuteAfterCloseEpoll() = executeAfterClose(UnixDomainEventLoop())
+
+    @Test
+    fun testExecuteAfterCloseSelector() = executeAfterClose(SelectorEventLoop())
+
+    private fun executeAfterClose(eventLoop: PipeEventLoop) {
+        val queued = CountDownLatch(1)
+        eventLoop.execute { queued.countDown() }
+        eventLoop.close()
+        assertEquals(0, queued.count, "queued tasks run before the loop stops")
+
+        // Nobody is left to run it later.
+        var ran = false
+        eventLoop.execute { ran = true }
+        assertTrue(ran)
+    }
+
+    @Test
+    fun testFailedWriteClosesSocketEpoll() = UnixDomainEventLoop().use { failedWriteClosesSocket(it) }
+
+    @Test
+    fun testFailedWriteClosesSocketSelector() {
+        assumeTrue(UnixDomainChannels.isSupported)
+        SelectorEventLoop().use { failedWriteClosesSocket(it) }
+    }
+
+    private fun failedWriteClosesSocket(eventLoop: PipeEventLoop) {
+        val path = Files.createTempDirectory("ipcsocket").resolve("failed" + Random().nextInt() + ".sock")
+        val accepted = CompletableFuture<NonBlockingPipeSocket>()
+        val serverSocket = eventLoop.listen(path.toString()) { accepted.complete(it) }
+
+        val client = SocketHelper.createSocket(path.toString())!!
+        val socket = accepted.get(5, TimeUnit.SECONDS)
+        val closed = CountDownLatch(1)
+        val closedCount = AtomicInteger()
+        socket.start(object : NonBlockingPipeSocket.Listener {
+
+            override fun onRead(buffer: ByteArray, offset: Int, length: Int) = Unit
+
+            override fun onClosed() {
+                closedCount.incrementAndGet()
+                closed.countDown()
+            }
+        })
+        // Only the queued write can find out that the client is gone.
+        socket.pauseReading()
+
+        // More than the socket buffers take while the client doesn't read.
+        assertTrue(socket.write(ByteBuffer.allocate(1024 * 1024)))
+        client.close()
+
+        assertTrue(closed.await(5, TimeUnit.SECONDS), "listener wasn't told")
+        assertFalse(socket.write(ByteBuffer.allocate(1)), "socket wasn't closed")
+        assertEquals(1, closedCount.get())
+
+        socket.close()
+        serverSocket.close()
+    }
+}
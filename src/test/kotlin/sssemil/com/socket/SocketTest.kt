@@ -18,29 +18,68 @@
 package sssemil.com.socket
 
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assumptions.assumeTrue
 import org.junit.jupiter.api.Test
+import sssemil.com.socket.channel.ChannelServerSocket
+import sssemil.com.socket.channel.ChannelSocket
+import sssemil.com.socket.channel.UnixDomainChannels
+import sssemil.com.socket.interfaces.PipeServerSocket
+import sssemil.com.socket.interfaces.PipeSocket
+import sssemil.com.socket.unix.UnixDomainServerSocket
+import sssemil.com.socket.unix.UnixDomainSocket
 import java.io.BufferedReader
 import java.io.IOException
 import java.io.InputStreamReader
 import java.io.PrintWriter
+import java.nio.ByteBuffer
 import java.nio.file.Files
 import java.util.*
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
 
+/**
+ * Runs every test against both Unix domain implementations, the JNA one and the JDK channels.
+ */
 class SocketTest {
 
     @Test
+    fun testAssertEquals() = assertEcho(::UnixDomainServerSocket, ::UnixDomainSocket)
+
+    @Test
+    fun testAssertEqualsChannel() {
+        assumeTrue(UnixDomainChannels.isSupported)
+        assertEcho(::channelServerSocket, ChannelSocket.Companion::connect)
+    }
+
+    @Test
+    fun testVectoredIo() = vectoredIo(::UnixDomainServerSocket, ::UnixDomainSocket)
+
+    @Test
+    fun testVectoredIoChannel() {
+        assumeTrue(UnixDomainChannels.isSupported)
+        vectoredIo(::channelServerSocket, ChannelSocket.Companion::connect)
+    }
+
+    @Test
+    fun testWriteWhileReading() = writeWhileReading(::UnixDomainServerSocket, ::UnixDomainSocket)
+
+    @Test
+    fun testWriteWhileReadingChannel() {
+        assumeTrue(UnixDomainChannels.isSupported)
+        writeWhileReading(::channelServerSocket, ChannelSocket.Companion::connect)
+    }
+
     @Throws(IOException::class, InterruptedException::class)
-    fun testAssertEquals() {
+    private fun assertEcho(createServer: (String) -> PipeServerSocket, connect: (String) -> PipeSocket) {
         val rand = Random()
         val tempDir = Files.createTempDirectory("ipcsocket")
         val sock = tempDir.resolve("foo" + rand.nextInt() + ".sock")
-        val serverSocket = SocketHelper.createServerSocket(sock.toString())
+        val serverSocket = createServer(sock.toString())
 
         val server = CompletableFuture.supplyAsync {
             try {
-                val echo = serverSocket?.let { EchoServer(it) }
-                echo?.run()
+                EchoServer(serverSocket).run()
             } catch (e: IOException) {
                 e.printStackTrace()
             }
@@ -49,8 +88,8 @@ class SocketTest {
         }
         Thread.sleep(100)
 
-        val client = SocketHelper.createSocket(sock.toString())
-        val writer = PrintWriter(client!!.outputStream, true)
+        val client = connect(sock.toString())
+        val writer = PrintWriter(client.outputStream, true)
         val reader = BufferedReader(
             InputStreamReader(client.inputStream)
         )
@@ -58,7 +97,67 @@ class SocketTest {
         val line = reader.readLine()
         client.close()
         server.cancel(true)
-        serverSocket!!.close()
+        serverSocket.close()
         assertEquals("hello", line, "echo did not return the content")
     }
+
+    private fun vectoredIo(createServer: (String) -> PipeServerSocket, connect: (String) -> PipeSocket) {
+        val sock = Files.createTempDirectory("ipcsocket").resolve("vectored" + Random().nextInt() + ".sock")
+        val serverSocket = createServer(sock.toString())
+        val accepted = CompletableFuture.supplyAsync { serverSocket.accept() }
+        Thread.sleep(100)
+
+        val client = connect(sock.toString())
+        val direct = ByteBuffer.allocateDirect(8).put("lo ".toByteArray())
+        direct.flip()
+        client.write(arrayOf(ByteBuffer.wrap("hel".toByteArray()), direct, ByteBuffer.wrap("world".toByteArray())))
+        assertEquals(3, direct.remaining(), "positions must be left alone")
+
+        val server = accepted.get(5, TimeUnit.SECONDS)
+        val buffers = arrayOf(ByteBuffer.allocateDirect(4), ByteBuffer.allocateDirect(16))
+        var total = 0
+        while (total < 11) {
+            total += server.read(buffers)
+        }
+        assertEquals(4, buffers[0].position())
+
+        val received = ByteArray(11)
+        buffers.forEach { it.flip() }
+        buffers[0].get(received, 0, 4)
+        buffers[1].get(received, 4, 7)
+        assertEquals("hello world", String(received))
+
+        client.close()
+        server.close()
+        serverSocket.close()
+    }
+
+    private fun writeWhileReading(createServer: (String) -> PipeServerSocket, connect: (String) -> PipeSocket) {
+        val sock = Files.createTempDirectory("ipcsocket").resolve("duplex" + Random().nextInt() + ".sock")
+        val serverSocket = createServer(sock.toString())
+        val accepted = CompletableFuture.supplyAsync { serverSocket.accept() }
+        Thread.sleep(100)
+
+        val client = connect(sock.toString())
+        val server = accepted.get(5, TimeUnit.SECONDS)
+
+        // Parks in read() until the server answers, the write must not wait for it.
+        val reply = CompletableFuture.supplyAsync { ByteArray(4).also { client.read(it) } }
+        Thread.sleep(100)
+        CompletableFuture.runAsync { client.write("ping".toByteArray(), 0, 4) }.get(5, TimeUnit.SECONDS)
+        assertFalse(reply.isDone)
+
+        val request = ByteArray(4)
+        assertEquals(4, server.read(request))
+        assertEquals("ping", String(request))
+        server.write("pong".toByteArray(), 0, 4)
+        assertEquals("pong", String(reply.get(5, TimeUnit.SECONDS)))
+
+        client.closeClient()
+        server.closeClient()
+        serverSocket.close()
+    }
+
+    // Constructor references can't skip the default backlog.
+    private fun channelServerSocket(path: String) = ChannelServerSocket(path)
 }
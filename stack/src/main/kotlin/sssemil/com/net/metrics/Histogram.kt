@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.metrics
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Lock-free histogram of non-negative values, e.g. nanoseconds or bytes.
+ *
+ * Buckets are log-linear like in HdrHistogram: every power of two is split into [SUB_BUCKETS]
+ * buckets, so a recorded value is off by less than 1/[SUB_BUCKETS] of itself, at any magnitude.
+ * Values below [SUB_BUCKETS] are exact. Recording is a few atomic increments, reading never
+ * stops writers.
+ */
+class Histogram {
+
+    private val buckets = AtomicLongArray(BUCKET_COUNT)
+    private val count = LongAdder()
+    private val sum = LongAdder()
+    private val min = AtomicLong(Long.MAX_VALUE)
+    private val max = AtomicLong(Long.MIN_VALUE)
+
+    /**
+     * Records [value] [times] times, negative values count as 0.
+     */
+    fun record(value: Long, times: Long = 1) {
+        val clamped = Math.max(value, 0)
+        buckets.addAndGet(bucketOf(clamped), times)
+        count.add(times)
+        sum.add(clamped * times)
+
+        var current = max.get()
+        while (clamped > current && !max.compareAndSet(current, clamped)) {
+            current = max.get()
+        }
+        current = min.get()
+        while (clamped < current && !min.compareAndSet(current, clamped)) {
+            current = min.get()
+        }
+    }
+
+    /**
+     * Copies the histogram, recording may go on meanwhile so the figures may be off by the
+     * values recorded during the copy.
+     */
+    fun snapshot(): Snapshot {
+        val counts = LongArray(BUCKET_COUNT) { buckets.get(it) }
+        return Snapshot(counts, counts.sum(), sum.sum(), min.get(), max.get())
+    }
+
+    class Snapshot internal constructor(
+        private val counts: LongArray,
+        val count: Long,
+        val sum: Long,
+        min: Long,
+        max: Long
+    ) {
+
+        val min = if (count == 0L) 0 else min
+        val max = if (count == 0L) 0 else max
+
+        val mean: Double
+            get() = if (count == 0L) 0.0 else sum.toDouble() / count
+
+        /**
+         * @param quantile Between 0 and 1, e.g. 0.99.
+         *
+         * @return The highest value of the bucket the quantile falls into, 0 if nothing was
+         * recorded.
+         */
+        fun valueAt(quantile: Double): Long {
+            if (count == 0L) return 0
+            val rank = Math.max(1, Math.ceil(quantile * count).toLong())
+            var seen = 0L
+            for (bucket in counts.indices) {
+                seen += counts[bucket]
+                if (seen >= rank) {
+                    return Math.min(Math.max(highestValueOf(bucket), min), max)
+                }
+            }
+            return max
+        }
+
+        override fun toString() =
+            "Histogram(count=$count, mean=${"%.1f".format(mean)}, min=$min, p50=${valueAt(0.5)}, " +
+                    "p99=${valueAt(0.99)}, max=$max)"
+    }
+
+    companion object {
+
+        private const val SUB_BUCKET_BITS = 4
+
+        const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+
+        /**
+         * Linear buckets for values below [SUB_BUCKETS], then [SUB_BUCKETS] for each power of two
+         * up to 2^62.
+         */
+        private const val BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+
+        private fun bucketOf(value: Long): Int {
+            if (value < SUB_BUCKETS) return value.toInt()
+            val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+            val shift = exponent - SUB_BUCKET_BITS
+            val subBucket = (value ushr shift).toInt() and (SUB_BUCKETS - 1)
+            return (shift + 1) * SUB_BUCKETS + subBucket
+        }
+
+        private fun highestValueOf(bucket: Int): Long {
+            if (bucket < SUB_BUCKETS) return bucket.toLong()
+            val shift = bucket / SUB_BUCKETS - 1
+            val lowest = (SUB_BUCKETS + bucket % SUB_BUCKETS).toLong() shl shift
+            return lowest + (1L shl shift) - 1
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.metrics
+
+/**
+ * Name of a metric and what it is about, e.g. `layer.packets` of `layer=network, direction=up`.
+ */
+data class MetricId(val name: String, val tags: Map<String, String> = emptyMap()) {
+
+    constructor(name: String, vararg tags: Pair<String, String>) : this(name, tags.toMap())
+
+    override fun toString() = if (tags.isEmpty()) name else "$name${tags.entries.joinToString(",", "{", "}")}"
+}
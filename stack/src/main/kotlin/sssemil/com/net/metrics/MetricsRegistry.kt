@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.metrics
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Counters, gauges and histograms by [MetricId], read all at once with [snapshot].
+ *
+ * Looking a metric up costs a hash lookup, so whoever records keeps the instance it got instead
+ * of looking it up per packet. Recording never locks.
+ */
+class MetricsRegistry {
+
+    private val metrics = ConcurrentHashMap<MetricId, Any>()
+
+    /**
+     * @return The counter of [name] and [tags], created if there is none yet.
+     */
+    fun counter(name: String, vararg tags: Pair<String, String>): Counter =
+        get(MetricId(name, *tags)) { Counter() }
+
+    /**
+     * @return The histogram of [name] and [tags], created if there is none yet.
+     */
+    fun histogram(name: String, vararg tags: Pair<String, String>): Histogram =
+        get(MetricId(name, *tags)) { Histogram() }
+
+    /**
+     * Reports what [value] returns whenever a snapshot is taken, e.g. a queue depth. Replaces
+     * an earlier gauge of the same [name] and [tags].
+     */
+    fun gauge(name: String, vararg tags: Pair<String, String>, value: () -> Long) {
+        val id = MetricId(name, *tags)
+        val gauge = Gauge(value)
+        val existing = metrics.putIfAbsent(id, gauge) ?: return
+        if (existing !is Gauge || !metrics.replace(id, existing, gauge)) {
+            throw IllegalArgumentException("$id is already registered as something else!")
+        }
+    }
+
+    /**
+     * Forgets the metrics [predicate] matches, e.g. those of a client that is gone.
+     */
+    fun remove(predicate: (MetricId) -> Boolean) {
+        metrics.keys.removeIf(predicate)
+    }
+
+    fun snapshot(): Snapshot {
+        val values = HashMap<MetricId, Long>()
+        val histograms = HashMap<MetricId, Histogram.Snapshot>()
+        for ((id, metric) in metrics) {
+            when (metric) {
+                is Counter -> values[id] = metric.value
+                is Gauge -> values[id] = metric.value()
+                is Histogram -> histograms[id] = metric.snapshot()
+            }
+        }
+        return Snapshot(values, histograms)
+    }
+
+    private inline fun <reified T : Any> get(id: MetricId, crossinline create: () -> T): T {
+        val metric = metrics[id] ?: metrics.computeIfAbsent(id) { create() }
+        return metric as? T ?: throw IllegalArgumentException("$id is already registered as something else!")
+    }
+
+    private class Gauge(val value: () -> Long)
+
+    /**
+     * Counters and gauges as [values], histograms as [histograms].
+     */
+    class Snapshot(val values: Map<MetricId, Long>, val histograms: Map<MetricId, Histogram.Snapshot>) {
+
+        fun value(name: String, vararg tags: Pair<String, String>) = values[MetricId(name, *tags)]
+
+        fun histogram(name: String, vararg tags: Pair<String, String>) = histograms[MetricId(name, *tags)]
+
+        /**
+         * Sum of all counters and gauges of [name] whose tags include [tags].
+         */
+        fun total(name: String, vararg tags: Pair<String, String>) = values.entries
+            .filter { (id, _) -> id.name == name && tags.all { id.tags[it.first] == it.second } }
+            .map { it.value }
+            .sum()
+
+        override fun toString() = (values.entries.map { "${it.key} = ${it.value}" } +
+                histograms.entries.map { "${it.key} = ${it.value}" }).sorted().joinToString("\n")
+    }
+
+    companion object {
+
+        /**
+         * Registry of the whole process.
+         */
+        val shared = MetricsRegistry()
+    }
+}
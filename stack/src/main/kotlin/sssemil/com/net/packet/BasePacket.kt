@@ -16,6 +16,8 @@
 
 package sssemil.com.net.packet
 
+import java.nio.ByteBuffer
+
 /**
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
@@ -28,6 +30,12 @@ abstract class BasePacket(
         this.parent?.resetChecksum()
     }
 
+    override fun serialize(): ByteArray {
+        val data = ByteArray(serializedLength())
+        serializeInto(ByteBuffer.wrap(data))
+        return data
+    }
+
     override fun clone(): Any {
         val pkt: IPacket
         try {
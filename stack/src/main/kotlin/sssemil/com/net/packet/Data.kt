@@ -15,6 +15,7 @@
  */
 package sssemil.com.net.packet
 
+import java.nio.ByteBuffer
 import java.util.*
 
 /**
@@ -30,6 +31,12 @@ data class Data(
         return this.data
     }
 
+    override fun serializedLength() = this.data.size
+
+    override fun serializeInto(bb: ByteBuffer) {
+        bb.put(this.data)
+    }
+
     override fun deserialize(data: ByteArray, offset: Int, length: Int): IPacket {
         this.data = Arrays.copyOfRange(data, offset, offset + length)
         return this
@@ -20,6 +20,7 @@ import sssemil.com.net.packet.icmpv6.EchoReplyMessage
 import sssemil.com.net.packet.icmpv6.EchoRequestMessage
 import sssemil.com.net.packet.types.IpProtocol
 import sssemil.com.net.util.InternetChecksum
+import java.net.Inet6Address
 import java.nio.ByteBuffer
 
 /**
@@ -28,53 +29,69 @@ import java.nio.ByteBuffer
 data class ICMPv6(
     var icmpType: UByte = 0u,
     var icmpCode: UByte = 0u,
-    var checksum: Short = 0,
+    override var checksum: Short = 0,
     override var payload: IPacket? = null
-) : BasePacket() {
+) : BasePacket(), IChecksummedPacket {
 
     override fun resetChecksum() {
         this.checksum = 0
         super.resetChecksum()
     }
 
+    override fun adjustChecksum(oldWord: Short, newWord: Short) {
+        if (this.checksum.toInt() != 0) {
+            this.checksum = InternetChecksum.nonZero(
+                InternetChecksum.adjustChecksum(this.checksum, oldWord, newWord)
+            )
+        }
+    }
+
+    override fun adjustChecksum(oldAddress: Inet6Address, newAddress: Inet6Address) {
+        if (this.checksum.toInt() != 0) {
+            this.checksum = InternetChecksum.nonZero(
+                InternetChecksum.adjustChecksum(this.checksum, oldAddress.address, newAddress.address)
+            )
+        }
+    }
+
+    /**
+     * Changes the message type, e.g. from an echo request to a reply, and updates the checksum
+     * for the changed word.
+     */
+    fun rewriteType(type: UByte) {
+        val oldWord = (this.icmpType.toInt() shl 8 or this.icmpCode.toInt()).toShort()
+        this.icmpType = type
+        adjustChecksum(oldWord, (type.toInt() shl 8 or this.icmpCode.toInt()).toShort())
+    }
+
+    override fun serializedLength(): Int {
+        payload?.parent = this
+        return 4 + (payload?.serializedLength() ?: 0)
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
      * -checksum : 0
-     * -length : 0
      */
-    override fun serialize(): ByteArray {
-        var length = 4
-        val payloadData = payload?.let {
-            it.parent = this
-            val data = it.serialize()
-            length += data.size
-            data
-        } ?: byteArrayOf()
-
-        val data = ByteArray(length)
-        val bb = ByteBuffer.wrap(data)
+    override fun serializeInto(bb: ByteBuffer) {
+        val start = bb.position()
+        val length = serializedLength()
 
         bb.put(this.icmpType.toByte())
         bb.put(this.icmpCode.toByte())
+        bb.putShort(this.checksum)
+        payload?.serializeInto(bb)
 
-        // compute checksum if needed
+        // compute checksum if needed, now that the whole message is in place
         if (this.checksum.toInt() == 0) {
             if (parent is IPv6) {
-                this.checksum = InternetChecksum.checksumHelper(
-                    data.sliceArray(0 until bb.position()),
-                    payloadData,
-                    parent as IPv6,
-                    IpProtocol.IPv6_ICMP
-                )
+                this.checksum = InternetChecksum.checksumHelper(bb, start, length, parent as IPv6, IpProtocol.IPv6_ICMP)
+                bb.putShort(start + CHECKSUM_OFFSET, this.checksum)
             } else {
                 Logger.w("Skipping checksum calculation, no IPv6 parent...")
             }
         }
-
-        bb.putShort(this.checksum)
-        bb.put(payloadData)
-        return data
     }
 
     @Throws(PacketParsingException::class)
@@ -97,6 +114,11 @@ data class ICMPv6(
             ?: icmpCode}, checksum=$checksum, payload=$payload)"
     }
 
+    companion object {
+
+        private const val CHECKSUM_OFFSET = 2
+    }
+
     enum class MessageType(val type: UByte, vararg val codes: ICMPv6.MessageCode) {
         DEST_UNREACH(
             1u,
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.packet
+
+import java.net.Inet6Address
+
+/**
+ * A transport packet whose checksum covers the IPv6 pseudo header. Header rewrites can keep the
+ * checksum valid in constant time instead of resetting it and summing the whole packet again.
+ *
+ * A checksum of 0 means it is computed on serialization, adjusting leaves it alone.
+ */
+interface IChecksummedPacket : IPacket {
+
+    var checksum: Short
+
+    /**
+     * Updates the checksum after a 16-bit word covered by it changed.
+     */
+    fun adjustChecksum(oldWord: Short, newWord: Short)
+
+    /**
+     * Updates the checksum after the source or the destination address of the parent changed.
+     */
+    fun adjustChecksum(oldAddress: Inet6Address, newAddress: Inet6Address)
+}
@@ -16,6 +16,8 @@
 
 package sssemil.com.net.packet
 
+import java.nio.ByteBuffer
+
 /**
  * @author David Erickson (daviderickson@cs.stanford.edu)
  */
@@ -43,6 +45,23 @@ interface IPacket {
      */
     fun serialize(): ByteArray
 
+    /**
+     * Sets all payloads parent packet if applicable, then computes the number of bytes this
+     * packet and all payloads serialize to. Length fields are updated on the way.
+     *
+     * @return the serialized length of this packet and payloads
+     */
+    fun serializedLength(): Int
+
+    /**
+     * Serializes this packet and all payloads straight into the buffer, starting at its position
+     * and advancing it, without intermediate arrays. The buffer must be in network order and have
+     * at least [serializedLength] bytes remaining.
+     *
+     * @param bb the buffer to write to
+     */
+    fun serializeInto(bb: ByteBuffer)
+
     /**
      * Deserializes this packet layer and all possible payloads
      *
@@ -44,12 +44,35 @@ data class IPv6(
         destinationAddress = IPv6.IPV6_NONE
     }
 
-    override fun serialize(): ByteArray {
-        // Get the raw bytes of the payload we encapsulate.
-        var payloadData: ByteArray? = null
+    /**
+     * Replaces the source address and updates the checksum of the payload, if it covers it.
+     */
+    fun rewriteSourceAddress(address: Inet6Address) {
+        (payload as? IChecksummedPacket)?.adjustChecksum(this.sourceAddress, address)
+        this.sourceAddress = address
+    }
+
+    /**
+     * Replaces the destination address and updates the checksum of the payload, if it covers it.
+     */
+    fun rewriteDestinationAddress(address: Inet6Address) {
+        (payload as? IChecksummedPacket)?.adjustChecksum(this.destinationAddress, address)
+        this.destinationAddress = address
+    }
+
+    /**
+     * Swaps the source and destination addresses. The pseudo header sum doesn't depend on their
+     * order, so the payload checksum stays valid as is.
+     */
+    fun swapAddresses() {
+        val tmp = this.destinationAddress
+        this.destinationAddress = this.sourceAddress
+        this.sourceAddress = tmp
+    }
+
+    override fun serializedLength(): Int {
         payload?.let { payload ->
             payload.parent = this
-            payloadData = payload.serialize()
             /*
              * If we forgot to include the IpProtocol before serializing,
              * try to ascertain what it is from the payload. If it's not
@@ -76,10 +99,12 @@ data class IPv6(
             }
         }
         // Update our internal payload length.
-        this.payloadLength = (payloadData?.size ?: 0).toShort()
-        // Create a byte buffer to hold the IPv6 packet structure.
-        val data = ByteArray(IPv6.HEADER_LENGTH + this.payloadLength)
-        val bb = ByteBuffer.wrap(data)
+        this.payloadLength = (payload?.serializedLength() ?: 0).toShort()
+        return IPv6.HEADER_LENGTH + (this.payloadLength.toInt() and 0xFFFF)
+    }
+
+    override fun serializeInto(bb: ByteBuffer) {
+        serializedLength()
         // Add header fields to the byte buffer in the correct order.
         // Fear not the bit magic that must occur.
         bb.put((this.version.toInt() and 0xF shl 4 or (this.trafficClass.toInt() and 0xF0).ushr(4)).toByte())
@@ -90,11 +115,8 @@ data class IPv6(
         bb.put(this.hopLimit)
         bb.put(this.sourceAddress.address)
         bb.put(this.destinationAddress.address)
-        // Add the payload to the byte buffer, if necessary.
-        if (payloadData != null)
-            bb.put(payloadData)
-        // We're done! Return the data.
-        return data
+        // The payload goes right behind the header, no intermediate copy.
+        payload?.serializeInto(bb)
     }
 
     @Throws(PacketParsingException::class)
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.packet
+
+import sssemil.com.net.util.InternetChecksum
+import java.nio.ByteBuffer
+
+/**
+ * Reusable cursor over an ICMPv6 message in a shared buffer, see [Ipv6View].
+ */
+class Icmpv6View {
+
+    lateinit var buffer: ByteBuffer
+        private set
+
+    var offset = 0
+        private set
+
+    var length = 0
+        private set
+
+    fun wrap(buffer: ByteBuffer, offset: Int, length: Int): Icmpv6View {
+        this.buffer = buffer
+        this.offset = offset
+        this.length = length
+        return this
+    }
+
+    fun isValid() = length >= HEADER_LENGTH
+
+    /**
+     * Whether the message is long enough for [echoIdentifier] and [echoSequenceNumber].
+     */
+    fun isValidEcho() = length >= HEADER_LENGTH + ECHO_HEADER_LENGTH
+
+    val icmpType: Int
+        get() = buffer.get(offset).toInt() and 0xFF
+
+    val icmpCode: Int
+        get() = buffer.get(offset + 1).toInt() and 0xFF
+
+    val checksum: Short
+        get() = buffer.getShort(offset + CHECKSUM_OFFSET)
+
+    /**
+     * Changes the message type in place and updates the checksum for the changed word.
+     */
+    fun rewriteType(type: Int) {
+        val oldWord = buffer.getShort(offset)
+        buffer.put(offset, type.toByte())
+        val checksum = InternetChecksum.adjustChecksum(this.checksum, oldWord, buffer.getShort(offset))
+        buffer.putShort(offset + CHECKSUM_OFFSET, InternetChecksum.nonZero(checksum))
+    }
+
+    /**
+     * Identifier of an echo request or reply.
+     */
+    val echoIdentifier: Short
+        get() = buffer.getShort(offset + HEADER_LENGTH)
+
+    /**
+     * Sequence number of an echo request or reply.
+     */
+    val echoSequenceNumber: Short
+        get() = buffer.getShort(offset + HEADER_LENGTH + 2)
+
+    val bodyOffset: Int
+        get() = offset + HEADER_LENGTH
+
+    val bodySize: Int
+        get() = Math.max(0, length - HEADER_LENGTH)
+
+    override fun toString(): String {
+        return "Icmpv6View(icmpType=${ICMPv6.MessageType.from(icmpType.toUByte()) ?: icmpType}, icmpCode=$icmpCode)"
+    }
+
+    companion object {
+
+        const val HEADER_LENGTH = 4
+
+        const val CHECKSUM_OFFSET = 2
+
+        /**
+         * Identifier and sequence number of an echo request or reply.
+         */
+        const val ECHO_HEADER_LENGTH = 4
+    }
+}
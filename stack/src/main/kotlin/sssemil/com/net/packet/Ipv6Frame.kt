@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.packet
+
+import sssemil.com.net.structures.PacketBuffer
+import sssemil.com.net.structures.PacketBufferPool
+import java.nio.ByteBuffer
+
+/**
+ * An IPv6 packet that has not been decoded. It travels through the stack like any other [IPacket],
+ * protocols that only need a few header fields can read them through [view], [udp] and [icmpv6]
+ * without building the object tree, the others can call [decode].
+ *
+ * A frame handed out by the ingress path is reused for the next packet, so it must not be kept
+ * after the call that received it returns. To keep it anyway, [retain] it and [release] it once
+ * done, or use [decode] or [clone] to keep a copy.
+ */
+class Ipv6Frame : BasePacket() {
+
+    val view = Ipv6View()
+
+    private val udpView = UdpView()
+    private val icmpv6View = Icmpv6View()
+
+    private var decoded: IPv6? = null
+
+    /**
+     * Pooled buffer this frame lives in, null if it wraps memory of its own.
+     */
+    var owner: PacketBuffer? = null
+        internal set
+
+    /**
+     * Points the frame at a new packet.
+     */
+    fun wrap(buffer: ByteBuffer, offset: Int, length: Int): Ipv6Frame {
+        view.wrap(buffer, offset, length)
+        decoded = null
+        return this
+    }
+
+    /**
+     * Keeps the underlying pooled buffer, see [PacketBuffer.retain]. Does nothing for frames that
+     * are not pooled.
+     */
+    fun retain(): Ipv6Frame {
+        owner?.retain()
+        return this
+    }
+
+    /**
+     * Gives up a reference taken with [retain].
+     */
+    fun release() {
+        owner?.release()
+    }
+
+    /**
+     * Copies the frame into a buffer from [pool], with [PacketBufferPool.HEADROOM] bytes in front
+     * of it for link headers. The copy can be changed in place through its views, it holds a
+     * reference of its own which the caller must [release].
+     */
+    fun copy(pool: PacketBufferPool): Ipv6Frame {
+        val packetBuffer = pool.acquire(PacketBufferPool.HEADROOM + view.length)
+        val buffer = packetBuffer.buffer
+        buffer.position(PacketBufferPool.HEADROOM)
+        serializeInto(buffer)
+        return packetBuffer.frame.wrap(buffer, PacketBufferPool.HEADROOM, view.length)
+    }
+
+    /**
+     * @return A view of the UDP header, or null if the payload is something else.
+     */
+    fun udp() = view.udp(udpView)
+
+    /**
+     * @return A view of the ICMPv6 header, or null if the payload is something else.
+     */
+    fun icmpv6() = view.icmpv6(icmpv6View)
+
+    /**
+     * Decodes the frame into the [IPv6] object tree. The result is cached until the next [wrap].
+     */
+    @Throws(PacketParsingException::class)
+    fun decode(): IPv6 {
+        return decoded ?: view.toPacket().also {
+            it.parent = parent
+            decoded = it
+        }
+    }
+
+    override fun serialize(): ByteArray {
+        val data = ByteArray(view.length)
+        view.copyTo(data, 0)
+        return data
+    }
+
+    override fun serializedLength() = view.length
+
+    override fun serializeInto(bb: ByteBuffer) {
+        val source = view.buffer
+        if (source.hasArray()) {
+            bb.put(source.array(), source.arrayOffset() + view.offset, view.length)
+        } else {
+            bb.put(slice())
+        }
+    }
+
+    override fun deserialize(data: ByteArray, offset: Int, length: Int): IPacket {
+        return wrap(ByteBuffer.wrap(data), offset, length)
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) return true
+        if (javaClass != other?.javaClass) return false
+
+        other as Ipv6Frame
+
+        return slice() == other.slice()
+    }
+
+    override fun hashCode(): Int {
+        return slice().hashCode()
+    }
+
+    override fun toString(): String {
+        return try {
+            "Ipv6Frame(${decode()})"
+        } catch (e: PacketParsingException) {
+            "Ipv6Frame($view)"
+        }
+    }
+
+    private fun slice(): ByteBuffer {
+        val slice = view.buffer.duplicate()
+        slice.limit(view.offset + view.length)
+        slice.position(view.offset)
+        return slice
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.packet
+
+import sssemil.com.net.packet.types.IpProtocol
+import java.nio.ByteBuffer
+
+/**
+ * Reusable cursor over an IPv6 header in a shared buffer. Nothing is copied or decoded until a
+ * field is read, and reading a field does not allocate. [IPv6] is the convenient, allocating
+ * counterpart.
+ *
+ * The few methods that change the packet write straight into the buffer, so the buffer must not
+ * be shared with anyone who still expects the original bytes.
+ *
+ * The view is only valid for as long as the underlying buffer holds the packet.
+ */
+class Ipv6View {
+
+    lateinit var buffer: ByteBuffer
+        private set
+
+    /**
+     * Absolute index of the first header byte in [buffer].
+     */
+    var offset = 0
+        private set
+
+    /**
+     * Number of bytes available to the packet, header included.
+     */
+    var length = 0
+        private set
+
+    /**
+     * Points the view at a new packet.
+     *
+     * @param buffer Buffer holding the packet, in network order. Only absolute gets are used.
+     * @param offset Absolute index of the first header byte.
+     * @param length Number of bytes available to the packet.
+     */
+    fun wrap(buffer: ByteBuffer, offset: Int, length: Int): Ipv6View {
+        this.buffer = buffer
+        this.offset = offset
+        this.length = length
+        return this
+    }
+
+    /**
+     * @return Whether the buffer holds at least a full header with the right version.
+     */
+    fun isValid() = length >= IPv6.HEADER_LENGTH && version == 6
+
+    val version: Int
+        get() = (buffer.get(offset).toInt() and 0xF0) ushr 4
+
+    val trafficClass: Int
+        get() = (buffer.getShort(offset).toInt() and 0x0FF0) ushr 4
+
+    val flowLabel: Int
+        get() = buffer.getInt(offset) and 0xFFFFF
+
+    val payloadLength: Int
+        get() = buffer.getShort(offset + 4).toInt() and 0xFFFF
+
+    val nextHeader: Int
+        get() = buffer.get(offset + 6).toInt() and 0xFF
+
+    val hopLimit: Int
+        get() = buffer.get(offset + 7).toInt() and 0xFF
+
+    /**
+     * Upper 64 bits of the source address.
+     */
+    val sourceAddressHigh: Long
+        get() = buffer.getLong(offset + SOURCE_ADDRESS_OFFSET)
+
+    /**
+     * Lower 64 bits of the source address.
+     */
+    val sourceAddressLow: Long
+        get() = buffer.getLong(offset + SOURCE_ADDRESS_OFFSET + 8)
+
+    /**
+     * Upper 64 bits of the destination address.
+     */
+    val destinationAddressHigh: Long
+        get() = buffer.getLong(offset + DESTINATION_ADDRESS_OFFSET)
+
+    /**
+     * Lower 64 bits of the destination address.
+     */
+    val destinationAddressLow: Long
+        get() = buffer.getLong(offset + DESTINATION_ADDRESS_OFFSET + 8)
+
+    /**
+     * Absolute index of the first payload byte.
+     */
+    val payloadOffset: Int
+        get() = offset + IPv6.HEADER_LENGTH
+
+    /**
+     * Number of payload bytes actually present, which is less than [payloadLength] for a
+     * truncated packet.
+     */
+    val payloadSize: Int
+        get() = Math.max(0, Math.min(payloadLength, length - IPv6.HEADER_LENGTH))
+
+    fun copySourceAddress(dst: ByteArray, dstOffset: Int) {
+        copy(offset + SOURCE_ADDRESS_OFFSET, dst, dstOffset, ADDRESS_LENGTH)
+    }
+
+    fun copyDestinationAddress(dst: ByteArray, dstOffset: Int) {
+        copy(offset + DESTINATION_ADDRESS_OFFSET, dst, dstOffset, ADDRESS_LENGTH)
+    }
+
+    /**
+     * Swaps the source and destination addresses in place. The pseudo header sum doesn't depend on
+     * their order, so no checksum needs updating.
+     */
+    fun swapAddresses() {
+        val sourceHigh = sourceAddressHigh
+        val sourceLow = sourceAddressLow
+        buffer.putLong(offset + SOURCE_ADDRESS_OFFSET, destinationAddressHigh)
+        buffer.putLong(offset + SOURCE_ADDRESS_OFFSET + 8, destinationAddressLow)
+        buffer.putLong(offset + DESTINATION_ADDRESS_OFFSET, sourceHigh)
+        buffer.putLong(offset + DESTINATION_ADDRESS_OFFSET + 8, sourceLow)
+    }
+
+    /**
+     * Points [view] at the payload if it is UDP.
+     *
+     * @return [view], or null if the payload is something else.
+     */
+    fun udp(view: UdpView): UdpView? =
+        if (nextHeader == IpProtocol.UDP.ipProtocolNumber.toInt()) view.wrap(buffer, payloadOffset, payloadSize) else null
+
+    /**
+     * Points [view] at the payload if it is ICMPv6.
+     *
+     * @return [view], or null if the payload is something else.
+     */
+    fun icmpv6(view: Icmpv6View): Icmpv6View? =
+        if (nextHeader == IpProtocol.IPv6_ICMP.ipProtocolNumber.toInt()) view.wrap(buffer, payloadOffset, payloadSize) else null
+
+    /**
+     * Copies the whole packet into [dst] at [dstOffset].
+     */
+    fun copyTo(dst: ByteArray, dstOffset: Int) {
+        copy(offset, dst, dstOffset, length)
+    }
+
+    /**
+     * Decodes the packet into the [IPv6] object tree.
+     */
+    @Throws(PacketParsingException::class)
+    fun toPacket(): IPv6 {
+        val packet = IPv6()
+        if (buffer.hasArray()) {
+            packet.deserialize(buffer.array(), buffer.arrayOffset() + offset, length)
+        } else {
+            val data = ByteArray(length)
+            copyTo(data, 0)
+            packet.deserialize(data, 0, length)
+        }
+        return packet
+    }
+
+    private fun copy(index: Int, dst: ByteArray, dstOffset: Int, count: Int) {
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + index, dst, dstOffset, count)
+        } else {
+            val source = buffer.duplicate()
+            source.position(index)
+            source.get(dst, dstOffset, count)
+        }
+    }
+
+    override fun toString(): String {
+        return "Ipv6View(nextHeader=$nextHeader, payloadLength=$payloadLength, hopLimit=$hopLimit)"
+    }
+
+    companion object {
+
+        const val ADDRESS_LENGTH = 16
+
+        const val SOURCE_ADDRESS_OFFSET = 8
+        const val DESTINATION_ADDRESS_OFFSET = 24
+    }
+}
@@ -46,19 +46,22 @@ data class TCP(
      * -checksum : 0
      * -length : 0
      */
-    override fun serialize(): ByteArray {
+    override fun serializedLength(): Int {
         if (dataOffset.toInt() == 0)
             dataOffset = 5  // default header length
-        var length = dataOffset.toInt() shl 2
-        val payloadData = payload?.let { payload ->
-            payload.parent = this
-            val data = payload.serialize()
-            length += data.size
-            data
-        } ?: byteArrayOf()
+        payload?.parent = this
+        return (dataOffset.toInt() shl 2) + (payload?.serializedLength() ?: 0)
+    }
 
-        val data = ByteArray(length)
-        val bb = ByteBuffer.wrap(data)
+    /**
+     * Serializes the packet. Will compute and set the following fields if they
+     * are set to specific values at the time serialize is called:
+     * -checksum : 0
+     * -length : 0
+     */
+    override fun serializeInto(bb: ByteBuffer) {
+        val start = bb.position()
+        val length = serializedLength()
 
         bb.putShort(this.sourcePort.toShort()) //TCP ports are defined to be 16 bits
         bb.putShort(this.destinationPort.toShort())
@@ -74,27 +77,24 @@ data class TCP(
             for (i in 0 until padding)
                 bb.put(0.toByte())
         }
-        bb.put(payloadData)
+        payload?.serializeInto(bb)
 
         // compute checksum if needed
         if (this.checksum.toInt() == 0) {
-            bb.rewind()
             var accumulation = 0
             for (i in 0 until length / 2) {
-                accumulation += 0xffff and bb.short.toInt()
+                accumulation += 0xffff and bb.getShort(start + 2 * i).toInt()
             }
             // pad to an even number of shorts
             if (length % 2 > 0) {
-                accumulation += bb.get().toInt() and 0xff shl 8
+                accumulation += bb.get(start + length - 1).toInt() and 0xff shl 8
             }
 
             accumulation = (accumulation shr 16 and 0xffff) + (accumulation and 0xffff)
             this.checksum = (accumulation.inv() and 0xffff).toShort()
 
-            bb.putShort(16, this.checksum)
+            bb.putShort(start + 16, this.checksum)
         }
-
-        return data
     }
 
     @Throws(PacketParsingException::class)
@@ -19,6 +19,7 @@ package sssemil.com.net.packet
 import sssemil.com.common.util.Logger
 import sssemil.com.net.packet.types.IpProtocol
 import sssemil.com.net.util.InternetChecksum
+import java.net.Inet6Address
 import java.nio.ByteBuffer
 
 /**
@@ -28,53 +29,64 @@ data class UDP(
     var sourcePort: UShort = 0u,
     var destinationPort: UShort = 0u,
     var length: UShort = 0u,
-    var checksum: Short = 0,
+    override var checksum: Short = 0,
     override var payload: IPacket? = null
-) : BasePacket() {
+) : BasePacket(), IChecksummedPacket {
 
     override fun resetChecksum() {
         this.checksum = 0
         super.resetChecksum()
     }
 
+    override fun adjustChecksum(oldWord: Short, newWord: Short) {
+        if (this.checksum.toInt() != 0) {
+            this.checksum = InternetChecksum.nonZero(
+                InternetChecksum.adjustChecksum(this.checksum, oldWord, newWord)
+            )
+        }
+    }
+
+    override fun adjustChecksum(oldAddress: Inet6Address, newAddress: Inet6Address) {
+        if (this.checksum.toInt() != 0) {
+            this.checksum = InternetChecksum.nonZero(
+                InternetChecksum.adjustChecksum(this.checksum, oldAddress.address, newAddress.address)
+            )
+        }
+    }
+
+    override fun serializedLength(): Int {
+        payload?.parent = this
+        this.length = (8 + (payload?.serializedLength() ?: 0)).toUShort()
+        return this.length.toInt()
+    }
+
     /**
      * Serializes the packet. Will compute and set the following fields if they
      * are set to specific values at the time serialize is called:
      * -checksum : 0
      * -length : 0
      */
-    override fun serialize(): ByteArray {
-        val payloadData = payload?.let { payload ->
-            payload.parent = this
-            payload.serialize()
-        } ?: byteArrayOf()
-
-        this.length = (8 + payloadData.size).toUShort()
-
-        val data = ByteArray(this.length.toInt())
-        val bb = ByteBuffer.wrap(data)
+    override fun serializeInto(bb: ByteBuffer) {
+        val start = bb.position()
+        val length = serializedLength()
 
         bb.putShort(this.sourcePort.toShort()) // UDP packet port numbers are 16 bit
         bb.putShort(this.destinationPort.toShort())
         bb.putShort(this.length.toShort())
+        bb.putShort(this.checksum)
+        payload?.serializeInto(bb)
 
-        // compute checksum if needed
+        // compute checksum if needed, now that the whole datagram is in place
         if (this.checksum.toInt() == 0) {
             if (parent is IPv6) {
-                this.checksum = InternetChecksum.checksumHelper(
-                    data.sliceArray(0 until bb.position()),
-                    payloadData,
-                    parent as IPv6,
-                    IpProtocol.UDP
+                this.checksum = InternetChecksum.nonZero(
+                    InternetChecksum.checksumHelper(bb, start, length, parent as IPv6, IpProtocol.UDP)
                 )
+                bb.putShort(start + CHECKSUM_OFFSET, this.checksum)
             } else {
                 Logger.w("Skipping checksum calculation, no IPv6 parent...")
             }
         }
-
-        bb.putShort(this.checksum)
-        bb.put(payloadData)
-        return data
     }
 
     @Throws(PacketParsingException::class)
@@ -109,5 +121,7 @@ data class UDP(
     companion object {
 
         var decodeMap: Map<UShort, Class<out IPacket>> = hashMapOf()
+
+        private const val CHECKSUM_OFFSET = 6
     }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.packet
+
+import java.nio.ByteBuffer
+
+/**
+ * Reusable cursor over a UDP header in a shared buffer, see [Ipv6View].
+ */
+class UdpView {
+
+    lateinit var buffer: ByteBuffer
+        private set
+
+    var offset = 0
+        private set
+
+    var length = 0
+        private set
+
+    fun wrap(buffer: ByteBuffer, offset: Int, length: Int): UdpView {
+        this.buffer = buffer
+        this.offset = offset
+        this.length = length
+        return this
+    }
+
+    fun isValid() = length >= HEADER_LENGTH
+
+    val sourcePort: Int
+        get() = buffer.getShort(offset).toInt() and 0xFFFF
+
+    val destinationPort: Int
+        get() = buffer.getShort(offset + 2).toInt() and 0xFFFF
+
+    /**
+     * Length field, header included.
+     */
+    val udpLength: Int
+        get() = buffer.getShort(offset + 4).toInt() and 0xFFFF
+
+    val checksum: Short
+        get() = buffer.getShort(offset + CHECKSUM_OFFSET)
+
+    /**
+     * Swaps the ports in place, the checksum stays valid as is.
+     */
+    fun swapPorts() {
+        val source = buffer.getShort(offset)
+        buffer.putShort(offset, buffer.getShort(offset + 2))
+        buffer.putShort(offset + 2, source)
+    }
+
+    val payloadOffset: Int
+        get() = offset + HEADER_LENGTH
+
+    val payloadSize: Int
+        get() = Math.max(0, length - HEADER_LENGTH)
+
+    override fun toString(): String {
+        return "UdpView(sourcePort=$sourcePort, destinationPort=$destinationPort, udpLength=$udpLength)"
+    }
+
+    companion object {
+
+        const val HEADER_LENGTH = 8
+
+        const val CHECKSUM_OFFSET = 6
+    }
+}
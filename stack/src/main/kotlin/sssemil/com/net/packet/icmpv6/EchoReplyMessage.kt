@@ -27,26 +27,15 @@ data class EchoReplyMessage(
     override var payload: IPacket? = null
 ) : BasePacket() {
 
-    override fun serialize(): ByteArray {
-        var length = 4
-        var payloadData: ByteArray? = null
-        payload?.let {
-            it.parent = this
-            val data = it.serialize()
-            length += data.size
-            payloadData = data
-        }
-
-        val data = ByteArray(length)
-        val bb = ByteBuffer.wrap(data)
+    override fun serializedLength(): Int {
+        payload?.parent = this
+        return 4 + (payload?.serializedLength() ?: 0)
+    }
 
+    override fun serializeInto(bb: ByteBuffer) {
         bb.putShort(identifier)
         bb.putShort(sequenceNumber)
-
-        if (payloadData != null)
-            bb.put(payloadData)
-
-        return data
+        payload?.serializeInto(bb)
     }
 
     override fun deserialize(data: ByteArray, offset: Int, length: Int): IPacket {
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.stack
+
+import kotlinx.coroutines.CoroutineScope
+import sssemil.com.net.interfaces.IClientHandle
+import sssemil.com.net.packet.IPacket
+import sssemil.com.net.packet.IPv6
+import sssemil.com.net.packet.Ipv6Frame
+import sssemil.com.net.structures.PcapngRing
+
+/**
+ * Captures the IPv6 packets passing its layer into [ring], packets from below as inbound and
+ * packets from above as outbound. Register it without keys to see all of them.
+ *
+ * A layer only sees packets going one way past it, so capturing both ways takes an instance in
+ * the layer above the link, for packets coming in, and one in the link layer, for packets going
+ * out. They can share a ring.
+ *
+ * Nothing is done while [PcapngRing.enabled] is off.
+ */
+class CaptureProtocol(scope: CoroutineScope, val ring: PcapngRing) : Protocol(scope) {
+
+    override fun swallowFromBelow(handle: IClientHandle, packet: IPacket) {
+        capture(handle, packet, true)
+    }
+
+    override fun swallowFromAbove(handle: IClientHandle, packet: IPacket) {
+        capture(handle, packet, false)
+    }
+
+    private fun capture(handle: IClientHandle, packet: IPacket, inbound: Boolean) {
+        if (!ring.enabled) return
+
+        when (packet) {
+            is Ipv6Frame -> ring.write(handle, inbound, packet.view.buffer, packet.view.offset, packet.view.length)
+            is IPv6 -> ring.write(handle, inbound, packet)
+        }
+    }
+}
@@ -21,27 +21,60 @@ import sssemil.com.net.interfaces.IClientHandle
 import sssemil.com.net.packet.ICMPv6
 import sssemil.com.net.packet.IPacket
 import sssemil.com.net.packet.IPv6
+import sssemil.com.net.packet.Ipv6Frame
+import sssemil.com.net.structures.PacketBufferPool
 
-class Icmpv6EchoServer(scope: CoroutineScope) : Protocol(scope) {
+class Icmpv6EchoServer(
+    scope: CoroutineScope,
+    private val pool: PacketBufferPool = PacketBufferPool.shared
+) : Protocol(scope) {
 
     override fun swallowFromBelow(
         handle: IClientHandle,
         packet: IPacket
     ) {
-        (((packet as? IPv6)?.payload as? ICMPv6))?.let {
-            if (ICMPv6.MessageType.from(it.icmpType) == ICMPv6.MessageType.ECHO_REQUEST) {
-                val tmp = packet.destinationAddress
-                packet.destinationAddress = packet.sourceAddress
-                packet.sourceAddress = tmp
+        when (packet) {
+            is Ipv6Frame -> if (packet.view.isValid()) {
+                packet.icmpv6()?.let {
+                    // Truncated requests are dropped, rewriting them would go past their end.
+                    if (it.isValidEcho() && it.icmpType == ECHO_REQUEST_TYPE) {
+                        reply(handle, packet)
+                    }
+                }
+            }
+            is IPv6 -> reply(handle, packet)
+        }
+    }
 
-                val replyIcmpv6 = it
-                replyIcmpv6.icmpType = ICMPv6.MessageType.ECHO_REPLY.type
-                replyIcmpv6.resetChecksum()
+    /**
+     * Builds the reply from a copy of the request, other protocols of the layer may still look at
+     * the request itself. Only the type word changes, so the checksum is adjusted rather than
+     * computed again.
+     */
+    private fun reply(handle: IClientHandle, packet: Ipv6Frame) {
+        val reply = packet.copy(pool)
+        try {
+            reply.view.swapAddresses()
+            reply.icmpv6()?.rewriteType(ECHO_REPLY_TYPE)
+            spitDown(handle, reply)
+        } finally {
+            reply.release()
+        }
+    }
 
-                packet.payload = replyIcmpv6
-                packet.resetChecksum()
+    private fun reply(handle: IClientHandle, packet: IPv6) {
+        (packet.payload as? ICMPv6)?.let {
+            if (ICMPv6.MessageType.from(it.icmpType) == ICMPv6.MessageType.ECHO_REQUEST) {
+                packet.swapAddresses()
+                it.rewriteType(ICMPv6.MessageType.ECHO_REPLY.type)
                 spitDown(handle, packet)
             }
         }
     }
+
+    companion object {
+
+        private val ECHO_REQUEST_TYPE = ICMPv6.MessageType.ECHO_REQUEST.type.toInt()
+        private val ECHO_REPLY_TYPE = ICMPv6.MessageType.ECHO_REPLY.type.toInt()
+    }
 }
\ No newline at end of file
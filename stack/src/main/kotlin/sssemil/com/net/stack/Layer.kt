@@ -16,21 +16,87 @@
 
 package sssemil.com.net.stack
 
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import kotlinx.coroutines.launch
 import sssemil.com.common.util.Logger
+import sssemil.com.net.metrics.Counter
+import sssemil.com.net.metrics.MetricsRegistry
 import sssemil.com.net.interfaces.IClientHandle
-import sssemil.com.net.packet.IPacket
+import sssemil.com.net.packet.*
+import sssemil.com.net.packet.types.IpProtocol
+import sssemil.com.net.structures.Ipv6RoutingTable
+import java.nio.ByteBuffer
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
 
-class Layer {
+/**
+ * Hands packets to the protocols registered with it.
+ *
+ * Protocols registered without [MatchKey]s are taps, they see every packet. The others only see
+ * packets that match one of their keys. Packets are classified once and their protocols are
+ * looked up in tables indexed by next header, ICMPv6 type or port, and by destination prefix, so
+ * dispatch doesn't depend on the number of protocols. Every protocol gets a packet at most once,
+ * taps first.
+ *
+ * The tables are rebuilt on registration and swapped in at once, dispatch never locks.
+ *
+ * Packets may be handed over one by one or as a [PacketBatch], which is classified in one go and
+ * split into a batch per protocol.
+ *
+ * By default protocols see packets on the thread that hands them over. With a [stage] they see
+ * them on the stage's workers instead, see [Stage]. Workers hand whatever is queued over as a batch.
+ *
+ * Packets, bytes and packet sizes going each way, dispatch time and drops are recorded in
+ * [metrics] under the layer's [name], packets and bytes every protocol got under its class name
+ * too. Bytes and sizes are only those of [Ipv6Frame]s, which know their length. Packet trees would
+ * have to be walked for it, their bytes are counted once they are serialized on egress.
+ */
+class Layer(
+    private val stage: Stage? = null,
+    val name: String = "layer-${layerCount.incrementAndGet()}",
+    private val metrics: MetricsRegistry = MetricsRegistry.shared
+) {
 
     private val protocols = arrayListOf<Protocol>()
+    private val registrations = arrayListOf<Registration>()
     private var upperLayer: Layer? = null
     private var lowerLayer: Layer? = null
 
+    @Volatile
+    private var tables = Tables(emptyList())
+
+    /**
+     * Per thread batches to split a batch by protocol in, resized to the current tables on use.
+     */
+    private val split = ThreadLocal.withInitial { Split() }
+
+    private val packetsUp = metrics.counter(METRIC_PACKETS, TAG_LAYER to name, TAG_DIRECTION to DIRECTION_UP)
+    private val packetsDown = metrics.counter(METRIC_PACKETS, TAG_LAYER to name, TAG_DIRECTION to DIRECTION_DOWN)
+    private val bytesUp = metrics.counter(METRIC_BYTES, TAG_LAYER to name, TAG_DIRECTION to DIRECTION_UP)
+    private val bytesDown = metrics.counter(METRIC_BYTES, TAG_LAYER to name, TAG_DIRECTION to DIRECTION_DOWN)
+    private val packetSizes = metrics.histogram(METRIC_PACKET_SIZE, TAG_LAYER to name)
+    private val dispatchNanos = metrics.histogram(METRIC_DISPATCH_NANOS, TAG_LAYER to name)
+    private val dropCount = metrics.counter(METRIC_DROPS, TAG_LAYER to name)
+
+    private val workers = stage?.let { Array(it.workers) { _ -> Worker(it) } }
+
+    /**
+     * Packets the [stage] dropped because a queue was full or the layer was killed.
+     */
+    val drops: Long
+        get() = dropCount.value
+
     init {
         protocols.forEach { it.layer = this }
     }
 
     suspend fun kill() {
+        // Workers finish what is queued, later packets are dropped.
+        workers?.forEach { it.close() }
+        workers?.forEach { it.job.join() }
+        stage?.shutdown()
         protocols.forEach { it.kill() }
     }
 
@@ -43,14 +109,44 @@ class Layer {
         handle: IClientHandle,
         packet: IPacket
     ) {
-        protocols.forEach { it.swallowFromBelow(handle, packet) }
+        val size = sizeOf(packet)
+        count(size, packetsUp, bytesUp)
+        workers?.let {
+            enqueue(it, handle, packet, true)
+            return
+        }
+        dispatch(handle, packet, true, size)
     }
 
     private fun swallowFromAbove(
         handle: IClientHandle,
         packet: IPacket
     ) {
-        protocols.forEach { it.swallowFromAbove(handle, packet) }
+        val size = sizeOf(packet)
+        count(size, packetsDown, bytesDown)
+        workers?.let {
+            enqueue(it, handle, packet, false)
+            return
+        }
+        dispatch(handle, packet, false, size)
+    }
+
+    private fun swallowFromBelowBatch(batch: PacketBatch) {
+        batch.forEach { _, packet -> count(sizeOf(packet), packetsUp, bytesUp) }
+        workers?.let { workers ->
+            batch.forEach { handle, packet -> enqueue(workers, handle, packet, true) }
+            return
+        }
+        dispatch(batch, true)
+    }
+
+    private fun swallowFromAboveBatch(batch: PacketBatch) {
+        batch.forEach { _, packet -> count(sizeOf(packet), packetsDown, bytesDown) }
+        workers?.let { workers ->
+            batch.forEach { handle, packet -> enqueue(workers, handle, packet, false) }
+            return
+        }
+        dispatch(batch, false)
     }
 
     fun spitUp(handle: IClientHandle, packet: IPacket) {
@@ -61,12 +157,455 @@ class Layer {
         lowerLayer?.swallowFromAbove(handle, packet)
     }
 
-    fun registerProtocol(protocol: Protocol) {
+    fun spitUpBatch(batch: PacketBatch) {
+        upperLayer?.swallowFromBelowBatch(batch)
+    }
+
+    fun spitDownBatch(batch: PacketBatch) {
+        lowerLayer?.swallowFromAboveBatch(batch)
+    }
+
+    /**
+     * @param keys Packets [protocol] is interested in, none to see all of them.
+     */
+    @Synchronized
+    fun registerProtocol(protocol: Protocol, vararg keys: MatchKey) {
         if (protocol.layer == null) {
             protocols.add(protocol)
+            registrations.add(Registration(protocol, keys.toList()))
             protocol.layer = this
+            tables = Tables(registrations)
         } else {
             Logger.e("Already registered in a layer!")
         }
     }
-}
\ No newline at end of file
+
+    private fun enqueue(workers: Array<Worker>, handle: IClientHandle, packet: IPacket, fromBelow: Boolean) {
+        val worker = workers[(handle.hashCode() and Int.MAX_VALUE) % workers.size]
+        val work = Work(handle, keep(worker.stage, packet), fromBelow)
+
+        slot@ while (!worker.room.tryAcquire()) {
+            when (worker.stage.overflow) {
+                Stage.OverflowPolicy.BLOCK -> {
+                    // Workers never run on the caller's threads, see Stage, so they free a slot.
+                    worker.room.acquireUninterruptibly()
+                    break@slot
+                }
+                Stage.OverflowPolicy.DROP_NEWEST -> {
+                    drop(work)
+                    return
+                }
+                Stage.OverflowPolicy.DROP_OLDEST -> {
+                    // Takes over the slot of the dropped packet.
+                    val oldest = worker.queue.poll()
+                    if (oldest != null) {
+                        drop(oldest)
+                        break@slot
+                    }
+                }
+            }
+        }
+
+        try {
+            worker.queue.offer(work)
+        } catch (e: ClosedSendChannelException) {
+            worker.room.release()
+            drop(work)
+        }
+    }
+
+    /**
+     * Makes sure the packet outlives the caller, which may reuse its frames once we return.
+     */
+    private fun keep(stage: Stage, packet: IPacket): IPacket = when {
+        packet !is Ipv6Frame -> packet
+        packet.owner != null -> packet.retain()
+        else -> packet.copy(stage.pool)
+    }
+
+    private fun count(size: Int, packets: Counter, bytes: Counter) {
+        packets.increment()
+        if (size > 0) {
+            bytes.add(size.toLong())
+            packetSizes.record(size.toLong())
+        }
+    }
+
+    /**
+     * @return The length of a frame, 0 for anything else. Never serializes, see [Layer].
+     */
+    private fun sizeOf(packet: IPacket) = if (packet is Ipv6Frame) packet.view.length else 0
+
+    private fun drop(work: Work) {
+        dropCount.increment()
+        release(work.packet)
+    }
+
+    private fun release(packet: IPacket) {
+        (packet as? Ipv6Frame)?.release()
+    }
+
+    private fun dispatch(handle: IClientHandle, packet: IPacket, fromBelow: Boolean, size: Int) {
+        val start = System.nanoTime()
+        val tables = tables
+        tables.taps.forEach { deliver(it, handle, packet, fromBelow, size) }
+        forEachMatch(tables, packet) { deliver(tables.keyed[it], handle, packet, fromBelow, size) }
+        dispatchNanos.record(System.nanoTime() - start)
+    }
+
+    /**
+     * Taps get the whole batch, every other protocol a batch of the packets it matches.
+     */
+    private fun dispatch(batch: PacketBatch, fromBelow: Boolean) {
+        val start = System.nanoTime()
+        try {
+            dispatchBatch(batch, fromBelow)
+        } finally {
+            // Spread over the packets, so batches and single packets compare.
+            if (!batch.isEmpty()) {
+                dispatchNanos.record((System.nanoTime() - start) / batch.size, batch.size.toLong())
+            }
+        }
+    }
+
+    private fun dispatchBatch(batch: PacketBatch, fromBelow: Boolean) {
+        val tables = tables
+        if (tables.keyed.isEmpty()) {
+            var bytes = 0L
+            batch.forEach { _, packet -> bytes += sizeOf(packet) }
+            tables.taps.forEach { deliver(it, batch, fromBelow, bytes) }
+            return
+        }
+
+        val split = this.split.get().apply { resize(tables.keyed.size) }
+        val matched = split.batches
+        val matchedBytes = split.bytes
+        try {
+            // Sized and classified once, taps still go first.
+            var bytes = 0L
+            for (i in 0 until batch.size) {
+                val packet = batch.packet(i)
+                val size = sizeOf(packet)
+                bytes += size
+                forEachMatch(tables, packet) {
+                    matched[it].add(batch.handle(i), packet)
+                    matchedBytes[it] += size.toLong()
+                }
+            }
+            tables.taps.forEach { deliver(it, batch, fromBelow, bytes) }
+            for (i in matched.indices) {
+                if (!matched[i].isEmpty()) {
+                    deliver(tables.keyed[i], matched[i], fromBelow, matchedBytes[i])
+                }
+            }
+        } finally {
+            matched.forEach { it.clear() }
+            matchedBytes.fill(0L)
+        }
+    }
+
+    /**
+     * Classifies [packet] and calls [action] with the index in [Tables.keyed] of every protocol
+     * it matches, once per protocol.
+     */
+    private inline fun forEachMatch(tables: Tables, packet: IPacket, action: (Int) -> Unit) {
+        if (tables.keyed.isEmpty()) return
+
+        var nextHeader = -1
+        var transportKey = -1
+        var destinationHigh = 0L
+        var destinationLow = 0L
+        var hasDestination = false
+
+        when (packet) {
+            is Ipv6Frame -> {
+                val view = packet.view
+                if (view.isValid()) {
+                    nextHeader = view.nextHeader
+                    transportKey = transportKey(nextHeader, view.buffer, view.payloadOffset, view.payloadSize)
+                    destinationHigh = view.destinationAddressHigh
+                    destinationLow = view.destinationAddressLow
+                    hasDestination = true
+                }
+            }
+            is IPv6 -> {
+                nextHeader = packet.nextHeader.ipProtocolNumber.toInt() and 0xFF
+                transportKey = when (val payload = packet.payload) {
+                    is ICMPv6 -> payload.icmpType.toInt()
+                    is UDP -> payload.destinationPort.toInt()
+                    is TCP -> payload.destinationPort.toInt()
+                    else -> -1
+                }
+                val destination = ByteBuffer.wrap(packet.destinationAddress.address)
+                destinationHigh = destination.getLong(0)
+                destinationLow = destination.getLong(8)
+                hasDestination = true
+            }
+        }
+
+        val byNextHeader = if (nextHeader >= 0) tables.nextHeader[nextHeader] else null
+        val byTransport = if (transportKey >= 0) {
+            when (nextHeader) {
+                NEXT_HEADER_ICMPV6 -> tables.icmpv6Type[transportKey]
+                NEXT_HEADER_UDP -> tables.udpPort?.get(transportKey)
+                NEXT_HEADER_TCP -> tables.tcpPort?.get(transportKey)
+                else -> null
+            }
+        } else {
+            null
+        }
+        val byPrefix = if (hasDestination) tables.prefixes?.lookup(destinationHigh, destinationLow) else null
+
+        byNextHeader?.forEach { action(it) }
+        byTransport?.forEach {
+            if (byNextHeader?.contains(it) != true) {
+                action(it)
+            }
+        }
+        byPrefix?.forEach {
+            if (byNextHeader?.contains(it) != true && byTransport?.contains(it) != true) {
+                action(it)
+            }
+        }
+    }
+
+    private fun deliver(
+        registration: Registration,
+        handle: IClientHandle,
+        packet: IPacket,
+        fromBelow: Boolean,
+        size: Int
+    ) {
+        registration.count(1, size.toLong(), fromBelow)
+        if (fromBelow) {
+            registration.protocol.swallowFromBelow(handle, packet)
+        } else {
+            registration.protocol.swallowFromAbove(handle, packet)
+        }
+    }
+
+    /**
+     * @param bytes What [sizeOf] gives for the whole batch.
+     */
+    private fun deliver(registration: Registration, batch: PacketBatch, fromBelow: Boolean, bytes: Long) {
+        registration.count(batch.size, bytes, fromBelow)
+        if (fromBelow) {
+            registration.protocol.swallowFromBelowBatch(batch)
+        } else {
+            registration.protocol.swallowFromAboveBatch(batch)
+        }
+    }
+
+    /**
+     * @return The ICMPv6 type or destination port, -1 if there is none.
+     */
+    private fun transportKey(nextHeader: Int, buffer: ByteBuffer, offset: Int, size: Int) = when (nextHeader) {
+        // Only complete headers get a key, protocols must still check the rest of the message.
+        NEXT_HEADER_ICMPV6 -> if (size >= Icmpv6View.HEADER_LENGTH) buffer.get(offset).toInt() and 0xFF else -1
+        NEXT_HEADER_UDP -> if (size >= UdpView.HEADER_LENGTH) buffer.getShort(offset + 2).toInt() and 0xFFFF else -1
+        NEXT_HEADER_TCP -> if (size >= 4) buffer.getShort(offset + 2).toInt() and 0xFFFF else -1
+        else -> -1
+    }
+
+    /**
+     * A protocol, its keys and what it was handed.
+     */
+    private inner class Registration(val protocol: Protocol, val keys: List<MatchKey>) {
+
+        private val protocolName = protocol.javaClass.simpleName.takeIf { it.isNotEmpty() } ?: protocol.javaClass.name
+
+        private val packetsUp = counter(METRIC_PROTOCOL_PACKETS, DIRECTION_UP)
+        private val packetsDown = counter(METRIC_PROTOCOL_PACKETS, DIRECTION_DOWN)
+        private val bytesUp = counter(METRIC_PROTOCOL_BYTES, DIRECTION_UP)
+        private val bytesDown = counter(METRIC_PROTOCOL_BYTES, DIRECTION_DOWN)
+
+        fun count(packets: Int, bytes: Long, fromBelow: Boolean) {
+            if (fromBelow) {
+                packetsUp.add(packets.toLong())
+                bytesUp.add(bytes)
+            } else {
+                packetsDown.add(packets.toLong())
+                bytesDown.add(bytes)
+            }
+        }
+
+        private fun counter(metric: String, direction: String) =
+            metrics.counter(metric, TAG_LAYER to name, TAG_PROTOCOL to protocolName, TAG_DIRECTION to direction)
+    }
+
+    private class Work(val handle: IClientHandle, val packet: IPacket, val fromBelow: Boolean)
+
+    private inner class Worker(val stage: Stage) {
+
+        /**
+         * The queue never fills up itself, callers take a slot here first.
+         */
+        val queue = Channel<Work>(Channel.UNLIMITED)
+
+        val room = Semaphore(stage.capacity)
+
+        val job: Job = stage.scope.launch(stage.dispatcher) {
+            val batch = PacketBatch()
+            try {
+                for (first in queue) {
+                    // Batches only go one way, a packet the other way waits for the next batch.
+                    var work: Work? = first
+                    while (work != null) {
+                        val fromBelow = work.fromBelow
+                        while (work != null && work.fromBelow == fromBelow && batch.size < MAX_STAGE_BATCH) {
+                            room.release()
+                            batch.add(work.handle, work.packet)
+                            work = queue.poll()
+                        }
+                        flush(batch, fromBelow)
+                    }
+                }
+            } finally {
+                // Only left early when cancelled.
+                close()
+                while (true) {
+                    drop(queue.poll() ?: break)
+                }
+            }
+        }
+
+        /**
+         * Later packets are dropped, callers still waiting for a slot get one to find that out.
+         */
+        fun close() {
+            if (queue.close()) {
+                room.release(MAX_WAITING_CALLERS)
+            }
+        }
+
+        private fun flush(batch: PacketBatch, fromBelow: Boolean) {
+            try {
+                if (batch.size == 1) {
+                    dispatch(batch.handle(0), batch.packet(0), fromBelow, sizeOf(batch.packet(0)))
+                } else {
+                    dispatch(batch, fromBelow)
+                }
+            } catch (e: Exception) {
+                Logger.e("Error handling ${batch.size} packets!", e)
+            } finally {
+                for (i in 0 until batch.size) {
+                    release(batch.packet(i))
+                }
+                batch.clear()
+            }
+        }
+    }
+
+    /**
+     * Dispatch tables of a set of registrations, never changed once built. The tables hold indices
+     * into [keyed].
+     */
+    private class Tables(registrations: List<Registration>) {
+
+        val taps = registrations.filter { it.keys.isEmpty() }.toTypedArray()
+
+        val keyed = registrations.filter { it.keys.isNotEmpty() }.toTypedArray()
+
+        val nextHeader = arrayOfNulls<IntArray>(0x100)
+
+        val icmpv6Type = arrayOfNulls<IntArray>(0x100)
+
+        /**
+         * Only allocated if there is a key for them.
+         */
+        var udpPort: Array<IntArray?>? = null
+        var tcpPort: Array<IntArray?>? = null
+        var prefixes: Ipv6RoutingTable<IntArray>? = null
+
+        init {
+            for ((index, registration) in keyed.withIndex()) {
+                for (key in registration.keys) {
+                    when (key) {
+                        is MatchKey.NextHeader -> add(nextHeader, key.protocol, index)
+                        is MatchKey.Icmpv6Type -> add(icmpv6Type, key.type, index)
+                        is MatchKey.UdpPort -> add(udpPort ?: ports().also { udpPort = it }, key.port, index)
+                        is MatchKey.TcpPort -> add(tcpPort ?: ports().also { tcpPort = it }, key.port, index)
+                        is MatchKey.DestinationPrefix -> {
+                            val table = prefixes ?: Ipv6RoutingTable<IntArray>().also { prefixes = it }
+                            val existing = table[key.high, key.low, key.length] ?: IntArray(0)
+                            if (index !in existing) {
+                                table.add(key.high, key.low, key.length, existing + index)
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private fun ports() = arrayOfNulls<IntArray>(0x10000)
+
+        private fun add(table: Array<IntArray?>, key: Int, index: Int) {
+            val existing = table[key] ?: IntArray(0)
+            if (index !in existing) {
+                table[key] = existing + index
+            }
+        }
+    }
+
+    /**
+     * A batch per protocol and the bytes in it.
+     */
+    private class Split {
+
+        var batches = emptyArray<PacketBatch>()
+            private set
+
+        var bytes = LongArray(0)
+            private set
+
+        /**
+         * Keeps the batches of protocols still there, only allocates when the count changes.
+         */
+        fun resize(protocols: Int) {
+            if (batches.size == protocols) return
+            batches = Array(protocols) { batches.getOrNull(it) ?: PacketBatch() }
+            bytes = LongArray(protocols)
+        }
+    }
+
+    companion object {
+
+        const val METRIC_PACKETS = "layer.packets"
+        const val METRIC_BYTES = "layer.bytes"
+        const val METRIC_PACKET_SIZE = "layer.packet_size"
+        const val METRIC_DISPATCH_NANOS = "layer.dispatch_nanos"
+        const val METRIC_DROPS = "layer.drops"
+        const val METRIC_PROTOCOL_PACKETS = "protocol.packets"
+        const val METRIC_PROTOCOL_BYTES = "protocol.bytes"
+
+        const val TAG_LAYER = "layer"
+        const val TAG_PROTOCOL = "protocol"
+        const val TAG_DIRECTION = "direction"
+
+        /**
+         * Packets from below, on their way up.
+         */
+        const val DIRECTION_UP = "up"
+
+        /**
+         * Packets from above, on their way down.
+         */
+        const val DIRECTION_DOWN = "down"
+
+        private val layerCount = AtomicInteger()
+
+        private val NEXT_HEADER_ICMPV6 = IpProtocol.IPv6_ICMP.ipProtocolNumber.toInt()
+        private val NEXT_HEADER_UDP = IpProtocol.UDP.ipProtocolNumber.toInt()
+        private val NEXT_HEADER_TCP = IpProtocol.TCP.ipProtocolNumber.toInt()
+
+        /**
+         * Most packets a stage worker hands over at once.
+         */
+        private const val MAX_STAGE_BATCH = 64
+
+        /**
+         * Slots handed out on close, more than there are threads to wait for them.
+         */
+        private const val MAX_WAITING_CALLERS = Int.MAX_VALUE / 2
+    }
+}
@@ -27,13 +27,13 @@ class LoggerProtocol(scope: CoroutineScope, val tag: String? = null) : Protocol(
         handle: IClientHandle,
         packet: IPacket
     ) {
-        Logger.d("${tag ?: "LOG"} from above: $packet")
+        Logger.d { "${tag ?: "LOG"} from above: $packet" }
     }
 
     override fun swallowFromBelow(
         handle: IClientHandle,
         packet: IPacket
     ) {
-        Logger.d("${tag ?: "LOG"} from below: $packet")
+        Logger.d { "${tag ?: "LOG"} from below: $packet" }
     }
 }
\ No newline at end of file
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.stack
+
+import sssemil.com.net.packet.types.IpProtocol
+import java.net.Inet6Address
+import java.nio.ByteBuffer
+
+/**
+ * Selects the packets a [Protocol] of a [Layer] gets to see, see [Layer.registerProtocol].
+ */
+sealed class MatchKey {
+
+    /**
+     * Packets whose IPv6 next header is [protocol], e.g. [IpProtocol.UDP].
+     */
+    data class NextHeader(val protocol: Int) : MatchKey() {
+
+        constructor(protocol: IpProtocol) : this(protocol.ipProtocolNumber.toInt())
+
+        init {
+            checkRange(protocol, 0xFF, "next header")
+        }
+    }
+
+    /**
+     * ICMPv6 messages of [type], e.g. echo requests.
+     */
+    data class Icmpv6Type(val type: Int) : MatchKey() {
+
+        init {
+            checkRange(type, 0xFF, "ICMPv6 type")
+        }
+    }
+
+    /**
+     * UDP datagrams to [port].
+     */
+    data class UdpPort(val port: Int) : MatchKey() {
+
+        init {
+            checkRange(port, 0xFFFF, "port")
+        }
+    }
+
+    /**
+     * TCP segments to [port].
+     */
+    data class TcpPort(val port: Int) : MatchKey() {
+
+        init {
+            checkRange(port, 0xFFFF, "port")
+        }
+    }
+
+    /**
+     * Packets to an address within the first [length] bits of [high] and [low]. Only the
+     * longest registered prefix that matches a packet counts.
+     */
+    data class DestinationPrefix(val high: Long, val low: Long, val length: Int) : MatchKey() {
+
+        constructor(prefix: Inet6Address, length: Int) : this(
+            ByteBuffer.wrap(prefix.address).getLong(0),
+            ByteBuffer.wrap(prefix.address).getLong(8),
+            length
+        )
+
+        init {
+            checkRange(length, 128, "prefix length")
+        }
+    }
+
+    companion object {
+
+        private fun checkRange(value: Int, max: Int, name: String) {
+            if (value < 0 || value > max) {
+                throw IllegalArgumentException("Invalid $name $value!")
+            }
+        }
+    }
+}
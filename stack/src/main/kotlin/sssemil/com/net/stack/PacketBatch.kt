@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.stack
+
+import sssemil.com.net.interfaces.IClientHandle
+import sssemil.com.net.packet.IPacket
+
+/**
+ * Packets handed over together, each with the client it came from or goes to.
+ *
+ * Batches are reused, they and their frames are only valid during the call they are passed to.
+ * Retain or copy what has to outlive it.
+ */
+class PacketBatch(initialCapacity: Int = DEFAULT_CAPACITY) {
+
+    private var handles = arrayOfNulls<IClientHandle>(initialCapacity.coerceAtLeast(1))
+    private var packets = arrayOfNulls<IPacket>(initialCapacity.coerceAtLeast(1))
+
+    var size = 0
+        private set
+
+    fun isEmpty() = size == 0
+
+    fun add(handle: IClientHandle, packet: IPacket) {
+        if (size == packets.size) {
+            handles = handles.copyOf(size * 2)
+            packets = packets.copyOf(size * 2)
+        }
+        handles[size] = handle
+        packets[size] = packet
+        size++
+    }
+
+    fun handle(index: Int): IClientHandle {
+        checkIndex(index)
+        return handles[index]!!
+    }
+
+    fun packet(index: Int): IPacket {
+        checkIndex(index)
+        return packets[index]!!
+    }
+
+    inline fun forEach(action: (IClientHandle, IPacket) -> Unit) {
+        for (i in 0 until size) {
+            action(handle(i), packet(i))
+        }
+    }
+
+    /**
+     * Forgets the packets without releasing them.
+     */
+    fun clear() {
+        handles.fill(null, 0, size)
+        packets.fill(null, 0, size)
+        size = 0
+    }
+
+    private fun checkIndex(index: Int) {
+        if (index < 0 || index >= size) {
+            throw IndexOutOfBoundsException("Index $index out of $size!")
+        }
+    }
+
+    companion object {
+
+        const val DEFAULT_CAPACITY = 32
+    }
+}
@@ -67,6 +67,38 @@ abstract class Protocol(val scope: CoroutineScope) {
         }
     }
 
+    /**
+     * Takes a batch from the lower level, packet by packet unless overridden.
+     */
+    open fun swallowFromBelowBatch(batch: PacketBatch) {
+        batch.forEach { handle, packet -> swallowFromBelow(handle, packet) }
+    }
+
+    /**
+     * Sends a batch to the upper level.
+     */
+    open fun spitUpBatch(batch: PacketBatch) {
+        layer?.spitUpBatch(batch) ?: run {
+            Logger.w("No upper layer set! Data will be lost.")
+        }
+    }
+
+    /**
+     * Takes a batch from the upper level, packet by packet unless overridden.
+     */
+    open fun swallowFromAboveBatch(batch: PacketBatch) {
+        batch.forEach { handle, packet -> swallowFromAbove(handle, packet) }
+    }
+
+    /**
+     * Sends a batch to the lower level.
+     */
+    open fun spitDownBatch(batch: PacketBatch) {
+        layer?.spitDownBatch(batch) ?: run {
+            Logger.w("No lower layer set! Data will be lost.")
+        }
+    }
+
     open suspend fun kill() {
         layer = null
     }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.stack
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.asCoroutineDispatcher
+import sssemil.com.net.structures.PacketBufferPool
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Makes a [Layer] a pipeline stage. Packets handed to the layer are queued and its protocols see
+ * them on [workers] coroutines of their own, so the layer below or above moves on right away.
+ *
+ * Every worker has a queue of its own and packets of one client always go to the same worker, so
+ * they stay in order.
+ *
+ * Workers run on threads of the stage's own, so callers blocked by [OverflowPolicy.BLOCK] never
+ * hold a thread the workers need. They still hold their own thread, so callers on a shared pool
+ * such as [kotlinx.coroutines.Dispatchers.Default] should rather drop packets.
+ *
+ * @param capacity How many packets each worker may have waiting.
+ * @param overflow What happens to packets that find a worker's queue full.
+ * @param dispatcher Where the workers run instead, it must never run anything that hands packets
+ * to the stage.
+ * @param pool Where frames that are not pooled are copied to, they can't be kept otherwise.
+ */
+class Stage(
+    val scope: CoroutineScope,
+    val workers: Int = 1,
+    val capacity: Int = DEFAULT_CAPACITY,
+    val overflow: OverflowPolicy = OverflowPolicy.DROP_NEWEST,
+    dispatcher: CoroutineDispatcher? = null,
+    val pool: PacketBufferPool = PacketBufferPool.shared
+) {
+
+    init {
+        if (workers < 1 || capacity < 1) {
+            throw IllegalArgumentException("A stage needs at least one worker and room for a packet!")
+        }
+    }
+
+    private val executor: ExecutorService? = if (dispatcher == null) {
+        val stage = stageCount.incrementAndGet()
+        val thread = AtomicInteger()
+        Executors.newFixedThreadPool(workers) { runnable ->
+            Thread(runnable, "stage-$stage-worker-${thread.incrementAndGet()}").apply { isDaemon = true }
+        }
+    } else {
+        null
+    }
+
+    val dispatcher: CoroutineDispatcher = dispatcher ?: executor!!.asCoroutineDispatcher()
+
+    /**
+     * Stops the stage's own threads, once its workers are done.
+     */
+    internal fun shutdown() {
+        executor?.shutdown()
+    }
+
+    enum class OverflowPolicy {
+
+        /**
+         * Blocks the caller's thread until there is room, which pushes back on the stage before
+         * without losing packets. Two stages that do this while feeding each other can deadlock.
+         */
+        BLOCK,
+
+        /**
+         * Drops the packet that doesn't fit.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drops the packet that waited longest to make room.
+         */
+        DROP_OLDEST
+    }
+
+    companion object {
+
+        const val DEFAULT_CAPACITY = 256
+
+        private val stageCount = AtomicInteger()
+    }
+}
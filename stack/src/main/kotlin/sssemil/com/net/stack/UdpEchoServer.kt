@@ -20,35 +20,62 @@ import kotlinx.coroutines.CoroutineScope
 import sssemil.com.net.interfaces.IClientHandle
 import sssemil.com.net.packet.IPacket
 import sssemil.com.net.packet.IPv6
+import sssemil.com.net.packet.Ipv6Frame
 import sssemil.com.net.packet.UDP
+import sssemil.com.net.structures.PacketBufferPool
 
 /**
  * This is a UDP echo server, anything that comes in will be sent back. This class has been
  * written to test UDP checksum. You could use the following command to play with it:
  * nc -u -6 fc00:1234:1234:1234:1234:1234:1234:1234 12345
  */
-class UdpEchoServer(scope: CoroutineScope, val port: UShort = 12345u) : Protocol(scope) {
+class UdpEchoServer(
+    scope: CoroutineScope,
+    val port: UShort = 12345u,
+    private val pool: PacketBufferPool = PacketBufferPool.shared
+) : Protocol(scope) {
 
     override fun swallowFromBelow(
         handle: IClientHandle,
         packet: IPacket
     ) {
-        (((packet as? IPv6)?.payload as? UDP))?.let {
-            if (it.destinationPort == port) {
-                val tmpAddress = packet.destinationAddress
-                packet.destinationAddress = packet.sourceAddress
-                packet.sourceAddress = tmpAddress
+        when (packet) {
+            is Ipv6Frame -> if (packet.view.isValid()) {
+                packet.udp()?.let {
+                    // Truncated datagrams are dropped, swapping their ports would go past their end.
+                    if (it.isValid() && it.destinationPort == port.toInt()) {
+                        reply(handle, packet)
+                    }
+                }
+            }
+            is IPv6 -> reply(handle, packet)
+        }
+    }
 
-                val reply = it
+    /**
+     * Builds the reply from a copy of the request, other protocols of the layer may still look at
+     * the request itself. Addresses and ports are only swapped, which leaves the checksum valid.
+     */
+    private fun reply(handle: IClientHandle, packet: Ipv6Frame) {
+        val reply = packet.copy(pool)
+        try {
+            reply.view.swapAddresses()
+            reply.udp()?.swapPorts()
+            spitDown(handle, reply)
+        } finally {
+            reply.release()
+        }
+    }
 
-                val tmpPort = reply.destinationPort
-                reply.destinationPort = reply.sourcePort
-                reply.sourcePort = tmpPort
+    private fun reply(handle: IClientHandle, packet: IPv6) {
+        (packet.payload as? UDP)?.let {
+            if (it.destinationPort == port) {
+                packet.swapAddresses()
 
-                reply.resetChecksum()
+                val tmpPort = it.destinationPort
+                it.destinationPort = it.sourcePort
+                it.sourcePort = tmpPort
 
-                packet.payload = reply
-                packet.resetChecksum()
                 spitDown(handle, packet)
             }
         }
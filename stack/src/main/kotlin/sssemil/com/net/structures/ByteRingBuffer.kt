@@ -0,0 +1,263 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import java.nio.ByteBuffer
+
+/**
+ * Growable circular byte buffer. Bytes are appended behind the tail and consumed from the head.
+ * The capacity is always a power of two, so that wrapping is a single mask operation.
+ *
+ * @param initialCapacity Initial capacity, rounded up to the next power of two.
+ * @param direct Keep the bytes off-heap, so that native reads can fill the ring without a copy,
+ * see [fillScattered].
+ */
+class ByteRingBuffer(initialCapacity: Int = DEFAULT_CAPACITY, private val direct: Boolean = false) {
+
+    private var buffer = allocate(roundUpToPowerOfTwo(initialCapacity))
+    private var mask = buffer.capacity() - 1
+    private var head = 0
+
+    /**
+     * Views of [buffer] for relative bulk operations, so that its own position never matters.
+     */
+    private var view = buffer.duplicate()
+    private val freeRegions = arrayOf(buffer.duplicate(), buffer.duplicate())
+
+    /**
+     * Staging array for array readers of a direct ring.
+     */
+    private var scratch: ByteArray? = null
+
+    /**
+     * Number of readable bytes.
+     */
+    var size = 0
+        private set
+
+    val capacity: Int
+        get() = buffer.capacity()
+
+    val freeSpace: Int
+        get() = capacity - size
+
+    fun isEmpty() = size == 0
+
+    /**
+     * Grows the storage, if needed, so that it can hold at least [minCapacity] bytes. Readable
+     * bytes are kept and unwrapped to the start of the new storage.
+     */
+    fun ensureCapacity(minCapacity: Int) {
+        if (minCapacity <= capacity) return
+
+        val newBuffer = allocate(roundUpToPowerOfTwo(minCapacity))
+        copyTo(0, newBuffer.duplicate(), size)
+        buffer = newBuffer
+        mask = newBuffer.capacity() - 1
+        head = 0
+        view = newBuffer.duplicate()
+        freeRegions[0] = newBuffer.duplicate()
+        freeRegions[1] = newBuffer.duplicate()
+    }
+
+    /**
+     * Lets [reader] write straight into the largest contiguous free region behind the tail.
+     *
+     * @param reader Called with (array, offset, maxLength), returns the number of bytes written
+     * or -1 on end of stream.
+     *
+     * @return Whatever [reader] returned.
+     */
+    fun fill(reader: (ByteArray, Int, Int) -> Int): Int {
+        if (size == 0) {
+            // Nothing to keep, start over so that the whole buffer is contiguous.
+            head = 0
+        }
+
+        val tail = (head + size) and mask
+        val contiguous = if (tail >= head) capacity - tail else head - tail
+        if (contiguous == 0) return 0
+
+        if (buffer.hasArray()) {
+            val count = reader(buffer.array(), buffer.arrayOffset() + tail, contiguous)
+            if (count > 0) {
+                size += count
+            }
+            return count
+        }
+
+        val scratch = scratch ?: ByteArray(SCRATCH_SIZE).also { scratch = it }
+        val count = reader(scratch, 0, Math.min(contiguous, scratch.size))
+        if (count > 0) {
+            region(tail, count).put(scratch, 0, count)
+            size += count
+        }
+        return count
+    }
+
+    /**
+     * Lets [reader] scatter into all of the free space at once, that is one region behind the
+     * tail and, if the free space wraps, a second one at the start of the storage. With a [direct]
+     * ring a single readv(2) fills both without any copies.
+     *
+     * @param reader Called with one or two buffers, whose remaining bytes are free, returns the
+     * number of bytes written or -1 on end of stream. It has to advance the buffers' positions
+     * past what it wrote, like a [java.nio.channels.ScatteringByteChannel].
+     *
+     * @return Whatever [reader] returned.
+     */
+    fun fillScattered(reader: (Array<ByteBuffer>, Int) -> Int): Int {
+        if (size == 0) {
+            head = 0
+        }
+        if (freeSpace == 0) return 0
+
+        val tail = (head + size) and mask
+        val regionCount = if (tail >= head) {
+            freeRegions[0].clear().position(tail)
+            if (head > 0) {
+                freeRegions[1].clear().limit(head)
+                2
+            } else {
+                1
+            }
+        } else {
+            freeRegions[0].clear().limit(head).position(tail)
+            1
+        }
+
+        val count = reader(freeRegions, regionCount)
+        if (count > 0) {
+            size += count
+        }
+        return count
+    }
+
+    /**
+     * Appends [length] bytes of [src] starting at [offset], growing if needed.
+     */
+    fun write(src: ByteArray, offset: Int, length: Int) {
+        ensureCapacity(size + length)
+
+        val tail = (head + size) and mask
+        val firstPart = Math.min(length, capacity - tail)
+        region(tail, firstPart).put(src, offset, firstPart)
+        region(0, length - firstPart).put(src, offset + firstPart, length - firstPart)
+        size += length
+    }
+
+    /**
+     * @return The byte at [index] relative to the head, without consuming it.
+     */
+    fun peek(index: Int): Byte {
+        checkReadable(index, 1)
+        return buffer.get((head + index) and mask)
+    }
+
+    /**
+     * @return The big-endian 32-bit value at [index] relative to the head, without consuming it.
+     */
+    fun peekInt(index: Int): Int {
+        checkReadable(index, 4)
+        val start = (head + index) and mask
+        if (start + 4 <= capacity) {
+            return buffer.getInt(start)
+        }
+        return (buffer.get(start).toInt() and 0xFF shl 24) or
+                (buffer.get((start + 1) and mask).toInt() and 0xFF shl 16) or
+                (buffer.get((start + 2) and mask).toInt() and 0xFF shl 8) or
+                (buffer.get((start + 3) and mask).toInt() and 0xFF)
+    }
+
+    /**
+     * Copies [length] bytes starting at [index] relative to the head into [dst], without
+     * consuming them.
+     */
+    fun copyTo(index: Int, dst: ByteArray, dstOffset: Int, length: Int) {
+        checkReadable(index, length)
+
+        val start = (head + index) and mask
+        val firstPart = Math.min(length, capacity - start)
+        region(start, firstPart).get(dst, dstOffset, firstPart)
+        region(0, length - firstPart).get(dst, dstOffset + firstPart, length - firstPart)
+    }
+
+    /**
+     * Same as above, for a destination buffer. The bytes are put at the buffer's position, which
+     * is advanced.
+     */
+    fun copyTo(index: Int, dst: ByteBuffer, length: Int) {
+        checkReadable(index, length)
+
+        val start = (head + index) and mask
+        val firstPart = Math.min(length, capacity - start)
+        dst.put(region(start, firstPart))
+        dst.put(region(0, length - firstPart))
+    }
+
+    /**
+     * Consumes [length] bytes from the head.
+     */
+    fun skip(length: Int) {
+        checkReadable(0, length)
+        head = (head + length) and mask
+        size -= length
+    }
+
+    /**
+     * Drops all readable bytes.
+     */
+    fun clear() {
+        head = 0
+        size = 0
+    }
+
+    private fun checkReadable(index: Int, length: Int) {
+        if (index < 0 || length < 0 || index + length > size) {
+            throw IndexOutOfBoundsException("Requested $length bytes at $index, but only $size are readable!")
+        }
+    }
+
+    /**
+     * @return [view] over [length] bytes of the storage starting at [start].
+     */
+    private fun region(start: Int, length: Int): ByteBuffer {
+        view.clear()
+        view.position(start)
+        view.limit(start + length)
+        return view
+    }
+
+    private fun allocate(capacity: Int) =
+        if (direct) ByteBuffer.allocateDirect(capacity) else ByteBuffer.allocate(capacity)
+
+    companion object {
+
+        const val DEFAULT_CAPACITY = 128 * 1024
+
+        private const val MAX_CAPACITY = 1 shl 30
+
+        private const val SCRATCH_SIZE = 64 * 1024
+
+        private fun roundUpToPowerOfTwo(value: Int): Int {
+            if (value > MAX_CAPACITY) {
+                throw IllegalArgumentException("Capacity $value is too large!")
+            }
+            return if (value <= 1) 1 else Integer.highestOneBit(value - 1) shl 1
+        }
+    }
+}
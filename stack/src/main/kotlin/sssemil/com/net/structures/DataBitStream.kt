@@ -17,69 +17,153 @@
 package sssemil.com.net.structures
 
 import sssemil.com.net.util.number.Nibble
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.util.*
 
-class DataBitStream(private val bits: BitSet, private var offset: Int, private var length: Int) {
+/**
+ * Reads primitives from a byte buffer. Multi-byte values are read a whole word at a time, in
+ * network order (big-endian) unless the `Le` variant is used.
+ *
+ * The position is kept in bits so that [takeBit], [takeBits] and [takeNibble] can be mixed with the
+ * other reads. Sub-byte reads follow [BitSet] order, i.e. the least significant bit of a byte comes
+ * first. As long as the position stays byte aligned no bit manipulation is done at all.
+ *
+ * @param source Backing buffer, read with absolute gets so its position is never touched.
+ * @param offset Start, in bits from the beginning of [source].
+ * @param length End, in bits from the beginning of [source].
+ */
+class DataBitStream(source: ByteBuffer, private var offset: Int, private var length: Int) {
+
+    private val buffer = if (source.order() == ByteOrder.BIG_ENDIAN) source else source.duplicate()
 
     constructor(bytes: ByteArray, offset: Int, length: Int) : this(
-            BitSet.valueOf(bytes),
-            Byte.SIZE_BITS * offset,
-            Byte.SIZE_BITS * length
+        ByteBuffer.wrap(bytes),
+        Byte.SIZE_BITS * offset,
+        Byte.SIZE_BITS * (offset + length)
     )
 
-    fun takeBit() = if (length - offset - 1 < 0) throw InsufficientBitsException(
-            offset,
-            length,
-            1
+    constructor(bits: BitSet, offset: Int, length: Int) : this(
+        ByteBuffer.wrap(Arrays.copyOf(bits.toByteArray(), (length + Byte.SIZE_BITS - 1) / Byte.SIZE_BITS)),
+        offset,
+        length
     )
-    else bits.get(offset++)
 
-    fun takeNibble() = takePrimitive<Nibble>(Nibble.SIZE_BITS)
+    /**
+     * Reads the remaining bytes of [buffer], from its position to its limit.
+     */
+    constructor(buffer: ByteBuffer) : this(
+        buffer,
+        Byte.SIZE_BITS * buffer.position(),
+        Byte.SIZE_BITS * buffer.limit()
+    )
 
-    fun takeByte() = takePrimitive<Byte>(Byte.SIZE_BITS)
+    fun takeBit(): Boolean {
+        ensureBits(1)
+        val bit = bitAt(offset)
+        offset++
+        return bit
+    }
 
-    fun takeShort() = takePrimitive<Short>(Short.SIZE_BITS)
+    fun takeNibble() = Nibble(takeSubByte(Nibble.SIZE_BITS).toByte())
 
-    fun takeInt() = takePrimitive<Int>(Int.SIZE_BITS)
+    fun takeByte(): Byte {
+        ensureBits(Byte.SIZE_BITS)
+        val result = if (isAligned()) buffer.get(offset ushr 3) else takeUnalignedByte()
+        offset += Byte.SIZE_BITS
+        return result
+    }
 
-    fun takeLong() = takePrimitive<Long>(Long.SIZE_BITS)
+    fun takeShort(): Short {
+        ensureBits(Short.SIZE_BITS)
+        if (!isAligned()) return takeUnalignedBytes(Short.SIZE_BYTES).toShort()
+        val result = buffer.getShort(offset ushr 3)
+        offset += Short.SIZE_BITS
+        return result
+    }
 
-    fun takeUByte() = takePrimitive<Byte>(Byte.SIZE_BITS).toUByte()
+    fun takeInt(): Int {
+        ensureBits(Int.SIZE_BITS)
+        if (!isAligned()) return takeUnalignedBytes(Int.SIZE_BYTES).toInt()
+        val result = buffer.getInt(offset ushr 3)
+        offset += Int.SIZE_BITS
+        return result
+    }
 
-    fun takeUShort() = takePrimitive<Short>(Short.SIZE_BITS).toUShort()
+    fun takeLong(): Long {
+        ensureBits(Long.SIZE_BITS)
+        if (!isAligned()) return takeUnalignedBytes(Long.SIZE_BYTES)
+        val result = buffer.getLong(offset ushr 3)
+        offset += Long.SIZE_BITS
+        return result
+    }
+
+    fun takeShortLe() = java.lang.Short.reverseBytes(takeShort())
+
+    fun takeIntLe() = Integer.reverseBytes(takeInt())
+
+    fun takeLongLe() = java.lang.Long.reverseBytes(takeLong())
+
+    fun takeUByte() = takeByte().toUByte()
+
+    fun takeUShort() = takeShort().toUShort()
+
+    fun takeUInt() = takeInt().toUInt()
 
-    fun takeUInt() = takePrimitive<Int>(Int.SIZE_BITS).toUInt()
+    fun takeULong() = takeLong().toULong()
 
-    fun takeULong() = takePrimitive<Long>(Long.SIZE_BITS).toULong()
+    fun takeUShortLe() = takeShortLe().toUShort()
+
+    fun takeUIntLe() = takeIntLe().toUInt()
+
+    fun takeULongLe() = takeLongLe().toULong()
 
     fun takeBits(n: Int): BitSet {
-        val result = if (length - offset - n < 0) throw InsufficientBitsException(
-                offset,
-                length,
-                n
-        )
-        else bits.get(offset, offset + n)
+        ensureBits(n)
+        val result = BitSet(n)
+        for (i in 0 until n) {
+            if (bitAt(offset + i)) {
+                result.set(i)
+            }
+        }
         offset += n
         return result
     }
 
-    fun takeByteArray(n: Int) = ByteArray(n) { takeByte() }
+    fun takeByteArray(n: Int): ByteArray {
+        val result = ByteArray(n)
+        takeByteArray(result, 0, n)
+        return result
+    }
 
-    private fun <T : Number> takePrimitive(sizeBits: Int): T {
-        var result = 0
-        if (length - offset - sizeBits < 0) throw InsufficientBitsException(
-                offset,
-                length,
-                sizeBits
-        )
-        for (i in offset until offset + sizeBits) {
-            if (bits.get(i)) {
-                result = result or (1 shl i % sizeBits)
+    /**
+     * Copies the next [n] bytes into [dst] at [dstOffset].
+     */
+    fun takeByteArray(dst: ByteArray, dstOffset: Int, n: Int) {
+        ensureBits(Byte.SIZE_BITS * n)
+        if (isAligned()) {
+            val start = offset ushr 3
+            if (buffer.hasArray()) {
+                System.arraycopy(buffer.array(), buffer.arrayOffset() + start, dst, dstOffset, n)
+            } else {
+                val source = buffer.duplicate()
+                source.position(start)
+                source.get(dst, dstOffset, n)
+            }
+            offset += Byte.SIZE_BITS * n
+        } else {
+            for (i in 0 until n) {
+                dst[dstOffset + i] = takeByte()
             }
         }
+    }
 
-        offset += sizeBits
-        return result as T
+    /**
+     * Skips the next [n] bytes.
+     */
+    fun skipBytes(n: Int) {
+        ensureBits(Byte.SIZE_BITS * n)
+        offset += Byte.SIZE_BITS * n
     }
 
     fun discard() {
@@ -89,4 +173,51 @@ class DataBitStream(private val bits: BitSet, private var offset: Int, private v
     fun isEmpty() = offset >= length
 
     fun remainingBits() = length - offset
-}
\ No newline at end of file
+
+    fun remainingBytes() = remainingBits() / Byte.SIZE_BITS
+
+    /**
+     * Current position, in bytes from the beginning of the backing buffer.
+     */
+    fun bytePosition() = offset ushr 3
+
+    private fun isAligned() = offset and 7 == 0
+
+    private fun ensureBits(sizeBits: Int) {
+        if (length - offset - sizeBits < 0) throw InsufficientBitsException(
+            offset,
+            length,
+            sizeBits
+        )
+    }
+
+    private fun bitAt(index: Int) = (buffer.get(index ushr 3).toInt() ushr (index and 7)) and 1 != 0
+
+    private fun takeSubByte(sizeBits: Int): Int {
+        ensureBits(sizeBits)
+        var result = 0
+        for (i in 0 until sizeBits) {
+            if (bitAt(offset + i)) {
+                result = result or (1 shl i)
+            }
+        }
+        offset += sizeBits
+        return result
+    }
+
+    private fun takeUnalignedByte(): Byte {
+        val shift = offset and 7
+        val index = offset ushr 3
+        val low = buffer.get(index).toInt() and 0xFF ushr shift
+        val high = buffer.get(index + 1).toInt() and 0xFF shl (Byte.SIZE_BITS - shift)
+        return (low or high).toByte()
+    }
+
+    private fun takeUnalignedBytes(count: Int): Long {
+        var result = 0L
+        for (i in 0 until count) {
+            result = result shl Byte.SIZE_BITS or (takeByte().toLong() and 0xFF)
+        }
+        return result
+    }
+}
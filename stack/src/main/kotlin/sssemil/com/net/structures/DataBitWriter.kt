@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import sssemil.com.net.util.number.Nibble
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Counterpart of [DataBitStream], writes primitives into a byte buffer using the same layout:
+ * multi-byte values in network order unless the `Le` variant is used, sub-byte values in [java.util.BitSet]
+ * order.
+ *
+ * @param source Backing buffer, written with absolute puts so its position is never touched.
+ * @param offset Start, in bits from the beginning of [source].
+ * @param length End, in bits from the beginning of [source].
+ */
+class DataBitWriter(source: ByteBuffer, private var offset: Int, private val length: Int) {
+
+    private val buffer = if (source.order() == ByteOrder.BIG_ENDIAN) source else source.duplicate()
+
+    constructor(bytes: ByteArray, offset: Int, length: Int) : this(
+        ByteBuffer.wrap(bytes),
+        Byte.SIZE_BITS * offset,
+        Byte.SIZE_BITS * (offset + length)
+    )
+
+    constructor(bytes: ByteArray) : this(bytes, 0, bytes.size)
+
+    fun putBit(value: Boolean): DataBitWriter {
+        ensureBits(1)
+        putBitAt(offset, value)
+        offset++
+        return this
+    }
+
+    fun putNibble(value: Nibble) = putSubByte(value.toInt(), Nibble.SIZE_BITS)
+
+    fun putByte(value: Byte): DataBitWriter {
+        ensureBits(Byte.SIZE_BITS)
+        if (isAligned()) {
+            buffer.put(offset ushr 3, value)
+            offset += Byte.SIZE_BITS
+        } else {
+            putSubByte(value.toInt(), Byte.SIZE_BITS)
+        }
+        return this
+    }
+
+    fun putShort(value: Short): DataBitWriter {
+        ensureBits(Short.SIZE_BITS)
+        if (!isAligned()) return putUnalignedBytes(value.toLong(), Short.SIZE_BYTES)
+        buffer.putShort(offset ushr 3, value)
+        offset += Short.SIZE_BITS
+        return this
+    }
+
+    fun putInt(value: Int): DataBitWriter {
+        ensureBits(Int.SIZE_BITS)
+        if (!isAligned()) return putUnalignedBytes(value.toLong(), Int.SIZE_BYTES)
+        buffer.putInt(offset ushr 3, value)
+        offset += Int.SIZE_BITS
+        return this
+    }
+
+    fun putLong(value: Long): DataBitWriter {
+        ensureBits(Long.SIZE_BITS)
+        if (!isAligned()) return putUnalignedBytes(value, Long.SIZE_BYTES)
+        buffer.putLong(offset ushr 3, value)
+        offset += Long.SIZE_BITS
+        return this
+    }
+
+    fun putShortLe(value: Short) = putShort(java.lang.Short.reverseBytes(value))
+
+    fun putIntLe(value: Int) = putInt(Integer.reverseBytes(value))
+
+    fun putLongLe(value: Long) = putLong(java.lang.Long.reverseBytes(value))
+
+    fun putUByte(value: UByte) = putByte(value.toByte())
+
+    fun putUShort(value: UShort) = putShort(value.toShort())
+
+    fun putUInt(value: UInt) = putInt(value.toInt())
+
+    fun putULong(value: ULong) = putLong(value.toLong())
+
+    fun putByteArray(src: ByteArray) = putByteArray(src, 0, src.size)
+
+    /**
+     * Copies [n] bytes of [src], starting at [srcOffset].
+     */
+    fun putByteArray(src: ByteArray, srcOffset: Int, n: Int): DataBitWriter {
+        ensureBits(Byte.SIZE_BITS * n)
+        if (isAligned()) {
+            val start = offset ushr 3
+            if (buffer.hasArray()) {
+                System.arraycopy(src, srcOffset, buffer.array(), buffer.arrayOffset() + start, n)
+            } else {
+                val target = buffer.duplicate()
+                target.position(start)
+                target.put(src, srcOffset, n)
+            }
+            offset += Byte.SIZE_BITS * n
+        } else {
+            for (i in 0 until n) {
+                putByte(src[srcOffset + i])
+            }
+        }
+        return this
+    }
+
+    fun remainingBits() = length - offset
+
+    /**
+     * Current position, in bytes from the beginning of the backing buffer.
+     */
+    fun bytePosition() = offset ushr 3
+
+    private fun isAligned() = offset and 7 == 0
+
+    private fun ensureBits(sizeBits: Int) {
+        if (length - offset - sizeBits < 0) throw InsufficientBitsException(
+            offset,
+            length,
+            sizeBits
+        )
+    }
+
+    private fun putBitAt(index: Int, value: Boolean) {
+        val byteIndex = index ushr 3
+        val mask = 1 shl (index and 7)
+        val current = buffer.get(byteIndex).toInt()
+        buffer.put(byteIndex, (if (value) current or mask else current and mask.inv()).toByte())
+    }
+
+    private fun putSubByte(value: Int, sizeBits: Int): DataBitWriter {
+        ensureBits(sizeBits)
+        for (i in 0 until sizeBits) {
+            putBitAt(offset + i, (value ushr i) and 1 != 0)
+        }
+        offset += sizeBits
+        return this
+    }
+
+    private fun putUnalignedBytes(value: Long, count: Int): DataBitWriter {
+        for (i in count - 1 downTo 0) {
+            putByte((value ushr (Byte.SIZE_BITS * i)).toByte())
+        }
+        return this
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import sssemil.com.common.util.Logger
+import sssemil.com.net.packet.IPv6
+import sssemil.com.net.packet.Ipv6Frame
+import java.nio.ByteBuffer
+
+/**
+ * Streaming decoder for the ESS socket. Bytes are accumulated in an off-heap [ByteRingBuffer],
+ * every complete frame is handed to the [listener] and a partial frame is kept until the rest of
+ * it arrives.
+ *
+ * Every frame is copied out of the ring into a buffer from [pool]. IPv6 TUN frames are not decoded,
+ * they are handed out as an [Ipv6Frame] over that buffer. The ESS and tun headers stay in front
+ * of the packet, so the buffer has enough headroom to send the packet back without a copy.
+ *
+ * @param listener Receives decoded packets.
+ * @param mtu Initial MTU, the ring is resized when cjdns reports a different one.
+ * @param pool Where frame buffers come from.
+ */
+class EssFrameDecoder(
+    private val listener: Listener,
+    mtu: Int = DEFAULT_MTU,
+    private val pool: PacketBufferPool = PacketBufferPool.shared
+) {
+
+    private val ring = ByteRingBuffer(READ_CHUNK_SIZE * 2, direct = true)
+
+    /**
+     * Current MTU, as reported by [EssPacket.TYPE_CONF_SET_MTU].
+     */
+    var mtu: Int = 0
+        private set
+
+    init {
+        setMtu(mtu)
+    }
+
+    /**
+     * Resizes the ring to fit frames of the given MTU.
+     */
+    fun setMtu(mtu: Int) {
+        this.mtu = Math.min(Math.max(mtu, MIN_MTU), MAX_MTU)
+        ring.ensureCapacity(this.mtu + MAX_HEADER_LENGTH + READ_CHUNK_SIZE)
+    }
+
+    /**
+     * Pulls as many bytes as [reader] has (up to the free space in the ring) and decodes every
+     * complete frame.
+     *
+     * @param reader Called with (array, offset, maxLength), returns the number of bytes read or
+     * -1 on end of stream.
+     *
+     * @return The number of bytes read, or -1 on end of stream.
+     */
+    fun readFrom(reader: (ByteArray, Int, Int) -> Int): Int {
+        if (ring.freeSpace < READ_CHUNK_SIZE) {
+            ring.ensureCapacity(ring.size + READ_CHUNK_SIZE)
+        }
+
+        val readCount = ring.fill(reader)
+        if (readCount > 0) {
+            decode()
+        }
+        return readCount
+    }
+
+    /**
+     * Same as above, but [reader] scatters into all of the free space of the ring at once, e.g.
+     * with readv(2), so that a read is never cut short where the ring wraps.
+     *
+     * @param reader Called with (buffers, count), see [ByteRingBuffer.fillScattered].
+     *
+     * @return The number of bytes read, or -1 on end of stream.
+     */
+    fun readScattered(reader: (Array<ByteBuffer>, Int) -> Int): Int {
+        if (ring.freeSpace < READ_CHUNK_SIZE) {
+            ring.ensureCapacity(ring.size + READ_CHUNK_SIZE)
+        }
+
+        val readCount = ring.fillScattered(reader)
+        if (readCount > 0) {
+            decode()
+        }
+        return readCount
+    }
+
+    /**
+     * Appends bytes that were read elsewhere and decodes every complete frame.
+     */
+    fun feed(data: ByteArray, offset: Int, length: Int) {
+        ring.write(data, offset, length)
+        decode()
+    }
+
+    /**
+     * Number of bytes buffered for a frame that is not complete yet.
+     */
+    fun pendingBytes() = ring.size
+
+    private fun decode() {
+        while (!ring.isEmpty()) {
+            val type = ring.peek(0)
+            val frameLength = when (type) {
+                EssPacket.TYPE_TUN_PACKET -> {
+                    if (ring.size < TUN_HEADER_LENGTH) return
+                    val length = ring.peekInt(1)
+                    if (length < TunPacket.HEADER_LENGTH || length > MAX_TUN_LENGTH) {
+                        Logger.e("Invalid TUN frame length $length, dropping ${ring.size} buffered bytes!")
+                        listener.onDropped(DropCause.INVALID_LENGTH, ring.size)
+                        ring.clear()
+                        return
+                    }
+                    TUN_HEADER_LENGTH + length
+                }
+                EssPacket.TYPE_CONF_ADD_IPV6_ADDRESS -> 1 + EssPacket.IPV6_ADDR_LENGTH
+                EssPacket.TYPE_CONF_SET_MTU -> 1 + 4
+                else -> {
+                    // There is no way to find the next frame boundary, start over.
+                    Logger.w("Unknown packet type: $type, dropping ${ring.size} buffered bytes!")
+                    listener.onDropped(DropCause.UNKNOWN_TYPE, ring.size)
+                    ring.clear()
+                    return
+                }
+            }
+
+            if (ring.size < frameLength) {
+                // Make sure the rest of the frame fits next to a full read.
+                ring.ensureCapacity(frameLength + READ_CHUNK_SIZE)
+                return
+            }
+
+            if (type == EssPacket.TYPE_CONF_SET_MTU) {
+                setMtu(ring.peekInt(1))
+            }
+
+            val packetBuffer = pool.acquire(frameLength)
+            val buffer = packetBuffer.buffer
+            ring.copyTo(0, buffer, frameLength)
+            ring.skip(frameLength)
+
+            try {
+                if (type == EssPacket.TYPE_TUN_PACKET && buffer.getShort(TUN_HEADER_LENGTH + 2).toUShort() == TunPacket.ETHERTYPE_IPV6) {
+                    val frameOffset = TUN_HEADER_LENGTH + TunPacket.HEADER_LENGTH
+                    listener.onTunFrame(
+                        buffer.getShort(TUN_HEADER_LENGTH),
+                        TunPacket.ETHERTYPE_IPV6,
+                        packetBuffer.frame.wrap(buffer, frameOffset, frameLength - frameOffset)
+                    )
+                } else {
+                    buffer.flip()
+                    EssPacket.parse(DataBitStream(buffer))?.let {
+                        listener.onPacket(it)
+                    }
+                }
+            } catch (e: Exception) {
+                Logger.e("Couldn't parse ESS frame of type $type!", e)
+                listener.onDropped(DropCause.PARSE_ERROR, frameLength)
+            } finally {
+                packetBuffer.release()
+            }
+        }
+    }
+
+    interface Listener {
+
+        fun onPacket(packet: EssPacket)
+
+        /**
+         * Receives an IPv6 TUN frame without decoding it. The frame goes back to the pool once
+         * this returns, unless it was retained with [Ipv6Frame.retain].
+         *
+         * By default the frame is decoded and passed to [onPacket].
+         */
+        fun onTunFrame(flags: Short, proto: UShort, frame: Ipv6Frame) {
+            onPacket(EssPacket(EssPacket.TYPE_TUN_PACKET, TunPacket(flags, proto, frame.decode())))
+        }
+
+        /**
+         * [bytes] read from the socket were thrown away because of [cause].
+         */
+        fun onDropped(cause: DropCause, bytes: Int) {
+        }
+    }
+
+    enum class DropCause {
+
+        /**
+         * A TUN frame claimed a length it can't have, everything buffered was dropped.
+         */
+        INVALID_LENGTH,
+
+        /**
+         * A frame of a type we don't know, everything buffered was dropped.
+         */
+        UNKNOWN_TYPE,
+
+        /**
+         * A complete frame that couldn't be parsed or handled.
+         */
+        PARSE_ERROR
+    }
+
+    companion object {
+
+        /**
+         * How much is read from the socket at once.
+         */
+        const val READ_CHUNK_SIZE = 64 * 1024
+
+        const val DEFAULT_MTU = 1500
+
+        private const val MIN_MTU = 1280
+        private const val MAX_MTU = 65535
+
+        /**
+         * Type and length fields in front of a TUN frame.
+         */
+        private const val TUN_HEADER_LENGTH = 1 + 4
+
+        private const val MAX_HEADER_LENGTH = TUN_HEADER_LENGTH + TunPacket.HEADER_LENGTH
+
+        /**
+         * Largest TUN frame we accept: tun header and a full IPv6 packet without jumbograms.
+         */
+        private const val MAX_TUN_LENGTH = TunPacket.HEADER_LENGTH + IPv6.HEADER_LENGTH + 65535
+    }
+}
@@ -30,7 +30,7 @@ data class EssPacket(val type: Byte, val payload: IEssPacketPayload) {
         const val TYPE_CONF_ADD_IPV6_ADDRESS: Byte = 1
         const val TYPE_CONF_SET_MTU: Byte = 2
 
-        private const val IPV6_ADDR_LENGTH = 16
+        const val IPV6_ADDR_LENGTH = 16
 
         fun parse(data: DataBitStream): EssPacket? {
             data.takeByte().let { type ->
@@ -40,9 +40,9 @@ data class EssPacket(val type: Byte, val payload: IEssPacketPayload) {
                         val flags = data.takeShort()
                         val proto = data.takeShort().toUShort()
 
-                        Logger.d("TUN_PACKET: [length: $length, flags: $flags, proto: $proto](${data.remainingBits() / 8})")
+                        Logger.d { "TUN_PACKET: [length: $length, flags: $flags, proto: $proto](${data.remainingBytes()})" }
 
-                        val frameData = data.takeByteArray(Math.min(data.remainingBits() / 8, length.toLong().toInt()))
+                        val frameData = data.takeByteArray(Math.min(data.remainingBytes().toLong(), length.toLong()).toInt())
                         return EssPacket(
                             EssPacket.TYPE_TUN_PACKET,
                             TunPacket(
@@ -57,7 +57,7 @@ data class EssPacket(val type: Byte, val payload: IEssPacketPayload) {
                             val inet6Address = Inet6Address.getByAddress(
                                 data.takeByteArray(EssPacket.IPV6_ADDR_LENGTH)
                             ) as Inet6Address
-                            Logger.d("CONF_ADD_IPV6_ADDRESS: ${inet6Address.hostAddress}")
+                            Logger.d { "CONF_ADD_IPV6_ADDRESS: ${inet6Address.hostAddress}" }
                             return EssPacket(
                                 EssPacket.TYPE_CONF_ADD_IPV6_ADDRESS,
                                 EssAddIpv6AddressPayload(inet6Address)
@@ -71,7 +71,7 @@ data class EssPacket(val type: Byte, val payload: IEssPacketPayload) {
                     EssPacket.TYPE_CONF_SET_MTU -> {
                         try {
                             val mtu = data.takeUInt()
-                            Logger.d("CONF_SET_MTU: $mtu")
+                            Logger.d { "CONF_SET_MTU: $mtu" }
                             return EssPacket(
                                 EssPacket.TYPE_CONF_SET_MTU,
                                 EssSetMtuPayload(mtu)
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import java.net.Inet6Address
+import java.nio.ByteBuffer
+
+/**
+ * Longest prefix match over IPv6 addresses, e.g. to find the client or the protocols a packet goes
+ * to.
+ *
+ * It is a path compressed binary trie, every node holds a whole prefix and only nodes where
+ * prefixes fork are added in between, so a lookup visits at most one node per prefix bit but
+ * usually far fewer. Addresses are two longs, nothing is allocated on lookups.
+ *
+ * Nodes are immutable. Updates copy the path down to the changed node and publish the new root,
+ * they are serialized on the table, lookups never lock and always see a consistent trie.
+ */
+class Ipv6RoutingTable<V : Any> {
+
+    @Volatile
+    private var root: Node<V>? = null
+
+    /**
+     * Number of prefixes with a value.
+     */
+    val size: Int
+        get() = count(root)
+
+    /**
+     * @return The value of the longest prefix [high] and [low] fall into, null if there is none.
+     */
+    fun lookup(high: Long, low: Long): V? {
+        var node = root
+        var best: V? = null
+        while (node != null) {
+            if (commonPrefixLength(node.high, node.low, high, low) < node.length) break
+            node.value?.let { best = it }
+            if (node.length == ADDRESS_BITS) break
+            node = if (bit(high, low, node.length)) node.one else node.zero
+        }
+        return best
+    }
+
+    /**
+     * @return The value of exactly this prefix, null if it has none.
+     */
+    operator fun get(high: Long, low: Long, length: Int): V? {
+        checkLength(length)
+        val maskedHigh = maskHigh(high, length)
+        val maskedLow = maskLow(low, length)
+        var node = root
+        while (node != null && node.length <= length) {
+            if (commonPrefixLength(node.high, node.low, maskedHigh, maskedLow) < node.length) return null
+            if (node.length == length) return node.value
+            node = if (bit(maskedHigh, maskedLow, node.length)) node.one else node.zero
+        }
+        return null
+    }
+
+    operator fun get(prefix: Inet6Address, length: Int): V? {
+        val bb = ByteBuffer.wrap(prefix.address)
+        return get(bb.getLong(0), bb.getLong(8), length)
+    }
+
+    fun lookup(address: Inet6Address): V? {
+        val bb = ByteBuffer.wrap(address.address)
+        return lookup(bb.getLong(0), bb.getLong(8))
+    }
+
+    /**
+     * Maps the first [length] bits of [high] and [low] to [value], replacing what was there.
+     */
+    @Synchronized
+    fun add(high: Long, low: Long, length: Int, value: V) {
+        checkLength(length)
+        root = insert(root, maskHigh(high, length), maskLow(low, length), length, value)
+    }
+
+    fun add(prefix: Inet6Address, length: Int, value: V) {
+        val bb = ByteBuffer.wrap(prefix.address)
+        add(bb.getLong(0), bb.getLong(8), length, value)
+    }
+
+    /**
+     * Removes exactly this prefix, shorter and longer ones stay.
+     */
+    @Synchronized
+    fun remove(high: Long, low: Long, length: Int) {
+        checkLength(length)
+        root = remove(root, maskHigh(high, length), maskLow(low, length), length)
+    }
+
+    fun remove(prefix: Inet6Address, length: Int) {
+        val bb = ByteBuffer.wrap(prefix.address)
+        remove(bb.getLong(0), bb.getLong(8), length)
+    }
+
+    /**
+     * Removes every prefix whose value matches [predicate], e.g. all routes of a client that is
+     * gone. This rebuilds the whole trie.
+     */
+    @Synchronized
+    fun removeAll(predicate: (V) -> Boolean) {
+        root = filter(root, predicate)
+    }
+
+    private fun insert(node: Node<V>?, high: Long, low: Long, length: Int, value: V): Node<V> {
+        if (node == null) {
+            return Node(high, low, length, value, null, null)
+        }
+
+        val common = minOf(commonPrefixLength(node.high, node.low, high, low), node.length, length)
+        return when {
+            common == node.length && common == length -> node.with(value = value)
+            common == node.length -> if (bit(high, low, common)) {
+                node.with(one = insert(node.one, high, low, length, value))
+            } else {
+                node.with(zero = insert(node.zero, high, low, length, value))
+            }
+            common == length -> if (bit(node.high, node.low, common)) {
+                Node(high, low, length, value, null, node)
+            } else {
+                Node(high, low, length, value, node, null)
+            }
+            else -> {
+                // The prefixes fork below both of them.
+                val leaf = Node(high, low, length, value, null, null)
+                val forkHigh = maskHigh(high, common)
+                val forkLow = maskLow(low, common)
+                if (bit(high, low, common)) {
+                    Node(forkHigh, forkLow, common, null, node, leaf)
+                } else {
+                    Node(forkHigh, forkLow, common, null, leaf, node)
+                }
+            }
+        }
+    }
+
+    private fun remove(node: Node<V>?, high: Long, low: Long, length: Int): Node<V>? {
+        if (node == null || node.length > length ||
+            commonPrefixLength(node.high, node.low, high, low) < node.length
+        ) {
+            return node
+        }
+
+        if (node.length == length) {
+            return compact(node.with(value = null))
+        }
+
+        val changed = if (bit(high, low, node.length)) {
+            node.with(one = remove(node.one, high, low, length))
+        } else {
+            node.with(zero = remove(node.zero, high, low, length))
+        }
+        return compact(changed)
+    }
+
+    private fun filter(node: Node<V>?, predicate: (V) -> Boolean): Node<V>? {
+        if (node == null) return null
+        val value = node.value?.takeUnless(predicate)
+        val zero = filter(node.zero, predicate)
+        val one = filter(node.one, predicate)
+        return compact(Node(node.high, node.low, node.length, value, zero, one))
+    }
+
+    /**
+     * Drops nodes without a value that don't fork anymore.
+     */
+    private fun compact(node: Node<V>): Node<V>? {
+        if (node.value != null) return node
+        return when {
+            node.zero == null -> node.one
+            node.one == null -> node.zero
+            else -> node
+        }
+    }
+
+    private fun count(node: Node<V>?): Int =
+        if (node == null) 0 else (if (node.value != null) 1 else 0) + count(node.zero) + count(node.one)
+
+    private fun checkLength(length: Int) {
+        if (length < 0 || length > ADDRESS_BITS) {
+            throw IllegalArgumentException("Invalid prefix length $length!")
+        }
+    }
+
+    private class Node<V : Any>(
+        val high: Long,
+        val low: Long,
+        val length: Int,
+        val value: V?,
+        val zero: Node<V>?,
+        val one: Node<V>?
+    ) {
+
+        fun with(value: V? = this.value, zero: Node<V>? = this.zero, one: Node<V>? = this.one) =
+            if (value === this.value && zero === this.zero && one === this.one) {
+                this
+            } else {
+                Node(high, low, length, value, zero, one)
+            }
+    }
+
+    companion object {
+
+        private const val ADDRESS_BITS = 128
+
+        private fun commonPrefixLength(high1: Long, low1: Long, high2: Long, low2: Long) =
+            if (high1 != high2) {
+                java.lang.Long.numberOfLeadingZeros(high1 xor high2)
+            } else {
+                Long.SIZE_BITS + java.lang.Long.numberOfLeadingZeros(low1 xor low2)
+            }
+
+        /**
+         * @return Whether the bit at [index], counted from the most significant one, is set.
+         */
+        private fun bit(high: Long, low: Long, index: Int) =
+            if (index < Long.SIZE_BITS) {
+                high ushr (Long.SIZE_BITS - 1 - index) and 1L != 0L
+            } else {
+                low ushr (ADDRESS_BITS - 1 - index) and 1L != 0L
+            }
+
+        private fun maskHigh(high: Long, length: Int) = when {
+            length >= Long.SIZE_BITS -> high
+            length == 0 -> 0L
+            else -> high and (-1L shl (Long.SIZE_BITS - length))
+        }
+
+        private fun maskLow(low: Long, length: Int) = when {
+            length >= ADDRESS_BITS -> low
+            length <= Long.SIZE_BITS -> 0L
+            else -> low and (-1L shl (ADDRESS_BITS - length))
+        }
+    }
+}
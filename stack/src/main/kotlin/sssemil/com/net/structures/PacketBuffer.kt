@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import sssemil.com.net.packet.Ipv6Frame
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A reference counted packet buffer handed out by a [PacketBufferPool]. It starts with a single
+ * reference owned by whoever acquired it. Anyone who keeps the buffer past the call that received
+ * it (e.g. a protocol that queues the packet) must [retain] it and [release] it once done, the
+ * buffer goes back to the pool when the last reference is released.
+ *
+ * @param buffer Backing memory, a slice of one of the pool's direct slabs.
+ */
+class PacketBuffer internal constructor(
+    private val pool: PacketBufferPool?,
+    internal val sizeClass: PacketBufferPool.SizeClass?,
+    val buffer: ByteBuffer
+) {
+
+    private val references = AtomicInteger(0)
+
+    /**
+     * Reusable frame over [buffer], see [Ipv6Frame.owner].
+     */
+    val frame = Ipv6Frame().also { it.owner = this }
+
+    internal var leakReference: PacketBufferPool.LeakReference? = null
+
+    val capacity: Int
+        get() = buffer.capacity()
+
+    val referenceCount: Int
+        get() = references.get()
+
+    /**
+     * Adds a reference.
+     *
+     * @throws IllegalStateException if the buffer was already released.
+     */
+    fun retain(): PacketBuffer {
+        while (true) {
+            val count = references.get()
+            if (count <= 0) {
+                throw IllegalStateException("Buffer was already released!")
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return this
+            }
+        }
+    }
+
+    /**
+     * Drops a reference, the last one returns the buffer to its pool.
+     *
+     * @return Whether this was the last reference.
+     */
+    fun release(): Boolean {
+        val count = references.decrementAndGet()
+        return when {
+            count > 0 -> false
+            count == 0 -> {
+                pool?.recycle(this)
+                true
+            }
+            else -> {
+                references.incrementAndGet()
+                throw IllegalStateException("Buffer was already released!")
+            }
+        }
+    }
+
+    /**
+     * Prepares the buffer for a new owner.
+     */
+    internal fun reset(length: Int) {
+        buffer.clear()
+        buffer.limit(length)
+        references.set(1)
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import sssemil.com.common.util.Logger
+import java.lang.ref.PhantomReference
+import java.lang.ref.ReferenceQueue
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Pool of off-heap [PacketBuffer]s shared by the ingress and egress paths, so that packets don't
+ * produce garbage.
+ *
+ * There are two size classes, one for frames up to a regular MTU and one for jumbo frames. Each
+ * class carves its buffers out of direct slabs that are allocated on demand and never freed, up
+ * to a fixed number of buffers. Requests that don't fit a class, or come in when a class is
+ * exhausted, get a one-off buffer that is simply dropped when released.
+ *
+ * @param leakDetection Track every acquired buffer and report the ones that are garbage collected
+ * without being released. This costs an allocation per packet, so it is meant for debugging only.
+ */
+class PacketBufferPool(
+    mtuBufferSize: Int = MTU_BUFFER_SIZE,
+    jumboBufferSize: Int = JUMBO_BUFFER_SIZE,
+    maxMtuBuffers: Int = MAX_MTU_BUFFERS,
+    maxJumboBuffers: Int = MAX_JUMBO_BUFFERS,
+    private val leakDetection: Boolean = java.lang.Boolean.getBoolean(LEAK_DETECTION_PROPERTY)
+) {
+
+    private val mtuClass = SizeClass(mtuBufferSize, MTU_SLAB_BUFFERS, maxMtuBuffers)
+    private val jumboClass = SizeClass(jumboBufferSize, JUMBO_SLAB_BUFFERS, maxJumboBuffers)
+
+    private val leakQueue = ReferenceQueue<PacketBuffer>()
+    private val leakReferences = ConcurrentHashMap.newKeySet<LeakReference>()
+
+    private val hitCount = AtomicLong()
+    private val missCount = AtomicLong()
+    private val leakCount = AtomicLong()
+
+    /**
+     * Acquisitions served from a free list.
+     */
+    val hits: Long
+        get() = hitCount.get()
+
+    /**
+     * Acquisitions that needed new memory, either a new slab or a one-off buffer.
+     */
+    val misses: Long
+        get() = missCount.get()
+
+    /**
+     * Buffers that were garbage collected without being released, only counted with leak
+     * detection on.
+     */
+    val leaks: Long
+        get() = leakCount.get()
+
+    /**
+     * Number of buffers sitting in the free lists.
+     */
+    val available: Int
+        get() = mtuClass.available + jumboClass.available
+
+    /**
+     * @return A buffer with a single reference, position 0 and limit [length].
+     */
+    fun acquire(length: Int): PacketBuffer {
+        if (leakDetection) {
+            reportLeaks()
+        }
+
+        val sizeClass = when {
+            length <= mtuClass.bufferSize -> mtuClass
+            length <= jumboClass.bufferSize -> jumboClass
+            else -> null
+        }
+
+        val packetBuffer = sizeClass?.poll()?.also {
+            hitCount.incrementAndGet()
+        } ?: run {
+            missCount.incrementAndGet()
+            sizeClass?.grow() ?: PacketBuffer(this, null, ByteBuffer.allocateDirect(length))
+        }
+
+        packetBuffer.reset(length)
+        if (leakDetection) {
+            LeakReference(packetBuffer, leakQueue).also {
+                leakReferences.add(it)
+                packetBuffer.leakReference = it
+            }
+        }
+        return packetBuffer
+    }
+
+    internal fun recycle(packetBuffer: PacketBuffer) {
+        packetBuffer.leakReference?.let {
+            leakReferences.remove(it)
+            it.clear()
+            packetBuffer.leakReference = null
+        }
+        packetBuffer.sizeClass?.offer(packetBuffer)
+    }
+
+    private fun reportLeaks() {
+        while (true) {
+            val reference = leakQueue.poll() as? LeakReference ?: return
+            if (leakReferences.remove(reference)) {
+                leakCount.incrementAndGet()
+                reference.sizeClass?.forget()
+                Logger.e("A packet buffer was garbage collected without being released!", reference.acquiredAt)
+            }
+        }
+    }
+
+    internal class LeakReference(packetBuffer: PacketBuffer, queue: ReferenceQueue<PacketBuffer>) :
+        PhantomReference<PacketBuffer>(packetBuffer, queue) {
+
+        val sizeClass = packetBuffer.sizeClass
+
+        val acquiredAt = Throwable("Acquired here")
+    }
+
+    /**
+     * Free list of equally sized buffers, a plain array stack so that recycling allocates nothing.
+     */
+    internal inner class SizeClass(
+        val bufferSize: Int,
+        private val slabBuffers: Int,
+        private val maxBuffers: Int
+    ) {
+
+        private val free = arrayOfNulls<PacketBuffer>(maxBuffers)
+        private var freeCount = 0
+        private var allocated = 0
+
+        val available: Int
+            get() = synchronized(this) { freeCount }
+
+        fun poll(): PacketBuffer? = synchronized(this) {
+            if (freeCount == 0) {
+                null
+            } else {
+                val packetBuffer = free[--freeCount]
+                free[freeCount] = null
+                packetBuffer
+            }
+        }
+
+        fun offer(packetBuffer: PacketBuffer) = synchronized(this) {
+            free[freeCount++] = packetBuffer
+        }
+
+        /**
+         * Carves a new slab into buffers, keeps all but one of them in the free list.
+         *
+         * @return One of the new buffers, or null if this class is at its limit.
+         */
+        fun grow(): PacketBuffer? = synchronized(this) {
+            val count = Math.min(slabBuffers, maxBuffers - allocated)
+            if (count <= 0) return null
+
+            val slab = ByteBuffer.allocateDirect(bufferSize * count)
+            allocated += count
+            for (i in 1 until count) {
+                free[freeCount++] = slice(slab, i)
+            }
+            slice(slab, 0)
+        }
+
+        /**
+         * Gives up on a leaked buffer, so that its place can be taken by a new one.
+         */
+        fun forget() = synchronized(this) {
+            allocated--
+        }
+
+        private fun slice(slab: ByteBuffer, index: Int): PacketBuffer {
+            slab.limit(bufferSize * (index + 1))
+            slab.position(bufferSize * index)
+            return PacketBuffer(this@PacketBufferPool, this, slab.slice())
+        }
+    }
+
+    companion object {
+
+        /**
+         * Fits a 1500 byte MTU frame with all of the ESS and tun headers in front of it.
+         */
+        const val MTU_BUFFER_SIZE = 2 * 1024
+
+        /**
+         * Fits the largest TUN frame the decoder accepts.
+         */
+        const val JUMBO_BUFFER_SIZE = 64 * 1024 + 128
+
+        /**
+         * Room left in front of copied frames, enough for the ESS and tun headers.
+         */
+        const val HEADROOM = 16
+
+        const val MAX_MTU_BUFFERS = 4096
+
+        const val MAX_JUMBO_BUFFERS = 64
+
+        /**
+         * Setting this system property to true turns leak detection on for the pools created with
+         * default arguments.
+         */
+        const val LEAK_DETECTION_PROPERTY = "bridge.packetBuffer.leakDetection"
+
+        private const val MTU_SLAB_BUFFERS = 64
+        private const val JUMBO_SLAB_BUFFERS = 4
+
+        /**
+         * Pool shared by the whole process.
+         */
+        val shared = PacketBufferPool()
+    }
+}
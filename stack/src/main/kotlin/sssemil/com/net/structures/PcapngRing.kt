@@ -0,0 +1,390 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import sssemil.com.common.util.Logger
+import sssemil.com.net.interfaces.IClientHandle
+import sssemil.com.net.packet.IPacket
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Captures raw IPv6 packets as pcapng into a ring of [segmentCount] memory mapped files of
+ * [segmentSize] bytes each, `capture-<sequence>.pcapng` in [directory]. Once a segment is full
+ * the next one is started and the oldest one is deleted.
+ *
+ * Every segment is a section of its own, it starts with the interfaces of all clients seen so
+ * far, one per client. The free rest of a segment is always covered by a filler block of a type
+ * reserved for local use, which readers skip, so even the segment being written is a valid file.
+ *
+ * Timestamps have nanosecond resolution. Writes from any number of threads only take the lock to
+ * reserve a block, packets are copied or serialized into the mapping outside of it. A reserved
+ * block is a filler block until it is complete, so readers skip it meanwhile. Packets still being
+ * copied when a segment is forced to disk are written back by the OS later.
+ *
+ * @param snapLength Most bytes kept of a packet, 0 to keep all of them.
+ */
+class PcapngRing(
+    val directory: File,
+    val segmentSize: Int = DEFAULT_SEGMENT_SIZE,
+    val segmentCount: Int = DEFAULT_SEGMENT_COUNT,
+    val snapLength: Int = 0
+) : Closeable {
+
+    init {
+        if (segmentSize < MIN_SEGMENT_SIZE || segmentSize % 4 != 0 || segmentCount < 1 || snapLength < 0) {
+            throw IllegalArgumentException("Invalid capture ring of $segmentCount segments of $segmentSize bytes!")
+        }
+    }
+
+    /**
+     * Turns capturing on and off, packets are ignored while off.
+     */
+    @Volatile
+    var enabled = true
+
+    private val interfaces = LinkedHashMap<IClientHandle, Int>()
+
+    private var segment: MappedByteBuffer? = null
+    private var sequence = -1L
+    private var closed = false
+
+    /**
+     * Wall clock in nanoseconds at [nanoBase], [System.nanoTime] fills in the digits below a
+     * millisecond.
+     */
+    private val epochNanoBase = System.currentTimeMillis() * 1_000_000
+    private val nanoBase = System.nanoTime()
+
+    private val packetCount = AtomicLong()
+    private val dropCount = AtomicLong()
+
+    /**
+     * Packets written.
+     */
+    val packets: Long
+        get() = packetCount.get()
+
+    /**
+     * Packets that didn't fit a segment, or came in after [close] or a failed write.
+     */
+    val drops: Long
+        get() = dropCount.get()
+
+    /**
+     * Captures [length] bytes of [buffer] from [offset] on, a packet of [handle].
+     *
+     * @param inbound Whether the packet came in from the client or goes out to it.
+     */
+    fun write(handle: IClientHandle, inbound: Boolean, buffer: ByteBuffer, offset: Int, length: Int) {
+        if (!enabled) return
+
+        val captured = captured(length)
+        write(handle, inbound, length, captured) { out ->
+            val data = buffer.duplicate()
+            data.limit(offset + captured).position(offset)
+            out.put(data)
+        }
+    }
+
+    fun write(handle: IClientHandle, inbound: Boolean, data: ByteArray) {
+        write(handle, inbound, ByteBuffer.wrap(data), 0, data.size)
+    }
+
+    /**
+     * Captures [packet], serialized right into the mapping unless it is cut short by [snapLength].
+     */
+    fun write(handle: IClientHandle, inbound: Boolean, packet: IPacket) {
+        if (!enabled) return
+
+        val length = packet.serializedLength()
+        if (captured(length) < length) {
+            write(handle, inbound, packet.serialize())
+        } else {
+            write(handle, inbound, length, length) { packet.serializeInto(it) }
+        }
+    }
+
+    /**
+     * Reserves an enhanced packet block under the lock and fills it in outside of it, [copy] puts
+     * the [captured] bytes of the packet.
+     */
+    private inline fun write(
+        handle: IClientHandle,
+        inbound: Boolean,
+        length: Int,
+        captured: Int,
+        copy: (ByteBuffer) -> Unit
+    ) {
+        val blockLength = EPB_LENGTH + pad(captured)
+        if (blockLength + FILLER_LENGTH > segmentSize - SHB_LENGTH) {
+            dropCount.incrementAndGet()
+            return
+        }
+        val timestamp = epochNanoBase + (System.nanoTime() - nanoBase)
+
+        val out: ByteBuffer
+        val start: Int
+        val interfaceId: Int
+        synchronized(this) {
+            if (closed) {
+                dropCount.incrementAndGet()
+                return
+            }
+
+            try {
+                val segment = reserve(handle, blockLength) ?: run {
+                    dropCount.incrementAndGet()
+                    return
+                }
+                interfaceId = interfaces[handle]!!
+                start = segment.position()
+
+                segment.putInt(start + 4, blockLength)
+                segment.putInt(start + blockLength - 4, blockLength)
+                segment.putInt(start, BLOCK_FILLER)
+                segment.position(start + blockLength)
+                seal(segment)
+                // Positions of its own, the segment's belongs to the lock.
+                out = segment.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+            } catch (e: IOException) {
+                Logger.e("Couldn't capture to ${directory.absolutePath}, stopping!", e)
+                dropCount.incrementAndGet()
+                closed = true
+                segment = null
+                return
+            }
+        }
+
+        out.position(start + 8)
+        out.putInt(interfaceId)
+            .putInt((timestamp ushr 32).toInt())
+            .putInt(timestamp.toInt())
+            .putInt(captured)
+            .putInt(length)
+        try {
+            copy(out)
+        } catch (e: Exception) {
+            // Stays a filler block.
+            dropCount.incrementAndGet()
+            throw e
+        }
+        padTo(out, start + EPB_HEADER_LENGTH + pad(captured))
+        out.putShort(OPTION_EPB_FLAGS)
+            .putShort(4)
+            .putInt(if (inbound) EPB_FLAGS_INBOUND else EPB_FLAGS_OUTBOUND)
+            .putInt(OPTION_END)
+        // Last, it turns the filler into the packet.
+        out.putInt(start, BLOCK_ENHANCED_PACKET)
+        packetCount.incrementAndGet()
+    }
+
+    private fun captured(length: Int) = if (snapLength in 1 until length) snapLength else length
+
+    /**
+     * Flushes the current segment to disk. Writes after this are dropped.
+     */
+    @Synchronized
+    override fun close() {
+        closed = true
+        segment?.force()
+        segment = null
+    }
+
+    /**
+     * Makes room for a block of [blockLength] bytes of [handle], preceded by its interface if it
+     * is new.
+     *
+     * @return The segment, positioned where the block goes. Null if the interface and the block
+     * don't even fit an empty segment.
+     */
+    private fun reserve(handle: IClientHandle, blockLength: Int): MappedByteBuffer? {
+        var out = segment ?: startSegment()
+        if (interfaces.containsKey(handle)) {
+            if (out.position() + blockLength + FILLER_LENGTH > segmentSize) {
+                out = startSegment()
+            }
+            // Still known unless the interfaces didn't fit the new segment.
+            if (interfaces.containsKey(handle)) return out
+        }
+
+        val needed = idbLength(handle) + blockLength + FILLER_LENGTH
+        if (interfaces.size >= MAX_INTERFACES) {
+            // Starts over in a new section rather than describing clients that are long gone.
+            interfaces.clear()
+            out = startSegment()
+        } else if (out.position() + needed > segmentSize) {
+            out = startSegment()
+            if (out.position() + needed > segmentSize) {
+                interfaces.clear()
+                out = startSegment()
+            }
+        }
+        if (out.position() + needed > segmentSize) return null
+
+        interfaces[handle] = interfaces.size
+        writeInterface(out, handle)
+        seal(out)
+        return out
+    }
+
+    /**
+     * Maps the next segment and writes the section header and the interfaces seen so far.
+     */
+    private fun startSegment(): MappedByteBuffer {
+        segment?.force()
+        sequence++
+        directory.mkdirs()
+        File(directory, segmentName(sequence - segmentCount)).delete()
+
+        val file = File(directory, segmentName(sequence))
+        val out = RandomAccessFile(file, "rw").use {
+            it.setLength(segmentSize.toLong())
+            it.channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize.toLong())
+        }
+        out.order(ByteOrder.LITTLE_ENDIAN)
+        segment = out
+
+        out.putInt(BLOCK_SECTION_HEADER)
+            .putInt(SHB_LENGTH)
+            .putInt(BYTE_ORDER_MAGIC)
+            .putShort(1)
+            .putShort(0)
+            .putLong(-1)
+            .putInt(SHB_LENGTH)
+
+        // Described in the order of their IDs.
+        val described = interfaces.keys.toList()
+        if (SHB_LENGTH + described.sumBy { idbLength(it) } + FILLER_LENGTH > segmentSize) {
+            interfaces.clear()
+        } else {
+            described.forEach { writeInterface(out, it) }
+        }
+        seal(out)
+        return out
+    }
+
+    private fun writeInterface(out: ByteBuffer, handle: IClientHandle) {
+        val name = handle.toString().toByteArray(Charsets.UTF_8)
+        val start = out.position()
+        val length = idbLength(handle)
+
+        out.putInt(BLOCK_INTERFACE_DESCRIPTION)
+            .putInt(length)
+            .putShort(LINKTYPE_IPV6)
+            .putShort(0)
+            .putInt(snapLength)
+            .putShort(OPTION_IF_NAME)
+            .putShort(name.size.toShort())
+            .put(name)
+        padTo(out, start + IDB_HEADER_LENGTH + 4 + pad(name.size))
+        out.putShort(OPTION_IF_TSRESOL)
+            .putShort(1)
+            .put(TSRESOL_NANOSECONDS)
+            .put(0)
+            .putShort(0)
+            .putInt(OPTION_END)
+            .putInt(length)
+    }
+
+    /**
+     * Covers the rest of the segment with a filler block, the trailing length first so the block
+     * is only complete once both are in place.
+     */
+    private fun seal(out: ByteBuffer) {
+        val position = out.position()
+        val length = segmentSize - position
+        out.putInt(segmentSize - 4, length)
+        out.putInt(position + 4, length)
+        out.putInt(position, BLOCK_FILLER)
+    }
+
+    private fun idbLength(handle: IClientHandle) = IDB_LENGTH + pad(handle.toString().toByteArray(Charsets.UTF_8).size)
+
+    private fun padTo(out: ByteBuffer, position: Int) {
+        while (out.position() < position) {
+            out.put(0)
+        }
+    }
+
+    private fun pad(length: Int) = (length + 3) and 3.inv()
+
+    private fun segmentName(sequence: Long) = "capture-%08d.pcapng".format(sequence)
+
+    companion object {
+
+        const val DEFAULT_SEGMENT_SIZE = 16 shl 20
+
+        const val DEFAULT_SEGMENT_COUNT = 8
+
+        /**
+         * Room for a section header, a few interfaces and a jumbo frame.
+         */
+        const val MIN_SEGMENT_SIZE = 1 shl 16
+
+        /**
+         * New clients beyond this start a new section with fresh interface IDs.
+         */
+        const val MAX_INTERFACES = 1024
+
+        const val LINKTYPE_IPV6: Short = 229
+
+        private const val BLOCK_SECTION_HEADER = 0x0A0D0D0A
+        private const val BLOCK_INTERFACE_DESCRIPTION = 1
+        private const val BLOCK_ENHANCED_PACKET = 6
+
+        /**
+         * Block types with the highest bit set are reserved for local use.
+         */
+        private const val BLOCK_FILLER = 0x80000B1D.toInt()
+
+        private const val BYTE_ORDER_MAGIC = 0x1A2B3C4D
+
+        private const val OPTION_END = 0
+        private const val OPTION_IF_NAME: Short = 2
+        private const val OPTION_IF_TSRESOL: Short = 9
+        private const val OPTION_EPB_FLAGS: Short = 2
+
+        private const val TSRESOL_NANOSECONDS: Byte = 9
+
+        private const val EPB_FLAGS_INBOUND = 1
+        private const val EPB_FLAGS_OUTBOUND = 2
+
+        private const val SHB_LENGTH = 28
+
+        /**
+         * Without the name, which is padded to 4 bytes.
+         */
+        private const val IDB_HEADER_LENGTH = 16
+        private const val IDB_LENGTH = IDB_HEADER_LENGTH + 4 + 8 + 4 + 4
+
+        /**
+         * Without the data, which is padded to 4 bytes.
+         */
+        private const val EPB_HEADER_LENGTH = 28
+        private const val EPB_LENGTH = EPB_HEADER_LENGTH + 8 + 4 + 4
+
+        private const val FILLER_LENGTH = 12
+    }
+}
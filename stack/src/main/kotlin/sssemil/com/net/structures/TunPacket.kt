@@ -29,25 +29,21 @@ data class TunPacket(
 ) :
     BasePacket(), IEssPacketPayload {
 
-    override fun serialize(): ByteArray {
-        // Get the raw bytes of the payload we encapsulate.
-        val frameData = frame?.serialize()
+    override fun serializedLength(): Int {
         frame?.parent = this
+        return HEADER_LENGTH + (frame?.serializedLength() ?: 0)
+    }
 
-        // Create a byte buffer to hold the tun frame structure.
-        val data = ByteArray(4 + (frameData?.size ?: 0))
-        val bb = ByteBuffer.wrap(data)
-
+    override fun serializeInto(bb: ByteBuffer) {
         // Add header fields to the byte buffer in the correct order.
-        bb.putShort(flags)
-        bb.putShort(proto.toShort())
+        putHeader(bb, bb.position(), flags, proto)
+        bb.position(bb.position() + HEADER_LENGTH)
 
         // Add the payload to the byte buffer, if necessary.
-        if (frameData != null) {
-            bb.put(frameData)
+        frame?.let {
+            it.parent = this
+            it.serializeInto(bb)
         }
-
-        return data
     }
 
     override fun deserialize(data: ByteArray, offset: Int, length: Int): IPacket {
@@ -74,5 +70,19 @@ data class TunPacket(
     companion object {
 
         const val ETHERTYPE_IPV6: UShort = 0x86DDu
+
+        /**
+         * Flags and proto fields in front of the frame.
+         */
+        const val HEADER_LENGTH = 4
+
+        /**
+         * Writes a tun header at [index] without touching the buffer's position, e.g. into the
+         * headroom left in front of a frame that was serialized already.
+         */
+        fun putHeader(bb: ByteBuffer, index: Int, flags: Short, proto: UShort) {
+            bb.putShort(index, flags)
+            bb.putShort(index + 2, proto.toShort())
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.util
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Running ones'-complement sum (RFC 1071) over any number of segments, e.g. the pseudo header
+ * fields, a transport header and a payload slice, without concatenating them.
+ *
+ * Data is read 64 bits at a time, as two 32-bit halves added into a long, and carries are only
+ * folded once per segment. A segment may have an odd length, the next one then starts with the
+ * low byte of a word. That is handled by byte swapping the next segment's sum (RFC 1071, 2.B),
+ * so segments never need to be aligned.
+ */
+class ChecksumAccumulator {
+
+    private var sum = 0L
+    private var odd = false
+
+    fun reset(): ChecksumAccumulator {
+        sum = 0
+        odd = false
+        return this
+    }
+
+    /**
+     * Adds [length] bytes of [bb] starting at the absolute index [offset]. The buffer's position
+     * and byte order don't matter.
+     */
+    fun add(bb: ByteBuffer, offset: Int, length: Int): ChecksumAccumulator {
+        val end = offset + length
+        var i = offset
+        var words = 0L
+        while (end - i >= Long.SIZE_BYTES) {
+            val value = bb.getLong(i)
+            words += (value ushr 32) + (value and 0xFFFFFFFFL)
+            i += Long.SIZE_BYTES
+        }
+        while (end - i >= Short.SIZE_BYTES) {
+            words += bb.getShort(i).toLong() and 0xFFFF
+            i += Short.SIZE_BYTES
+        }
+
+        var segmentSum = fold(words)
+        if (bb.order() == ByteOrder.LITTLE_ENDIAN) {
+            // Every word was read swapped, and so is their sum.
+            segmentSum = swap(segmentSum)
+        }
+        if (i < end) {
+            segmentSum += bb.get(i).toLong() and 0xFF shl 8
+        }
+        return addSegmentSum(segmentSum, length)
+    }
+
+    fun add(bytes: ByteArray, offset: Int = 0, length: Int = bytes.size) =
+        add(ByteBuffer.wrap(bytes), offset, length)
+
+    /**
+     * Adds a big-endian 32-bit value, e.g. the length field of the pseudo header.
+     */
+    fun addInt(value: Int) = addSegmentSum((value ushr 16).toLong() + (value and 0xFFFF), Int.SIZE_BYTES)
+
+    /**
+     * Adds a big-endian 64-bit value, e.g. half of an IPv6 address.
+     */
+    fun addLong(value: Long) =
+        addSegmentSum((value ushr 32) + (value and 0xFFFFFFFFL), Long.SIZE_BYTES)
+
+    /**
+     * @return The folded, complemented checksum of everything added so far.
+     */
+    fun finish(): Short = fold(sum).inv().toShort()
+
+    private fun addSegmentSum(segmentSum: Long, length: Int): ChecksumAccumulator {
+        sum += if (odd) swap(fold(segmentSum)) else segmentSum
+        if (length and 1 != 0) {
+            odd = !odd
+        }
+        return this
+    }
+
+    private fun fold(value: Long): Long {
+        var result = value
+        while (result ushr 16 != 0L) {
+            result = (result and 0xFFFF) + (result ushr 16)
+        }
+        return result
+    }
+
+    private fun swap(word: Long) = (word and 0xFF shl 8) or (word ushr 8 and 0xFF)
+}
@@ -22,6 +22,12 @@ import java.nio.ByteBuffer
 
 object InternetChecksum {
 
+    private const val ADDRESS_WORDS = 8L
+
+    /**
+     * Checksum of a transport segment given as the bytes before and after its checksum field,
+     * which is taken as zero.
+     */
     fun checksumHelper(
         payloadPreChecksum: ByteArray,
         payloadPostChecksum: ByteArray,
@@ -29,17 +35,101 @@ object InternetChecksum {
         protocol: IpProtocol
     ): Short {
         val totalPacketLength = payloadPreChecksum.size + 2 + payloadPostChecksum.size
-        val pseudoHeaderData = ByteArray(totalPacketLength + 40)
-        val pbb = ByteBuffer.wrap(pseudoHeaderData)
-        pbb.put(parent.sourceAddress.address)
-        pbb.put(parent.destinationAddress.address)
-        pbb.putInt(totalPacketLength.toLong().toUInt().toInt())
-        pbb.put(byteArrayOf(0, 0, 0))
-        pbb.put(protocol.ipProtocolNumber.toByte())
-        pbb.put(payloadPreChecksum)
-        pbb.putShort(0)
-        pbb.put(payloadPostChecksum)
-        return InternetChecksum.calculateChecksum(pseudoHeaderData).toShort()
+        return pseudoHeader(parent, totalPacketLength, protocol)
+            .add(payloadPreChecksum)
+            // The zero checksum field adds nothing and, being two bytes, doesn't change the parity.
+            .add(payloadPostChecksum)
+            .finish()
+    }
+
+    /**
+     * Same as above, for a transport segment that was already written to [bb] at [offset], with
+     * its checksum field set to zero. Only the pseudo header is summed separately, nothing is
+     * copied.
+     */
+    fun checksumHelper(
+        bb: ByteBuffer,
+        offset: Int,
+        length: Int,
+        parent: IPv6,
+        protocol: IpProtocol
+    ): Short {
+        return pseudoHeader(parent, length, protocol)
+            .add(bb, offset, length)
+            .finish()
+    }
+
+    private fun pseudoHeader(parent: IPv6, length: Int, protocol: IpProtocol) = ChecksumAccumulator()
+        .add(parent.sourceAddress.address)
+        .add(parent.destinationAddress.address)
+        .addInt(length)
+        .addInt(protocol.ipProtocolNumber.toInt() and 0xFF)
+
+    /**
+     * Incrementally updates [checksum] after one 16-bit word of the covered data changed from
+     * [oldWord] to [newWord], without touching the rest of the data (RFC 1624, eqn. 3):
+     * HC' = ~(~HC + ~m + m')
+     *
+     * Data that is only moved around, e.g. swapped addresses or ports, doesn't change the sum at
+     * all and needs no update.
+     */
+    fun adjustChecksum(checksum: Short, oldWord: Short, newWord: Short): Short {
+        val sum = (checksum.toLong().inv() and 0xFFFF) +
+                (oldWord.toLong().inv() and 0xFFFF) +
+                (newWord.toLong() and 0xFFFF)
+        return foldComplement(sum)
+    }
+
+    /**
+     * Same as above, for a 128-bit address that was rewritten, e.g. by prefix translation.
+     */
+    fun adjustChecksum(checksum: Short, oldAddress: ByteArray, newAddress: ByteArray): Short {
+        val sum = (checksum.toLong().inv() and 0xFFFF) +
+                ADDRESS_WORDS * 0xFFFF - sumWords(oldAddress) +
+                sumWords(newAddress)
+        return foldComplement(sum)
+    }
+
+    /**
+     * Same as above, with the addresses given as two big-endian halves each, as read by
+     * [sssemil.com.net.packet.Ipv6View].
+     */
+    fun adjustChecksum(
+        checksum: Short,
+        oldHigh: Long,
+        oldLow: Long,
+        newHigh: Long,
+        newLow: Long
+    ): Short {
+        val sum = (checksum.toLong().inv() and 0xFFFF) +
+                ADDRESS_WORDS * 0xFFFF - sumWords(oldHigh) - sumWords(oldLow) +
+                sumWords(newHigh) + sumWords(newLow)
+        return foldComplement(sum)
+    }
+
+    /**
+     * Replaces a checksum of 0 by 0xFFFF, which is the same in ones'-complement. UDP over IPv6 must
+     * never send 0 (RFC 2460, section 8.1), and the packet classes take 0 as "not computed yet".
+     */
+    fun nonZero(checksum: Short): Short = if (checksum.toInt() == 0) -1 else checksum
+
+    private fun foldComplement(value: Long): Short {
+        var sum = value
+        while (sum ushr 16 != 0L) {
+            sum = (sum and 0xFFFF) + (sum ushr 16)
+        }
+        return sum.inv().toShort()
+    }
+
+    private fun sumWords(value: Long) = (value ushr 48) + (value ushr 32 and 0xFFFF) +
+            (value ushr 16 and 0xFFFF) + (value and 0xFFFF)
+
+    private fun sumWords(buf: ByteArray): Long {
+        var sum = 0L
+        for (i in 0 until buf.size step 2) {
+            sum += (buf[i].toInt() shl 8 and 0xFF00 or (buf[i + 1].toInt() and 0xFF)).toLong()
+        }
+        return sum
     }
 
     /**
@@ -49,52 +139,13 @@ object InternetChecksum {
      * 2) apply 1's complement to this final sum
      *
      *
-     * Notes:
-     * 1's complement is bitwise NOT of positive value.
-     * Ensure that any carry bits are added back to avoid off-by-one errors
-     *
-     *
-     * From https://stackoverflow.com/a/4114507/3119031.
+     * The sum is taken 64 bits at a time by [ChecksumAccumulator], carries are added back once at
+     * the end.
      *
      * @param buf The message
      * @return The checksum
      */
     fun calculateChecksum(buf: ByteArray): Long {
-        var length = buf.size
-        var i = 0
-
-        var sum: Long = 0
-        var data: Long
-
-        // Handle all pairs
-        while (length > 1) {
-            // Corrected to include @Andy's edits and various comments on Stack Overflow
-            data = (buf[i].toInt() shl 8 and 0xFF00 or (buf[i + 1].toInt() and 0xFF)).toLong()
-            sum += data
-            // 1's complement carry bit correction in 16-bits (detecting sign extension)
-            if (sum and -0x10000 > 0) {
-                sum = sum and 0xFFFF
-                sum += 1
-            }
-
-            i += 2
-            length -= 2
-        }
-
-        // Handle remaining byte in odd length buffers
-        if (length > 0) {
-            // Corrected to include @Andy's edits and various comments on Stack Overflow
-            sum += (buf[i].toInt() shl 8 and 0xFF00).toLong()
-            // 1's complement carry bit correction in 16-bits (detecting sign extension)
-            if (sum and -0x10000 > 0) {
-                sum = sum and 0xFFFF
-                sum += 1
-            }
-        }
-
-        // Final 1's complement value correction to 16-bits
-        sum = sum.inv()
-        sum = sum and 0xFFFF
-        return sum
+        return ChecksumAccumulator().add(buf).finish().toLong() and 0xFFFF
     }
 }
\ No newline at end of file
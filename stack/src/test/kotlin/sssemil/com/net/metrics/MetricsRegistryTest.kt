@@ -0,0 +1,101 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.metrics
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.concurrent.thread
+
+class MetricsRegistryTest {
+
+    @Test
+    fun testCountersAndGauges() {
+        val metrics = MetricsRegistry()
+        val counter = metrics.counter("packets", "client" to "1")
+        assertSame(counter, metrics.counter("packets", "client" to "1"))
+        counter.add(5)
+        metrics.counter("packets", "client" to "2").increment()
+
+        var depth = 3L
+        metrics.gauge("depth", "client" to "1") { depth }
+
+        var snapshot = metrics.snapshot()
+        assertEquals(5L, snapshot.value("packets", "client" to "1"))
+        assertEquals(6L, snapshot.total("packets"))
+        assertEquals(3L, snapshot.value("depth", "client" to "1"))
+
+        depth = 4
+        assertEquals(4L, metrics.snapshot().value("depth", "client" to "1"))
+
+        assertThrows(IllegalArgumentException::class.java) { metrics.histogram("packets", "client" to "1") }
+
+        metrics.remove { it.tags["client"] == "1" }
+        snapshot = metrics.snapshot()
+        assertNull(snapshot.value("packets", "client" to "1"))
+        assertNull(snapshot.value("depth", "client" to "1"))
+        assertEquals(1L, snapshot.value("packets", "client" to "2"))
+    }
+
+    @Test
+    fun testHistogram() {
+        val histogram = Histogram()
+        assertEquals(0L, histogram.snapshot().valueAt(0.5))
+
+        for (value in 1L..1000L) {
+            histogram.record(value)
+        }
+        histogram.record(1_000_000_000L, 10)
+
+        val snapshot = histogram.snapshot()
+        assertEquals(1010L, snapshot.count)
+        assertEquals(1L, snapshot.min)
+        assertEquals(1_000_000_000L, snapshot.max)
+        assertEquals(5L, snapshot.valueAt(0.004))
+        assertWithin(500, snapshot.valueAt(0.5))
+        assertWithin(990, snapshot.valueAt(0.98))
+        assertEquals(1_000_000_000L, snapshot.valueAt(1.0))
+        assertEquals(1_000_000_000L, snapshot.valueAt(0.999))
+    }
+
+    @Test
+    fun testConcurrentRecording() {
+        val metrics = MetricsRegistry()
+        val threads = (0 until 4).map {
+            thread {
+                val counter = metrics.counter("count")
+                val histogram = metrics.histogram("values")
+                for (i in 0 until 100_000) {
+                    counter.increment()
+                    histogram.record(i.toLong())
+                }
+            }
+        }
+        threads.forEach { it.join() }
+
+        val snapshot = metrics.snapshot()
+        assertEquals(400_000L, snapshot.value("count"))
+        assertEquals(400_000L, snapshot.histogram("values")!!.count)
+        assertEquals(99_999L, snapshot.histogram("values")!!.max)
+    }
+
+    /**
+     * Buckets are at most 1/16 of their values wide.
+     */
+    private fun assertWithin(expected: Long, actual: Long) {
+        assertTrue(Math.abs(actual - expected) <= expected / Histogram.SUB_BUCKETS, "$actual isn't close to $expected")
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.packet
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import sssemil.com.net.packet.icmpv6.EchoRequestMessage
+import java.net.Inet6Address
+import java.nio.ByteBuffer
+
+class Ipv6ViewTest {
+
+    private val source = Inet6Address.getByName("fc00::1") as Inet6Address
+    private val destination = Inet6Address.getByName("fc12:3456:789a:bcde:f012:3456:789a:bcde") as Inet6Address
+
+    private fun ipv6(payload: IPacket) = IPv6().apply {
+        trafficClass = 0x5A
+        flowLabel = 0xABCDE
+        hopLimit = 42
+        sourceAddress = source
+        destinationAddress = destination
+        this.payload = payload
+    }
+
+    /**
+     * Places the packet in the middle of a bigger buffer, like a receive buffer would.
+     */
+    private fun frame(packet: IPv6): Ipv6Frame {
+        val data = packet.serialize()
+        val buffer = ByteBuffer.allocate(data.size + 20)
+        buffer.position(11)
+        buffer.put(data)
+        return Ipv6Frame().wrap(buffer, 11, data.size)
+    }
+
+    @Test
+    fun testHeader() {
+        val frame = frame(ipv6(UDP(sourcePort = 1000u, destinationPort = 2000u, payload = Data(ByteArray(33)))))
+        val view = frame.view
+
+        assertTrue(view.isValid())
+        assertEquals(6, view.version)
+        assertEquals(0x5A, view.trafficClass)
+        assertEquals(0xABCDE, view.flowLabel)
+        assertEquals(8 + 33, view.payloadLength)
+        assertEquals(8 + 33, view.payloadSize)
+        assertEquals(17, view.nextHeader)
+        assertEquals(42, view.hopLimit)
+        assertEquals(ByteBuffer.wrap(source.address).getLong(0), view.sourceAddressHigh)
+        assertEquals(ByteBuffer.wrap(source.address).getLong(8), view.sourceAddressLow)
+        assertEquals(ByteBuffer.wrap(destination.address).getLong(0), view.destinationAddressHigh)
+        assertEquals(ByteBuffer.wrap(destination.address).getLong(8), view.destinationAddressLow)
+
+        val address = ByteArray(16)
+        view.copyDestinationAddress(address, 0)
+        assertArrayEquals(destination.address, address)
+    }
+
+    @Test
+    fun testUdp() {
+        val frame = frame(ipv6(UDP(sourcePort = 1000u, destinationPort = 65000u, payload = Data(ByteArray(33)))))
+        val udp = frame.udp()!!
+
+        assertNull(frame.icmpv6())
+        assertEquals(1000, udp.sourcePort)
+        assertEquals(65000, udp.destinationPort)
+        assertEquals(8 + 33, udp.udpLength)
+        assertEquals(33, udp.payloadSize)
+        assertEquals((frame.decode().payload as UDP).checksum, udp.checksum)
+    }
+
+    @Test
+    fun testIcmpv6() {
+        val echo = EchoRequestMessage(identifier = 7, sequenceNumber = 9, payload = Data(ByteArray(5)))
+        val frame = frame(ipv6(ICMPv6(icmpType = ICMPv6.MessageType.ECHO_REQUEST.type, payload = echo)))
+        val icmpv6 = frame.icmpv6()!!
+
+        assertNull(frame.udp())
+        assertEquals(128, icmpv6.icmpType)
+        assertEquals(0, icmpv6.icmpCode)
+        assertEquals(7.toShort(), icmpv6.echoIdentifier)
+        assertEquals(9.toShort(), icmpv6.echoSequenceNumber)
+        assertEquals((frame.decode().payload as ICMPv6).checksum, icmpv6.checksum)
+    }
+
+    @Test
+    fun testDecodeAndClone() {
+        val packet = ipv6(UDP(sourcePort = 1u, destinationPort = 2u, payload = Data(byteArrayOf(1, 2, 3))))
+        val frame = frame(packet)
+
+        assertEquals(packet.sourceAddress, frame.decode().sourceAddress)
+        assertEquals(packet.destinationAddress, frame.decode().destinationAddress)
+        assertArrayEquals(packet.serialize(), frame.serialize())
+        assertEquals(frame, frame.clone())
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.stack
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import sssemil.com.net.interfaces.IClientHandle
+import sssemil.com.net.packet.*
+import sssemil.com.net.packet.icmpv6.EchoRequestMessage
+import sssemil.com.net.packet.types.IpProtocol
+import java.net.Inet6Address
+import java.nio.ByteBuffer
+
+class EchoServerTest {
+
+    private val scope = CoroutineScope(Dispatchers.Unconfined)
+    private val handle = object : IClientHandle {}
+
+    private val source = Inet6Address.getByName("fc00::1") as Inet6Address
+    private val destination = Inet6Address.getByName("fc12:3456::1") as Inet6Address
+
+    /**
+     * ICMPv6 type or UDP destination port of every reply, which is released once sent.
+     */
+    private val replies = arrayListOf<Int>()
+
+    private val link = object : Protocol(scope) {
+
+        override fun swallowFromAbove(handle: IClientHandle, packet: IPacket) {
+            val frame = packet as Ipv6Frame
+            replies.add(frame.icmpv6()?.icmpType ?: frame.udp()!!.destinationPort)
+        }
+    }
+
+    private val lower = Layer()
+    private val upper = Layer()
+    private val icmpEcho = Icmpv6EchoServer(scope)
+    private val udpEcho = UdpEchoServer(scope, port = 7u)
+
+    init {
+        lower.registerProtocol(link)
+        lower.bind(upper)
+        upper.registerProtocol(icmpEcho)
+        upper.registerProtocol(udpEcho)
+    }
+
+    @Test
+    fun testIcmpv6Echo() {
+        icmpEcho.swallowFromBelow(handle, frame(echoRequest()))
+        assertEquals(listOf(ICMPv6.MessageType.ECHO_REPLY.type.toInt()), replies)
+    }
+
+    @Test
+    fun testUdpEcho() {
+        udpEcho.swallowFromBelow(handle, frame(udp(7)))
+        assertEquals(listOf(1000), replies)
+    }
+
+    @Test
+    fun testTruncatedFrames() {
+        val echoRequest = echoRequest().serialize()
+        // A single byte of ICMPv6, the header but no identifier, and a truncated IPv6 header.
+        for (length in intArrayOf(IPv6.HEADER_LENGTH + 1, IPv6.HEADER_LENGTH + Icmpv6View.HEADER_LENGTH + 2, 20)) {
+            icmpEcho.swallowFromBelow(handle, truncated(echoRequest, length))
+        }
+
+        val udp = udp(7).serialize()
+        for (length in intArrayOf(IPv6.HEADER_LENGTH + 4, 20)) {
+            udpEcho.swallowFromBelow(handle, truncated(udp, length))
+        }
+
+        assertEquals(emptyList<Int>(), replies)
+    }
+
+    private fun udp(port: Int) = IPv6().apply {
+        nextHeader = IpProtocol.UDP
+        sourceAddress = source
+        destinationAddress = destination
+        payload = UDP(sourcePort = 1000u, destinationPort = port.toUShort(), payload = Data(ByteArray(8)))
+    }
+
+    private fun echoRequest() = IPv6().apply {
+        nextHeader = IpProtocol.IPv6_ICMP
+        sourceAddress = source
+        destinationAddress = destination
+        payload = ICMPv6(
+            icmpType = ICMPv6.MessageType.ECHO_REQUEST.type,
+            payload = EchoRequestMessage(identifier = 1, sequenceNumber = 2, payload = Data(ByteArray(4)))
+        )
+    }
+
+    private fun frame(packet: IPv6): Ipv6Frame {
+        val data = packet.serialize()
+        return Ipv6Frame().wrap(ByteBuffer.wrap(data), 0, data.size)
+    }
+
+    /**
+     * The first [length] bytes of [data], in a buffer that ends there too.
+     */
+    private fun truncated(data: ByteArray, length: Int) =
+        Ipv6Frame().wrap(ByteBuffer.wrap(data.copyOf(length)), 0, length)
+}
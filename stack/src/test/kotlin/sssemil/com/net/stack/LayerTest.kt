@@ -0,0 +1,340 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.stack
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import sssemil.com.net.interfaces.IClientHandle
+import sssemil.com.net.metrics.MetricsRegistry
+import sssemil.com.net.packet.*
+import sssemil.com.net.packet.icmpv6.EchoRequestMessage
+import sssemil.com.net.packet.types.IpProtocol
+import sssemil.com.net.structures.PacketBuffer
+import sssemil.com.net.structures.PacketBufferPool
+import java.net.Inet6Address
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class LayerTest {
+
+    private val scope = CoroutineScope(Dispatchers.Unconfined)
+    private val handle = object : IClientHandle {}
+
+    private val source = Inet6Address.getByName("fc00::1") as Inet6Address
+    private val destination = Inet6Address.getByName("fc12:3456::1") as Inet6Address
+
+    private inner class Recorder : Protocol(scope) {
+
+        var count = 0
+        val batches = arrayListOf<Int>()
+
+        override fun swallowFromBelow(handle: IClientHandle, packet: IPacket) {
+            count++
+        }
+
+        override fun swallowFromBelowBatch(batch: PacketBatch) {
+            batches.add(batch.size)
+            super.swallowFromBelowBatch(batch)
+        }
+    }
+
+    private inner class PortRecorder(private val onPort: (IClientHandle, Int) -> Unit) : Protocol(scope) {
+
+        override fun swallowFromBelow(handle: IClientHandle, packet: IPacket) {
+            onPort(handle, (packet as Ipv6Frame).udp()!!.destinationPort)
+        }
+    }
+
+    private val lower = Layer()
+    private val upper = Layer()
+    private val link = Recorder()
+
+    private val tap = Recorder()
+    private val udpEcho = Recorder()
+    private val anyUdp = Recorder()
+    private val icmpEcho = Recorder()
+    private val network = Recorder()
+    private val cjdns = Recorder()
+
+    init {
+        lower.registerProtocol(link)
+        lower.bind(upper)
+
+        upper.registerProtocol(tap)
+        upper.registerProtocol(udpEcho, MatchKey.UdpPort(7))
+        // Matches twice, must still see every packet once.
+        upper.registerProtocol(anyUdp, MatchKey.NextHeader(IpProtocol.UDP), MatchKey.UdpPort(7))
+        upper.registerProtocol(icmpEcho, MatchKey.Icmpv6Type(ICMPv6.MessageType.ECHO_REQUEST.type.toInt()))
+        upper.registerProtocol(network, MatchKey.DestinationPrefix(prefix("fc12::"), 16))
+        upper.registerProtocol(cjdns, MatchKey.DestinationPrefix(prefix("fc00::"), 8))
+    }
+
+    @Test
+    fun testFrames() {
+        link.spitUp(handle, frame(udp(7)))
+        assertCounts(tap = 1, udpEcho = 1, anyUdp = 1, icmpEcho = 0, network = 1, cjdns = 0)
+
+        link.spitUp(handle, frame(udp(8)))
+        assertCounts(tap = 2, udpEcho = 1, anyUdp = 2, icmpEcho = 0, network = 2, cjdns = 0)
+
+        link.spitUp(handle, frame(echoRequest()))
+        assertCounts(tap = 3, udpEcho = 1, anyUdp = 2, icmpEcho = 1, network = 3, cjdns = 0)
+    }
+
+    @Test
+    fun testPackets() {
+        link.spitUp(handle, udp(7, Inet6Address.getByName("fcff::1") as Inet6Address))
+        assertCounts(tap = 1, udpEcho = 1, anyUdp = 1, icmpEcho = 0, network = 0, cjdns = 1)
+
+        link.spitUp(handle, echoRequest())
+        assertCounts(tap = 2, udpEcho = 1, anyUdp = 1, icmpEcho = 1, network = 1, cjdns = 1)
+
+        // Not IPv6 at all, only for taps.
+        link.spitUp(handle, Data(ByteArray(4)))
+        assertCounts(tap = 3, udpEcho = 1, anyUdp = 1, icmpEcho = 1, network = 1, cjdns = 1)
+    }
+
+    @Test
+    fun testBatch() {
+        val other = object : IClientHandle {}
+        val handles = arrayListOf<IClientHandle>()
+        upper.registerProtocol(object : Protocol(scope) {
+            override fun swallowFromBelow(handle: IClientHandle, packet: IPacket) {
+                handles.add(handle)
+            }
+        }, MatchKey.UdpPort(7))
+
+        val batch = PacketBatch(initialCapacity = 1)
+        batch.add(handle, frame(udp(7)))
+        batch.add(other, frame(udp(8)))
+        batch.add(handle, frame(echoRequest()))
+        batch.add(other, frame(udp(7)))
+        link.spitUpBatch(batch)
+
+        assertCounts(tap = 4, udpEcho = 2, anyUdp = 3, icmpEcho = 1, network = 4, cjdns = 0)
+        assertEquals(listOf(4), tap.batches)
+        assertEquals(listOf(2), udpEcho.batches)
+        assertEquals(listOf(3), anyUdp.batches)
+        assertEquals(listOf(1), icmpEcho.batches)
+        assertTrue(cjdns.batches.isEmpty())
+        assertEquals(listOf(handle, other), handles)
+
+        // The batch is left alone, the per protocol ones are emptied.
+        assertEquals(4, batch.size)
+        link.spitUpBatch(batch)
+        assertEquals(listOf(4, 4), tap.batches)
+        assertEquals(listOf(2, 2), udpEcho.batches)
+    }
+
+    @Test
+    fun testBatchAfterRegistering() {
+        val batch = PacketBatch().apply { add(handle, frame(udp(7))) }
+        link.spitUpBatch(batch)
+
+        // Same thread, one more protocol to split into.
+        val late = Recorder()
+        upper.registerProtocol(late, MatchKey.UdpPort(7))
+        link.spitUpBatch(batch)
+
+        assertEquals(listOf(1, 1), udpEcho.batches)
+        assertEquals(listOf(1), late.batches)
+        assertEquals(1, late.count)
+    }
+
+    @Test
+    fun testMetrics() {
+        val metrics = MetricsRegistry()
+        val layer = Layer(name = "test", metrics = metrics)
+        layer.registerProtocol(Recorder(), MatchKey.UdpPort(7))
+        val source = Recorder()
+        Layer().also { it.registerProtocol(source) }.bind(layer)
+
+        val frame = frame(udp(7))
+        source.spitUp(handle, frame)
+        source.spitUp(handle, frame(udp(8)))
+
+        val snapshot = metrics.snapshot()
+        val up = Layer.TAG_DIRECTION to Layer.DIRECTION_UP
+        assertEquals(2L, snapshot.value(Layer.METRIC_PACKETS, Layer.TAG_LAYER to "test", up))
+        assertEquals(2L * frame.view.length, snapshot.value(Layer.METRIC_BYTES, Layer.TAG_LAYER to "test", up))
+        assertEquals(1L, snapshot.total(Layer.METRIC_PROTOCOL_PACKETS, Layer.TAG_PROTOCOL to "Recorder"))
+        assertEquals(2L, snapshot.histogram(Layer.METRIC_DISPATCH_NANOS, Layer.TAG_LAYER to "test")!!.count)
+        assertEquals(frame.view.length.toLong(), snapshot.histogram(Layer.METRIC_PACKET_SIZE, Layer.TAG_LAYER to "test")!!.max)
+    }
+
+    @Test
+    fun testMetricsDontSerialize() {
+        val metrics = MetricsRegistry()
+        val layer = Layer(name = "test", metrics = metrics)
+        layer.registerProtocol(Recorder())
+        layer.registerProtocol(Recorder(), MatchKey.NextHeader(59))
+        val source = Recorder()
+        layer.bind(Layer().also { it.registerProtocol(source) })
+
+        // Only egress serializes packet trees, metrics must not walk them.
+        val packet = object : IPacket by Data(ByteArray(8)) {
+            override fun serializedLength() = throw AssertionError("Serialized for the metrics")
+        }
+        source.spitDown(handle, packet)
+        source.spitDownBatch(PacketBatch().apply { add(handle, packet) })
+
+        val snapshot = metrics.snapshot()
+        val down = Layer.TAG_DIRECTION to Layer.DIRECTION_DOWN
+        assertEquals(2L, snapshot.value(Layer.METRIC_PACKETS, Layer.TAG_LAYER to "test", down))
+        assertEquals(0L, snapshot.value(Layer.METRIC_BYTES, Layer.TAG_LAYER to "test", down))
+        assertEquals(2L, snapshot.total(Layer.METRIC_PROTOCOL_PACKETS, Layer.TAG_PROTOCOL to "Recorder"))
+    }
+
+    @Test
+    fun testStageKeepsOrder() = runBlocking {
+        val job = SupervisorJob()
+        val pool = PacketBufferPool()
+        val staged = Layer(
+            Stage(CoroutineScope(Dispatchers.Default + job), workers = 2, overflow = Stage.OverflowPolicy.BLOCK, pool = pool)
+        )
+        val ports = ConcurrentLinkedQueue<Pair<IClientHandle, Int>>()
+        staged.registerProtocol(PortRecorder { handle, port -> ports.add(handle to port) })
+        val source = Recorder()
+        Layer().also { it.registerProtocol(source) }.bind(staged)
+
+        val handles = listOf(object : IClientHandle {}, object : IClientHandle {}, object : IClientHandle {})
+        val buffers = ArrayList<PacketBuffer>()
+        for (port in 0 until 300) {
+            val data = udp(port).serialize()
+            val packetBuffer = pool.acquire(data.size)
+            packetBuffer.buffer.put(data)
+            buffers.add(packetBuffer)
+
+            // Given back right away, like the ESS dispatcher does.
+            source.spitUp(handles[port % handles.size], packetBuffer.frame.wrap(packetBuffer.buffer, 0, data.size))
+            packetBuffer.release()
+        }
+
+        staged.kill()
+        job.cancel()
+
+        assertEquals(300, ports.size)
+        handles.forEach { handle ->
+            val received = ports.filter { it.first === handle }.map { it.second }
+            assertEquals(received.sorted(), received)
+        }
+        assertTrue(buffers.all { it.referenceCount == 0 })
+        assertEquals(0L, staged.drops)
+    }
+
+    @Test
+    fun testStageWithMoreProducersThanThreads() = runBlocking {
+        val job = SupervisorJob()
+        // The queue is full all the time, producers wait on every Default thread there is.
+        val staged = Layer(
+            Stage(CoroutineScope(Dispatchers.Default + job), capacity = 1, overflow = Stage.OverflowPolicy.BLOCK)
+        )
+        val received = AtomicInteger()
+        staged.registerProtocol(PortRecorder { _, _ -> received.incrementAndGet() })
+        val source = Recorder()
+        Layer().also { it.registerProtocol(source) }.bind(staged)
+
+        val producers = Runtime.getRuntime().availableProcessors() * 4
+        val done = CountDownLatch(producers)
+        repeat(producers) {
+            launch(Dispatchers.Default) {
+                repeat(100) { port -> source.spitUp(handle, frame(udp(port))) }
+                done.countDown()
+            }
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS))
+        staged.kill()
+        job.cancel()
+        assertEquals(producers * 100, received.get())
+        assertEquals(0L, staged.drops)
+    }
+
+    @Test
+    fun testStageDropNewest() = assertOverflow(Stage.OverflowPolicy.DROP_NEWEST, listOf(1, 2))
+
+    @Test
+    fun testStageDropOldest() = assertOverflow(Stage.OverflowPolicy.DROP_OLDEST, listOf(1, 3))
+
+    /**
+     * Holds the only worker on the first packet, queues the second one and overflows with the third.
+     */
+    private fun assertOverflow(policy: Stage.OverflowPolicy, expected: List<Int>) = runBlocking {
+        val job = SupervisorJob()
+        val staged = Layer(Stage(CoroutineScope(Dispatchers.Default + job), capacity = 1, overflow = policy))
+        val entered = CountDownLatch(1)
+        val unblock = CountDownLatch(1)
+        val ports = ConcurrentLinkedQueue<Int>()
+        staged.registerProtocol(PortRecorder { _, port ->
+            ports.add(port)
+            entered.countDown()
+            unblock.await(5, TimeUnit.SECONDS)
+        })
+        val source = Recorder()
+        Layer().also { it.registerProtocol(source) }.bind(staged)
+
+        source.spitUp(handle, frame(udp(1)))
+        assertTrue(entered.await(5, TimeUnit.SECONDS))
+        source.spitUp(handle, frame(udp(2)))
+        source.spitUp(handle, frame(udp(3)))
+        assertEquals(1L, staged.drops)
+
+        unblock.countDown()
+        staged.kill()
+        job.cancel()
+        assertEquals(expected, ports.toList())
+    }
+
+    private fun assertCounts(tap: Int, udpEcho: Int, anyUdp: Int, icmpEcho: Int, network: Int, cjdns: Int) {
+        assertEquals(
+            listOf(tap, udpEcho, anyUdp, icmpEcho, network, cjdns),
+            listOf(this.tap, this.udpEcho, this.anyUdp, this.icmpEcho, this.network, this.cjdns).map { it.count }
+        )
+    }
+
+    private fun udp(port: Int, to: Inet6Address = destination) = IPv6().apply {
+        nextHeader = IpProtocol.UDP
+        sourceAddress = source
+        destinationAddress = to
+        payload = UDP(sourcePort = 1000u, destinationPort = port.toUShort(), payload = Data(ByteArray(8)))
+    }
+
+    private fun echoRequest() = IPv6().apply {
+        nextHeader = IpProtocol.IPv6_ICMP
+        sourceAddress = source
+        destinationAddress = destination
+        payload = ICMPv6(
+            icmpType = ICMPv6.MessageType.ECHO_REQUEST.type,
+            payload = EchoRequestMessage(identifier = 1, sequenceNumber = 2, payload = Data(ByteArray(4)))
+        )
+    }
+
+    private fun frame(packet: IPv6): Ipv6Frame {
+        val data = packet.serialize()
+        return Ipv6Frame().wrap(ByteBuffer.wrap(data), 0, data.size)
+    }
+
+    private fun prefix(text: String) = Inet6Address.getByName(text) as Inet6Address
+}
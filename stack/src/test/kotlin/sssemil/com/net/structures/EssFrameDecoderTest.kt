@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import sssemil.com.net.packet.Data
+import sssemil.com.net.packet.IPv6
+import sssemil.com.net.packet.UDP
+import java.io.ByteArrayOutputStream
+import java.net.Inet6Address
+import java.nio.ByteBuffer
+
+class EssFrameDecoderTest {
+
+    private val address = Inet6Address.getByName("fc00::1") as Inet6Address
+
+    private fun tunFrame(payloadSize: Int): ByteArray {
+        val ipv6 = IPv6().apply {
+            sourceAddress = address
+            destinationAddress = address
+            hopLimit = 64
+            payload = UDP(sourcePort = 1u, destinationPort = 2u, payload = Data(ByteArray(payloadSize) { it.toByte() }))
+        }
+        val tun = TunPacket(frame = ipv6).serialize()
+        return ByteBuffer.allocate(5 + tun.size)
+            .put(EssPacket.TYPE_TUN_PACKET)
+            .putInt(tun.size)
+            .put(tun)
+            .array()
+    }
+
+    private fun mtuFrame(mtu: Int) = ByteBuffer.allocate(5)
+        .put(EssPacket.TYPE_CONF_SET_MTU)
+        .putInt(mtu)
+        .array()
+
+    private fun addressFrame() = ByteBuffer.allocate(17)
+        .put(EssPacket.TYPE_CONF_ADD_IPV6_ADDRESS)
+        .put(address.address)
+        .array()
+
+    private fun stream(vararg frames: ByteArray) = ByteArrayOutputStream().also { out ->
+        frames.forEach { out.write(it) }
+    }.toByteArray()
+
+    private fun decodeInChunks(data: ByteArray, chunkSize: Int): List<EssPacket> {
+        val packets = arrayListOf<EssPacket>()
+        val decoder = EssFrameDecoder(object : EssFrameDecoder.Listener {
+            override fun onPacket(packet: EssPacket) {
+                packets.add(packet)
+            }
+        })
+
+        var position = 0
+        while (position < data.size) {
+            decoder.readFrom { buffer, offset, length ->
+                val count = Math.min(Math.min(length, chunkSize), data.size - position)
+                System.arraycopy(data, position, buffer, offset, count)
+                position += count
+                count
+            }
+        }
+
+        assertEquals(0, decoder.pendingBytes())
+        return packets
+    }
+
+    private fun decodeScatteredInChunks(data: ByteArray, chunkSize: Int): List<EssPacket> {
+        val packets = arrayListOf<EssPacket>()
+        val decoder = EssFrameDecoder(object : EssFrameDecoder.Listener {
+            override fun onPacket(packet: EssPacket) {
+                packets.add(packet)
+            }
+        })
+
+        var position = 0
+        while (position < data.size) {
+            decoder.readScattered { buffers, count ->
+                var total = 0
+                for (i in 0 until count) {
+                    val part = Math.min(Math.min(buffers[i].remaining(), chunkSize - total), data.size - position)
+                    buffers[i].put(data, position, part)
+                    position += part
+                    total += part
+                }
+                total
+            }
+        }
+
+        assertEquals(0, decoder.pendingBytes())
+        return packets
+    }
+
+    @Test
+    fun testFramesSplitAcrossReads() {
+        val data = stream(addressFrame(), tunFrame(100), mtuFrame(1400), tunFrame(1300), tunFrame(0))
+
+        val expected = listOf(
+            EssPacket.TYPE_CONF_ADD_IPV6_ADDRESS,
+            EssPacket.TYPE_TUN_PACKET,
+            EssPacket.TYPE_CONF_SET_MTU,
+            EssPacket.TYPE_TUN_PACKET,
+            EssPacket.TYPE_TUN_PACKET
+        )
+
+        listOf(1, 3, 7, 64, 1000, data.size).forEach { chunkSize ->
+            assertEquals(expected, decodeInChunks(data, chunkSize).map { it.type }, "chunk size $chunkSize")
+            assertEquals(expected, decodeScatteredInChunks(data, chunkSize).map { it.type }, "chunk size $chunkSize")
+        }
+    }
+
+    @Test
+    fun testTunFrameContent() {
+        val packets = decodeInChunks(stream(tunFrame(1300)), 500)
+        val ipv6 = (packets.single().payload as TunPacket).frame as IPv6
+        val udp = ipv6.payload as UDP
+
+        assertEquals(address, ipv6.sourceAddress)
+        assertEquals(2.toUShort(), udp.destinationPort)
+        assertEquals(1300, (udp.payload as Data).data.size)
+    }
+
+    @Test
+    fun testMtuResizesBuffers() {
+        val decoder = EssFrameDecoder(object : EssFrameDecoder.Listener {
+            override fun onPacket(packet: EssPacket) {
+            }
+        })
+        val frame = mtuFrame(9000)
+        decoder.feed(frame, 0, frame.size)
+
+        assertEquals(9000, decoder.mtu)
+        assertTrue(decoder.pendingBytes() == 0)
+    }
+
+    @Test
+    fun testRingBufferWraps() {
+        val ring = ByteRingBuffer(8)
+        val data = ByteArray(6) { it.toByte() }
+
+        ring.write(data, 0, 6)
+        ring.skip(4)
+        ring.write(data, 0, 6)
+
+        assertEquals(8, ring.size)
+        val out = ByteArray(8)
+        ring.copyTo(0, out, 0, 8)
+        assertEquals(listOf<Byte>(4, 5, 0, 1, 2, 3, 4, 5), out.toList())
+
+        ring.write(data, 0, 6)
+        assertEquals(16, ring.capacity)
+        assertEquals(0x04050001, ring.peekInt(0))
+    }
+
+    @Test
+    fun testScatteredFillWraps() {
+        val ring = ByteRingBuffer(8, direct = true)
+        val data = ByteArray(6) { it.toByte() }
+
+        ring.write(data, 0, 6)
+        ring.skip(4)
+
+        // The free space wraps, the reader gets both parts of it.
+        val filled = ring.fillScattered { buffers, count ->
+            assertEquals(2, count)
+            assertEquals(2, buffers[0].remaining())
+            assertEquals(4, buffers[1].remaining())
+            buffers[0].put(6).put(7)
+            buffers[1].put(8).put(9).put(10)
+            5
+        }
+
+        assertEquals(5, filled)
+        assertEquals(7, ring.size)
+        val out = ByteArray(7)
+        ring.copyTo(0, out, 0, 7)
+        assertEquals(listOf<Byte>(4, 5, 6, 7, 8, 9, 10), out.toList())
+        assertEquals(0x0708090A, ring.peekInt(3))
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.math.BigInteger
+import java.net.Inet6Address
+import java.net.InetAddress
+import kotlin.random.Random
+
+class Ipv6RoutingTableTest {
+
+    @Test
+    fun testLongestPrefix() {
+        val table = Ipv6RoutingTable<String>()
+        table.add(address("fc00::"), 8, "cjdns")
+        table.add(address("fc12:3456::"), 32, "network")
+        table.add(address("fc12:3456::1"), 128, "host")
+
+        assertEquals("host", table.lookup(address("fc12:3456::1")))
+        assertEquals("network", table.lookup(address("fc12:3456::2")))
+        assertEquals("cjdns", table.lookup(address("fcff::1")))
+        assertNull(table.lookup(address("2001:db8::1")))
+        assertEquals(3, table.size)
+
+        table.add(address("::"), 0, "default")
+        assertEquals("default", table.lookup(address("2001:db8::1")))
+
+        table.remove(address("fc12:3456::"), 32)
+        assertEquals("cjdns", table.lookup(address("fc12:3456::2")))
+        assertEquals("host", table.lookup(address("fc12:3456::1")))
+
+        table.removeAll { it == "host" || it == "default" }
+        assertEquals("cjdns", table.lookup(address("fc12:3456::1")))
+        assertNull(table.lookup(address("2001:db8::1")))
+        assertEquals(1, table.size)
+
+        assertThrows(IllegalArgumentException::class.java) { table.add(address("::"), 129, "invalid") }
+    }
+
+    @Test
+    fun testAgainstLinearScan() {
+        val random = Random(42)
+        val table = Ipv6RoutingTable<Int>()
+        val prefixes = HashMap<Pair<BigInteger, Int>, Int>()
+
+        // Prefixes share their first bits, so that plenty of them nest and fork.
+        fun randomAddress() = BigInteger(1, ByteArray(16).also {
+            random.nextBytes(it)
+            it[0] = 0xfc.toByte()
+            it[1] = (it[1].toInt() and 0x03).toByte()
+        })
+
+        repeat(2000) { i ->
+            val length = random.nextInt(129)
+            val prefix = mask(randomAddress(), length)
+            if (random.nextInt(4) == 0 && prefixes.isNotEmpty()) {
+                val removed = prefixes.keys.elementAt(random.nextInt(prefixes.size))
+                prefixes.remove(removed)
+                table.remove(removed.first.high(), removed.first.low(), removed.second)
+            } else {
+                prefixes[prefix to length] = i
+                table.add(prefix.high(), prefix.low(), length, i)
+            }
+        }
+        assertEquals(prefixes.size, table.size)
+
+        repeat(2000) {
+            val address = randomAddress()
+            val expected = prefixes.entries
+                .filter { mask(address, it.key.second) == it.key.first }
+                .maxBy { it.key.second }?.value
+            assertEquals(expected, table.lookup(address.high(), address.low()))
+        }
+    }
+
+    private fun address(text: String) = InetAddress.getByName(text) as Inet6Address
+
+    private fun mask(address: BigInteger, length: Int) =
+        address.shiftRight(128 - length).shiftLeft(128 - length)
+
+    private fun BigInteger.high() = shiftRight(64).toLong()
+
+    private fun BigInteger.low() = toLong()
+}
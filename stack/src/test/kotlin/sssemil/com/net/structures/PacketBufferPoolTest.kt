@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+
+class PacketBufferPoolTest {
+
+    @Test
+    fun testHitsAndMisses() {
+        val pool = PacketBufferPool()
+
+        val first = pool.acquire(1500)
+        assertEquals(1L, pool.misses)
+        assertTrue(first.buffer.isDirect)
+        assertEquals(1500, first.buffer.limit())
+        assertEquals(PacketBufferPool.MTU_BUFFER_SIZE, first.capacity)
+
+        assertTrue(first.release())
+        val second = pool.acquire(100)
+        assertEquals(1L, pool.hits)
+        assertEquals(1L, pool.misses)
+        assertEquals(100, second.buffer.limit())
+        second.release()
+
+        val jumbo = pool.acquire(9000)
+        assertEquals(PacketBufferPool.JUMBO_BUFFER_SIZE, jumbo.capacity)
+        assertEquals(2L, pool.misses)
+        jumbo.release()
+
+        val oversized = pool.acquire(PacketBufferPool.JUMBO_BUFFER_SIZE + 1)
+        assertEquals(3L, pool.misses)
+        val available = pool.available
+        oversized.release()
+        assertEquals(available, pool.available)
+    }
+
+    @Test
+    fun testFanOut() {
+        val pool = PacketBufferPool()
+        val packetBuffer = pool.acquire(64)
+        val available = pool.available
+
+        // Two consumers keep the buffer, the producer lets go.
+        packetBuffer.retain()
+        packetBuffer.frame.retain()
+        assertEquals(3, packetBuffer.referenceCount)
+        assertFalse(packetBuffer.release())
+        packetBuffer.frame.release()
+        assertEquals(available, pool.available)
+
+        assertTrue(packetBuffer.release())
+        assertEquals(available + 1, pool.available)
+
+        assertThrows(IllegalStateException::class.java) { packetBuffer.release() }
+        assertThrows(IllegalStateException::class.java) { packetBuffer.retain() }
+    }
+
+    @Test
+    fun testExhaustedClass() {
+        val pool = PacketBufferPool(maxMtuBuffers = 2)
+        val buffers = (0 until 3).map { pool.acquire(10) }
+
+        // One slab of two buffers, then a one-off buffer that is not kept.
+        assertEquals(1L, pool.hits)
+        assertEquals(2L, pool.misses)
+        buffers.forEach { it.release() }
+        assertEquals(2, pool.available)
+    }
+}
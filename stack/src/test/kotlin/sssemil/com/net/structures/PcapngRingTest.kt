@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019 Emil Suleymanov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sssemil.com.net.structures
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import sssemil.com.net.interfaces.IClientHandle
+import sssemil.com.net.packet.Data
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.file.Files
+
+class PcapngRingTest {
+
+    private val directory = Files.createTempDirectory("capture").toFile()
+
+    private val first = object : IClientHandle {
+        override fun toString() = "first"
+    }
+    private val second = object : IClientHandle {
+        override fun toString() = "second"
+    }
+
+    private class Block(val type: Int, val body: ByteBuffer)
+
+    @AfterEach
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun testBlocks() {
+        val ring = PcapngRing(directory, snapLength = 100)
+        ring.write(first, true, ByteArray(60) { it.toByte() })
+        ring.write(second, false, ByteArray(1280) { 7 })
+        ring.write(first, false, ByteArray(3) { 1 })
+        ring.close()
+        ring.write(first, true, ByteArray(60))
+
+        assertEquals(3L, ring.packets)
+        assertEquals(1L, ring.drops)
+
+        val files = directory.listFiles()!!
+        assertEquals(1, files.size)
+        val blocks = read(files[0])
+        assertEquals(listOf(SHB, IDB, EPB, IDB, EPB, EPB, FILLER), blocks.map { it.type })
+
+        val firstInterface = blocks[1].body
+        assertEquals(PcapngRing.LINKTYPE_IPV6, firstInterface.getShort(0))
+        assertEquals(100, firstInterface.getInt(4))
+
+        val packets = blocks.filter { it.type == EPB }.map { it.body }
+        assertEquals(listOf(0, 1, 0), packets.map { it.getInt(0) })
+        assertEquals(listOf(60, 100, 3), packets.map { it.getInt(12) })
+        assertEquals(listOf(60, 1280, 3), packets.map { it.getInt(16) })
+        assertEquals(59.toByte(), packets[0].get(20 + 59))
+
+        val timestamps = packets.map { (it.getInt(4).toLong() shl 32) or (it.getInt(8).toLong() and 0xFFFFFFFFL) }
+        assertEquals(timestamps.sorted(), timestamps)
+        // Nanoseconds since the epoch.
+        assertTrue(Math.abs(timestamps[0] / 1_000_000 - System.currentTimeMillis()) < 60_000)
+
+        // Inbound, outbound, outbound.
+        val flags = packets.map { it.getInt(20 + ((it.getInt(12) + 3) and 3.inv()) + 4) }
+        assertEquals(listOf(1, 2, 2), flags)
+    }
+
+    @Test
+    fun testRing() {
+        val ring = PcapngRing(directory, segmentSize = PcapngRing.MIN_SEGMENT_SIZE, segmentCount = 3)
+        for (i in 0 until 1000) {
+            ring.write(if (i % 2 == 0) first else second, true, ByteArray(1000))
+        }
+        ring.close()
+        assertEquals(1000L, ring.packets)
+
+        val files = directory.listFiles()!!.sortedBy { it.name }
+        assertEquals(3, files.size)
+        assertEquals("capture-%08d.pcapng".format(1000 / 62), files.last().name)
+
+        files.forEach { file ->
+            assertEquals(PcapngRing.MIN_SEGMENT_SIZE.toLong(), file.length())
+            val types = read(file).map { it.type }
+            // Every segment describes the interfaces again.
+            assertEquals(listOf(SHB, IDB, IDB), types.take(3))
+            assertEquals(FILLER, types.last())
+        }
+    }
+
+    @Test
+    fun testPacket() {
+        val ring = PcapngRing(directory)
+        ring.write(first, false, Data(ByteArray(42) { 5 }))
+        ring.close()
+
+        val packets = read(directory.listFiles()!!.single()).filter { it.type == EPB }.map { it.body }
+        assertEquals(1, packets.size)
+        assertEquals(42, packets[0].getInt(12))
+        assertEquals(42, packets[0].getInt(16))
+        assertEquals(5.toByte(), packets[0].get(20 + 41))
+    }
+
+    @Test
+    fun testConcurrentWrites() {
+        val ring = PcapngRing(directory, segmentSize = PcapngRing.MIN_SEGMENT_SIZE, segmentCount = 100)
+        val threads = List(8) { thread ->
+            Thread {
+                val handle = if (thread % 2 == 0) first else second
+                repeat(500) { ring.write(handle, true, ByteArray(100 + thread) { thread.toByte() }) }
+            }
+        }
+        threads.forEach { it.start() }
+        threads.forEach { it.join() }
+        ring.close()
+        assertEquals(4000L, ring.packets)
+        assertEquals(0L, ring.drops)
+
+        val packets = directory.listFiles()!!.flatMap { read(it) }.filter { it.type == EPB }.map { it.body }
+        assertEquals(4000, packets.size)
+        packets.forEach { packet ->
+            // Nothing of another packet in between.
+            val thread = packet.getInt(12) - 100
+            assertTrue((0 until packet.getInt(12)).all { packet.get(20 + it) == thread.toByte() })
+        }
+    }
+
+    @Test
+    fun testDisabled() {
+        val ring = PcapngRing(directory)
+        ring.enabled = false
+        ring.write(first, true, ByteArray(60))
+        ring.close()
+
+        assertEquals(0L, ring.packets)
+        assertTrue(directory.listFiles()!!.isEmpty())
+    }
+
+    /**
+     * Reads all blocks, checking their lengths on the way.
+     */
+    private fun read(file: File): List<Block> {
+        val data = ByteBuffer.wrap(file.readBytes()).order(ByteOrder.LITTLE_ENDIAN)
+        val blocks = arrayListOf<Block>()
+        while (data.hasRemaining()) {
+            val start = data.position()
+            val type = data.getInt(start)
+            val length = data.getInt(start + 4)
+            assertEquals(0, length % 4)
+            assertEquals(length, data.getInt(start + length - 4))
+
+            val body = data.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+            body.limit(start + length - 4).position(start + 8)
+            blocks.add(Block(type, body.slice().order(ByteOrder.LITTLE_ENDIAN)))
+            data.position(start + length)
+        }
+        return blocks
+    }
+
+    companion object {
+
+        private const val SHB = 0x0A0D0D0A
+        private const val IDB = 1
+        private const val EPB = 6
+        private const val FILLER = 0x80000B1D.toInt()
+    }
+}
@@ -19,7 +19,10 @@ package sssemil.com.net.util
 import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.Test
 import sssemil.com.net.structures.DataBitStream
+import sssemil.com.net.structures.DataBitWriter
 import sssemil.com.net.structures.InsufficientBitsException
+import sssemil.com.net.util.number.Nibble
+import java.nio.ByteBuffer
 import java.util.*
 
 class DataBitStreamTest {
@@ -72,4 +75,80 @@ class DataBitStreamTest {
         val dataBitStream = DataBitStream(testBits, 0, testBitsBoolean.size)
         assertEquals(testBits, dataBitStream.takeBits(testBitsBoolean.size))
     }
+
+    @Test
+    fun testBigEndian() {
+        val testBytes = byteArrayOf(0x12, 0x34, 0x56, 0x78, 0x9A.toByte(), 0xBC.toByte(), 0xDE.toByte(), 0xF0.toByte())
+        val dataBitStream = DataBitStream(testBytes, 0, testBytes.size)
+
+        assertEquals(0x1234.toShort(), dataBitStream.takeShort())
+        assertEquals(0x56789ABC, dataBitStream.takeInt())
+        assertEquals(0xDEF0u.toUShort(), dataBitStream.takeUShort())
+        assertTrue(dataBitStream.isEmpty())
+
+        assertEquals(0x123456789ABCDEF0, DataBitStream(testBytes, 0, testBytes.size).takeLong())
+    }
+
+    @Test
+    fun testLittleEndian() {
+        val testBytes = byteArrayOf(0x12, 0x34, 0x56, 0x78, 0x9A.toByte(), 0xBC.toByte(), 0xDE.toByte(), 0xF0.toByte())
+        val dataBitStream = DataBitStream(testBytes, 0, testBytes.size)
+
+        assertEquals(0x3412.toShort(), dataBitStream.takeShortLe())
+        assertEquals(0xBC9A7856u, dataBitStream.takeUIntLe())
+
+        assertEquals(0xF0DEBC9A78563412uL, DataBitStream(testBytes, 0, testBytes.size).takeULongLe())
+    }
+
+    @Test
+    fun testOffsetAndByteArray() {
+        val testBytes = ByteArray(64) { it.toByte() }
+        val dataBitStream = DataBitStream(ByteBuffer.wrap(testBytes, 3, 40))
+
+        assertEquals(3.toByte(), dataBitStream.takeByte())
+        assertEquals(ByteArray(32) { (it + 4).toByte() }.toList(), dataBitStream.takeByteArray(32).toList())
+        assertEquals(7, dataBitStream.remainingBytes())
+    }
+
+    @Test
+    fun testUnaligned() {
+        val testBytes = byteArrayOf(0x1F, 0x23, 0x45, 0x67, 0x0F)
+        val dataBitStream = DataBitStream(testBytes, 0, testBytes.size)
+
+        assertEquals(0x0F, dataBitStream.takeNibble().toInt())
+        assertEquals(0x31.toByte(), dataBitStream.takeByte())
+        assertEquals(0x5274.toShort(), dataBitStream.takeShort())
+        assertEquals(0x06, dataBitStream.takeNibble().toInt())
+        assertEquals(0x0F.toByte(), dataBitStream.takeByte())
+    }
+
+    @Test
+    fun testWriterRoundTrip() {
+        val bytes = ByteArray(32)
+        DataBitWriter(bytes)
+            .putByte(-1)
+            .putShort(0x1234)
+            .putIntLe(0x11223344)
+            .putNibble(Nibble(0x0A))
+            .putInt(0x55667788)
+            .putBit(true)
+            .putBit(false)
+            .putBit(true)
+            .putBit(true)
+            .putLong(Long.MIN_VALUE)
+            .putByteArray(byteArrayOf(1, 2, 3))
+
+        val dataBitStream = DataBitStream(bytes, 0, bytes.size)
+        assertEquals((-1).toByte(), dataBitStream.takeByte())
+        assertEquals(0x1234.toShort(), dataBitStream.takeShort())
+        assertEquals(0x11223344, dataBitStream.takeIntLe())
+        assertEquals(0x0A, dataBitStream.takeNibble().toInt())
+        assertEquals(0x55667788, dataBitStream.takeInt())
+        assertEquals(true, dataBitStream.takeBit())
+        assertEquals(false, dataBitStream.takeBit())
+        assertEquals(true, dataBitStream.takeBit())
+        assertEquals(true, dataBitStream.takeBit())
+        assertEquals(Long.MIN_VALUE, dataBitStream.takeLong())
+        assertEquals(listOf<Byte>(1, 2, 3), dataBitStream.takeByteArray(3).toList())
+    }
 }
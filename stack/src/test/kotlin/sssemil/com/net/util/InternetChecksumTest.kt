@@ -16,8 +16,16 @@
 
 package sssemil.com.net.util
 
+import org.junit.jupiter.api.Assertions.assertArrayEquals
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
+import sssemil.com.net.packet.*
+import sssemil.com.net.packet.icmpv6.EchoRequestMessage
+import sssemil.com.net.packet.types.IpProtocol
+import java.net.Inet6Address
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.*
 
 /*
  * From https://stackoverflow.com/a/4114507/3119031.
@@ -98,4 +106,147 @@ class InternetChecksumTest {
         assertEquals(expected, actual)
 
     }
-}
\ No newline at end of file
+
+    @Test
+    fun validSegmentSerializedInPlace() {
+        val udp = UDP(sourcePort = 1234u, destinationPort = 4321u, payload = Data(ByteArray(37) { (it * 7).toByte() }))
+        val ipv6 = IPv6().apply {
+            hopLimit = 64
+            sourceAddress = Inet6Address.getByName("fc00::1") as Inet6Address
+            destinationAddress = Inet6Address.getByName("fcff::2") as Inet6Address
+            payload = udp
+        }
+
+        // Serialize behind some headroom, as the egress path does.
+        val length = ipv6.serializedLength()
+        val bb = ByteBuffer.allocate(4 + length)
+        bb.position(4)
+        ipv6.serializeInto(bb)
+        assertEquals(4 + length, bb.position())
+
+        // The legacy path produces the same bytes.
+        udp.resetChecksum()
+        assertArrayEquals(ipv6.serialize(), bb.array().copyOfRange(4, bb.position()))
+
+        // A segment with a valid checksum sums up to zero.
+        val segmentOffset = 4 + IPv6.HEADER_LENGTH
+        assertEquals(0, InternetChecksum.checksumHelper(bb, segmentOffset, udp.length.toInt(), ipv6, IpProtocol.UDP).toInt())
+    }
+
+    private fun echoRequest() = IPv6().apply {
+        hopLimit = 64
+        sourceAddress = Inet6Address.getByName("fc00::1") as Inet6Address
+        destinationAddress = Inet6Address.getByName("fcff::2") as Inet6Address
+        payload = ICMPv6(
+            icmpType = ICMPv6.MessageType.ECHO_REQUEST.type,
+            payload = EchoRequestMessage(7, 9, Data(ByteArray(55) { it.toByte() }))
+        )
+    }
+
+    /**
+     * Serializes [packet] once with the adjusted checksum and once with a freshly computed one.
+     */
+    private fun assertChecksumMatchesRecompute(packet: IPv6) {
+        val adjusted = packet.serialize()
+        (packet.payload as IChecksummedPacket).checksum = 0
+        assertArrayEquals(packet.serialize(), adjusted)
+    }
+
+    @Test
+    fun adjustedWord() {
+        val packet = echoRequest()
+        packet.serialize()
+
+        packet.swapAddresses()
+        (packet.payload as ICMPv6).rewriteType(ICMPv6.MessageType.ECHO_REPLY.type)
+
+        assertChecksumMatchesRecompute(packet)
+    }
+
+    @Test
+    fun adjustedAddress() {
+        val packet = echoRequest()
+        packet.serialize()
+
+        packet.rewriteSourceAddress(Inet6Address.getByName("fd12:3456::abcd") as Inet6Address)
+        packet.rewriteDestinationAddress(Inet6Address.getByName("fc00::ffff:ffff") as Inet6Address)
+
+        assertChecksumMatchesRecompute(packet)
+    }
+
+    @Test
+    fun adjustedWordInPlace() {
+        val request = echoRequest()
+        val frame = Ipv6Frame().wrap(ByteBuffer.wrap(request.serialize()), 0, request.serializedLength())
+
+        frame.view.swapAddresses()
+        frame.icmpv6()!!.rewriteType(ICMPv6.MessageType.ECHO_REPLY.type.toInt())
+
+        val reply = frame.decode()
+        assertEquals(request.destinationAddress, reply.sourceAddress)
+        assertChecksumMatchesRecompute(reply)
+    }
+
+    /**
+     * Plain two bytes at a time sum, to check the accumulator against.
+     */
+    private fun referenceChecksum(buf: ByteArray): Int {
+        var sum = 0
+        for (i in 0 until buf.size step 2) {
+            sum += buf[i].toInt() and 0xFF shl 8
+            if (i + 1 < buf.size) {
+                sum += buf[i + 1].toInt() and 0xFF
+            }
+            sum = (sum and 0xFFFF) + (sum ushr 16)
+        }
+        return sum.inv() and 0xFFFF
+    }
+
+    @Test
+    fun validOddLengths() {
+        val random = Random(1071)
+        for (length in 0..70) {
+            val buf = ByteArray(length).also { random.nextBytes(it) }
+            assertEquals(referenceChecksum(buf).toLong(), InternetChecksum.calculateChecksum(buf), "length $length")
+        }
+    }
+
+    @Test
+    fun validUnalignedSegments() {
+        val random = Random(1624)
+        repeat(500) {
+            val data = ByteArray(random.nextInt(200)).also { random.nextBytes(it) }
+            val expected = referenceChecksum(data)
+
+            // Place the data at an odd offset of a bigger buffer and split it at random points.
+            val padding = 1 + random.nextInt(7)
+            val backing = ByteArray(padding + data.size + 3)
+            System.arraycopy(data, 0, backing, padding, data.size)
+            val bb = if (random.nextBoolean()) ByteBuffer.wrap(backing) else ByteBuffer.allocateDirect(backing.size).put(backing)
+            if (random.nextBoolean()) {
+                bb.order(ByteOrder.LITTLE_ENDIAN)
+            }
+
+            val cuts = (0 until random.nextInt(5)).map { random.nextInt(data.size + 1) }.sorted()
+            val accumulator = ChecksumAccumulator()
+            var start = 0
+            (cuts + data.size).forEach { end ->
+                accumulator.add(bb, padding + start, end - start)
+                start = end
+            }
+
+            assertEquals(expected, accumulator.finish().toInt() and 0xFFFF, "cuts $cuts of ${data.size}")
+        }
+    }
+
+    @Test
+    fun validPrimitiveSegments() {
+        val bytes = ByteBuffer.allocate(13).put(0x7F).putInt(0x12345678).putLong(-0x123456789ABCDEFL).array()
+        val accumulator = ChecksumAccumulator()
+            .add(bytes, 0, 1)
+            .addInt(0x12345678)
+            .addLong(-0x123456789ABCDEFL)
+
+        assertEquals(InternetChecksum.calculateChecksum(bytes), accumulator.finish().toLong() and 0xFFFF)
+    }
+}